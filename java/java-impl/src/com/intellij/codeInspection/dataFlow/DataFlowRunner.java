@@ -38,6 +38,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.util.PsiUtil;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -116,10 +117,13 @@ public class DataFlowRunner {
         return RunnerResult.TOO_COMPLEX;
       }
 
-      final ArrayList<DfaInstructionState> queue = new ArrayList<DfaInstructionState>();
+      final ArrayDeque<DfaInstructionState> queue = new ArrayDeque<DfaInstructionState>();
       for (final DfaMemoryState initialState : initialStates) {
         queue.add(new DfaInstructionState(myInstructions[0], initialState));
       }
+      // states queued before the branching instructions (join points of the flow): an equal state arriving by another path
+      // is merged with the queued one instead of being processed once more
+      final Map<Instruction, List<DfaMemoryState>> pendingStates = new THashMap<Instruction, List<DfaMemoryState>>();
 
       long timeLimit = ourTimeLimit;
       final boolean unitTestMode = ApplicationManager.getApplication().isUnitTestMode();
@@ -133,7 +137,7 @@ public class DataFlowRunner {
         }
         ProgressManager.checkCanceled();
 
-        DfaInstructionState instructionState = queue.remove(0);
+        DfaInstructionState instructionState = queue.poll();
         if (LOG.isDebugEnabled()) {
           LOG.debug(instructionState.toString());
         }
@@ -142,6 +146,7 @@ public class DataFlowRunner {
         long distance = instructionState.getDistanceFromStart();
 
         if (instruction instanceof BranchingInstruction) {
+          removePending(pendingStates, instruction, instructionState.getMemoryState());
           if (!instruction.setMemoryStateProcessed(instructionState.getMemoryState().createCopy())) {
             LOG.debug("Too complex because too many different possible states");
             return RunnerResult.TOO_COMPLEX; // Too complex :(
@@ -156,10 +161,13 @@ public class DataFlowRunner {
         if (after != null) {
           for (DfaInstructionState state : after) {
             Instruction nextInstruction = state.getInstruction();
-            if ((!(nextInstruction instanceof BranchingInstruction) || !nextInstruction.isMemoryStateProcessed(state.getMemoryState())) && instruction.getIndex() < endOffset) {
-              state.setDistanceFromStart(distance + 1);
-              queue.add(state);
+            if (instruction.getIndex() >= endOffset) continue;
+            if (nextInstruction instanceof BranchingInstruction) {
+              if (nextInstruction.isMemoryStateProcessed(state.getMemoryState())) continue;
+              if (!addPending(pendingStates, nextInstruction, state.getMemoryState())) continue;
             }
+            state.setDistanceFromStart(distance + 1);
+            queue.add(state);
           }
         }
 
@@ -182,6 +190,36 @@ public class DataFlowRunner {
     }
   }
 
+  /**
+   * @return false if an equal state is already queued before the instruction
+   */
+  private static boolean addPending(Map<Instruction, List<DfaMemoryState>> pendingStates, Instruction instruction, DfaMemoryState state) {
+    List<DfaMemoryState> states = pendingStates.get(instruction);
+    if (states == null) {
+      states = new ArrayList<DfaMemoryState>(2);
+      pendingStates.put(instruction, states);
+    }
+    else {
+      for (DfaMemoryState pending : states) {
+        ProgressManager.checkCanceled();
+        if (pending.equals(state)) return false;
+      }
+    }
+    states.add(state);
+    return true;
+  }
+
+  private static void removePending(Map<Instruction, List<DfaMemoryState>> pendingStates, Instruction instruction, DfaMemoryState state) {
+    List<DfaMemoryState> states = pendingStates.get(instruction);
+    if (states == null) return;
+    for (int i = 0; i < states.size(); i++) {
+      if (states.get(i) == state) {
+        states.remove(i);
+        break;
+      }
+    }
+  }
+
   protected ControlFlowAnalyzer createControlFlowAnalyzer() {
     return new ControlFlowAnalyzer(myValueFactory);
   }
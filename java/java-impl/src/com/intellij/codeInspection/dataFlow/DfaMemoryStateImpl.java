@@ -46,12 +46,17 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInspection.dataFlow.DfaMemoryStateImpl");
   private final DfaValueFactory myFactory;
 
+  // equivalence classes, distinct pairs and variable states are shared with the copies of the state (copy-on-write):
+  // a state only changes the ones it owns, so branching doesn't copy the whole state
   private final ArrayList<SortedIntSet> myEqClasses = new ArrayList<SortedIntSet>();
+  private final BitSet myOwnedEqClasses = new BitSet();
   private int myStateSize = 0;
   private final Stack<DfaValue> myStack = new Stack<DfaValue>();
   private TIntStack myOffsetStack = new TIntStack(1);
-  private final TLongHashSet myDistinctClasses = new TLongHashSet();
+  private TLongHashSet myDistinctClasses = new TLongHashSet();
+  private boolean myDistinctClassesShared;
   private final THashMap<DfaVariableValue,DfaVariableState> myVariableStates = new THashMap<DfaVariableValue, DfaVariableState>();
+  private final THashSet<DfaVariableValue> myOwnedVariableStates = new THashSet<DfaVariableValue>();
 
   public DfaMemoryStateImpl(final DfaValueFactory factory) {
     myFactory = factory;
@@ -70,18 +75,15 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
 
     //noinspection unchecked
     newState.myStack.addAll(myStack);
-    newState.myDistinctClasses.addAll(myDistinctClasses.toArray());
     newState.myStateSize = myStateSize;
     newState.myOffsetStack = new TIntStack(myOffsetStack);
 
-    for (int i = 0; i < myEqClasses.size(); i++) {
-      SortedIntSet aClass = myEqClasses.get(i);
-      newState.myEqClasses.add(aClass != null ? new SortedIntSet(aClass.toNativeArray()) : null);
-    }
-
-    for (DfaVariableValue dfaVariableValue : myVariableStates.keySet()) {
-      newState.myVariableStates.put(dfaVariableValue, myVariableStates.get(dfaVariableValue).clone());
-    }
+    newState.myDistinctClasses = myDistinctClasses;
+    newState.myDistinctClassesShared = myDistinctClassesShared = true;
+    newState.myEqClasses.addAll(myEqClasses);
+    myOwnedEqClasses.clear();
+    newState.myVariableStates.putAll(myVariableStates);
+    myOwnedVariableStates.clear();
     return newState;
   }
 
@@ -275,11 +277,11 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
       applyCondition(dfaEqual);
 
       if (value instanceof DfaVariableValue) {
-        myVariableStates.put(var, getVariableState((DfaVariableValue)value).clone());
+        putVariableState(var, getReadOnlyVariableState((DfaVariableValue)value).clone());
       }
     }
 
-    if (getVariableState(var).isNotNull()) {
+    if (getReadOnlyVariableState(var).isNotNull()) {
       applyCondition(compareToNull(var, true));
     }
   }
@@ -293,6 +295,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
     }
     SortedIntSet aClass = new SortedIntSet();
     aClass.add(dfaValue.getID());
+    myOwnedEqClasses.set(myEqClasses.size());
     myEqClasses.add(aClass);
     myStateSize++;
 
@@ -443,15 +446,17 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
       }
     }
 
+    c1 = getEqClassForWrite(c1Index);
     for (int i = 0; i < c2.size(); i++) {
       int c = c2.get(i);
       c1.add(c);
     }
 
+    TLongHashSet distinctClasses = c2Pairs.isEmpty() ? myDistinctClasses : getDistinctClassesForWrite();
     for (int i = 0; i < c2Pairs.size(); i++) {
       long c = c2Pairs.get(i);
-      myDistinctClasses.remove(c);
-      myDistinctClasses.add(createPair(c1Index, low(c) == c2Index ? high(c) : low(c)));
+      distinctClasses.remove(c);
+      distinctClasses.add(createPair(c1Index, low(c) == c2Index ? high(c) : low(c)));
     }
     myEqClasses.set(c2Index, null);
     myStateSize--;
@@ -459,6 +464,26 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
     return true;
   }
 
+  @NotNull
+  private SortedIntSet getEqClassForWrite(int index) {
+    SortedIntSet aClass = myEqClasses.get(index);
+    if (!myOwnedEqClasses.get(index)) {
+      aClass = new SortedIntSet(aClass.toNativeArray());
+      myEqClasses.set(index, aClass);
+      myOwnedEqClasses.set(index);
+    }
+    return aClass;
+  }
+
+  @NotNull
+  private TLongHashSet getDistinctClassesForWrite() {
+    if (myDistinctClassesShared) {
+      myDistinctClasses = new TLongHashSet(myDistinctClasses.toArray());
+      myDistinctClassesShared = false;
+    }
+    return myDistinctClasses;
+  }
+
   private static int low(long l) {
     return (int)l;
   }
@@ -483,7 +508,10 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
   }
 
   private void makeClassesDistinct(int c1Index, int c2Index) {
-    myDistinctClasses.add(createPair(c1Index, c2Index));
+    long pair = createPair(c1Index, c2Index);
+    if (!myDistinctClasses.contains(pair)) {
+      getDistinctClassesForWrite().add(pair);
+    }
   }
 
   public boolean isNull(DfaValue dfaValue) {
@@ -501,7 +529,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
   }
 
   public boolean isNotNull(DfaVariableValue dfaVar) {
-    if (getVariableState(dfaVar).isNotNull()) {
+    if (getReadOnlyVariableState(dfaVar).isNotNull()) {
       return true;
     }
 
@@ -725,7 +753,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
 
     if (value instanceof DfaVariableValue) {
       if (isNotNull((DfaVariableValue)value)) return true;
-      final DfaVariableState varState = getVariableState((DfaVariableValue)value);
+      final DfaVariableState varState = getReadOnlyVariableState((DfaVariableValue)value);
       if (varState.isNullable()) return false;
     }
     return true;
@@ -745,21 +773,44 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
     return myFactory.getRelationFactory().createRelation(dfaVar, dfaNull, JavaTokenType.EQEQ, negated);
   }
 
+  /**
+   * @return state of the variable which may be changed by the caller: a state shared with other memory states is copied first
+   */
   public DfaVariableState getVariableState(DfaVariableValue dfaVar) {
     DfaVariableState state = myVariableStates.get(dfaVar);
 
     if (state == null) {
       state = createVariableState(dfaVar);
-      myVariableStates.put(dfaVar, state);
+      putVariableState(dfaVar, state);
       PsiType type = dfaVar.getVariableType();
       if (type != null) {
         state.setInstanceofValue(myFactory.getTypeFactory().create(type));
       }
     }
+    else if (!myOwnedVariableStates.contains(dfaVar)) {
+      state = state.clone();
+      putVariableState(dfaVar, state);
+    }
 
     return state;
   }
 
+  /**
+   * @return state of the variable which is not to be modified since it may be shared with other memory states
+   */
+  public DfaVariableState getReadOnlyVariableState(DfaVariableValue dfaVar) {
+    DfaVariableState state = myVariableStates.get(dfaVar);
+    return state != null ? state : getVariableState(dfaVar);
+  }
+
+  private void putVariableState(DfaVariableValue dfaVar, DfaVariableState state) {
+    myVariableStates.put(dfaVar, state);
+    myOwnedVariableStates.add(dfaVar);
+  }
+
+  /**
+   * @return variable states, which are not to be modified since they may be shared with other memory states
+   */
   protected Map<DfaVariableValue, DfaVariableState> getVariableStates() {
     return myVariableStates;
   }
@@ -804,7 +855,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
     int size = myEqClasses.size();
     int interruptCount = 0;
     for (int varClassIndex = 0; varClassIndex < size; varClassIndex++) {
-      final SortedIntSet varClass = myEqClasses.get(varClassIndex);
+      SortedIntSet varClass = myEqClasses.get(varClassIndex);
       if (varClass == null) continue;
 
       for (int i = 0; i < varClass.size(); i++) {
@@ -814,6 +865,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
         int cl = varClass.get(i);
         DfaValue value = myFactory.getValue(cl);
         if (mine(idPlain, value) || mine(idNegated, value)) {
+          varClass = getEqClassForWrite(varClassIndex);
           varClass.remove(i);
           break;
         }
@@ -825,7 +877,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
         long[] pairs = myDistinctClasses.toArray();
         for (long pair : pairs) {
           if (low(pair) == varClassIndex || high(pair) == varClassIndex) {
-            myDistinctClasses.remove(pair);
+            getDistinctClassesForWrite().remove(pair);
           }
         }
       }
@@ -833,7 +885,7 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
         for (long pair : myDistinctClasses.toArray()) {
           if (low(pair) == varClassIndex && containsConstantsOnly(high(pair)) ||
               high(pair) == varClassIndex && containsConstantsOnly(low(pair))) {
-            myDistinctClasses.remove(pair);
+            getDistinctClassesForWrite().remove(pair);
           }
         }
       }
@@ -841,6 +893,8 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
 
     myVariableStates.remove(varPlain);
     myVariableStates.remove(varNegated);
+    myOwnedVariableStates.remove(varPlain);
+    myOwnedVariableStates.remove(varNegated);
   }
 
   private boolean containsConstantsOnly(int id) {
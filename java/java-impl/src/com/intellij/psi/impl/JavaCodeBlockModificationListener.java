@@ -22,7 +22,7 @@ import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.xml.XmlFile;
 import org.jetbrains.annotations.NotNull;
 
-public class JavaCodeBlockModificationListener implements PsiTreeChangePreprocessor {
+public class JavaCodeBlockModificationListener implements CodeBlockAwareTreeChangePreprocessor {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.JavaCodeBlockModificationListener");
 
   private final PsiModificationTrackerImpl myModificationTracker;
@@ -18,14 +18,25 @@ package com.intellij.codeInspection;
 import com.intellij.JavaTestUtil;
 import com.intellij.codeInsight.*;
 import com.intellij.codeInspection.dataFlow.DataFlowInspection;
+import com.intellij.codeInspection.dataFlow.RunnerResult;
+import com.intellij.codeInspection.dataFlow.StandardDataFlowRunner;
+import com.intellij.codeInspection.dataFlow.StandardInstructionVisitor;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiCodeBlock;
+import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author peter
@@ -63,6 +74,24 @@ public class DataFlowInspectionTest extends LightCodeInsightFixtureTestCase {
   public void testTryCatchInForNotComplex() throws Throwable { doTest(); }
   public void testFieldChangedBetweenSynchronizedBlocks() throws Throwable { doTest(); }
 
+  public void testComplexMethodsPerformance() {
+    final List<PsiCodeBlock> bodies = new ArrayList<PsiCodeBlock>();
+    for (String name : new String[]{"BigMethodNotComplex", "BuildRegexpNotComplex", "TernaryInWhileNotComplex", "TryCatchInForNotComplex"}) {
+      PsiFile file = myFixture.configureByFile(name + ".java");
+      for (PsiMethod method : PsiTreeUtil.findChildrenOfType(file, PsiMethod.class)) {
+        ContainerUtil.addIfNotNull(method.getBody(), bodies);
+      }
+    }
+    PlatformTestUtil.startPerformanceTest("dataflow analysis of complex methods", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (PsiCodeBlock body : bodies) {
+          assertEquals(RunnerResult.OK, new StandardDataFlowRunner(false).analyzeMethod(body, new StandardInstructionVisitor()));
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
   public void testGeneratedEquals() throws Throwable { doTest(); }
 
   public void testIDEA84489() throws Throwable { doTest(); }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.resolve
+import com.intellij.openapi.command.WriteCommandAction
+import com.intellij.psi.PsiClass
+import com.intellij.psi.PsiDocumentManager
+import com.intellij.psi.PsiPolyVariantReference
+import com.intellij.psi.impl.source.resolve.ResolveCache
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase
+
+class ResolveCacheTest extends LightCodeInsightFixtureTestCase {
+
+  public void "test results survive changes inside code blocks"() {
+    myFixture.configureByText 'a.java', 'class A { void foo() { String s; } void bar() { int i = 0; <caret> } }'
+    def ref = resolveStringReference()
+    def cache = ResolveCache.getInstance(project)
+
+    myFixture.type 'i++;'
+    PsiDocumentManager.getInstance(project).commitAllDocuments()
+    assert ref.element.valid
+    assert cache.isCached(ref, true, false, true)
+
+    def hits = cache.hitCount
+    assert ref.resolve() instanceof PsiClass
+    assert cache.hitCount == hits + 1
+  }
+
+  public void "test results are dropped on out of code block changes"() {
+    myFixture.configureByText 'a.java', 'class A { void foo() { String s; } <caret> }'
+    def ref = resolveStringReference()
+
+    myFixture.type 'int field;'
+    PsiDocumentManager.getInstance(project).commitAllDocuments()
+    assert !ResolveCache.getInstance(project).isCached(ref, true, false, true)
+  }
+
+  public void "test results are dropped on changes of non-Java files"() {
+    def xml = myFixture.addFileToProject('a.xml', '<root/>')
+    myFixture.configureByText 'a.java', 'class A { void foo() { String s; } }'
+    def ref = resolveStringReference()
+
+    new WriteCommandAction.Simple(project) {
+      @Override
+      protected void run() {
+        def document = PsiDocumentManager.getInstance(project).getDocument(xml)
+        document.insertString(document.text.indexOf('/>'), ' attr="value"')
+        PsiDocumentManager.getInstance(project).commitDocument(document)
+      }
+    }.execute().throwException()
+    assert !ResolveCache.getInstance(project).isCached(ref, true, false, true)
+  }
+
+  private PsiPolyVariantReference resolveStringReference() {
+    def ref = myFixture.file.findReferenceAt(myFixture.file.text.indexOf('String')) as PsiPolyVariantReference
+    assert ref.resolve() instanceof PsiClass
+    assert ResolveCache.getInstance(project).isCached(ref, true, false, true)
+    return ref
+  }
+}
@@ -26,5 +26,8 @@ public interface GlobalOptions {
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
   String REBUILD_ON_DEPENDENCY_CHANGE_OPTION = "rebuild.on.dependency.change";
+  String USE_CONTENT_DIGESTS_OPTION = "use.content.digests";
+  String DIFFERENTIATE_PARALLEL_OPTION = "differentiate.parallel";
+  String ARCHIVES_PARALLEL_DEFLATE_OPTION = "archives.parallel.deflate";
   String LOG_DIR_OPTION = "log.dir";
 }
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.ByteBufferWrapper;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import gnu.trove.TIntProcedure;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Int-to-ints relation (e.g. class to its subclasses) stored in a compressed sparse row layout: sorted keys, offsets of
+ * their values and all the values in one memory-mapped file, so that a lookup is a binary search and an array copy
+ * instead of a record deserialization.
+ * <p/>
+ * Changes are kept in memory and appended to a delta file on flush as the full new value sets of the changed keys.
+ * When the delta grows comparable to the base, the two are merged into a new base file.
+ * <p/>
+ * Lookups may be done concurrently as long as the maplet isn't modified at the same time.
+ */
+class IntIntCompactMultiMaplet extends IntIntMultiMaplet {
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 3; // version, key count, value count
+  private static final int REMOVED = -1;
+  private static final int MIN_COMPACTION_SIZE = 4096;
+  private static final TIntHashSet REMOVED_COLLECTION = new TIntHashSet();
+
+  private final File myFile;
+  private final File myDeltaFile;
+
+  private ByteBufferWrapper myBaseBuffer;
+  private IntBuffer myBase;
+  private int myKeyCount;
+  private int myValueCount;
+
+  private final TIntObjectHashMap<TIntHashSet> myDelta = new TIntObjectHashMap<TIntHashSet>();
+  private final TIntHashSet myDirtyKeys = new TIntHashSet();
+  private long myDeltaSize;
+
+  public IntIntCompactMultiMaplet(final File file) throws IOException {
+    myFile = file;
+    myDeltaFile = new File(file.getPath() + ".delta");
+    mapBase();
+    readDelta();
+  }
+
+  private void mapBase() throws IOException {
+    myBaseBuffer = null;
+    myBase = null;
+    myKeyCount = myValueCount = 0;
+
+    if (myFile.length() < HEADER_SIZE * 4) {
+      return;
+    }
+    final ByteBufferWrapper wrapper = ByteBufferWrapper.readOnly(myFile, 0);
+    final IntBuffer base = wrapper.getBuffer().asIntBuffer();
+    if (base.get(0) != VERSION || base.capacity() != HEADER_SIZE + 2 * base.get(1) + 1 + base.get(2)) {
+      wrapper.unmap();
+      throw new IOException("Corrupted graph file: " + myFile);
+    }
+    myBaseBuffer = wrapper;
+    myBase = base;
+    myKeyCount = base.get(1);
+    myValueCount = base.get(2);
+  }
+
+  private void readDelta() throws IOException {
+    if (!myDeltaFile.exists()) {
+      return;
+    }
+    long completeLength = 0;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myDeltaFile)));
+    try {
+      // each record is the full state of a key, so the later ones replace the former
+      while (true) {
+        final int key = in.readInt();
+        final int count = in.readInt();
+        final TIntHashSet values;
+        if (count == REMOVED) {
+          values = REMOVED_COLLECTION;
+        }
+        else {
+          values = new TIntHashSet(count);
+          for (int i = 0; i < count; i++) {
+            values.add(in.readInt());
+          }
+        }
+        myDelta.put(key, values);
+        myDeltaSize += 2 + values.size();
+        completeLength += 4 * (count == REMOVED ? 2 : 2 + count);
+      }
+    }
+    catch (EOFException ignored) {
+      // the tail of a record which wasn't written completely is dropped
+    }
+    finally {
+      in.close();
+    }
+
+    if (myDeltaFile.length() > completeLength) {
+      // the records appended later must not be read as a part of the unfinished one
+      final RandomAccessFile file = new RandomAccessFile(myDeltaFile, "rw");
+      try {
+        file.setLength(completeLength);
+      }
+      finally {
+        file.close();
+      }
+    }
+  }
+
+  private int indexOf(final int key) {
+    int low = 0;
+    int high = myKeyCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int k = myBase.get(HEADER_SIZE + middle);
+      if (k < key) {
+        low = middle + 1;
+      }
+      else if (k > key) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private int[] getBaseValues(final int index) {
+    final int offsetsStart = HEADER_SIZE + myKeyCount;
+    final int from = myBase.get(offsetsStart + index);
+    final int to = myBase.get(offsetsStart + index + 1);
+    final int[] values = new int[to - from];
+    final int valuesStart = offsetsStart + myKeyCount + 1;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = myBase.get(valuesStart + from + i);
+    }
+    return values;
+  }
+
+  @Override
+  public boolean containsKey(final int key) {
+    final TIntHashSet delta = myDelta.get(key);
+    if (delta != null) {
+      return delta != REMOVED_COLLECTION;
+    }
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public TIntHashSet get(final int key) {
+    final TIntHashSet delta = myDelta.get(key);
+    if (delta != null) {
+      return delta == REMOVED_COLLECTION ? null : delta;
+    }
+    final int index = indexOf(key);
+    return index < 0 ? null : new TIntHashSet(getBaseValues(index));
+  }
+
+  // the set of the key which can be changed in place
+  private TIntHashSet getForUpdate(final int key) {
+    TIntHashSet collection = myDelta.get(key);
+    if (collection == null || collection == REMOVED_COLLECTION) {
+      final int index = collection == null ? indexOf(key) : -1;
+      collection = index < 0 ? new TIntHashSet() : new TIntHashSet(getBaseValues(index));
+      myDelta.put(key, collection);
+    }
+    myDirtyKeys.add(key);
+    return collection;
+  }
+
+  @Override
+  public void put(final int key, final int value) {
+    getForUpdate(key).add(value);
+  }
+
+  @Override
+  public void put(final int key, final TIntHashSet value) {
+    final TIntHashSet collection = getForUpdate(key);
+    value.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int v) {
+        collection.add(v);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replace(final int key, final TIntHashSet value) {
+    if (value == null || value.isEmpty()) {
+      remove(key);
+    }
+    else {
+      myDelta.put(key, new TIntHashSet(value.toArray()));
+      myDirtyKeys.add(key);
+    }
+  }
+
+  @Override
+  public void putAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replaceAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void remove(final int key) {
+    myDelta.put(key, REMOVED_COLLECTION);
+    myDirtyKeys.add(key);
+  }
+
+  @Override
+  public void removeFrom(final int key, final int value) {
+    if (containsKey(key)) {
+      final TIntHashSet collection = getForUpdate(key);
+      if (collection.remove(value) && collection.isEmpty()) {
+        remove(key);
+      }
+    }
+  }
+
+  @Override
+  public void removeAll(final int key, final TIntHashSet values) {
+    if (containsKey(key)) {
+      final TIntHashSet collection = getForUpdate(key);
+      if (collection.removeAll(values.toArray()) && collection.isEmpty()) {
+        remove(key);
+      }
+    }
+  }
+
+  @Override
+  public void forEachEntry(final TIntObjectProcedure<TIntHashSet> proc) {
+    for (int i = 0; i < myKeyCount; i++) {
+      final int key = myBase.get(HEADER_SIZE + i);
+      if (!myDelta.containsKey(key) && !proc.execute(key, new TIntHashSet(getBaseValues(i)))) {
+        return;
+      }
+    }
+    myDelta.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        return values == REMOVED_COLLECTION || proc.execute(key, values);
+      }
+    });
+  }
+
+  @Override
+  public void flush(boolean memoryCachesOnly) {
+    try {
+      writeDelta();
+      if (!memoryCachesOnly && myDeltaSize > Math.max(MIN_COMPACTION_SIZE, (myKeyCount + myValueCount) / 4)) {
+        compact();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    flush(false);
+    if (myBaseBuffer != null) {
+      myBaseBuffer.unmap();
+      myBaseBuffer = null;
+      myBase = null;
+    }
+  }
+
+  private void writeDelta() throws IOException {
+    if (myDirtyKeys.isEmpty()) {
+      return;
+    }
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myDeltaFile, true)));
+    try {
+      for (final int key : myDirtyKeys.toArray()) {
+        final TIntHashSet values = myDelta.get(key);
+        out.writeInt(key);
+        if (values == REMOVED_COLLECTION) {
+          out.writeInt(REMOVED);
+          myDeltaSize += 2;
+        }
+        else {
+          out.writeInt(values.size());
+          for (final int value : values.toArray()) {
+            out.writeInt(value);
+          }
+          myDeltaSize += 2 + values.size();
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+    myDirtyKeys.clear();
+  }
+
+  /**
+   * Merges the delta into a new base file.
+   */
+  private void compact() throws IOException {
+    final int[] deltaKeys = myDelta.keys();
+    Arrays.sort(deltaKeys);
+
+    final TIntArrayList keys = new TIntArrayList(myKeyCount + deltaKeys.length);
+    final TIntArrayList offsets = new TIntArrayList(myKeyCount + deltaKeys.length + 1);
+    final TIntArrayList values = new TIntArrayList(myValueCount);
+    int b = 0, d = 0;
+    while (b < myKeyCount || d < deltaKeys.length) {
+      final int baseKey = b < myKeyCount ? myBase.get(HEADER_SIZE + b) : 0;
+      final int[] keyValues;
+      final int key;
+      if (d == deltaKeys.length || b < myKeyCount && baseKey < deltaKeys[d]) {
+        key = baseKey;
+        keyValues = getBaseValues(b++);
+      }
+      else {
+        key = deltaKeys[d++];
+        if (b < myKeyCount && baseKey == key) b++;
+        final TIntHashSet delta = myDelta.get(key);
+        if (delta == REMOVED_COLLECTION) continue;
+        keyValues = delta.toArray();
+        Arrays.sort(keyValues);
+      }
+      keys.add(key);
+      offsets.add(values.size());
+      values.add(keyValues);
+    }
+    offsets.add(values.size());
+
+    final File temp = new File(myFile.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(keys.size());
+      out.writeInt(values.size());
+      for (TIntArrayList list : new TIntArrayList[]{keys, offsets, values}) {
+        for (int i = 0; i < list.size(); i++) {
+          out.writeInt(list.getQuick(i));
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    if (myBaseBuffer != null) {
+      myBaseBuffer.unmap();
+    }
+    FileUtil.rename(temp, myFile);
+    mapBase();
+    FileUtil.delete(myDeltaFile);
+    myDelta.clear();
+    myDeltaSize = 0;
+  }
+}
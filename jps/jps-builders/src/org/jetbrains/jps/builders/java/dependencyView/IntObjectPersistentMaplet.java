@@ -71,7 +71,10 @@ public class IntObjectPersistentMaplet<V> extends IntObjectMaplet<V>{
 
   @Override
   public V get(final int key) {
-    final Object obj = myCache.get(key);
+    final Object obj;
+    synchronized (myCache) { // the cache may be queried by several threads of a parallel differentiation
+      obj = myCache.get(key);
+    }
     return obj == NULL_OBJ? null : (V)obj;
   }
 
@@ -19,13 +19,16 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.util.io.IntInlineKeyDescriptor;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -33,8 +36,10 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author: db
@@ -43,13 +48,16 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class Mappings {
   private final static Logger LOG = Logger.getInstance("#org.jetbrains.ether.dependencyView.Mappings");
 
-  private final static String CLASS_TO_SUBCLASSES = "classToSubclasses.tab";
-  private final static String CLASS_TO_CLASS = "classToClass.tab";
+  private final static String CLASS_TO_SUBCLASSES = "classToSubclasses.graph";
+  private final static String CLASS_TO_CLASS = "classToClass.graph";
   private final static String SOURCE_TO_CLASS = "sourceToClass.tab";
   private final static String CLASS_TO_SOURCE = "classToSource.tab";
-  private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static boolean ourParallelDifferentiate = Boolean.parseBoolean(System.getProperty(GlobalOptions.DIFFERENTIATE_PARALLEL_OPTION, "false"));
+  private static final int PARALLEL_CHUNK_SIZE = 256;
+  private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static final BoundedTaskExecutor ourDifferentiateExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), PARALLELISM);
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -119,6 +127,16 @@ public class Mappings {
     myObjectClassName = myContext.get("java/lang/Object");
   }
 
+  /**
+   * @return the previous value
+   */
+  @TestOnly
+  public static boolean setParallelDifferentiate(boolean parallel) {
+    boolean old = ourParallelDifferentiate;
+    ourParallelDifferentiate = parallel;
+    return old;
+  }
+
   private void createImplementation() throws IOException {
     if (!myIsDelta) {
       myContext = new DependencyContext(myRootDir);
@@ -138,8 +156,8 @@ public class Mappings {
       if (myIsDelta) {
         myRootDir.mkdirs();
       }
-      myClassToSubclasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
-      myClassToClassDependency = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS), INT_KEY_DESCRIPTOR);
+      myClassToSubclasses = new IntIntCompactMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES));
+      myClassToClassDependency = new IntIntCompactMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS));
       mySourceFileToClasses = new ObjectObjectPersistentMultiMaplet<File, ClassRepr>(
         DependencyContext.getTableFile(myRootDir, SOURCE_TO_CLASS), new FileKeyDescriptor(), ClassRepr.externalizer(myContext),
         ourClassSetConstructor
@@ -1816,60 +1834,129 @@ public class Mappings {
       state.myDependants.forEach(new TIntProcedure() {
         @Override
         public boolean execute(final int depClass) {
-          final File depFile = myClassToSourceFile.get(depClass);
-
-          if (depFile == null || myAffectedFiles.contains(depFile) || myCompiledFiles.contains(depFile)) {
-            return true;
+          final File depFile = getAffectedFile(state, depClass);
+          if (depFile != null) {
+            myAffectedFiles.add(depFile);
           }
+          return true;
+        }
+      });
+    }
 
-          debug("Dependent class: ", depClass);
-
-          final ClassRepr classRepr = getReprByName(depFile, depClass);
+    /**
+     * Checks the dependents of all the states on a few pooled threads, a chunk of dependents at a time. The graph and the affected
+     * files collected so far are only read meanwhile: every worker collects the files it finds affected, and they are merged afterwards.
+     */
+    private void calculateAffectedFilesInParallel(final List<DiffState> states) {
+      // the dependents of all the states are taken as one sequence: dependent i of state k is at offsets[k] + i
+      final int[][] dependants = new int[states.size()][];
+      final int[] offsets = new int[states.size() + 1];
+      for (int k = 0; k < states.size(); k++) {
+        dependants[k] = states.get(k).myDependants.toArray();
+        offsets[k + 1] = offsets[k] + dependants[k].length;
+      }
+      final int total = offsets[states.size()];
+      final AtomicInteger nextChunk = new AtomicInteger();
+      final int workers = Math.min(PARALLELISM, (total + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+
+      final List<Future<?>> tasks = new ArrayList<Future<?>>();
+      final List<Collection<File>> results = new ArrayList<Collection<File>>();
+      for (int w = 0; w < workers; w++) {
+        final Collection<File> affected = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+        results.add(affected);
+        tasks.add(ourDifferentiateExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            int k = 0;
+            int start;
+            while ((start = nextChunk.getAndAdd(PARALLEL_CHUNK_SIZE)) < total) {
+              final int end = Math.min(start + PARALLEL_CHUNK_SIZE, total);
+              for (int i = start; i < end; i++) {
+                while (offsets[k + 1] <= i) k++;
+                final File depFile = getAffectedFile(states.get(k), dependants[k][i - offsets[k]]);
+                if (depFile != null) {
+                  affected.add(depFile);
+                }
+              }
+            }
+          }
+        }));
+      }
 
-          if (classRepr == null) {
-            return true;
+      for (Future<?> task : tasks) {
+        try {
+          task.get();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error)cause;
           }
+          throw new RuntimeException(cause);
+        }
+      }
+      for (Collection<File> affected : results) {
+        myAffectedFiles.addAll(affected);
+      }
+    }
 
-          final Set<UsageRepr.Usage> depUsages = classRepr.getUsages();
+    /**
+     * @return the source file of the dependent class if its usages are affected by the changes of the state
+     */
+    @Nullable
+    private File getAffectedFile(final DiffState state, final int depClass) {
+      final File depFile = myClassToSourceFile.get(depClass);
 
-          if (depUsages == null || depUsages.isEmpty()) {
-            return true;
-          }
+      if (depFile == null || myAffectedFiles.contains(depFile) || myCompiledFiles.contains(depFile)) {
+        return null;
+      }
 
-          for (UsageRepr.Usage usage : depUsages) {
-            if (usage instanceof UsageRepr.AnnotationUsage) {
-              for (final UsageRepr.AnnotationUsage query : state.myAnnotationQuery) {
-                if (query.satisfies(usage)) {
-                  debug("Added file due to annotation query");
-                  myAffectedFiles.add(depFile);
+      debug("Dependent class: ", depClass);
 
-                  return true;
-                }
-              }
-            }
-            else if (state.myAffectedUsages.contains(usage)) {
-              final Util.UsageConstraint constraint = state.myUsageConstraints.get(usage);
+      final ClassRepr classRepr = getReprByName(depFile, depClass);
 
-              if (constraint == null) {
-                debug("Added file with no constraints");
-                myAffectedFiles.add(depFile);
+      if (classRepr == null) {
+        return null;
+      }
 
-                return true;
-              }
-              else {
-                if (constraint.checkResidence(depClass)) {
-                  debug("Added file with satisfied constraint");
-                  myAffectedFiles.add(depFile);
+      final Set<UsageRepr.Usage> depUsages = classRepr.getUsages();
 
-                  return true;
-                }
-              }
+      if (depUsages == null || depUsages.isEmpty()) {
+        return null;
+      }
+
+      for (UsageRepr.Usage usage : depUsages) {
+        if (usage instanceof UsageRepr.AnnotationUsage) {
+          for (final UsageRepr.AnnotationUsage query : state.myAnnotationQuery) {
+            if (query.satisfies(usage)) {
+              debug("Added file due to annotation query");
+              return depFile;
             }
           }
+        }
+        else if (state.myAffectedUsages.contains(usage)) {
+          final Util.UsageConstraint constraint = state.myUsageConstraints.get(usage);
 
-          return true;
+          if (constraint == null) {
+            debug("Added file with no constraints");
+            return depFile;
+          }
+          else {
+            if (constraint.checkResidence(depClass)) {
+              debug("Added file with satisfied constraint");
+              return depFile;
+            }
+          }
         }
-      });
+      }
+
+      return null;
     }
 
     boolean differentiate() {
@@ -1894,6 +1981,13 @@ public class Mappings {
           }
         });
 
+        // debug output of the checks is expected in the order of the files, so the parallel mode is off while it's on
+        final boolean parallel = ourParallelDifferentiate && !myEasyMode && !LOG.isDebugEnabled();
+        final List<DiffState> states = new ArrayList<DiffState>();
+        final long start = System.currentTimeMillis();
+        long checkTime = 0;
+        int dependants = 0;
+
         for (final FileClasses compiledFile : newClasses) {
           final File fileName = compiledFile.myFileName;
           final Set<ClassRepr> classes = compiledFile.myFileClasses;
@@ -1911,16 +2005,33 @@ public class Mappings {
           processAddedClasses(state, fileName);
 
           if (!myEasyMode) {
-            calculateAffectedFiles(state);
+            dependants += state.myDependants.size();
+            if (parallel) {
+              states.add(state);
+            }
+            else {
+              final long checkStart = System.currentTimeMillis();
+              calculateAffectedFiles(state);
+              checkTime += System.currentTimeMillis() - checkStart;
+            }
           }
         }
 
+        if (parallel) {
+          final long checkStart = System.currentTimeMillis();
+          calculateAffectedFilesInParallel(states);
+          checkTime = System.currentTimeMillis() - checkStart;
+        }
+
         debug("End of Differentiate.");
 
         if (myEasyMode) {
           return false;
         }
 
+        LOG.info("Differentiated " + newClasses.size() + " files in " + (System.currentTimeMillis() - start) + " ms: " +
+                 dependants + " dependent classes checked in " + checkTime + " ms" + (parallel ? " (parallel)" : ""));
+
         final Collection<String> removed = myDelta.myRemovedFiles;
         if (removed != null) {
           for (final String r : removed) {
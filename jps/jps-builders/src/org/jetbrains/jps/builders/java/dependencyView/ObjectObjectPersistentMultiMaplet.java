@@ -72,7 +72,10 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
 
   @Override
   public Collection<V> get(final K key) {
-    final Collection<V> collection = myCache.get(key);
+    final Collection<V> collection;
+    synchronized (myCache) { // the cache may be queried by several threads of a parallel differentiation
+      collection = myCache.get(key);
+    }
     return collection == NULL_COLLECTION? null : collection;
   }
 
@@ -66,7 +66,8 @@ public final class BinaryContent {
       if (parentFile == null) {
         throw e;
       }
-      if (!parentFile.mkdirs()) {
+      if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
+        // the directory may have been created concurrently by another writer
         throw e;
       }
       // second attempt
@@ -17,17 +17,28 @@ package org.jetbrains.jps.incremental;
 
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 11/18/12
  */
 public class CompiledClass extends UserDataHolderBase{
+  private static final int SAVE_BATCH_SIZE = 64;
+  // the classes are written to the same disk, more writers do not make it faster
+  private static final BoundedTaskExecutor ourSaveExecutor =
+    new BoundedTaskExecutor(SharedThreadPool.getInstance(), Math.min(4, Runtime.getRuntime().availableProcessors()));
   @NotNull
   private final File myOutputFile;
   @NotNull
@@ -36,6 +47,8 @@ public class CompiledClass extends UserDataHolderBase{
   private final String myClassName;
   @NotNull
   private BinaryContent myContent;
+  @Nullable
+  private ClassReader myReader;
 
   private boolean myIsDirty = false;
 
@@ -71,8 +84,22 @@ public class CompiledClass extends UserDataHolderBase{
     return myContent;
   }
 
+  /**
+   * @return the reader of the current content; it is created once and shared by all the builders processing the class
+   */
+  @NotNull
+  public ClassReader getClassReader() {
+    ClassReader reader = myReader;
+    if (reader == null) {
+      reader = new ClassReader(myContent.getBuffer(), myContent.getOffset(), myContent.getLength());
+      myReader = reader;
+    }
+    return reader;
+  }
+
   public void setContent(@NotNull BinaryContent content) {
     myContent = content;
+    myReader = null;
     myIsDirty = true;
   }
 
@@ -80,6 +107,69 @@ public class CompiledClass extends UserDataHolderBase{
     return myIsDirty;
   }
 
+  /**
+   * Saves the classes to their output files; large sets of classes are written by a few pooled threads.
+   *
+   * @return the errors occurred while saving the classes
+   */
+  @NotNull
+  public static Map<CompiledClass, IOException> saveAll(@NotNull Collection<CompiledClass> classes) {
+    final Map<CompiledClass, IOException> errors = new ConcurrentHashMap<CompiledClass, IOException>();
+    if (classes.size() <= SAVE_BATCH_SIZE) {
+      saveAll(classes, errors);
+      return errors;
+    }
+
+    // classes from the same directory are written by the same task
+    final List<CompiledClass> sorted = new ArrayList<CompiledClass>(classes);
+    Collections.sort(sorted, new Comparator<CompiledClass>() {
+      @Override
+      public int compare(CompiledClass o1, CompiledClass o2) {
+        return FileUtil.compareFiles(o1.myOutputFile, o2.myOutputFile);
+      }
+    });
+    final List<Future<?>> tasks = new ArrayList<Future<?>>();
+    for (int from = 0; from < sorted.size(); from += SAVE_BATCH_SIZE) {
+      final List<CompiledClass> batch = sorted.subList(from, Math.min(from + SAVE_BATCH_SIZE, sorted.size()));
+      tasks.add(ourSaveExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          saveAll(batch, errors);
+        }
+      }));
+    }
+    for (Future<?> task : tasks) {
+      try {
+        task.get();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+    return errors;
+  }
+
+  private static void saveAll(Collection<CompiledClass> classes, Map<CompiledClass, IOException> errors) {
+    for (CompiledClass compiledClass : classes) {
+      try {
+        compiledClass.save();
+      }
+      catch (IOException e) {
+        errors.put(compiledClass, e);
+      }
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
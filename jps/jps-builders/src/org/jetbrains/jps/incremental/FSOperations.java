@@ -17,6 +17,7 @@ package org.jetbrains.jps.incremental;
 
 import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -33,12 +34,14 @@ import org.jetbrains.jps.incremental.storage.Timestamps;
 import org.jetbrains.jps.model.java.JpsJavaClasspathKind;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
 import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Eugene Zhuravlev
@@ -142,52 +145,173 @@ public class FSOperations {
                              boolean forceMarkDirty,
                              @Nullable THashSet<File> currentFiles,
                              @Nullable FileFilter filter) throws IOException {
-    for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
-      if (!rd.getRootFile().exists() ||
-          //temp roots are managed by compilers themselves
-          (rd instanceof JavaSourceRootDescriptor && ((JavaSourceRootDescriptor)rd).isTemp)) {
-        continue;
+    final DirtyFilesScanner scanner = new DirtyFilesScanner(context, timestamps, forceMarkDirty, currentFiles, filter);
+    boolean scheduled = false;
+    try {
+      for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
+        if (!rd.getRootFile().exists() ||
+            //temp roots are managed by compilers themselves
+            (rd instanceof JavaSourceRootDescriptor && ((JavaSourceRootDescriptor)rd).isTemp)) {
+          continue;
+        }
+        if (filter == null) {
+          context.getProjectDescriptor().fsState.clearRecompile(rd);
+        }
+        final FSCache fsCache = rd.canUseFileCache() ? context.getProjectDescriptor().getFSCache() : FSCache.NO_CACHE;
+        scanner.scheduleRoot(rd, fsCache);
       }
-      if (filter == null) {
-        context.getProjectDescriptor().fsState.clearRecompile(rd);
+      scheduled = true;
+    }
+    finally {
+      if (!scheduled) {
+        scanner.cancel();
       }
-      final FSCache fsCache = rd.canUseFileCache() ? context.getProjectDescriptor().getFSCache() : FSCache.NO_CACHE;
-      traverseRecursively(context, rd, rd.getRootFile(), timestamps, forceMarkDirty, currentFiles, filter, fsCache);
     }
+    scanner.waitForCompletion();
   }
 
-  private static void traverseRecursively(CompileContext context,
-                                          final BuildRootDescriptor rd,
-                                          final File file,
-                                          @NotNull final Timestamps tsStorage,
-                                          final boolean forceDirty,
-                                          @Nullable Set<File> currentFiles, @Nullable FileFilter filter, @NotNull FSCache fsCache) throws IOException {
-    BuildRootIndex rootIndex = context.getProjectDescriptor().getBuildRootIndex();
-    final File[] children = fsCache.getChildren(file);
-    if (children != null) { // is directory
-      if (children.length > 0 && rootIndex.isDirectoryAccepted(file, rd)) {
+  /**
+   * Walks the roots comparing stamps of the files with the saved ones. Every directory is processed as a separate task,
+   * so large roots are traversed on all cores; the scanners of all targets share the same threads.
+   */
+  private static class DirtyFilesScanner {
+    private static final BoundedTaskExecutor ourExecutor =
+      new BoundedTaskExecutor(SharedThreadPool.getInstance(), Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    private final CompileContext myContext;
+    private final BuildRootIndex myRootIndex;
+    private final Timestamps myTimestamps;
+    private final boolean myForceDirty;
+    @Nullable private final Set<File> myCurrentFiles;
+    @Nullable private final FileFilter myFilter;
+    private final AtomicReference<Throwable> myException = new AtomicReference<Throwable>();
+    private volatile boolean myCancelled;
+    private final Object myLock = new Object();
+    private int myRunningTasks;
+
+    private DirtyFilesScanner(CompileContext context,
+                              @NotNull Timestamps timestamps,
+                              boolean forceDirty,
+                              @Nullable Set<File> currentFiles,
+                              @Nullable FileFilter filter) {
+      myContext = context;
+      myRootIndex = context.getProjectDescriptor().getBuildRootIndex();
+      myTimestamps = timestamps;
+      myForceDirty = forceDirty;
+      myCurrentFiles = currentFiles;
+      myFilter = filter;
+    }
+
+    public void scheduleRoot(BuildRootDescriptor rd, FSCache fsCache) throws IOException {
+      final File root = rd.getRootFile();
+      final File[] children = fsCache.getChildren(root);
+      if (children != null) {
+        scheduleDirectory(rd, root, children, fsCache);
+      }
+      else {
+        processFile(rd, root);
+      }
+    }
+
+    private void scheduleDirectory(final BuildRootDescriptor rd, final File dir, final File[] children, final FSCache fsCache) {
+      if (isStopped()) return;
+      synchronized (myLock) {
+        myRunningTasks++;
+      }
+      ourExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (!isStopped()) {
+              processDirectory(rd, dir, children, fsCache);
+            }
+          }
+          catch (Throwable e) {
+            myException.compareAndSet(null, e);
+          }
+          finally {
+            synchronized (myLock) {
+              if (--myRunningTasks == 0) {
+                myLock.notifyAll();
+              }
+            }
+          }
+        }
+      });
+    }
+
+    private void processDirectory(BuildRootDescriptor rd, File dir, File[] children, FSCache fsCache) throws IOException {
+      if (children.length > 0 && myRootIndex.isDirectoryAccepted(dir, rd)) {
         for (File child : children) {
-          traverseRecursively(context, rd, child, tsStorage, forceDirty, currentFiles, filter, fsCache);
+          final File[] grandChildren = fsCache.getChildren(child);
+          if (grandChildren != null) { // is directory
+            scheduleDirectory(rd, child, grandChildren, fsCache);
+          }
+          else { // is file
+            processFile(rd, child);
+          }
         }
       }
     }
-    else { // is file
-      if (rootIndex.isFileAccepted(file, rd) && (filter == null || filter.accept(file))) {
-        boolean markDirty = forceDirty;
+
+    private void processFile(BuildRootDescriptor rd, File file) throws IOException {
+      if (myRootIndex.isFileAccepted(file, rd) && (myFilter == null || myFilter.accept(file))) {
+        boolean markDirty = myForceDirty;
         if (!markDirty) {
-          markDirty = tsStorage.getStamp(file, rd.getTarget()) != FileSystemUtil.lastModified(file);
+          markDirty = !myTimestamps.isUpToDate(file, rd.getTarget(), FileSystemUtil.lastModified(file));
         }
         if (markDirty) {
           // if it is full project rebuild, all storages are already completely cleared;
           // so passing null because there is no need to access the storage to clear non-existing data
-          final Timestamps marker = context.isProjectRebuild() ? null : tsStorage;
-          context.getProjectDescriptor().fsState.markDirty(context, file, rd, marker, false);
+          final Timestamps marker = myContext.isProjectRebuild() ? null : myTimestamps;
+          myContext.getProjectDescriptor().fsState.markDirty(myContext, file, rd, marker, false);
         }
-        if (currentFiles != null) {
-          currentFiles.add(file);
+        if (myCurrentFiles != null) {
+          synchronized (myCurrentFiles) {
+            myCurrentFiles.add(file);
+          }
+        }
+      }
+    }
+
+    private boolean isStopped() {
+      return myCancelled || myException.get() != null;
+    }
+
+    /**
+     * Makes the scheduled tasks do nothing and waits for the running ones, so that no file is marked dirty after the call.
+     */
+    public void cancel() {
+      myCancelled = true;
+      try {
+        awaitTasks();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void awaitTasks() throws InterruptedException {
+      synchronized (myLock) {
+        while (myRunningTasks > 0) {
+          myLock.wait();
         }
       }
     }
+
+    public void waitForCompletion() throws IOException {
+      try {
+        awaitTasks();
+      }
+      catch (InterruptedException e) {
+        cancel();
+        throw new IOException("Interrupted while scanning for dirty files");
+      }
+      final Throwable e = myException.get();
+      if (e instanceof IOException) throw (IOException)e;
+      if (e instanceof RuntimeException) throw (RuntimeException)e;
+      if (e instanceof Error) throw (Error)e;
+    }
   }
 
   public static void pruneEmptyDirs(CompileContext context, @Nullable final Set<File> dirsToDelete) {
@@ -1084,11 +1084,16 @@ public class IncProjectBuilder {
       while (nextPassRequired);
     }
     finally {
+      final List<CompiledClass> modifiedClasses = new ArrayList<CompiledClass>();
       for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
         if (compiledClass.isDirty()) {
-          compiledClass.save();
+          modifiedClasses.add(compiledClass);
         }
       }
+      final Map<CompiledClass, IOException> saveErrors = CompiledClass.saveAll(modifiedClasses);
+      if (!saveErrors.isEmpty()) {
+        throw saveErrors.values().iterator().next();
+      }
       outputConsumer.fireFileGeneratedEvents();
       outputConsumer.clear();
       for (BuilderCategory category : BuilderCategory.values()) {
@@ -19,6 +19,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.MultiMap;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -105,12 +106,14 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
       }
 
       final Set<String> changedOutputPaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+      final Set<String> changedSourcePaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
       //noinspection SynchronizationOnLocalVariableOrMethodParameter
       holder.processDirtyFiles(new FileProcessor<ArtifactRootDescriptor, ArtifactBuildTarget>() {
         @Override
         public boolean apply(ArtifactBuildTarget target, File file, ArtifactRootDescriptor root) throws IOException {
           int rootIndex = root.getRootIndex();
           String sourcePath = FileUtil.toSystemIndependentName(file.getPath());
+          changedSourcePaths.add(sourcePath);
           addFileToProcess(filesToProcess, rootIndex, sourcePath, deletedFiles);
           final Collection<String> outputPaths = srcOutMapping.getOutputs(sourcePath);
           if (outputPaths != null) {
@@ -137,42 +140,51 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         return;
       }
 
-      deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
-      context.checkCanceled();
-
-      context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
-      final Set<JarInfo> changedJars = new THashSet<JarInfo>();
-      for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      // jars are updated using their previous versions, so the outdated ones are moved aside instead of being deleted
+      final Map<String, File> previousJars = moveOutdatedJarsAside(filesToDelete.keySet(), pd.getBuildRootIndex().getTargetRoots(target, context));
+      try {
+        deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
         context.checkCanceled();
-        final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
-        if (sourcePaths == null) continue;
 
-        for (String sourcePath : sourcePaths) {
-          if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
+        context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
+        final Set<JarInfo> changedJars = new THashSet<JarInfo>();
+        for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+          context.checkCanceled();
+          final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
+          if (sourcePaths == null) continue;
+
+          for (String sourcePath : sourcePaths) {
+            if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
+              }
+              continue;
             }
-            continue;
-          }
-          DestinationInfo destination = descriptor.getDestinationInfo();
-          if (destination instanceof ExplodedDestinationInfo) {
-            descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
-                                    outputConsumer, outSrcMapping);
-          }
-          else {
-            List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
-            if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
-              outSrcMapping.update(destination.getOutputFilePath(),
-                                   Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
-              changedJars.add(((JarDestinationInfo)destination).getJarInfo());
+            DestinationInfo destination = descriptor.getDestinationInfo();
+            if (destination instanceof ExplodedDestinationInfo) {
+              descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
+                                      outputConsumer, outSrcMapping);
+            }
+            else {
+              List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
+              if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
+                outSrcMapping.update(destination.getOutputFilePath(),
+                                     Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
+                changedJars.add(((JarDestinationInfo)destination).getJarInfo());
+              }
             }
           }
         }
-      }
-      context.checkCanceled();
+        context.checkCanceled();
 
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
-      builder.buildJars();
+        JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, changedSourcePaths, previousJars);
+        builder.buildJars();
+      }
+      finally {
+        for (File previousJar : previousJars.values()) {
+          FileUtil.delete(previousJar);
+        }
+      }
       runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
     }
     catch (IOException e) {
@@ -205,6 +217,30 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     paths.add(path);
   }
 
+  private static Map<String, File> moveOutdatedJarsAside(Collection<String> outdatedPaths, Collection<ArtifactRootDescriptor> roots) {
+    final Set<String> jarPaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+    for (ArtifactRootDescriptor root : roots) {
+      final DestinationInfo destination = root.getDestinationInfo();
+      if (destination instanceof JarDestinationInfo) {
+        jarPaths.add(FileUtil.toSystemIndependentName(destination.getOutputFilePath()));
+      }
+    }
+
+    final Map<String, File> previousJars = new THashMap<String, File>(FileUtil.PATH_HASHING_STRATEGY);
+    for (String outdatedPath : outdatedPaths) {
+      final String path = FileUtil.toSystemIndependentName(outdatedPath);
+      if (!jarPaths.contains(path)) continue;
+
+      final File jarFile = new File(FileUtil.toSystemDependentName(path));
+      final File previousJar = new File(jarFile.getParentFile(), jarFile.getName() + ".previous");
+      FileUtil.delete(previousJar);
+      if (jarFile.isFile() && jarFile.renameTo(previousJar)) {
+        previousJars.put(path, previousJar);
+      }
+    }
+    return previousJars;
+  }
+
   private static void deleteOutdatedFiles(MultiMap<String, String> filesToDelete, CompileContext context,
                                           SourceToOutputMapping srcOutMapping,
                                           ArtifactOutputToSourceMapping outSrcMapping) throws IOException {
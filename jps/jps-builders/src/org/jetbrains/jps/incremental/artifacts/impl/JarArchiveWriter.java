@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.io.zip.DosTime;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the entries of an archive. An entry which is the same as in the previous version of the archive (it has the same name, size
+ * and timestamp there) is copied from it as is, without decompressing and compressing it again.
+ * <p/>
+ * If {@link GlobalOptions#ARCHIVES_PARALLEL_DEFLATE_OPTION} is set, large entries are compressed on the pooled threads; the entries
+ * are written in the order they were added anyway. Entries of {@link #STREAMING_THRESHOLD} bytes and more are written directly
+ * to the archive instead of being loaded into memory.
+ *
+ * @see JarsBuilder
+ */
+class JarArchiveWriter {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.artifacts.impl.JarArchiveWriter");
+  private static final boolean PARALLEL_DEFLATE = Boolean.parseBoolean(System.getProperty(GlobalOptions.ARCHIVES_PARALLEL_DEFLATE_OPTION, "false"));
+  private static final int PARALLEL_DEFLATE_THRESHOLD = 256 * 1024;
+  private static final long MAX_PENDING_SIZE = 64 * 1024 * 1024;
+  private static final int STREAMING_THRESHOLD = 1024 * 1024;
+  private static final BoundedTaskExecutor ourDeflateExecutor =
+    new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+
+  private final JBZipFile myArchive;
+  @Nullable private final JBZipFile myPreviousArchive;
+  private final Deflater myDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final LinkedList<PendingEntry> myPendingEntries = new LinkedList<PendingEntry>();
+  private long myPendingSize;
+  private int myCopiedCount;
+  private int myWrittenCount;
+
+  JarArchiveWriter(@NotNull File file, @Nullable File previousFile) throws IOException {
+    myArchive = new JBZipFile(file);
+    myPreviousArchive = previousFile != null && previousFile.length() > 0 ? openPreviousArchive(previousFile) : null;
+  }
+
+  @Nullable
+  private static JBZipFile openPreviousArchive(File file) {
+    try {
+      return new JBZipFile(file);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read previous version of archive " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  public void addDirectory(@NotNull String path) throws IOException {
+    addEntry(new PendingEntry(path, System.currentTimeMillis(), new EntryData(ZipEntry.STORED, 0, 0, ArrayUtil.EMPTY_BYTE_ARRAY, 0)));
+  }
+
+  /**
+   * Copies the entry from the previous version of the archive if it has the specified size and timestamp there.
+   *
+   * @return false if the entry should be added in the usual way
+   */
+  public boolean copyFromPreviousArchive(@NotNull String path, long size, long timestamp) throws IOException {
+    if (myPreviousArchive == null) return false;
+
+    final JBZipEntry entry = myPreviousArchive.getEntry(path);
+    if (entry == null || entry.isDirectory() || entry.getSize() != size ||
+        entry.getTime() != DosTime.dosToJavaTime(DosTime.javaToDosTime(timestamp))) {
+      return false;
+    }
+
+    if (entry.getCompressedSize() >= STREAMING_THRESHOLD) {
+      writePendingEntries(-1);
+      final JBZipEntry zipEntry = createEntry(path, entry.getMethod(), entry.getSize(), entry.getCrc(), timestamp);
+      zipEntry.setRawDataFromStream(entry.getRawInputStream(), entry.getCompressedSize());
+    }
+    else {
+      final byte[] bytes = entry.getRawData();
+      addEntry(new PendingEntry(path, timestamp, new EntryData(entry.getMethod(), entry.getSize(), entry.getCrc(), bytes, bytes.length)));
+    }
+    myCopiedCount++;
+    return true;
+  }
+
+  /**
+   * @param size the size of the content, or -1 if it's unknown
+   */
+  public void addFile(@NotNull String path, @NotNull InputStream content, long size, long timestamp, boolean compress) throws IOException {
+    if (size >= 0 && size < STREAMING_THRESHOLD) {
+      addFile(path, FileUtil.loadBytes(content, (int)size), timestamp, compress);
+      return;
+    }
+
+    myWrittenCount++;
+    writePendingEntries(-1);
+    final JBZipEntry zipEntry = myArchive.getOrCreateEntry(path);
+    zipEntry.setMethod(compress ? ZipEntry.DEFLATED : ZipEntry.STORED);
+    zipEntry.setTime(timestamp);
+    zipEntry.setDataFromStream(content);
+  }
+
+  public void addFile(@NotNull String path, @NotNull final byte[] content, long timestamp, boolean compress) throws IOException {
+    myWrittenCount++;
+    if (!compress || content.length == 0) {
+      addEntry(new PendingEntry(path, timestamp, new EntryData(ZipEntry.STORED, content.length, computeCrc(content), content, content.length)));
+    }
+    else if (PARALLEL_DEFLATE && content.length >= PARALLEL_DEFLATE_THRESHOLD) {
+      final Future<EntryData> future = ourDeflateExecutor.submit(new Callable<EntryData>() {
+        @Override
+        public EntryData call() {
+          final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+          try {
+            return deflate(content, deflater);
+          }
+          finally {
+            deflater.end();
+          }
+        }
+      });
+      addEntry(new PendingEntry(path, timestamp, future, content.length));
+    }
+    else {
+      addEntry(new PendingEntry(path, timestamp, deflate(content, myDeflater)));
+    }
+  }
+
+  private void addEntry(PendingEntry entry) throws IOException {
+    myPendingEntries.addLast(entry);
+    myPendingSize += entry.mySize;
+    writePendingEntries(MAX_PENDING_SIZE);
+  }
+
+  /**
+   * Writes the entries in the order they were added while they are ready, or while the data of the pending entries take more memory
+   * than {@code maxPendingSize}.
+   */
+  private void writePendingEntries(long maxPendingSize) throws IOException {
+    while (!myPendingEntries.isEmpty()) {
+      final PendingEntry entry = myPendingEntries.getFirst();
+      if (!entry.isReady() && myPendingSize <= maxPendingSize) {
+        return;
+      }
+      myPendingEntries.removeFirst();
+      myPendingSize -= entry.mySize;
+
+      final EntryData data = entry.getData();
+      final JBZipEntry zipEntry = createEntry(entry.myPath, data.myMethod, data.mySize, data.myCrc, entry.myTimestamp);
+      zipEntry.setRawData(data.myBytes, data.myLength);
+    }
+  }
+
+  private JBZipEntry createEntry(String path, int method, long size, long crc, long timestamp) {
+    final JBZipEntry zipEntry = myArchive.getOrCreateEntry(path);
+    zipEntry.setMethod(method);
+    zipEntry.setSize(size);
+    zipEntry.setCrc(crc);
+    zipEntry.setTime(timestamp);
+    return zipEntry;
+  }
+
+  public void close() throws IOException {
+    try {
+      writePendingEntries(-1);
+    }
+    finally {
+      myDeflater.end();
+      try {
+        if (myPreviousArchive != null) {
+          myPreviousArchive.close();
+        }
+      }
+      finally {
+        myArchive.close();
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(myCopiedCount + " entries copied from previous version of archive, " + myWrittenCount + " entries written");
+    }
+  }
+
+  private static long computeCrc(byte[] content) {
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    return crc.getValue();
+  }
+
+  private static EntryData deflate(byte[] content, Deflater deflater) {
+    deflater.reset();
+    deflater.setInput(content);
+    deflater.finish();
+    final BufferExposingByteArrayOutputStream output = new BufferExposingByteArrayOutputStream(content.length / 2 + 64);
+    final byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      final int count = deflater.deflate(buffer);
+      output.write(buffer, 0, count);
+    }
+    return new EntryData(ZipEntry.DEFLATED, content.length, computeCrc(content), output.getInternalBuffer(), output.size());
+  }
+
+  private static class EntryData {
+    private final int myMethod;
+    private final long mySize;
+    private final long myCrc;
+    private final byte[] myBytes;
+    private final int myLength;
+
+    private EntryData(int method, long size, long crc, byte[] bytes, int length) {
+      myMethod = method;
+      mySize = size;
+      myCrc = crc;
+      myBytes = bytes;
+      myLength = length;
+    }
+  }
+
+  private static class PendingEntry {
+    private final String myPath;
+    private final long myTimestamp;
+    private final long mySize;
+    @Nullable private final EntryData myData;
+    @Nullable private final Future<EntryData> myFuture;
+
+    private PendingEntry(String path, long timestamp, @NotNull EntryData data) {
+      myPath = path;
+      myTimestamp = timestamp;
+      myData = data;
+      myFuture = null;
+      mySize = data.myLength;
+    }
+
+    private PendingEntry(String path, long timestamp, @NotNull Future<EntryData> future, long size) {
+      myPath = path;
+      myTimestamp = timestamp;
+      myData = null;
+      myFuture = future;
+      mySize = size;
+    }
+
+    private boolean isReady() {
+      return myFuture == null || myFuture.isDone();
+    }
+
+    private EntryData getData() throws IOException {
+      if (myFuture == null) {
+        return myData;
+      }
+      try {
+        return myFuture.get();
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted while compressing " + myPath, e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        throw new IOException(cause);
+      }
+    }
+  }
+}
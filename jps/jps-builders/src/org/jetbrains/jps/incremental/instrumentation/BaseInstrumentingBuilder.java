@@ -47,13 +47,15 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
   protected final ExitCode performBuild(CompileContext context, ModuleChunk chunk, InstrumentationClassFinder finder, OutputConsumer outputConsumer) {
     ExitCode exitCode = ExitCode.NOTHING_DONE;
     for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
-      final BinaryContent originalContent = compiledClass.getContent();
-      final ClassReader reader = new ClassReader(originalContent.getBuffer(), originalContent.getOffset(), originalContent.getLength());
-      final int version = getClassFileVersion(reader);
-      if (IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE) || !canInstrument(compiledClass, version)) {
+      if (IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE)) {
         // do not instrument the same content twice
         continue;
       }
+      final ClassReader reader = compiledClass.getClassReader();
+      final int version = getClassFileVersion(reader);
+      if (!canInstrument(compiledClass, version)) {
+        continue;
+      }
       final ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version), finder);
       try {
         final BinaryContent instrumented = instrument(context, compiledClass, reader, writer, finder);
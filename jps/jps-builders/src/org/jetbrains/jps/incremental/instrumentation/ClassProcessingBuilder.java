@@ -17,10 +17,8 @@ package org.jetbrains.jps.incremental.instrumentation;
 
 import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
 import com.intellij.openapi.util.Key;
-import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.asm4.ClassReader;
-import org.jetbrains.asm4.ClassVisitor;
 import org.jetbrains.asm4.ClassWriter;
 import org.jetbrains.asm4.Opcodes;
 import org.jetbrains.jps.ModuleChunk;
@@ -139,13 +137,9 @@ public abstract class ClassProcessingBuilder extends ModuleLevelBuilder {
   }
 
   public static int getClassFileVersion(ClassReader reader) {
-    final Ref<Integer> result = new Ref<Integer>(0);
-    reader.accept(new ClassVisitor(Opcodes.ASM4) {
-      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        result.set(version);
-      }
-    }, 0);
-    return result.get();
+    // the minor and major versions precede the constant pool, i.e. the first constant pool item,
+    // so there is no need to visit the class to get them (the same value is passed to ClassVisitor.visit())
+    return reader.readInt(reader.getItem(1) - 7);
   }
 
 }
@@ -18,7 +18,6 @@ package org.jetbrains.jps.incremental.java;
 import com.intellij.openapi.util.io.FileUtil;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.incremental.*;
@@ -31,8 +30,7 @@ import org.jetbrains.jps.javac.OutputFileObject;
 import javax.tools.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Set;
+import java.util.*;
 
 /**
 * @author Eugene Zhuravlev
@@ -44,6 +42,8 @@ class OutputFilesSink implements OutputFileConsumer {
   private final Callbacks.Backend myMappingsCallback;
   private final String myChunkName;
   private final Set<File> mySuccessfullyCompiled = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+  private final List<CompiledClass> myPendingClasses = new ArrayList<CompiledClass>();
+  private final Set<CompiledClass> myTempClasses = new THashSet<CompiledClass>();
 
   public OutputFilesSink(CompileContext context,
                          ModuleLevelBuilder.OutputConsumer outputConsumer,
@@ -60,17 +60,21 @@ class OutputFilesSink implements OutputFileConsumer {
     final File srcFile = fileObject.getSourceFile();
     boolean isTemp = false;
     final JavaFileObject.Kind outKind = fileObject.getKind();
+    CompiledClass compiledClass = null;
 
     if (srcFile != null && content != null) {
       final String sourcePath = FileUtil.toSystemIndependentName(srcFile.getPath());
+      if (outKind == JavaFileObject.Kind.CLASS) {
+        compiledClass = new CompiledClass(fileObject.getFile(), srcFile, fileObject.getClassName(), content);
+      }
       final JavaSourceRootDescriptor rootDescriptor = myContext.getProjectDescriptor().getBuildRootIndex().findJavaRootDescriptor(myContext, srcFile);
       if (rootDescriptor != null) {
         isTemp = rootDescriptor.isTemp;
         if (!isTemp) {
           // first, handle [src->output] mapping and register paths for files_generated event
           try {
-            if (outKind == JavaFileObject.Kind.CLASS) {
-              myOutputConsumer.registerCompiledClass(rootDescriptor.target, new CompiledClass(fileObject.getFile(), srcFile, fileObject.getClassName(), content)); // todo: avoid array copying?
+            if (compiledClass != null) {
+              myOutputConsumer.registerCompiledClass(rootDescriptor.target, compiledClass);
             }
             else {
               myOutputConsumer.registerOutputFile(rootDescriptor.target, fileObject.getFile(), Collections.<String>singleton(sourcePath));
@@ -82,47 +86,59 @@ class OutputFilesSink implements OutputFileConsumer {
         }
       }
 
-      if (!isTemp && outKind == JavaFileObject.Kind.CLASS && !Utils.errorsDetected(myContext)) {
-        // register in mappings any non-temp class file
-        final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
-        myMappingsCallback.associate(FileUtil.toSystemIndependentName(fileObject.getFile().getPath()), sourcePath, reader);
+      if (!isTemp && compiledClass != null && !Utils.errorsDetected(myContext)) {
+        // register in mappings any non-temp class file; the reader is reused by the class instrumenters
+        myMappingsCallback.associate(FileUtil.toSystemIndependentName(fileObject.getFile().getPath()), sourcePath, compiledClass.getClassReader());
       }
     }
 
     if (outKind == JavaFileObject.Kind.CLASS) {
       // generated sources and resources are handled separately
-      try {
-        writeToDisk(fileObject, isTemp);
+      if (compiledClass != null) {
+        // class files are written all at once by writePendingClasses()
+        myPendingClasses.add(compiledClass);
+        if (isTemp) {
+          myTempClasses.add(compiledClass);
+        }
       }
-      catch (IOException e) {
-        myContext.processMessage(new CompilerMessage(JavaBuilder.BUILDER_NAME, BuildMessage.Kind.ERROR, e.getMessage()));
+      else {
+        try {
+          if (content == null) {
+            throw new IOException("Missing content for file " + fileObject.getFile());
+          }
+          content.saveToFile(fileObject.getFile());
+        }
+        catch (IOException e) {
+          myContext.processMessage(new CompilerMessage(JavaBuilder.BUILDER_NAME, BuildMessage.Kind.ERROR, e.getMessage()));
+        }
       }
     }
   }
 
-  public Set<File> getSuccessfullyCompiled() {
-    return Collections.unmodifiableSet(mySuccessfullyCompiled);
-  }
-
-  private void writeToDisk(@NotNull OutputFileObject fileObject, boolean isTemp) throws IOException {
+  /**
+   * Writes the class files produced by the compiler since the previous call to the output directories.
+   */
+  public void writePendingClasses() {
+    if (myPendingClasses.isEmpty()) {
+      return;
+    }
     myContext.processMessage(new ProgressMessage("Writing classes... " + myChunkName));
-
-    final File file = fileObject.getFile();
-    final BinaryContent content = fileObject.getContent();
-    if (content == null) {
-      throw new IOException("Missing content for file " + file);
+    final Map<CompiledClass, IOException> errors = CompiledClass.saveAll(myPendingClasses);
+    for (CompiledClass compiledClass : myPendingClasses) {
+      final IOException error = errors.get(compiledClass);
+      if (error != null) {
+        myContext.processMessage(new CompilerMessage(JavaBuilder.BUILDER_NAME, BuildMessage.Kind.ERROR, error.getMessage()));
+      }
+      else if (!myTempClasses.contains(compiledClass)) {
+        mySuccessfullyCompiled.add(compiledClass.getSourceFile());
+      }
     }
+    myPendingClasses.clear();
+    myTempClasses.clear();
+  }
 
-    content.saveToFile(file);
-
-    final File source = fileObject.getSourceFile();
-    if (!isTemp && source != null) {
-      mySuccessfullyCompiled.add(source);
-      //final String className = fileObject.getClassName();
-      //if (className != null) {
-      //  myContext.processMessage(new ProgressMessage("Compiled " + className));
-      //}
-    }
+  public Set<File> getSuccessfullyCompiled() {
+    return Collections.unmodifiableSet(mySuccessfullyCompiled);
   }
 
   public void markError(@NotNull final File sourceFile) {
@@ -15,26 +15,55 @@
  */
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildTarget;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
+ * Stores timestamps of the files at the moment they were last compiled. In content digest mode a digest of the file
+ * is stored as well, so that a file whose timestamp has changed but whose content hasn't (e.g. after a VCS branch switch)
+ * is still considered up-to-date.
+ *
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final long NO_DIGEST = 0L;
+  private static final ThreadLocal<MessageDigest> ourDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
   private final BuildTargetsState myTargetsState;
+  private final boolean myUseContentDigests;
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
+    this(storePath, targetsState, Boolean.parseBoolean(System.getProperty(GlobalOptions.USE_CONTENT_DIGESTS_OPTION, "false")));
+  }
+
+  public TimestampStorage(File storePath, BuildTargetsState targetsState, boolean useContentDigests) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
     myTargetsState = targetsState;
+    myUseContentDigests = useContentDigests;
   }
 
   @Override
@@ -49,27 +78,79 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = findStamp(file, target);
+    return stamp != null ? stamp.timestamp : -1L;
+  }
+
+  @Override
+  public boolean isUpToDate(File file, BuildTarget<?> target, long currentTimestamp) throws IOException {
+    final TimestampPerTarget stamp = findStamp(file, target);
+    if (stamp == null) {
+      return false;
+    }
+    if (stamp.timestamp == currentTimestamp) {
+      return true;
+    }
+    if (!myUseContentDigests || stamp.digest == NO_DIGEST || stamp.digest != calculateDigest(file)) {
+      return false;
+    }
+    // remember the new timestamp not to read the file next time
+    synchronized (myDataLock) {
+      int targetId = myTargetsState.getBuildTargetId(target);
+      update(file, updateTimestamp(getState(file), targetId, currentTimestamp, stamp.digest));
+    }
+    return true;
+  }
+
+  @Nullable
+  private TimestampPerTarget findStamp(File file, BuildTarget<?> target) throws IOException {
     final TimestampPerTarget[] state = getState(file);
     if (state != null) {
       int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
+    return null;
   }
 
   @Override
   public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
     int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+    long digest = NO_DIGEST;
+    if (myUseContentDigests) {
+      digest = calculateDigest(file);
+      // the digest is of no use if the content may be newer than the timestamp, the file must be compiled again anyway
+      if (FileSystemUtil.lastModified(file) != timestamp) {
+        digest = NO_DIGEST;
+      }
+    }
+    synchronized (myDataLock) {
+      update(file, updateTimestamp(getState(file), targetId, timestamp, digest));
+    }
+  }
+
+  private static long calculateDigest(File file) {
+    final byte[] content;
+    try {
+      content = FileUtil.loadFileBytes(file);
+    }
+    catch (IOException e) {
+      return NO_DIGEST;
+    }
+    final byte[] md5 = ourDigest.get().digest(content);
+    long digest = 0;
+    for (int i = 0; i < 8; i++) {
+      digest = digest << 8 | md5[i] & 0xFF;
+    }
+    return digest == NO_DIGEST ? 1 : digest;
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long digest) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, digest);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -83,6 +164,12 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   }
 
   public void removeStamp(File file, BuildTarget<?> buildTarget) throws IOException {
+    synchronized (myDataLock) {
+      removeStampImpl(file, buildTarget);
+    }
+  }
+
+  private void removeStampImpl(File file, BuildTarget<?> buildTarget) throws IOException {
     TimestampPerTarget[] state = getState(file);
     if (state != null) {
       int targetId = myTargetsState.getBuildTargetId(buildTarget);
@@ -105,10 +192,16 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    public final long digest;
 
     public TimestampPerTarget(int targetId, long timestamp) {
+      this(targetId, timestamp, NO_DIGEST);
+    }
+
+    public TimestampPerTarget(int targetId, long timestamp, long digest) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.digest = digest;
     }
   }
 
@@ -118,6 +211,7 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        out.writeLong(target.digest);
       }
     }
 
@@ -127,7 +221,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long digest = in.readLong();
+        targets[i] = new TimestampPerTarget(id, timestamp, digest);
       }
       return targets;
     }
@@ -34,4 +34,10 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * @return true if the file hasn't changed since its stamp was saved for the target: either the stamp is equal to
+   * the current timestamp of the file, or content digests are enabled and the content of the file is the same
+   */
+  boolean isUpToDate(File file, BuildTarget<?> target, long currentTimestamp) throws IOException;
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether;
+
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+
+/**
+ * Runs the member change cases with the dependent classes checked in parallel: the files found affected, and so the build logs,
+ * are expected to be the same as in the sequential mode.
+ */
+public class ParallelDifferentiateTest extends MemberChangeTest {
+  private boolean myOldParallel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOldParallel = Mappings.setParallelDifferentiate(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Mappings.setParallelDifferentiate(myOldParallel);
+    super.tearDown();
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.UsefulTestCase;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectProcedure;
+import gnu.trove.TIntProcedure;
+
+import java.io.File;
+import java.util.Random;
+
+public class IntIntCompactMultiMapletTest extends UsefulTestCase {
+  private static final int CLASS_COUNT = 20000;
+
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = new File(FileUtil.createTempDirectory("graph", null), "classToClass.graph");
+  }
+
+  public void testSameContentAsTransientMaplet() throws Exception {
+    IntIntCompactMultiMaplet maplet = new IntIntCompactMultiMaplet(myFile);
+    IntIntTransientMultiMaplet expected = new IntIntTransientMultiMaplet();
+    Random random = new Random(42);
+    for (int step = 0; step < 100000; step++) {
+      int key = random.nextInt(2000);
+      int value = random.nextInt(50000);
+      switch (random.nextInt(5)) {
+        case 0:
+        case 1:
+          maplet.put(key, value);
+          expected.put(key, value);
+          break;
+        case 2:
+          maplet.removeFrom(key, value);
+          expected.removeFrom(key, value);
+          TIntHashSet rest = expected.get(key);
+          if (rest != null && rest.isEmpty()) expected.remove(key);
+          break;
+        case 3:
+          maplet.replace(key, new TIntHashSet(new int[]{value, value + 1}));
+          expected.replace(key, new TIntHashSet(new int[]{value, value + 1}));
+          break;
+        default:
+          if (random.nextInt(10) == 0) {
+            maplet.remove(key);
+            expected.remove(key);
+          }
+      }
+
+      if (step % 10000 == 0) {
+        maplet.close();
+        maplet = new IntIntCompactMultiMaplet(myFile);
+      }
+      else if (step % 3000 == 0) {
+        maplet.flush(step % 2 == 0);
+      }
+    }
+
+    maplet.close();
+    maplet = new IntIntCompactMultiMaplet(myFile);
+    assertSameContent(expected, maplet);
+    maplet.flush(false);
+    assertSameContent(expected, maplet);
+    maplet.close();
+  }
+
+  public void testUnfinishedDeltaRecordIsIgnored() throws Exception {
+    IntIntCompactMultiMaplet maplet = new IntIntCompactMultiMaplet(myFile);
+    maplet.put(1, 2);
+    maplet.close();
+    maplet = new IntIntCompactMultiMaplet(myFile);
+    maplet.put(3, 4);
+    maplet.close();
+    File delta = new File(myFile.getPath() + ".delta");
+    FileUtil.writeToFile(delta, new byte[]{0, 0, 0, 5}, true);
+
+    maplet = new IntIntCompactMultiMaplet(myFile);
+    assertEquals(new TIntHashSet(new int[]{2}), maplet.get(1));
+    assertEquals(new TIntHashSet(new int[]{4}), maplet.get(3));
+    assertNull(maplet.get(5));
+    maplet.put(7, 8);
+    maplet.put(10, 11);
+    maplet.put(12, 13);
+    maplet.close();
+
+    maplet = new IntIntCompactMultiMaplet(myFile);
+    assertEquals(new TIntHashSet(new int[]{2}), maplet.get(1));
+    assertEquals(new TIntHashSet(new int[]{4}), maplet.get(3));
+    assertNull(maplet.get(5));
+    assertEquals(new TIntHashSet(new int[]{8}), maplet.get(7));
+    assertEquals(new TIntHashSet(new int[]{11}), maplet.get(10));
+    assertEquals(new TIntHashSet(new int[]{13}), maplet.get(12));
+    maplet.close();
+  }
+
+  /**
+   * Integrates the changes of a build into a graph of 20k classes and computes the classes affected by them,
+   * the way {@code Mappings} does: the dependents of every changed class and of its subclasses.
+   */
+  public void testAffectedClassesPerformance() throws Exception {
+    final Random random = new Random(239);
+    IntIntCompactMultiMaplet subclasses = new IntIntCompactMultiMaplet(new File(myFile.getParentFile(), "classToSubclasses.graph"));
+    IntIntCompactMultiMaplet dependents = new IntIntCompactMultiMaplet(myFile);
+    for (int aClass = 1; aClass < CLASS_COUNT; aClass++) {
+      subclasses.put(random.nextInt(aClass), aClass);
+      for (int i = 0; i < 10; i++) {
+        dependents.put(random.nextInt(CLASS_COUNT), aClass);
+      }
+    }
+    subclasses.close();
+    dependents.close();
+
+    final IntIntCompactMultiMaplet subclassesGraph = new IntIntCompactMultiMaplet(new File(myFile.getParentFile(), "classToSubclasses.graph"));
+    final IntIntCompactMultiMaplet dependentsGraph = new IntIntCompactMultiMaplet(myFile);
+    final TIntArrayList changed = new TIntArrayList();
+    for (int i = 0; i < 500; i++) {
+      changed.add(random.nextInt(CLASS_COUNT));
+    }
+
+    PlatformTestUtil.startPerformanceTest("affected classes of a build", 300, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < changed.size(); i++) {
+          int aClass = changed.get(i);
+          TIntHashSet deps = new TIntHashSet(new int[]{(aClass + 1) % CLASS_COUNT, (aClass + 7) % CLASS_COUNT});
+          dependentsGraph.replace(aClass, deps);
+        }
+
+        final TIntHashSet affected = new TIntHashSet();
+        for (int i = 0; i < changed.size(); i++) {
+          TIntHashSet hierarchy = new TIntHashSet();
+          collectSubclasses(subclassesGraph, changed.get(i), hierarchy);
+          hierarchy.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int aClass) {
+              TIntHashSet deps = dependentsGraph.get(aClass);
+              if (deps != null) {
+                affected.addAll(deps.toArray());
+              }
+              return true;
+            }
+          });
+        }
+        assertFalse(affected.isEmpty());
+        dependentsGraph.flush(false);
+      }
+    }).cpuBound().assertTiming();
+
+    subclassesGraph.close();
+    dependentsGraph.close();
+  }
+
+  private static void collectSubclasses(IntIntMultiMaplet graph, int aClass, TIntHashSet result) {
+    if (!result.add(aClass)) return;
+    TIntHashSet subclasses = graph.get(aClass);
+    if (subclasses != null) {
+      for (int subclass : subclasses.toArray()) {
+        collectSubclasses(graph, subclass, result);
+      }
+    }
+  }
+
+  private static void assertSameContent(IntIntMultiMaplet expected, final IntIntMultiMaplet actual) {
+    final int[] count = new int[2];
+    expected.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        if (!values.isEmpty()) {
+          assertEquals(values, actual.get(key));
+          count[0]++;
+        }
+        return true;
+      }
+    });
+    actual.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        count[1]++;
+        return true;
+      }
+    });
+    assertEquals(count[0], count[1]);
+  }
+}
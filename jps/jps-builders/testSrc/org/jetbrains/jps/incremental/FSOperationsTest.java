@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class FSOperationsTest extends JpsBuildTestCase {
+  private static final int PACKAGES = 6;
+
+  public void testDirtyFilesInNestedDirectories() {
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < PACKAGES; i++) {
+      for (int j = 0; j < PACKAGES; j++) {
+        String name = "C" + i + j;
+        paths.add("src/p" + i + "/q" + j + "/" + name + ".java");
+        createFile(paths.get(paths.size() - 1), "package p" + i + ".q" + j + "; class " + name + " {}");
+      }
+    }
+    addModule("m", getAbsolutePath("src"));
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, paths.toArray(new String[paths.size()]));
+    makeAll().assertUpToDate();
+
+    change(getAbsolutePath("src/p2/q3/C23.java"), "package p2.q3; class C23 { int i; }");
+    change(getAbsolutePath("src/p5/q0/C50.java"), "package p5.q0; class C50 { int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/p2/q3/C23.java", "src/p5/q0/C50.java");
+    makeAll().assertUpToDate();
+  }
+
+  public void testDirtyFilesOfSeveralModules() {
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < PACKAGES; i++) {
+      String path = "m" + i + "/src/p/C" + i + ".java";
+      paths.add(path);
+      createFile(path, "package p; class C" + i + " {}");
+      addModule("m" + i, getAbsolutePath("m" + i + "/src"));
+    }
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, paths.toArray(new String[paths.size()]));
+
+    change(getAbsolutePath(paths.get(3)), "package p; class C3 { int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, paths.get(3));
+  }
+}
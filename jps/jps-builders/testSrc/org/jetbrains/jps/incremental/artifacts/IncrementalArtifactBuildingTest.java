@@ -24,6 +24,7 @@ import org.jetbrains.jps.model.module.JpsModule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 
 import static com.intellij.util.io.TestFileSystemItem.fs;
 import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.archive;
@@ -78,6 +79,38 @@ public class IncrementalArtifactBuildingTest extends ArtifactBuilderTestCase {
     buildAllAndAssertUpToDate();
   }
 
+  public void testPackChangedFileToArchiveWithExtractedDirectory() {
+    String file = createFile("dir/a.txt", "aaa");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file).extractedDir(getJUnitJarPath(), "/junit/textui/"));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "aaa").file("ResultPrinter.class").file("TestRunner.class"));
+
+    change(file, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx").file("ResultPrinter.class").file("TestRunner.class"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testPackLargeFile() {
+    // large entries are written to the archive and copied from its previous version without loading them into memory
+    StringBuilder builder = new StringBuilder();
+    Random random = new Random(42);
+    for (int i = 0; i < 2 * 1024 * 1024; i++) {
+      builder.append((char)('a' + random.nextInt(26)));
+    }
+    String largeText = builder.toString();
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/large.txt", largeText);
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "aaa").file("large.txt", largeText));
+
+    change(file1, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx").file("large.txt", largeText));
+    buildAllAndAssertUpToDate();
+  }
+
   public void testRemoveDeletedFileFromArchive() {
     String file1 = createFile("dir/a.txt");
     createFile("dir/b.txt");
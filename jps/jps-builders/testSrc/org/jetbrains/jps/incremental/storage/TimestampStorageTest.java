@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TimestampStorageTest extends JpsBuildTestCase {
+  private ProjectDescriptor myDescriptor;
+  private TimestampStorage myStorage;
+  private BuildTarget<?> myTarget;
+  private String myPath;
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myPath = createFile("src/A.java", "class A {}");
+    myFile = new File(myPath);
+    JpsModule module = addModule("m", PathUtil.getParentPath(myPath));
+    myTarget = new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION);
+    myDescriptor = createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+    myStorage = new TimestampStorage(new File(myDataStorageRoot, "digests"), myDescriptor.getTargetsState(), true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myStorage.close();
+      myDescriptor.release();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testTouchedFileIsUpToDate() throws IOException {
+    myStorage.saveStamp(myFile, myTarget, FileSystemUtil.lastModified(myFile));
+    assertTrue(myStorage.isUpToDate(myFile, myTarget, FileSystemUtil.lastModified(myFile)));
+
+    change(myPath);
+    long stamp = FileSystemUtil.lastModified(myFile);
+    assertTrue(myStorage.isUpToDate(myFile, myTarget, stamp));
+    assertEquals(stamp, myStorage.getStamp(myFile, myTarget));
+  }
+
+  public void testChangedFileIsNotUpToDate() throws IOException {
+    myStorage.saveStamp(myFile, myTarget, FileSystemUtil.lastModified(myFile));
+
+    change(myPath, "class A { int i; }");
+    assertFalse(myStorage.isUpToDate(myFile, myTarget, FileSystemUtil.lastModified(myFile)));
+  }
+
+  public void testFileChangedAfterStampWasTakenIsNotUpToDate() throws IOException {
+    long stamp = FileSystemUtil.lastModified(myFile);
+    change(myPath, "class A { int i; }");
+    myStorage.saveStamp(myFile, myTarget, stamp);
+
+    assertFalse(myStorage.isUpToDate(myFile, myTarget, FileSystemUtil.lastModified(myFile)));
+  }
+}
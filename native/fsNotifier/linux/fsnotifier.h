@@ -44,6 +44,7 @@ void* array_push(array* a, void* element);
 void* array_pop(array* a);
 void array_put(array* a, int index, void* element);
 void* array_get(array* a, int index);
+void array_sort(array* a, int (* compare)(const void*, const void*));
 void array_delete(array* a);
 void array_delete_vs_data(array* a);
 void array_delete_data(array* a);
@@ -385,6 +385,9 @@ bool process_inotify_input() {
     }
     if (event->mask & IN_Q_OVERFLOW) {
       userlog(LOG_ERR, "event queue overflow");
+      if (callback != NULL) {
+        (*callback)(NULL, event->mask);
+      }
       continue;
     }
 
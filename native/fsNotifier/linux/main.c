@@ -36,7 +36,7 @@
 #define LOG_ENV_ERROR "error"
 #define LOG_ENV_OFF "off"
 
-#define VERSION "1.2"
+#define VERSION "1.3"
 #define VERSION_MSG "fsnotifier " VERSION "\n"
 
 #define USAGE_MSG \
@@ -59,14 +59,36 @@
 
 #define MISSING_ROOT_TIMEOUT 1
 
+// events which arrive within this interval (usec) from each other are sent in one batch,
+// but no more than this number of reads is merged, so that the input isn't starved during a long storm
+#define COALESCE_TIMEOUT 10000
+#define MAX_COALESCED_READS 50
+
+// limit of the events kept before sending a batch
+#define BATCH_LIMIT 2048
+
+// when more entries of a directory changed in one batch, the directory is reported as dirty instead
+// (only inside recursive roots - a flat root's parent isn't watched and its "DIRTY" event would be ignored)
+#define DIR_COALESCE_THRESHOLD 100
+
+// version of the output protocol: since 2, events are sent in "BATCH" blocks and "UPDATE_ROOTS" command is accepted
+#define PROTOCOL_VERSION "2"
+
 #define UNFLATTEN(root) (root[0] == '|' ? root + 1 : root)
 
 typedef struct {
   char* path;
-  int id;  // negative value means missing root
+  int id;  // ERR_MISSING means missing root, other negative values - unwatched one
+  array* unwatchable;
 } watch_root;
 
+typedef struct {
+  const char* op;
+  char* path;
+} event_entry;
+
 static array* roots = NULL;
+static array* events = NULL;
 
 static bool self_test = false;
 
@@ -74,12 +96,18 @@ static void init_log();
 static void run_self_test();
 static void main_loop();
 static bool read_input();
+static bool read_inotify_events(int inotify_fd);
 static bool update_roots(array* new_roots);
+static bool change_roots(array* added, array* removed);
 static void unregister_roots();
-static bool register_roots(array* new_roots, array* unwatchable, array* mounts);
+static void remove_root(int index);
+static watch_root* register_root(const char* path, array* mounts);
+static void report_unwatchable();
 static array* unwatchable_mounts();
 static void inotify_callback(char* path, int event);
-static void report_event(char* event, char* path);
+static void report_event(const char* event, char* path);
+static void flush_events();
+static void write_event(const char* event, char* path);
 static void output(const char* format, ...);
 static void check_missing_roots();
 static void check_root_removal(char*);
@@ -116,16 +144,19 @@ int main(int argc, char** argv) {
   setvbuf(stdin, NULL, _IONBF, 0);
 
   roots = array_create(20);
-  if (init_inotify() && roots != NULL) {
+  events = array_create(BATCH_LIMIT);
+  if (init_inotify() && roots != NULL && events != NULL) {
     set_inotify_callback(&inotify_callback);
 
     if (!self_test) {
+      output("PROTOCOL\n" PROTOCOL_VERSION "\n");
       main_loop();
     }
     else {
       run_self_test();
     }
 
+    flush_events();
     unregister_roots();
   }
   else {
@@ -133,6 +164,7 @@ int main(int argc, char** argv) {
   }
   close_inotify();
   array_delete(roots);
+  array_delete(events);
 
   userlog(LOG_INFO, "finished");
   closelog();
@@ -232,7 +264,7 @@ static void main_loop() {
       go_on = read_input();
     }
     else if (FD_ISSET(inotify_fd, &rfds)) {
-      go_on = process_inotify_input();
+      go_on = read_inotify_events(inotify_fd);
     }
     else {
       check_missing_roots();
@@ -241,6 +273,28 @@ static void main_loop() {
 }
 
 
+static bool read_inotify_events(int inotify_fd) {
+  // a storm (a build, a VCS update) comes in many small portions - to send it in few batches,
+  // the reading goes on while the events keep coming
+  fd_set rfds;
+  struct timeval timeout;
+  int reads = 0;
+
+  do {
+    if (!process_inotify_input()) {
+      return false;
+    }
+    FD_ZERO(&rfds);
+    FD_SET(inotify_fd, &rfds);
+    timeout = (struct timeval){0, COALESCE_TIMEOUT};
+  }
+  while (++reads < MAX_COALESCED_READS && select(inotify_fd + 1, &rfds, NULL, NULL, &timeout) > 0);
+
+  flush_events();
+  return true;
+}
+
+
 static bool read_input() {
   char* line = read_line(stdin);
   userlog(LOG_DEBUG, "input: %s", (line ? line : "<null>"));
@@ -250,9 +304,12 @@ static bool read_input() {
     return false;
   }
 
-  if (strcmp(line, "ROOTS") == 0) {
-    array* new_roots = array_create(20);
-    CHECK_NULL(new_roots, false);
+  bool incremental = strcmp(line, "UPDATE_ROOTS") == 0;
+  if (incremental || strcmp(line, "ROOTS") == 0) {
+    array* added = array_create(20);
+    CHECK_NULL(added, false);
+    array* removed = array_create(20);
+    CHECK_NULL(removed, false);
 
     while (1) {
       line = read_line(stdin);
@@ -264,13 +321,27 @@ static bool read_input() {
         break;
       }
       else {
+        array* target = added;
+        if (incremental) {  // "+root" or "-root"
+          if (line[0] == '-') {
+            target = removed;
+          }
+          else if (line[0] != '+') {
+            userlog(LOG_WARNING, "invalid root update: %s", line);
+            continue;
+          }
+          line++;
+        }
         int l = strlen(line);
         if (l > 1 && line[l-1] == '/')  line[l-1] = '\0';
-        CHECK_NULL(array_push(new_roots, strdup(line)), false);
+        CHECK_NULL(array_push(target, strdup(line)), false);
       }
     }
 
-    return update_roots(new_roots);
+    if (!incremental) {
+      unregister_roots();
+    }
+    return change_roots(added, removed);
   }
 
   userlog(LOG_INFO, "unrecognised command: %s", line);
@@ -279,113 +350,158 @@ static bool read_input() {
 
 
 static bool update_roots(array* new_roots) {
-  userlog(LOG_INFO, "updating roots (curr:%d, new:%d)", array_size(roots), array_size(new_roots));
-
   unregister_roots();
+  return change_roots(new_roots, NULL);
+}
 
-  if (array_size(new_roots) == 0) {
-    output("UNWATCHEABLE\n#\n");
-    array_delete(new_roots);
-    return true;
-  }
-  else if (array_size(new_roots) == 1 && strcmp(array_get(new_roots, 0), "/") == 0) {  // refuse to watch entire tree
-    output("UNWATCHEABLE\n/\n#\n");
-    userlog(LOG_INFO, "unwatchable: /");
-    array_delete_vs_data(new_roots);
-    return true;
+
+static bool change_roots(array* added, array* removed) {
+  userlog(LOG_INFO, "updating roots (curr:%d, added:%d, removed:%d)", array_size(roots), array_size(added), array_size(removed));
+
+  for (int i=array_size(roots)-1; i>=0; i--) {
+    watch_root* root = array_get(roots, i);
+    for (int j=0; j<array_size(removed); j++) {
+      if (strcmp(root->path, array_get(removed, j)) == 0) {
+        remove_root(i);
+        break;
+      }
+    }
   }
 
-  array* mounts = unwatchable_mounts();
-  if (mounts == NULL) {
-    return false;
+  // nested roots share watches, so the remaining ones around the removed roots are registered anew
+  for (int i=array_size(roots)-1; i>=0; i--) {
+    watch_root* root = array_get(roots, i);
+    char* unflattened = UNFLATTEN(root->path);
+    for (int j=0; j<array_size(removed); j++) {
+      char* removed_root = array_get(removed, j);
+      removed_root = UNFLATTEN(removed_root);
+      if (is_parent_path(removed_root, unflattened) || is_parent_path(unflattened, removed_root)) {
+        CHECK_NULL(array_push(added, strdup(root->path)), false);
+        remove_root(i);
+        break;
+      }
+    }
   }
 
-  array* unwatchable = array_create(20);
-  if (!register_roots(new_roots, unwatchable, mounts)) {
-    return false;
+  array* mounts = NULL;
+  if (array_size(added) > 0) {
+    mounts = unwatchable_mounts();
+    if (mounts == NULL) {
+      return false;
+    }
   }
 
-  output("UNWATCHEABLE\n");
-  for (int i=0; i<array_size(unwatchable); i++) {
-    char* s = array_get(unwatchable, i);
-    output("%s\n", s);
-    userlog(LOG_INFO, "unwatchable: %s", s);
+  for (int i=0; i<array_size(added); i++) {
+    if (register_root(array_get(added, i), mounts) == NULL) {
+      return false;
+    }
   }
-  output("#\n");
 
-  array_delete_vs_data(unwatchable);
+  report_unwatchable();
+
   array_delete_vs_data(mounts);
-  array_delete_vs_data(new_roots);
+  array_delete_vs_data(added);
+  array_delete_vs_data(removed);
 
   return true;
 }
 
 
+static void free_root(watch_root* root) {
+  userlog(LOG_INFO, "unregistering root: %s", root->path);
+  if (root->id >= 0) {
+    unwatch(root->id);
+  }
+  free(root->path);
+  array_delete_vs_data(root->unwatchable);
+  free(root);
+}
+
 static void unregister_roots() {
   watch_root* root;
   while ((root = array_pop(roots)) != NULL) {
-    userlog(LOG_INFO, "unregistering root: %s", root->path);
-    unwatch(root->id);
-    free(root->path);
-    free(root);
+    free_root(root);
   };
 }
 
+static void remove_root(int index) {
+  watch_root* root = array_get(roots, index);
+  array_put(roots, index, array_get(roots, array_size(roots) - 1));
+  array_pop(roots);
+  free_root(root);
+}
 
-static bool register_roots(array* new_roots, array* unwatchable, array* mounts) {
-  for (int i=0; i<array_size(new_roots); i++) {
-    char* new_root = array_get(new_roots, i);
-    char* unflattened = UNFLATTEN(new_root);
-    userlog(LOG_INFO, "registering root: %s", new_root);
 
-    if (unflattened[0] != '/') {
-      userlog(LOG_WARNING, "invalid root: %s", new_root);
-      continue;
-    }
+static watch_root* register_root(const char* path, array* mounts) {
+  userlog(LOG_INFO, "registering root: %s", path);
 
-    array* inner_mounts = array_create(5);
-    CHECK_NULL(inner_mounts, false);
+  // unwatchable roots are kept as well, to be reported until removed
+  watch_root* root = malloc(sizeof(watch_root));
+  CHECK_NULL(root, NULL);
+  root->id = ERR_IGNORE;
+  root->path = strdup(path);
+  CHECK_NULL(root->path, NULL);
+  root->unwatchable = array_create(5);
+  CHECK_NULL(root->unwatchable, NULL);
+  CHECK_NULL(array_push(roots, root), NULL);
 
-    bool skip = false;
-    for (int j=0; j<array_size(mounts); j++) {
-      char* mount = array_get(mounts, j);
-      if (is_parent_path(mount, unflattened)) {
-        userlog(LOG_DEBUG, "watch root '%s' is under mount point '%s' - skipping", unflattened, mount);
-        CHECK_NULL(array_push(unwatchable, strdup(unflattened)), false);
-        skip = true;
-        break;
-      }
-      else if (is_parent_path(unflattened, mount)) {
-        userlog(LOG_DEBUG, "watch root '%s' contains mount point '%s' - partial watch", unflattened, mount);
-        char* copy = strdup(mount);
-        CHECK_NULL(array_push(unwatchable, copy), false);
-        CHECK_NULL(array_push(inner_mounts, copy), false);
-      }
-    }
-    if (skip) {
-      continue;
-    }
+  char* unflattened = UNFLATTEN(root->path);
+  if (unflattened[0] != '/') {
+    userlog(LOG_WARNING, "invalid root: %s", path);
+    return root;
+  }
+  if (strcmp(unflattened, "/") == 0) {  // refuse to watch entire tree
+    CHECK_NULL(array_push(root->unwatchable, strdup(unflattened)), NULL);
+    return root;
+  }
 
-    int id = watch(new_root, inner_mounts);
-    array_delete(inner_mounts);
+  array* inner_mounts = array_create(5);
+  CHECK_NULL(inner_mounts, NULL);
 
-    if (id >= 0 || id == ERR_MISSING) {
-      watch_root* root = malloc(sizeof(watch_root));
-      CHECK_NULL(root, false);
-      root->id = id;
-      root->path = strdup(new_root);
-      CHECK_NULL(root->path, false);
-      CHECK_NULL(array_push(roots, root), false);
+  for (int j=0; j<array_size(mounts); j++) {
+    char* mount = array_get(mounts, j);
+    if (is_parent_path(mount, unflattened)) {
+      userlog(LOG_DEBUG, "watch root '%s' is under mount point '%s' - skipping", unflattened, mount);
+      CHECK_NULL(array_push(root->unwatchable, strdup(unflattened)), NULL);
+      array_delete(inner_mounts);
+      return root;
     }
-    else if (id == ERR_ABORT) {
-      return false;
-    }
-    else if (id != ERR_IGNORE) {
-      CHECK_NULL(array_push(unwatchable, strdup(unflattened)), false);
+    else if (is_parent_path(unflattened, mount)) {
+      userlog(LOG_DEBUG, "watch root '%s' contains mount point '%s' - partial watch", unflattened, mount);
+      char* copy = strdup(mount);
+      CHECK_NULL(array_push(root->unwatchable, copy), NULL);
+      CHECK_NULL(array_push(inner_mounts, copy), NULL);
     }
   }
 
-  return true;
+  int id = watch(root->path, inner_mounts);
+  array_delete(inner_mounts);
+
+  if (id >= 0 || id == ERR_MISSING) {
+    root->id = id;
+  }
+  else if (id == ERR_ABORT) {
+    return NULL;
+  }
+  else if (id != ERR_IGNORE) {
+    CHECK_NULL(array_push(root->unwatchable, strdup(unflattened)), NULL);
+  }
+
+  return root;
+}
+
+
+static void report_unwatchable() {
+  output("UNWATCHEABLE\n");
+  for (int i=0; i<array_size(roots); i++) {
+    watch_root* root = array_get(roots, i);
+    for (int j=0; j<array_size(root->unwatchable); j++) {
+      char* s = array_get(root->unwatchable, j);
+      output("%s\n", s);
+      userlog(LOG_INFO, "unwatchable: %s", s);
+    }
+  }
+  output("#\n");
 }
 
 
@@ -420,6 +536,17 @@ static array* unwatchable_mounts() {
 
 
 static void inotify_callback(char* path, int event) {
+  if (event & IN_Q_OVERFLOW) {
+    // events are lost, but only the watched roots need to be rescanned
+    for (int i=0; i<array_size(roots); i++) {
+      watch_root* root = array_get(roots, i);
+      if (root->id >= 0) {
+        report_event(root->path[0] == '|' ? "DIRTY" : "RECDIRTY", UNFLATTEN(root->path));
+      }
+    }
+    return;
+  }
+
   if (event & (IN_CREATE | IN_MOVED_TO)) {
     report_event("CREATE", path);
     report_event("CHANGE", path);
@@ -437,14 +564,121 @@ static void inotify_callback(char* path, int event) {
     check_root_removal(path);
   }
   else if (event & IN_UNMOUNT) {
+    flush_events();
     output("RESET\n");
     userlog(LOG_DEBUG, "RESET");
   }
 }
 
-static void report_event(char* event, char* path) {
+static void report_event(const char* event, char* path) {
   userlog(LOG_DEBUG, "%s: %s", event, path);
 
+  event_entry* entry = malloc(sizeof(event_entry));
+  CHECK_NULL(entry, );
+  entry->op = event;
+  entry->path = strdup(path);
+  CHECK_NULL(entry->path, );
+  CHECK_NULL(array_push(events, entry), );
+
+  if (array_size(events) >= BATCH_LIMIT) {
+    flush_events();
+  }
+}
+
+static int parent_length(const char* path) {
+  char* p = strrchr(path, '/');
+  return (p != NULL ? p - path : 0);
+}
+
+// orders events by parent directory, then by name, so that duplicates and entries of a directory come together
+static int compare_events(const void* a, const void* b) {
+  const event_entry* e1 = *(event_entry* const*) a;
+  const event_entry* e2 = *(event_entry* const*) b;
+  int l1 = parent_length(e1->path), l2 = parent_length(e2->path);
+  int result = strncmp(e1->path, e2->path, (l1 < l2 ? l1 : l2));
+  if (result == 0)  result = l1 - l2;
+  if (result == 0)  result = strcmp(e1->path + l1, e2->path + l2);
+  if (result == 0)  result = strcmp(e1->op, e2->op);
+  return result;
+}
+
+static bool same_parent(const event_entry* e1, const event_entry* e2) {
+  int l = parent_length(e1->path);
+  return l == parent_length(e2->path) && strncmp(e1->path, e2->path, l) == 0;
+}
+
+static bool in_recursive_root(const char* dir, int len) {
+  for (int i=0; i<array_size(roots); i++) {
+    watch_root* root = array_get(roots, i);
+    const char* path = root->path;
+    if (path[0] == '|') {
+      continue;
+    }
+    int l = strlen(path);
+    if (l <= len && strncmp(dir, path, l) == 0 && (l == len || dir[l] == '/' || path[l - 1] == '/')) {
+      return true;
+    }
+  }
+  return false;
+}
+
+static void flush_events() {
+  int size = array_size(events);
+  if (size == 0) {
+    return;
+  }
+
+  array_sort(events, &compare_events);
+
+  // drops duplicates and replaces the events of directories with too many changed entries by a single "DIRTY" event
+  int count = 0;
+  for (int start=0, end; start<size; start=end) {
+    event_entry* first = array_get(events, start);
+    event_entry* last = first;
+    int distinct = 1, entries = 1;
+    for (end=start+1; end<size; end++) {
+      event_entry* entry = array_get(events, end);
+      if (!same_parent(first, entry)) {
+        break;
+      }
+      if (compare_events(&last, &entry) == 0) {
+        entry->op = NULL;
+      }
+      else {
+        if (strcmp(last->path, entry->path) != 0) {
+          entries++;
+        }
+        last = entry;
+        distinct++;
+      }
+    }
+
+    int l = parent_length(first->path);
+    if (entries > DIR_COALESCE_THRESHOLD && in_recursive_root(first->path, l > 0 ? l : 1)) {
+      first->op = "DIRTY";
+      first->path[l > 0 ? l : 1] = '\0';
+      for (int i=start+1; i<end; i++) {
+        ((event_entry*) array_get(events, i))->op = NULL;
+      }
+      distinct = 1;
+    }
+    count += distinct;
+  }
+
+  printf("BATCH\n%d\n", count);
+  for (int i=0; i<size; i++) {
+    event_entry* entry = array_get(events, i);
+    if (entry->op != NULL) {
+      write_event(entry->op, entry->path);
+    }
+    free(entry->path);
+  }
+  fflush(stdout);
+
+  array_delete_data(events);
+}
+
+static void write_event(const char* event, char* path) {
   int len = strlen(path);
   for (char* p = path; *p != '\0'; p++) {
     if (*p == '\n') {
@@ -456,8 +690,6 @@ static void report_event(char* event, char* path) {
   fputc('\n', stdout);
   fwrite(path, len, 1, stdout);
   fputc('\n', stdout);
-
-  fflush(stdout);
 }
 
 
@@ -479,7 +711,7 @@ static void check_missing_roots() {
   struct stat st;
   for (int i=0; i<array_size(roots); i++) {
     watch_root* root = array_get(roots, i);
-    if (root->id < 0) {
+    if (root->id == ERR_MISSING) {
       char* unflattened = UNFLATTEN(root->path);
       if (stat(unflattened, &st) == 0) {
         root->id = watch(root->path, NULL);
@@ -489,6 +721,7 @@ static void check_missing_roots() {
       }
     }
   }
+  flush_events();
 }
 
 static void check_root_removal(char* path) {
@@ -496,7 +729,7 @@ static void check_root_removal(char* path) {
     watch_root* root = array_get(roots, i);
     if (root->id >= 0 && strcmp(path, UNFLATTEN(root->path)) == 0) {
       unwatch(root->id);
-      root->id = -1;
+      root->id = ERR_MISSING;
       userlog(LOG_INFO, "root deleted: %s\n", root->path);
       report_event("DELETE", path);
     }
@@ -99,6 +99,12 @@ void* array_get(array* a, int index) {
   }
 }
 
+void array_sort(array* a, int (* compare)(const void*, const void*)) {
+  if (a != NULL && a->size > 1) {
+    qsort(a->data, a->size, sizeof(void*), compare);
+  }
+}
+
 void array_delete(array* a) {
   if (a != NULL) {
     free(a->data);
@@ -29,6 +29,7 @@ import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.lang.UrlClassLoader;
 import com.intellij.util.text.StringTokenizer;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.File;
@@ -115,7 +116,7 @@ public class ClassloaderUtil {
 
     UrlClassLoader newClassLoader = null;
     try {
-      newClassLoader = new UrlClassLoader(classpathElements, null, true, true);
+      newClassLoader = new UrlClassLoader(classpathElements, null, true, true, false, true, getClasspathIndexDir());
 
       // prepare plugins
       if (!isLoadingOfExternalPluginsDisabled()) {
@@ -273,6 +274,17 @@ public class ClassloaderUtil {
     }
   }
 
+  /**
+   * @return directory for the indices of the jars of the IDE and plugin class paths, or null if they are turned off
+   *         with <code>-Didea.classpath.index=false</code>
+   */
+  @Nullable
+  public static File getClasspathIndexDir() {
+    if ("false".equals(System.getProperty("idea.classpath.index"))) return null;
+    String dir = System.getProperty("idea.classpath.index.dir");
+    return new File(dir != null ? dir : PathManager.getSystemPath() + File.separator + "classpath");
+  }
+
   @SuppressWarnings({"HardCodedStringLiteral"})
   public static boolean isLoadingOfExternalPluginsDisabled() {
     return !"true".equalsIgnoreCase(System.getProperty("idea.plugins.load", "true"));
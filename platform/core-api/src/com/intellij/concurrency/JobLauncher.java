@@ -24,6 +24,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
 
 public abstract class JobLauncher {
@@ -50,6 +51,28 @@ public abstract class JobLauncher {
                                                      boolean failFastOnAcquireReadAction,
                                                      @NotNull final Processor<T> thingProcessor) throws ProcessCanceledException;
 
+  /**
+   * Concurrently processes elements of #things as they arrive, until #tombStone is taken from the queue, and waits for completion.
+   * The queue is expected to be filled by some other thread, which puts #tombStone into it after the last element.
+   * With checkCanceled in each thread delegated to our current progress
+   *
+   * @param things queue of elements to process concurrently
+   * @param progress
+   * @param failFastOnAcquireReadAction if true, returns false when failed to acquire read action
+   * @param tombStone marker which is put into the queue after the last element
+   * @param thingProcessor to be invoked concurrently on each element taken from the queue
+   * @return false if tasks have been canceled
+   *         or at least one processor returned false
+   *         or threw exception
+   *         or we were unable to start read action in at least one thread
+   * @throws ProcessCanceledException if at least one task has thrown ProcessCanceledException
+   */
+  public abstract <T> boolean processQueue(@NotNull BlockingQueue<T> things,
+                                           ProgressIndicator progress,
+                                           boolean failFastOnAcquireReadAction,
+                                           @NotNull T tombStone,
+                                           @NotNull Processor<T> thingProcessor) throws ProcessCanceledException;
+
   public abstract <T> AsyncFuture<Boolean> invokeConcurrentlyUnderProgressAsync(
                                                               @NotNull List<T> things,
                                                               ProgressIndicator progress,
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.util.io.AbstractStringEnumerator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+
+/**
+ * Stubs of a deserialized file in pre-order, created on demand.
+ * <p/>
+ * Getting a stub by its index creates only the stub, its ancestors and their immediate children. Children of a
+ * {@link StubBase} are created when they are asked for the first time, so subtrees nobody looks at are never
+ * deserialized. Once all the stubs are created the serialized data is released.
+ *
+ * @see StubSerializationHelper
+ */
+public class LazyStubList extends AbstractList<Stub> {
+  private static final Key<LazyStubList> LAZY_STUB_LIST = Key.create("lazy stub list");
+
+  private final ObjectStubSerializer[] mySerializers;
+  private final int[] myOffsets;
+  private final int[] mySubtreeEnds;
+  private final int[] myParents;
+  private final Stub[] myStubs;
+  private final boolean[] myChildrenLoaded;
+  private byte[] myData;
+  private AbstractStringEnumerator myStrings;
+  private int myLoadedCount;
+
+  LazyStubList(@NotNull ObjectStubSerializer[] serializers,
+               @NotNull int[] offsets,
+               @NotNull int[] subtreeEnds,
+               @NotNull byte[] data,
+               @NotNull AbstractStringEnumerator strings) throws IOException, SerializerNotFoundException {
+    int size = serializers.length;
+    mySerializers = serializers;
+    myOffsets = offsets;
+    mySubtreeEnds = subtreeEnds;
+    myData = data;
+    myStrings = strings;
+    myStubs = new Stub[size];
+    myChildrenLoaded = new boolean[size];
+    myParents = new int[size];
+    for (int i = 0; i < size; i++) {
+      for (int child = i + 1; child < subtreeEnds[i]; child = subtreeEnds[child]) {
+        myParents[child] = i;
+      }
+    }
+    myParents[0] = -1;
+
+    Stub root = createStub(0, null);
+    if (root instanceof ObjectStubBase) {
+      ((ObjectStubBase)root).putUserData(LAZY_STUB_LIST, this);
+    }
+  }
+
+  /**
+   * @return stubs of the tree the root belongs to, or null if the tree has not been deserialized lazily
+   */
+  @Nullable
+  public static LazyStubList getStubList(@NotNull ObjectStubBase root) {
+    return root.getUserData(LAZY_STUB_LIST);
+  }
+
+  @NotNull
+  public Stub getRoot() {
+    return myStubs[0];
+  }
+
+  @Override
+  public int size() {
+    return myStubs.length;
+  }
+
+  @Override
+  public synchronized Stub get(int index) {
+    Stub stub = myStubs[index];
+    if (stub == null) {
+      int parent = myParents[index];
+      loadChildren(parent, get(parent));
+      stub = myStubs[index];
+    }
+    return stub;
+  }
+
+  synchronized void loadChildren(@NotNull StubBase parent) {
+    loadChildren(parent.id, parent);
+  }
+
+  private void loadChildren(int index, Stub parent) {
+    if (myChildrenLoaded[index]) return;
+    // children asking for their siblings while being deserialized should not load them once again
+    myChildrenLoaded[index] = true;
+    try {
+      for (int child = index + 1; child < mySubtreeEnds[index]; child = mySubtreeEnds[child]) {
+        createStub(child, parent);
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    catch (SerializerNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    if (parent instanceof StubBase) {
+      ((StubBase)parent).setLazyChildren(null);
+    }
+  }
+
+  private Stub createStub(int index, @Nullable Stub parent) throws IOException, SerializerNotFoundException {
+    ByteArrayInputStream in = new ByteArrayInputStream(myData, myOffsets[index], myOffsets[index + 1] - myOffsets[index]);
+    Stub stub = mySerializers[index].deserialize(new StubInputStream(in, myStrings), parent);
+    ((ObjectStubBase)stub).id = index;
+    myStubs[index] = stub;
+
+    if (mySubtreeEnds[index] > index + 1) {
+      if (stub instanceof StubBase) {
+        ((StubBase)stub).setLazyChildren(this);
+      }
+      else {
+        // there is no way to intercept access to the children of other stubs
+        loadChildren(index, stub);
+      }
+    }
+
+    if (++myLoadedCount == myStubs.length) {
+      myData = null;
+      myStrings = null;
+    }
+    return stub;
+  }
+}
@@ -36,6 +36,7 @@ public abstract class StubBase<T extends PsiElement> extends ObjectStubBase<Stub
   private SmartList<StubElement> myChildren = null;
   private final IStubElementType myElementType;
   private volatile T myPsi;
+  private volatile LazyStubList myLazyChildren;
 
   @SuppressWarnings("unchecked")
   protected StubBase(final StubElement parent, final IStubElementType elementType) {
@@ -56,6 +57,10 @@ public abstract class StubBase<T extends PsiElement> extends ObjectStubBase<Stub
   @Override
   @SuppressWarnings("unchecked")
   public List<StubElement> getChildrenStubs() {
+    LazyStubList lazyChildren = myLazyChildren;
+    if (lazyChildren != null) {
+      lazyChildren.loadChildren(this);
+    }
     if (myChildren == null)
       return Collections.emptyList();
 
@@ -78,6 +83,10 @@ public abstract class StubBase<T extends PsiElement> extends ObjectStubBase<Stub
     return null;
   }
 
+  void setLazyChildren(@Nullable LazyStubList lazyChildren) {
+    myLazyChildren = lazyChildren;
+  }
+
   public void setPsi(final T psi) {
     myPsi = psi;
   }
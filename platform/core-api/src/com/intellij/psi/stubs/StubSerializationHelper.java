@@ -22,6 +22,7 @@ import com.intellij.util.containers.RecentStringInterner;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -63,32 +64,48 @@ public class StubSerializationHelper {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
 
-  private void doSerialize(final Stub rootStub, final StubOutputStream stream) throws IOException {
-    final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(rootStub);
-
-    DataInputOutputUtil.writeINT(stream, getClassId(serializer));
-    serializer.serialize(rootStub, stream);
-
-    final List<? extends Stub> children = rootStub.getChildrenStubs();
-    final int childrenSize = children.size();
-    DataInputOutputUtil.writeINT(stream, childrenSize);
-    for (int i = 0; i < childrenSize; ++i) {
-      doSerialize(children.get(i), stream);
+  /**
+   * Serializes stubs in pre-order, each into its own piece of the stream, so that any of them can be read on its own later.
+   * @return index of the next stub after the subtree of the given one
+   */
+  private int doSerialize(final Stub stub,
+                          final StubOutputStream stream,
+                          final BufferExposingByteArrayOutputStream out,
+                          final TIntArrayList table) throws IOException {
+    final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(stub);
+    final int index = table.size() / 3;
+    final int start = out.size();
+    serializer.serialize(stub, stream);
+    table.add(getClassId(serializer));
+    table.add(0); // subtree end, known after the children are serialized
+    table.add(out.size() - start);
+
+    int next = index + 1;
+    final List<? extends Stub> children = stub.getChildrenStubs();
+    for (int i = 0, childrenSize = children.size(); i < childrenSize; ++i) {
+      next = doSerialize(children.get(i), stream, out, table);
     }
+    table.set(index * 3 + 1, next);
+    return next;
   }
 
   public void serialize(Stub rootStub, OutputStream stream) throws IOException {
     BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+    TIntArrayList table = new TIntArrayList();
 
-    doSerialize(rootStub, stubOutputStream);
+    doSerialize(rootStub, stubOutputStream, out, table);
     DataOutputStream resultStream = new DataOutputStream(stream);
     DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
     for(String s:storage.myStrings) {
       IOUtil.writeUTFFast(buffer, resultStream, s);
     }
+    DataInputOutputUtil.writeINT(resultStream, table.size() / 3);
+    for (int i = 0; i < table.size(); i++) {
+      DataInputOutputUtil.writeINT(resultStream, table.get(i));
+    }
     resultStream.write(out.getInternalBuffer(), 0, out.size());
   }
 
@@ -100,6 +117,9 @@ public class StubSerializationHelper {
 
   private final RecentStringInterner myStringInterner = new RecentStringInterner();
 
+  /**
+   * @return root of the stub tree, the rest of the stubs are deserialized on demand, see {@link LazyStubList}
+   */
   public Stub deserialize(InputStream stream) throws IOException, SerializerNotFoundException {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubInputStream inputStream = new StubInputStream(stream, storage);
@@ -113,28 +133,29 @@ public class StubSerializationHelper {
       storage.myEnumerates.put(s, i);
       ++i;
     }
-    return deserialize(inputStream, null);
-  }
 
-  String intern(String str) {
-    return myStringInterner.get(str);
-  }
-
-  private Stub deserialize(StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
-    final int id = DataInputOutputUtil.readINT(stream);
-    final ObjectStubSerializer serializer = getClassById(id);
-    if (serializer == null) {
-      throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
+    final int stubCount = DataInputOutputUtil.readINT(inputStream);
+    final ObjectStubSerializer[] serializers = new ObjectStubSerializer[stubCount];
+    final int[] subtreeEnds = new int[stubCount];
+    final int[] offsets = new int[stubCount + 1];
+    for (int stub = 0; stub < stubCount; stub++) {
+      final int id = DataInputOutputUtil.readINT(inputStream);
+      serializers[stub] = getClassById(id);
+      if (serializers[stub] == null) {
+        throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; stub index=" + stub);
+      }
+      subtreeEnds[stub] = DataInputOutputUtil.readINT(inputStream);
+      offsets[stub + 1] = offsets[stub] + DataInputOutputUtil.readINT(inputStream);
     }
+    final byte[] data = new byte[offsets[stubCount]];
+    inputStream.readFully(data);
 
-    Stub stub = serializer.deserialize(stream, parentStub);
-    int childCount = DataInputOutputUtil.readINT(stream);
-    for (int i = 0; i < childCount; i++) {
-      deserialize(stream, stub);
-    }
-    return stub;
+    return new LazyStubList(serializers, offsets, subtreeEnds, data, storage).getRoot();
   }
 
+  String intern(String str) {
+    return myStringInterner.get(str);
+  }
 
   private ObjectStubSerializer getClassById(int id) {
     return myIdToSerializer.get(id);
@@ -58,6 +58,7 @@ import org.picocontainer.MutablePicoContainer;
 
 import java.lang.reflect.Modifier;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -140,6 +141,24 @@ public class CoreApplicationEnvironment {
         return true;
       }
 
+      @Override
+      public <T> boolean processQueue(@NotNull BlockingQueue<T> things,
+                                      ProgressIndicator progress,
+                                      boolean failFastOnAcquireReadAction,
+                                      @NotNull T tombStone,
+                                      @NotNull Processor<T> thingProcessor) throws ProcessCanceledException {
+        try {
+          for (T thing = things.take(); thing != tombStone; thing = things.take()) {
+            if (!thingProcessor.process(thing))
+              return false;
+          }
+          return true;
+        }
+        catch (InterruptedException e) {
+          return false;
+        }
+      }
+
       @Override
       public <T> AsyncFuture<Boolean> invokeConcurrentlyUnderProgressAsync(@NotNull List<T> things,
                                                                            ProgressIndicator progress,
@@ -47,6 +47,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
   private static final boolean DEBUG_DEFERRED_PROCESSING = LOG.isDebugEnabled() || Boolean.getBoolean("idea.document.debug.bulk.processing");
+
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  private static final boolean USE_ROPE = Boolean.getBoolean("idea.document.rope.storage");
   /**
    * We can't exclude possibility of situation when <code>'defer changes'</code> state is {@link #setDeferredChangeMode(boolean) entered}
    * but not exited, hence, we want to perform automatic flushing if necessary in order to avoid memory leaks. This constant holds
@@ -67,6 +70,14 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private volatile int myDeferredShift;
   private volatile boolean myDeferredChangeMode;
   private volatile boolean myHasDeferredChanges;
+
+  /**
+   * In rope mode the text is kept in {@link #myRope} only (myArray and myOriginalSequence are not used): changes cost
+   * O(log n) instead of shifting the array, so there is no need to defer them, and every version of the text is a snapshot.
+   */
+  private final boolean myUseRope;
+  private volatile ImmutableText myRope;
+  private volatile char[] myRopeChars; // flattened rope for getChars(), dropped on modification
   // this lock is for mutual exclusion during read action access
   // (some fields are changed in read action too)
   private final Lock lock = new ReentrantLock();
@@ -100,12 +111,22 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   // bufferSize == 0 means unbounded
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
+    this(bufferSize, data, length, USE_ROPE);
+  }
+
+  CharArray(final int bufferSize, @NotNull char[] data, int length, boolean useRope) {
     myBufferSize = bufferSize;
     myDeferredChangesStorage = new TextChangesStorage();
-    myArray = Arrays.copyOf(data, length);
+    myUseRope = useRope;
+    if (useRope) {
+      myRope = ImmutableText.valueOf(new CharArrayCharSequence(data, 0, length));
+    }
+    else {
+      myArray = Arrays.copyOf(data, length);
+    }
     myCount = length;
 
-    if (myDebug) {
+    if (myDebug && !useRope) {
       myDebugArray = new CharArray(bufferSize, data, length) {
         @NotNull
         @Override
@@ -167,6 +188,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private void setText(@NotNull CharSequence chars) {
     assertConsistency();
+    if (myUseRope) {
+      setRope(ImmutableText.valueOf(chars.toString()));
+      return;
+    }
     myOriginalSequence = chars.toString();
     myArray = null;
     myStringRef = null;
@@ -184,6 +209,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void assertConsistency() {
+    if (myUseRope) {
+      assert myCount == myRope.length() && myDeferredShift == 0;
+      return;
+    }
     if (isDeferredChangeMode()) {
       assert myOriginalSequence == null;
     }
@@ -254,6 +283,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
+    if (myUseRope) {
+      setRope(myRope.replace(startOffset, endOffset, newString));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -291,6 +324,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (startIndex == endIndex) {
       return;
     }
+    if (myUseRope) {
+      setRope(myRope.delete(startIndex, endIndex));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -319,6 +356,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
+    if (myUseRope) {
+      setRope(myRope.insert(startIndex, s));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -340,6 +381,22 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  private void setRope(@NotNull ImmutableText rope) {
+    myRope = rope;
+    myRopeChars = null;
+    myStringRef = null;
+    myCount = rope.length();
+  }
+
+  /**
+   * @return the current text which stays the same whatever changes are made to this array afterwards
+   */
+  @NotNull
+  public ImmutableText getImmutableText() {
+    if (myUseRope) return myRope;
+    return ImmutableText.valueOf(toString());
+  }
+
   /**
    * Stores given change at collection of deferred changes (merging it with others if necessary) and updates current object
    * state ({@link #length() length} etc).
@@ -381,6 +438,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NotNull
   public CharSequence getCharArray() {
     assertConsistency();
+    if (myUseRope) return myRope;
     CharSequence originalSequence = myOriginalSequence;
     return originalSequence == null ? this : originalSequence;
   }
@@ -390,7 +448,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     String str = myStringRef == null ? null : myStringRef.get();
     if (str == null) {
-      if (myHasDeferredChanges) {
+      if (myUseRope) {
+        str = myRope.toString();
+      }
+      else if (myHasDeferredChanges) {
         str = substring(0, length()).toString();
       }
       else {
@@ -418,6 +479,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (i < 0 || i >= length()) {
       throw new IndexOutOfBoundsException("Wrong offset: " + i + "; count:" + length());
     }
+    if (myUseRope) {
+      return myRope.charAt(i);
+    }
     i += myStart;
     final char result;
     if (!myHasDeferredChanges) {
@@ -447,6 +511,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    if (myUseRope) {
+      return myRope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -459,6 +526,16 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public char[] getChars() {
     assertReadAccess();
     assertConsistency();
+    if (myUseRope) {
+      char[] chars = myRopeChars;
+      if (chars == null) {
+        ImmutableText rope = myRope;
+        chars = new char[rope.length()];
+        rope.getChars(0, chars.length, chars, 0);
+        myRopeChars = chars;
+      }
+      return chars;
+    }
     char[] array = myArray;
     CharSequence originalSequence = myOriginalSequence;
     if (myHasDeferredChanges || originalSequence != null && array == null) {
@@ -483,6 +560,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public void getChars(@NotNull final char[] dst, final int dstOffset) {
     assertReadAccess();
     assertConsistency();
+    if (myUseRope) {
+      ImmutableText rope = myRope;
+      rope.getChars(0, rope.length(), dst, dstOffset);
+      return;
+    }
     flushDeferredChanged();
     if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
@@ -516,7 +598,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    if (myUseRope) {
+      result = myRope.subtext(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -600,7 +685,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    * @param deferredChangeMode    flag that defines if <code>'defer changes'</code> mode should be used by the current object
    */
   public void setDeferredChangeMode(boolean deferredChangeMode) {
-    if (!DISABLE_DEFERRED_PROCESSING) {
+    if (!DISABLE_DEFERRED_PROCESSING && !myUseRope) {
       if (deferredChangeMode) {
         if (myDebug) {
           myDebugArray.setText(myDebugTextOnBatchUpdateStart = toString());
@@ -644,6 +644,16 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * @return the current text of the document which doesn't change when the document is modified later, so it may be read
+   * without a read action, e.g. by background highlighting passes. Costs O(1) when the document is stored as a rope
+   * (-Didea.document.rope.storage=true), otherwise the text is copied.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText.getImmutableText();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable text stored as a balanced binary tree (rope) of small char arrays.
+ * <p/>
+ * Insertion, deletion and taking a subtext cost O(log n) and share all the untouched leaves with the original text,
+ * so keeping the previous versions of a text is cheap. This makes an instance a stable snapshot of the document text
+ * which may be read from any thread while the document is being modified.
+ * <p/>
+ * Sequential {@link #charAt(int)} calls are served from the last accessed leaf without descending the tree.
+ */
+public final class ImmutableText implements CharSequence {
+  static final int LEAF_SIZE = 512;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new LeafNode(new char[0]));
+
+  private final Node myNode;
+  private volatile LeafRef myLastLeaf;
+
+  private ImmutableText(@NotNull Node node) {
+    myNode = node;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    if (text.length() == 0) return EMPTY;
+    return new ImmutableText(createNode(text, 0, text.length()));
+  }
+
+  @NotNull
+  private static Node createNode(@NotNull CharSequence text, int start, int end) {
+    int length = end - start;
+    if (length <= LEAF_SIZE) {
+      char[] chars = new char[length];
+      if (text instanceof String) {
+        ((String)text).getChars(start, end, chars, 0);
+      }
+      else {
+        for (int i = 0; i < length; i++) {
+          chars[i] = text.charAt(start + i);
+        }
+      }
+      return new LeafNode(chars);
+    }
+    // split at a leaf boundary so that the leaves are filled up
+    int half = (length / 2 + LEAF_SIZE - 1) / LEAF_SIZE * LEAF_SIZE;
+    return new CompositeNode(createNode(text, start, start + half), createNode(text, start + half, end));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    checkOffset(index);
+    if (text.length() == 0) return this;
+    Node inserted = valueOf(text).myNode;
+    return new ImmutableText(concat(concat(myNode.subNode(0, index), inserted), myNode.subNode(index, length())));
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) return this;
+    return new ImmutableText(concat(myNode.subNode(0, start), myNode.subNode(end, length())));
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    return delete(start, end).insert(start, text);
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    return insert(length(), text);
+  }
+
+  @NotNull
+  public ImmutableText subtext(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myNode.subNode(start, end));
+  }
+
+  @Override
+  public int length() {
+    return myNode.length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    LeafRef leaf = myLastLeaf;
+    if (leaf == null || index < leaf.start || index >= leaf.start + leaf.chars.length) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length());
+      }
+      leaf = findLeaf(index);
+      myLastLeaf = leaf;
+    }
+    return leaf.chars[index - leaf.start];
+  }
+
+  @NotNull
+  private LeafRef findLeaf(int index) {
+    Node node = myNode;
+    int start = 0;
+    while (node instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)node;
+      int headLength = composite.head.length;
+      if (index < headLength) {
+        node = composite.head;
+      }
+      else {
+        start += headLength;
+        index -= headLength;
+        node = composite.tail;
+      }
+    }
+    return new LeafRef(((LeafNode)node).chars, start);
+  }
+
+  @NotNull
+  @Override
+  public ImmutableText subSequence(int start, int end) {
+    return subtext(start, end);
+  }
+
+  /**
+   * Copies the characters of the [start, end) range into the destination array.
+   */
+  public void getChars(int start, int end, @NotNull char[] dest, int destOffset) {
+    checkRange(start, end);
+    myNode.getChars(start, end, dest, destOffset);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    char[] chars = new char[length()];
+    myNode.getChars(0, chars.length, chars, 0);
+    return new String(chars);
+  }
+
+  int getDepth() {
+    return myNode.depth;
+  }
+
+  private void checkOffset(int offset) {
+    if (offset < 0 || offset > length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + offset + "; length: " + length());
+    }
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || start > end || end > length()) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + length());
+    }
+  }
+
+  /**
+   * Joins the nodes keeping the tree balanced: depths of siblings never differ by more than one, as in AVL trees.
+   */
+  @NotNull
+  private static Node concat(@NotNull Node head, @NotNull Node tail) {
+    if (head.length == 0) return tail;
+    if (tail.length == 0) return head;
+    if (head.length + tail.length <= LEAF_SIZE) {
+      char[] chars = new char[head.length + tail.length];
+      head.getChars(0, head.length, chars, 0);
+      tail.getChars(0, tail.length, chars, head.length);
+      return new LeafNode(chars);
+    }
+    if (head.depth > tail.depth + 1) {
+      CompositeNode composite = (CompositeNode)head;
+      return balance(composite.head, concat(composite.tail, tail));
+    }
+    if (tail.depth > head.depth + 1) {
+      CompositeNode composite = (CompositeNode)tail;
+      return balance(concat(head, composite.head), composite.tail);
+    }
+    return new CompositeNode(head, tail);
+  }
+
+  @NotNull
+  private static Node balance(@NotNull Node head, @NotNull Node tail) {
+    if (head.depth > tail.depth + 1) {
+      CompositeNode left = (CompositeNode)head;
+      if (left.head.depth >= left.tail.depth) {
+        return new CompositeNode(left.head, new CompositeNode(left.tail, tail));
+      }
+      CompositeNode middle = (CompositeNode)left.tail;
+      return new CompositeNode(new CompositeNode(left.head, middle.head), new CompositeNode(middle.tail, tail));
+    }
+    if (tail.depth > head.depth + 1) {
+      CompositeNode right = (CompositeNode)tail;
+      if (right.tail.depth >= right.head.depth) {
+        return new CompositeNode(new CompositeNode(head, right.head), right.tail);
+      }
+      CompositeNode middle = (CompositeNode)right.head;
+      return new CompositeNode(new CompositeNode(head, middle.head), new CompositeNode(middle.tail, right.tail));
+    }
+    return new CompositeNode(head, tail);
+  }
+
+  private abstract static class Node {
+    final int length;
+    final int depth;
+
+    Node(int length, int depth) {
+      this.length = length;
+      this.depth = depth;
+    }
+
+    abstract void getChars(int start, int end, @NotNull char[] dest, int destOffset);
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+  }
+
+  private static class LeafNode extends Node {
+    private final char[] chars;
+
+    LeafNode(@NotNull char[] chars) {
+      super(chars.length, 0);
+      this.chars = chars;
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destOffset) {
+      System.arraycopy(chars, start, dest, destOffset, end - start);
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) return this;
+      char[] sub = new char[end - start];
+      System.arraycopy(chars, start, sub, 0, sub.length);
+      return new LeafNode(sub);
+    }
+  }
+
+  private static class CompositeNode extends Node {
+    private final Node head;
+    private final Node tail;
+
+    CompositeNode(@NotNull Node head, @NotNull Node tail) {
+      super(head.length + tail.length, Math.max(head.depth, tail.depth) + 1);
+      this.head = head;
+      this.tail = tail;
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destOffset) {
+      int headLength = head.length;
+      if (start < headLength) {
+        int headEnd = Math.min(end, headLength);
+        head.getChars(start, headEnd, dest, destOffset);
+        destOffset += headEnd - start;
+      }
+      if (end > headLength) {
+        tail.getChars(Math.max(0, start - headLength), end - headLength, dest, destOffset);
+      }
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) return this;
+      int headLength = head.length;
+      if (end <= headLength) return head.subNode(start, end);
+      if (start >= headLength) return tail.subNode(start - headLength, end - headLength);
+      return concat(head.subNode(start, headLength), tail.subNode(0, end - headLength));
+    }
+  }
+
+  private static class LeafRef {
+    private final char[] chars;
+    private final int start;
+
+    private LeafRef(@NotNull char[] chars, int start) {
+      this.chars = chars;
+      this.start = start;
+    }
+  }
+}
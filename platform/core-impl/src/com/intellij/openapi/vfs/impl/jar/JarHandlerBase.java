@@ -33,10 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -47,6 +44,9 @@ public class JarHandlerBase {
   private static final long DEFAULT_TIMESTAMP = -1L;
 
   private final TimedReference<JarFile> myJarFile = new TimedReference<JarFile>(null);
+  // jar read without ZipFile: doesn't hold the file open, but its directory takes memory, so it's released when not used
+  private final TimedReference<DirectoryJarFile> myDirectoryJarFile = new TimedReference<DirectoryJarFile>(null);
+  // rebuilt after GC from the entries of the jar
   private Reference<Map<String, EntryInfo>> myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(null);
   private final Object lock = new Object();
 
@@ -72,6 +72,7 @@ public class JarHandlerBase {
     synchronized (lock) {
       myRelPathsToEntries = null;
       myJarFile.set(null);
+      myDirectoryJarFile.set(null);
     }
   }
 
@@ -106,10 +107,22 @@ public class JarHandlerBase {
 
   @Nullable
   public JarFile getJar() {
-    JarFile jar = myJarFile.get();
+    JarFile jar = myDirectoryJarFile.get();
+    if (jar != null) return jar;
+    jar = myJarFile.get();
     if (jar == null) {
       synchronized (lock) {
-        jar = myJarFile.get();
+        jar = myDirectoryJarFile.get();
+        if (jar == null) {
+          jar = myJarFile.get();
+        }
+        if (jar == null) {
+          DirectoryJarFile directoryJar = createDirectoryJarFile();
+          if (directoryJar != null) {
+            myDirectoryJarFile.set(directoryJar);
+            jar = directoryJar;
+          }
+        }
         if (jar == null) {
           jar = createJarFile();
           if (jar != null) {
@@ -121,6 +134,60 @@ public class JarHandlerBase {
     return jar;
   }
 
+  /**
+   * @return jar read right from the original file, with no mirror copy and no open handle; null if the file isn't supported
+   *         by {@link ZipDirectory}
+   */
+  @Nullable
+  private DirectoryJarFile createDirectoryJarFile() {
+    final File originalFile = getOriginalFile();
+    try {
+      return new DirectoryJarFile(ZipDirectory.read(originalFile));
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+
+  private class DirectoryJarFile implements JarFile {
+    private final ZipDirectory myDirectory;
+    private ZipFile myZipFile;
+
+    private DirectoryJarFile(@NotNull ZipDirectory directory) {
+      myDirectory = directory;
+    }
+
+    @Override
+    public JarEntry getEntry(String name) {
+      return myDirectory.getEntry(name);
+    }
+
+    @Override
+    public InputStream getInputStream(JarEntry entry) throws IOException {
+      return new BufferExposingByteArrayInputStream(myDirectory.getBytes((ZipDirectory.Entry)entry));
+    }
+
+    @Override
+    public Enumeration<? extends JarEntry> entries() {
+      return Collections.enumeration(Arrays.asList(myDirectory.getEntries()));
+    }
+
+    @Override
+    public synchronized ZipFile getZipFile() {
+      if (myZipFile == null) {
+        File originalFile = getOriginalFile();
+        try {
+          myZipFile = new ZipFile(getMirrorFile(originalFile));
+        }
+        catch (IOException e) {
+          LOG.warn(e.getMessage() + ": " + originalFile.getPath(), e);
+        }
+      }
+      return myZipFile;
+    }
+  }
+
   @Nullable
   protected JarFile createJarFile() {
     final File originalFile = getOriginalFile();
@@ -283,14 +350,25 @@ public class JarHandlerBase {
 
   @NotNull
   public byte[] contentsToByteArray(@NotNull final VirtualFile file) throws IOException {
-    final JarFile.JarEntry entry = convertToEntry(file);
+    JarFile.JarEntry entry = convertToEntry(file);
     if (entry == null) {
       return ArrayUtil.EMPTY_BYTE_ARRAY;
     }
     synchronized (lock) {
-      final JarFile jar = getJar();
+      JarFile jar = getJar();
       assert jar != null : file;
 
+      // the jar was rewritten since its directory was read: the entry offsets are stale, so the directory is read again
+      if (jar instanceof DirectoryJarFile && !((DirectoryJarFile)jar).myDirectory.isUpToDate()) {
+        clear();
+        entry = convertToEntry(file);
+        if (entry == null) {
+          return ArrayUtil.EMPTY_BYTE_ARRAY;
+        }
+        jar = getJar();
+        assert jar != null : file;
+      }
+
       final InputStream stream = jar.getInputStream(entry);
       assert stream != null : file;
 
@@ -323,7 +401,7 @@ public class JarHandlerBase {
   public boolean exists(@NotNull final VirtualFile fileOrDirectory) {
     if (fileOrDirectory.getParent() == null) {
       // Optimization. Do not build entries if asked for jar root existence.
-      return myJarFile.get() != null || getOriginalFile().exists();
+      return myDirectoryJarFile.get() != null || myJarFile.get() != null || getOriginalFile().exists();
     }
 
     return getEntryInfo(fileOrDirectory) != null;
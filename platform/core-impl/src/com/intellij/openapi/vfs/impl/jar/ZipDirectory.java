@@ -0,0 +1,291 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.JarFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Central directory of a zip file read into memory, with the entries sorted by name.
+ * <p/>
+ * Unlike {@link java.util.zip.ZipFile}, no handle to the file is kept between the reads of entries, so the file isn't locked
+ * (on Windows) and doesn't have to be copied before being opened. Zip64 archives are not supported.
+ */
+final class ZipDirectory {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      return e1.myName.compareTo(e2.myName);
+    }
+  };
+
+  private final File myFile;
+  private final long myLength;
+  private final long myTimeStamp;
+  private final Entry[] myEntries;
+
+  private ZipDirectory(@NotNull File file, long length, long timeStamp, @NotNull Entry[] entries) {
+    myFile = file;
+    myLength = length;
+    myTimeStamp = timeStamp;
+    myEntries = entries;
+  }
+
+  /**
+   * @throws IOException if the file can't be read or isn't a zip file this class supports
+   */
+  @NotNull
+  public static ZipDirectory read(@NotNull File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long length = raf.length();
+      long timeStamp = file.lastModified();
+      int tailLength = (int)Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+      byte[] tail = new byte[tailLength];
+      raf.seek(length - tailLength);
+      raf.readFully(tail);
+
+      int end = tailLength - END_SIZE;
+      while (end >= 0 && readInt(tail, end) != END_SIGNATURE) end--;
+      if (end < 0) throw new IOException("Not a zip file: " + file);
+
+      // the count is only 16 bits wide and wraps (or is replaced by 0xFFFF) in archives with more entries: the directory is
+      // parsed up to its size instead, and the count is only checked modulo 2^16
+      int count = readShort(tail, end + 10);
+      long directorySize = readUnsignedInt(tail, end + 12);
+      long directoryOffset = readUnsignedInt(tail, end + 16);
+      if (directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) throw new IOException("Zip64 is not supported: " + file);
+      long directoryEnd = length - tailLength + end;
+      if (end >= ZIP64_LOCATOR_SIZE && readInt(tail, end - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE) {
+        // written for archives with 65535+ entries (e.g. by JDK 7): the Zip64 end record lies between the directory and the end record
+        directoryEnd = readUnsignedInt(tail, end - ZIP64_LOCATOR_SIZE + 8) | (long)readInt(tail, end - ZIP64_LOCATOR_SIZE + 12) << 32;
+      }
+      // archives with data before the entries (e.g. self-extracting ones) are left to ZipFile
+      if (directoryOffset + directorySize != directoryEnd) throw new IOException("Unsupported zip file layout: " + file);
+
+      byte[] directory = new byte[(int)directorySize];
+      raf.seek(directoryOffset);
+      raf.readFully(directory);
+      return new ZipDirectory(file, length, timeStamp, parseEntries(directory, count, file));
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  @NotNull
+  private static Entry[] parseEntries(@NotNull byte[] directory, int count, @NotNull File file) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>(count);
+    int offset = 0;
+    while (offset < directory.length) {
+      if (offset + CENTRAL_HEADER_SIZE > directory.length || readInt(directory, offset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Corrupted zip file: " + file);
+      }
+      int method = readShort(directory, offset + 10);
+      int dosTime = readInt(directory, offset + 12);
+      long compressedSize = readUnsignedInt(directory, offset + 20);
+      long size = readUnsignedInt(directory, offset + 24);
+      int nameLength = readShort(directory, offset + 28);
+      int extraLength = readShort(directory, offset + 30);
+      int commentLength = readShort(directory, offset + 32);
+      long localHeaderOffset = readUnsignedInt(directory, offset + 42);
+      if (offset + CENTRAL_HEADER_SIZE + nameLength > directory.length) throw new IOException("Corrupted zip file: " + file);
+      String name = new String(directory, offset + CENTRAL_HEADER_SIZE, nameLength, CharsetToolkit.UTF8_CHARSET);
+      entries.add(new Entry(name, method, dosTime, compressedSize, size, localHeaderOffset));
+      offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    if ((entries.size() & 0xFFFF) != count && count != 0xFFFF) throw new IOException("Corrupted zip file: " + file);
+    Collections.sort(entries, BY_NAME);
+    return entries.toArray(new Entry[entries.size()]);
+  }
+
+  /**
+   * @return false if the file was modified after the directory was read, so the offsets of the entries can't be trusted
+   */
+  public boolean isUpToDate() {
+    return myFile.length() == myLength && myFile.lastModified() == myTimeStamp;
+  }
+
+  @NotNull
+  public Entry[] getEntries() {
+    return myEntries;
+  }
+
+  /**
+   * @return the entry with the name, or with the name followed by '/' (like {@link java.util.zip.ZipFile#getEntry(String)})
+   */
+  @Nullable
+  public Entry getEntry(@NotNull String name) {
+    Entry entry = find(name);
+    if (entry == null && !name.endsWith("/")) {
+      entry = find(name + "/");
+    }
+    return entry;
+  }
+
+  @Nullable
+  private Entry find(@NotNull String name) {
+    int low = 0;
+    int high = myEntries.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int c = myEntries[middle].myName.compareTo(name);
+      if (c < 0) {
+        low = middle + 1;
+      }
+      else if (c > 0) {
+        high = middle - 1;
+      }
+      else {
+        return myEntries[middle];
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  public byte[] getBytes(@NotNull Entry entry) throws IOException {
+    if (entry.mySize > Integer.MAX_VALUE || entry.myCompressedSize > Integer.MAX_VALUE) {
+      throw new IOException("Entry is too large: " + entry.myName);
+    }
+    if (entry.myMethod != ZipEntry.STORED && entry.myMethod != ZipEntry.DEFLATED) {
+      throw new IOException("Unsupported compression method " + entry.myMethod + ": " + entry.myName);
+    }
+    // an extra byte is expected by the inflater in the 'nowrap' mode
+    int compressedSize = (int)entry.myCompressedSize;
+    byte[] data = new byte[entry.myMethod == ZipEntry.DEFLATED ? compressedSize + 1 : compressedSize];
+    RandomAccessFile raf = new RandomAccessFile(myFile, "r");
+    try {
+      if (raf.length() != myLength || myFile.lastModified() != myTimeStamp) {
+        throw new IOException("File has changed since its directory was read: " + myFile);
+      }
+      byte[] header = new byte[LOCAL_HEADER_SIZE];
+      raf.seek(entry.myOffset);
+      raf.readFully(header);
+      if (readInt(header, 0) != LOCAL_HEADER_SIGNATURE) throw new IOException("Corrupted zip entry: " + entry.myName);
+      // name and extra field lengths in the local header may differ from those in the central directory
+      raf.seek(entry.myOffset + LOCAL_HEADER_SIZE + readShort(header, 26) + readShort(header, 28));
+      raf.readFully(data, 0, compressedSize);
+    }
+    finally {
+      raf.close();
+    }
+
+    if (entry.myMethod == ZipEntry.STORED) return data;
+
+    byte[] bytes = new byte[(int)entry.mySize];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data);
+      int offset = 0;
+      while (offset < bytes.length) {
+        int read = inflater.inflate(bytes, offset, bytes.length - offset);
+        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+        offset += read;
+      }
+      if (offset != bytes.length) throw new IOException("Corrupted zip entry: " + entry.myName);
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupted zip entry " + entry.myName + ": " + e.getMessage());
+    }
+    finally {
+      inflater.end();
+    }
+    return bytes;
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+  }
+
+  private static long readUnsignedInt(byte[] bytes, int offset) {
+    return readInt(bytes, offset) & 0xFFFFFFFFL;
+  }
+
+  static final class Entry implements JarFile.JarEntry {
+    private final String myName;
+    private final int myMethod;
+    private final int myDosTime;
+    private final long myCompressedSize;
+    private final long mySize;
+    private final long myOffset;
+
+    private Entry(@NotNull String name, int method, int dosTime, long compressedSize, long size, long offset) {
+      myName = name;
+      myMethod = method;
+      myDosTime = dosTime;
+      myCompressedSize = compressedSize;
+      mySize = size;
+      myOffset = offset;
+    }
+
+    @Override
+    public String getName() {
+      return myName;
+    }
+
+    @Override
+    public long getSize() {
+      return mySize;
+    }
+
+    // same conversion from the local DOS time as ZipEntry does
+    @Override
+    @SuppressWarnings("deprecation")
+    public long getTime() {
+      Date date = new Date(((myDosTime >> 25) & 0x7f) + 80,
+                           ((myDosTime >> 21) & 0x0f) - 1,
+                           (myDosTime >> 16) & 0x1f,
+                           (myDosTime >> 11) & 0x1f,
+                           (myDosTime >> 5) & 0x3f,
+                           (myDosTime << 1) & 0x3e);
+      return date.getTime();
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return myName.endsWith("/");
+    }
+  }
+}
@@ -22,7 +22,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author Roman.Chernyatchik
  */
-public abstract class AbstractModificationTracker implements PsiTreeChangePreprocessor {
+public abstract class AbstractModificationTracker implements CodeBlockAwareTreeChangePreprocessor {
   private final PsiManagerImpl myPsiManager;
   private PsiModificationTrackerImpl myModificationTracker;
 
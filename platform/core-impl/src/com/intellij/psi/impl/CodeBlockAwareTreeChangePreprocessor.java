@@ -0,0 +1,25 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl;
+
+/**
+ * Tree change preprocessor which increments the out-of-code-block modification count
+ * ({@link PsiModificationTrackerImpl#incOutOfCodeBlockModificationCounter()}) on every change it doesn't know to be inside
+ * a code block, whatever the language of the changed file is. Unless one is registered, the out-of-code-block modification count
+ * doesn't reflect the changes of PSI trees.
+ */
+public interface CodeBlockAwareTreeChangePreprocessor extends PsiTreeChangePreprocessor {
+}
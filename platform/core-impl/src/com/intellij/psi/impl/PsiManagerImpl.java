@@ -60,6 +60,7 @@ public class PsiManagerImpl extends PsiManagerEx {
   private final List<PsiTreeChangePreprocessor> myTreeChangePreprocessors = ContainerUtil.createLockFreeCopyOnWriteList();
   private final List<PsiTreeChangeListener> myTreeChangeListeners = ContainerUtil.createLockFreeCopyOnWriteList();
   private boolean myTreeChangeEventIsFiring = false;
+  private boolean myTreeChangeStarting = false;
 
   private boolean myIsDisposed;
 
@@ -248,7 +249,7 @@ public class PsiManagerImpl extends PsiManagerEx {
 
   @Override
   public void beforeChildAddition(@NotNull PsiTreeChangeEventImpl event) {
-    beforeChange(true);
+    beforeTreeChange();
     event.setCode(PsiTreeChangeEventImpl.PsiEventType.BEFORE_CHILD_ADDITION);
     if (LOG.isDebugEnabled()) {
       LOG.debug(
@@ -260,7 +261,7 @@ public class PsiManagerImpl extends PsiManagerEx {
 
   @Override
   public void beforeChildRemoval(@NotNull PsiTreeChangeEventImpl event) {
-    beforeChange(true);
+    beforeTreeChange();
     event.setCode(PsiTreeChangeEventImpl.PsiEventType.BEFORE_CHILD_REMOVAL);
     if (LOG.isDebugEnabled()) {
       LOG.debug(
@@ -273,7 +274,7 @@ public class PsiManagerImpl extends PsiManagerEx {
 
   @Override
   public void beforeChildReplacement(@NotNull PsiTreeChangeEventImpl event) {
-    beforeChange(true);
+    beforeTreeChange();
     event.setCode(PsiTreeChangeEventImpl.PsiEventType.BEFORE_CHILD_REPLACEMENT);
     if (LOG.isDebugEnabled()) {
       LOG.debug(
@@ -285,7 +286,7 @@ public class PsiManagerImpl extends PsiManagerEx {
   }
 
   public void beforeChildrenChange(PsiTreeChangeEventImpl event) {
-    beforeChange(true);
+    beforeTreeChange();
     event.setCode(PsiTreeChangeEventImpl.PsiEventType.BEFORE_CHILDREN_CHANGE);
     if (LOG.isDebugEnabled()) {
       LOG.debug("beforeChildrenChange: parent = " + event.getParent());
@@ -397,6 +398,17 @@ public class PsiManagerImpl extends PsiManagerEx {
     myTreeChangePreprocessors.add(preprocessor);
   }
 
+  /**
+   * @return true if the out-of-code-block modification count reflects the changes of PSI trees
+   * @see CodeBlockAwareTreeChangePreprocessor
+   */
+  public boolean isOutOfCodeBlockChangeTracked() {
+    for (PsiTreeChangePreprocessor preprocessor : myTreeChangePreprocessors) {
+      if (preprocessor instanceof CodeBlockAwareTreeChangePreprocessor) return true;
+    }
+    return false;
+  }
+
   private void fireEvent(PsiTreeChangeEventImpl event) {
     boolean isRealTreeChange = event.getCode() != PsiTreeChangeEventImpl.PsiEventType.PROPERTY_CHANGED
                                && event.getCode() != PsiTreeChangeEventImpl.PsiEventType.BEFORE_PROPERTY_CHANGE;
@@ -525,6 +537,24 @@ public class PsiManagerImpl extends PsiManagerEx {
     myMessageBus.syncPublisher(ANY_PSI_CHANGE_TOPIC).beforePsiChanged(isPhysical);
   }
 
+  private void beforeTreeChange() {
+    myTreeChangeStarting = true;
+    try {
+      beforeChange(true);
+    }
+    finally {
+      myTreeChangeStarting = false;
+    }
+  }
+
+  /**
+   * @return true while {@link #ANY_PSI_CHANGE_TOPIC} listeners are notified of a coming change of elements of the physical PSI tree,
+   * as opposed to the other notifications (e.g. from {@link #dropResolveCaches()}) which may affect any resolve result
+   */
+  public boolean isTreeChangeStarting() {
+    return myTreeChangeStarting;
+  }
+
   @Override
   public void afterChange(boolean isPhysical) {
     myMessageBus.syncPublisher(ANY_PSI_CHANGE_TOPIC).afterPsiChanged(isPhysical);
@@ -25,21 +25,45 @@ import com.intellij.openapi.util.*;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.AnyPsiChangeListener;
 import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.reference.SoftReference;
-import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentWeakHashMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.messages.MessageBus;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Caches results of reference resolve.
+ * <p/>
+ * Results for physical files survive a change of the PSI tree if they can't be affected by it: that is, when there were
+ * no out-of-code-block changes (see {@link PsiModificationTracker#getOutOfCodeBlockModificationCount()}) and the file
+ * of the reference hasn't changed. The count only reflects tree changes when a
+ * {@link com.intellij.psi.impl.CodeBlockAwareTreeChangePreprocessor} is registered, so without one every change drops the results,
+ * as do other changes and explicit {@link #clearCache(boolean)} calls.
+ * <p/>
+ * Each of the maps is split into a young and an old generation: results are put into the young one and moved there from
+ * the old one on access. When the young generation is full, the old one is dropped, which bounds the cache size while keeping
+ * the results that are used.
+ */
 public class ResolveCache {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.resolve.ResolveCache");
-  private final ConcurrentMap[] myMaps = new ConcurrentMap[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
+  private static final int GENERATION_SIZE = SystemProperties.getIntProperty("idea.resolve.cache.generation.size", 50000);
+
+  private final Generations[] myMaps = new Generations[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
   private final RecursionGuard myGuard = RecursionManager.createGuard("resolveCache");
+  @Nullable private final Project myProject;
+  // incremented on every change of physical PSI; the results cached since the last change need no further checks
+  private final AtomicLong myPhysicalChangeCount = new AtomicLong();
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
 
   public static ResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
@@ -59,13 +83,24 @@ public class ResolveCache {
   }
 
   public ResolveCache(@NotNull MessageBus messageBus) {
+    this(messageBus, null);
+  }
+
+  public ResolveCache(@NotNull MessageBus messageBus, @Nullable Project project) {
+    myProject = project;
     for (int i = 0; i < myMaps.length; i++) {
-      myMaps[i] = createWeakMap();
+      myMaps[i] = new Generations();
     }
     messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
       @Override
       public void beforePsiChanged(boolean isPhysical) {
-        clearCache(isPhysical);
+        if (isPhysical && isTrackedTreeChangeStarting()) {
+          myPhysicalChangeCount.incrementAndGet();
+          clearCache(false);
+        }
+        else {
+          clearCache(isPhysical);
+        }
       }
 
       @Override
@@ -74,15 +109,40 @@ public class ResolveCache {
     });
   }
 
+  // whether a change of the PSI tree is starting which will be reflected by the out-of-code-block modification count if needed
+  private boolean isTrackedTreeChangeStarting() {
+    if (myProject == null) return false;
+    PsiManager manager = PsiManager.getInstance(myProject);
+    return manager instanceof PsiManagerImpl &&
+           ((PsiManagerImpl)manager).isTreeChangeStarting() &&
+           ((PsiManagerImpl)manager).isOutOfCodeBlockChangeTracked();
+  }
+
   private static <K,V> ConcurrentWeakHashMap<K, V> createWeakMap() {
     return new ConcurrentWeakHashMap<K,V>(100, 0.75f, Runtime.getRuntime().availableProcessors(), ContainerUtil.<ConcurrentWeakHashMap.Key<K,V>>canonicalStrategy());
   }
 
   public void clearCache(boolean isPhysical) {
+    if (isPhysical) myPhysicalChangeCount.incrementAndGet();
     int startIndex = isPhysical ? 0 : 1;
     for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps[i*4+j*2+k].clear();
   }
 
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return approximate number of results dropped to keep the cache size bounded
+   */
+  public long getEvictionCount() {
+    return myEvictions.get();
+  }
+
   @Nullable
   private <TRef extends PsiReference, TResult> TResult resolve(@NotNull final TRef ref,
                                                                @NotNull final AbstractResolver<TRef, TResult> resolver,
@@ -93,12 +153,13 @@ public class ResolveCache {
     ProgressIndicatorProvider.checkCanceled();
     ApplicationManager.getApplication().assertReadAccessAllowed();
 
-    ConcurrentMap<TRef, Getter<TResult>> map = getMap(isPhysical, incompleteCode, isPoly);
-    Getter<TResult> reference = map.get(ref);
-    TResult result = reference == null ? null : reference.get();
+    Generations<TRef, TResult> map = getMap(isPhysical, incompleteCode, isPoly);
+    TResult result = getCached(map, ref);
     if (result != null) {
+      myHits.incrementAndGet();
       return result;
     }
+    myMisses.incrementAndGet();
 
     RecursionGuard.StackStamp stamp = myGuard.markStack();
     result = needToPreventRecursion ? myGuard.doPreventingRecursion(Trinity.create(ref, incompleteCode, isPoly), true, new Computable<TResult>() {
@@ -111,11 +172,39 @@ public class ResolveCache {
     LOG.assertTrue(element == null || element.isValid(), result);
 
     if (stamp.mayCacheNow()) {
-      cache(ref, map, result, isPoly);
+      cache(ref, map, result, isPoly, isPhysical);
     }
     return result;
   }
 
+  @Nullable
+  private <TRef extends PsiReference, TResult> TResult getCached(@NotNull Generations<TRef, TResult> map, @NotNull TRef ref) {
+    CachedResult<TResult> cached = map.get(ref);
+    if (cached == null) return null;
+    TResult result = cached.myGetter.get();
+    if (result == null || cached.myChangeCount == myPhysicalChangeCount.get()) return result;
+    return isUpToDate(cached, result) ? result : null;
+  }
+
+  // called for the results which have been cached before the last change of physical PSI
+  private boolean isUpToDate(@NotNull CachedResult<?> cached, @NotNull Object result) {
+    PsiFile file = cached.myFile;
+    if (file == null || myProject == null) return false;
+    if (cached.myOutOfCodeBlockCount != PsiModificationTracker.SERVICE.getInstance(myProject).getOutOfCodeBlockModificationCount()) {
+      return false;
+    }
+    if (cached.myFileStamp != file.getModificationStamp() || !file.isValid()) return false;
+
+    if (result instanceof PsiElement) return ((PsiElement)result).isValid();
+    if (result instanceof ResolveResult[]) {
+      for (ResolveResult each : (ResolveResult[])result) {
+        PsiElement element = each.getElement();
+        if (element != null && !element.isValid()) return false;
+      }
+    }
+    return true;
+  }
+
   @NotNull
   public <T extends PsiPolyVariantReference> ResolveResult[] resolveWithCaching(@NotNull T ref,
                                                                                 @NotNull PolyVariantResolver<T> resolver,
@@ -134,9 +223,8 @@ public class ResolveCache {
   }
 
   public <T extends PsiPolyVariantReference> boolean isCached(@NotNull T ref, boolean physical, boolean incompleteCode, boolean isPoly) {
-    Map<T, Getter<ResolveResult[]>> map = getMap(physical, incompleteCode, isPoly);
-    Getter<ResolveResult[]> reference = map.get(ref);
-    return reference != null && reference.get() != null;
+    Generations<T, ResolveResult[]> map = getMap(physical, incompleteCode, isPoly);
+    return getCached(map, ref) != null;
   }
 
   public PsiElement resolveWithCaching(@NotNull PsiReference ref,
@@ -154,7 +242,7 @@ public class ResolveCache {
     return resolve(ref, resolver, needToPreventRecursion, incompleteCode, false, ref.getElement().isPhysical());
   }
 
-  private <TRef extends PsiReference,TResult> ConcurrentMap<TRef, Getter<TResult>> getMap(boolean physical, boolean incompleteCode, boolean isPoly) {
+  private <TRef extends PsiReference,TResult> Generations<TRef, TResult> getMap(boolean physical, boolean incompleteCode, boolean isPoly) {
     //noinspection unchecked
     return myMaps[(physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1)];
   }
@@ -166,28 +254,105 @@ public class ResolveCache {
   }
   private static final Getter<ResolveResult[]> EMPTY_POLY_RESULT = new StaticGetter<ResolveResult[]>(ResolveResult.EMPTY_ARRAY);
   private static final Getter<Object> NULL_RESULT = new StaticGetter<Object>(null);
-  private static <TRef extends PsiReference, TResult> void cache(@NotNull TRef ref,
-                                                                 @NotNull ConcurrentMap<TRef, Getter<TResult>> map,
-                                                                 TResult result,
-                                                                 boolean isPoly) {
+  private <TRef extends PsiReference, TResult> void cache(@NotNull TRef ref,
+                                                          @NotNull Generations<TRef, TResult> map,
+                                                          TResult result,
+                                                          boolean isPoly,
+                                                          boolean isPhysical) {
+    long changeCount = myPhysicalChangeCount.get();
     // optimization: less contention
-    Getter<TResult> cached = map.get(ref);
-    if (cached != null && cached.get() == result) {
+    CachedResult<TResult> cached = map.get(ref);
+    if (cached != null && cached.myGetter.get() == result && cached.myChangeCount == changeCount) {
       return;
     }
+    Getter<TResult> getter;
     if (result == null) {
       // no use in creating SoftReference to null
       //noinspection unchecked
-      cached = (Getter<TResult>)NULL_RESULT;
+      getter = (Getter<TResult>)NULL_RESULT;
     }
     else if (isPoly && ((Object[])result).length == 0) {
       // no use in creating SoftReference to empty array
       //noinspection unchecked
-      cached = result.getClass() == ResolveResult[].class ? (Getter<TResult>)EMPTY_POLY_RESULT : new StaticGetter<TResult>(result);
+      getter = result.getClass() == ResolveResult[].class ? (Getter<TResult>)EMPTY_POLY_RESULT : new StaticGetter<TResult>(result);
     }
     else {
-      cached = new SoftGetter<TResult>(result);
+      getter = new SoftGetter<TResult>(result);
+    }
+
+    PsiFile file = isPhysical && myProject != null ? getScopeFile(ref) : null;
+    long outOfCodeBlockCount = file == null ? 0 : PsiModificationTracker.SERVICE.getInstance(myProject).getOutOfCodeBlockModificationCount();
+    map.put(ref, new CachedResult<TResult>(getter, changeCount, file, file == null ? 0 : file.getModificationStamp(), outOfCodeBlockCount));
+  }
+
+  /**
+   * @return the file whose changes may affect the result of the reference, or null if it's not the only one
+   */
+  @Nullable
+  private static PsiFile getScopeFile(@NotNull PsiReference ref) {
+    PsiFile file = ref.getElement().getContainingFile();
+    if (file == null || file.getContext() != null) return null; // injected fragments depend on the host file
+    // in a multi-language file a change of one of the trees may affect resolve in another one
+    if (file.getViewProvider().getLanguages().size() != 1) return null;
+    return file;
+  }
+
+  private static class CachedResult<T> {
+    private final Getter<T> myGetter;
+    private final long myChangeCount;
+    @Nullable private final PsiFile myFile;
+    private final long myFileStamp;
+    private final long myOutOfCodeBlockCount;
+
+    private CachedResult(@NotNull Getter<T> getter, long changeCount, @Nullable PsiFile file, long fileStamp, long outOfCodeBlockCount) {
+      myGetter = getter;
+      myChangeCount = changeCount;
+      myFile = file;
+      myFileStamp = fileStamp;
+      myOutOfCodeBlockCount = outOfCodeBlockCount;
+    }
+  }
+
+  private class Generations<K, V> {
+    private volatile ConcurrentMap<K, CachedResult<V>> myYoung = createWeakMap();
+    private volatile ConcurrentMap<K, CachedResult<V>> myOld = createWeakMap();
+    private final AtomicInteger myYoungSize = new AtomicInteger();
+    private int myOldSize;
+
+    @Nullable
+    private CachedResult<V> get(@NotNull K key) {
+      CachedResult<V> value = myYoung.get(key);
+      if (value != null) return value;
+      value = myOld.get(key);
+      if (value != null && myYoung.putIfAbsent(key, value) == null) {
+        incYoungSize();
+      }
+      return value;
+    }
+
+    private void put(@NotNull K key, @NotNull CachedResult<V> value) {
+      if (myYoung.put(key, value) == null) {
+        incYoungSize();
+      }
+    }
+
+    private void incYoungSize() {
+      if (myYoungSize.incrementAndGet() > GENERATION_SIZE) {
+        synchronized (this) {
+          if (myYoungSize.get() <= GENERATION_SIZE) return;
+          myEvictions.addAndGet(myOldSize);
+          myOldSize = myYoungSize.getAndSet(0);
+          myOld = myYoung;
+          myYoung = createWeakMap();
+        }
+      }
+    }
+
+    private synchronized void clear() {
+      myYoung = createWeakMap();
+      myOld = createWeakMap();
+      myYoungSize.set(0);
+      myOldSize = 0;
     }
-    ConcurrencyUtil.cacheOrGet(map, ref, cached);
   }
 }
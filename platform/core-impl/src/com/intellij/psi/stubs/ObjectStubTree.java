@@ -33,11 +33,19 @@ public class ObjectStubTree<T extends Stub> {
 
   protected static final Key<ObjectStubTree> STUB_TO_TREE_REFERENCE = Key.create("stub to tree reference");
   protected final ObjectStubBase myRoot;
-  protected final List<T> myPlainList = new ArrayList<T>();
+  protected final List<T> myPlainList;
 
   public ObjectStubTree(@NotNull final ObjectStubBase root, final boolean withBackReference) {
     myRoot = root;
-    enumerateStubs(root, (List<Stub>)myPlainList);
+    final LazyStubList lazyStubs = LazyStubList.getStubList(root);
+    if (lazyStubs != null) {
+      // don't force deserialization of the whole tree, stubs are enumerated already
+      myPlainList = asTreeStubs(lazyStubs);
+    }
+    else {
+      myPlainList = new ArrayList<T>();
+      enumerateStubs(root, (List<Stub>)myPlainList);
+    }
     if (withBackReference) {
       myRoot.putUserData(STUB_TO_TREE_REFERENCE, this); // This will prevent soft references to stub tree to be collected before all of the stubs are collected.
     }
@@ -65,6 +73,14 @@ public class ObjectStubTree<T extends Stub> {
     return sink.getResult();
   }
 
+  /**
+   * All the stubs of a tree are of the tree's stub type, {@link LazyStubList} just can't tell it since it's created before the tree.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T extends Stub> List<T> asTreeStubs(@NotNull List<? extends Stub> stubs) {
+    return (List<T>)stubs;
+  }
+
   protected static void enumerateStubs(final Stub root, final List<Stub> result) {
     ((ObjectStubBase)root).id = result.size();
     result.add(root);
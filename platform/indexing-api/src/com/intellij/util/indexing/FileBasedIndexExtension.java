@@ -74,4 +74,12 @@ public abstract class FileBasedIndexExtension<K, V> {
   public boolean isKeyHighlySelective() {
     return false;
   }
+
+  /**
+   * Return true if the data indexed for a file is fully determined by its file type, charset and content bytes, so that
+   * files with identical content may share it instead of running the indexer for each of them.
+   */
+  public boolean isIndexedDataDeterminedByContent() {
+    return false;
+  }
 }
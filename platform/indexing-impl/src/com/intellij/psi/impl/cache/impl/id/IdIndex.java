@@ -97,6 +97,11 @@ public class IdIndex extends FileBasedIndexExtension<IdIndexEntry, Integer> {
     return true;
   }
 
+  @Override
+  public boolean isIndexedDataDeterminedByContent() {
+    return true;
+  }
+
   @NotNull
   @Override
   public ID<IdIndexEntry,Integer> getName() {
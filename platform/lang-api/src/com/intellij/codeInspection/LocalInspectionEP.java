@@ -35,6 +35,9 @@ public class LocalInspectionEP extends InspectionEP implements LocalInspectionTo
   @Attribute("runForWholeFile")
   public boolean runForWholeFile;
 
+  @Attribute("fileLocal")
+  public boolean fileLocal;
+
   @Attribute("unfair")
   public boolean unfair;
 
@@ -94,6 +94,17 @@ public abstract class LocalInspectionTool extends InspectionProfileEntry {
     return false;
   }
 
+  /**
+   * Tells whether the problems reported in a file depend on the content of the file only, and not on other files of the project
+   * (e.g. through resolve or usage search). Results of such inspections are reused by batch runs for unchanged files
+   * even when other files of the project have changed.
+   *
+   * @return true if the inspection is file-local.
+   */
+  public boolean isFileLocal() {
+    return false;
+  }
+
   /**
    * Override this to report problems at file level.
    *
@@ -145,23 +145,64 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
   }
 
   public void doInspectInBatch(@NotNull InspectionManagerEx iManager, @NotNull List<LocalInspectionToolWrapper> toolWrappers) {
+    inspectInBatch(iManager, toolWrappers).run();
+  }
 
+  /**
+   * Runs the tools over the file like {@link #doInspectInBatch(InspectionManagerEx, List)} but doesn't report the found problems.
+   *
+   * @return action which adds the found problems to the tool wrappers; doesn't reference the pass and may be run later
+   */
+  @NotNull
+  public Runnable inspectInBatch(@NotNull InspectionManagerEx iManager, @NotNull List<LocalInspectionToolWrapper> toolWrappers) {
     ProgressIndicator progress = ProgressManager.getInstance().getProgressIndicator();
     inspect(new ArrayList<LocalInspectionToolWrapper>(toolWrappers), iManager, false, false, false, progress);
-    addDescriptorsFromInjectedResults(iManager);
+    final List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> injectedProblems = collectDescriptorsFromInjectedResults(iManager);
     List<InspectionResult> resultList = result.get(myFile);
-    if (resultList == null) return;
-    for (InspectionResult inspectionResult : resultList) {
-      LocalInspectionToolWrapper toolWrapper = inspectionResult.tool;
-      for (ProblemDescriptor descriptor : inspectionResult.foundProblems) {
-        toolWrapper.addProblemDescriptors(Collections.singletonList(descriptor), myIgnoreSuppressed);
+    final List<InspectionResult> fileResults = resultList == null ? Collections.<InspectionResult>emptyList() : resultList;
+    final boolean ignoreSuppressed = myIgnoreSuppressed;
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (Pair<LocalInspectionToolWrapper, ProblemDescriptor> problem : injectedProblems) {
+          problem.first.addProblemDescriptors(Collections.singletonList(problem.second), true);
+        }
+        for (InspectionResult inspectionResult : fileResults) {
+          LocalInspectionToolWrapper toolWrapper = inspectionResult.tool;
+          for (ProblemDescriptor descriptor : inspectionResult.foundProblems) {
+            toolWrapper.addProblemDescriptors(Collections.singletonList(descriptor), ignoreSuppressed);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs the tools over the file and returns the found problems, those of the injected fragments first.
+   * All of them are to be reported with the suppressed ones filtered out.
+   */
+  @NotNull
+  public List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> collectProblemsInBatch(@NotNull InspectionManagerEx iManager,
+                                                                                         @NotNull List<LocalInspectionToolWrapper> toolWrappers) {
+    ProgressIndicator progress = ProgressManager.getInstance().getProgressIndicator();
+    inspect(new ArrayList<LocalInspectionToolWrapper>(toolWrappers), iManager, false, false, false, progress);
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems = collectDescriptorsFromInjectedResults(iManager);
+    List<InspectionResult> resultList = result.get(myFile);
+    if (resultList != null) {
+      for (InspectionResult inspectionResult : resultList) {
+        for (ProblemDescriptor descriptor : inspectionResult.foundProblems) {
+          problems.add(Pair.create(inspectionResult.tool, descriptor));
+        }
       }
     }
+    return problems;
   }
 
-  private void addDescriptorsFromInjectedResults(InspectionManagerEx iManager) {
+  @NotNull
+  private List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> collectDescriptorsFromInjectedResults(InspectionManagerEx iManager) {
     InjectedLanguageManager ilManager = InjectedLanguageManager.getInstance(myProject);
     PsiDocumentManager documentManager = PsiDocumentManager.getInstance(myProject);
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems = new ArrayList<Pair<LocalInspectionToolWrapper, ProblemDescriptor>>();
 
     for (Map.Entry<PsiFile, List<InspectionResult>> entry : result.entrySet()) {
       PsiFile file = entry.getKey();
@@ -189,11 +230,12 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
             }
             ProblemDescriptor patchedDescriptor = iManager.createProblemDescriptor(myFile, hostRange, descriptor.getDescriptionTemplate(),
                                                                                    descriptor.getHighlightType(), true, localFixes);
-            tool.addProblemDescriptors(Collections.singletonList(patchedDescriptor), true);
+            problems.add(Pair.create(tool, patchedDescriptor));
           }
         }
       }
     }
+    return problems;
   }
 
   private void inspect(@NotNull final List<LocalInspectionToolWrapper> toolWrappers,
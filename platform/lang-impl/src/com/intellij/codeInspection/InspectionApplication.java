@@ -20,6 +20,7 @@ import com.intellij.analysis.AnalysisScope;
 import com.intellij.codeInspection.ex.GlobalInspectionContextImpl;
 import com.intellij.codeInspection.ex.InspectionManagerEx;
 import com.intellij.codeInspection.ex.InspectionProfileImpl;
+import com.intellij.codeInspection.ex.InspectionResultsCache;
 import com.intellij.codeInspection.ex.XSLTReportConverter;
 import com.intellij.conversion.ConversionListener;
 import com.intellij.conversion.ConversionService;
@@ -71,6 +72,8 @@ public class InspectionApplication {
   public String myProfilePath = null;
   public boolean myRunWithEditorSettings = false;
   public boolean myRunGlobalToolsOnly = false;
+  public boolean myRunFilesConcurrently = false;
+  public String myResultsCachePath = null;
   private Project myProject;
   private int myVerboseLevel = 0;
   public String myOutputFormat = null;
@@ -123,6 +126,7 @@ public class InspectionApplication {
   private void run() {
 
     File tmpDir = null;
+    InspectionResultsCache resultsCache = null;
     try {
       myProjectPath = myProjectPath.replace(File.separatorChar, '/');
       VirtualFile vfsProject = LocalFileSystem.getInstance().findFileByPath(myProjectPath);
@@ -163,6 +167,11 @@ public class InspectionApplication {
 
       final GlobalInspectionContextImpl inspectionContext = im.createNewGlobalContext(true);
       inspectionContext.setExternalProfile((InspectionProfile)inspectionProfile);
+      inspectionContext.setProcessFilesConcurrently(myRunFilesConcurrently);
+      if (myResultsCachePath != null) {
+        resultsCache = new InspectionResultsCache(myProject, new File(myResultsCachePath), (InspectionProfile)inspectionProfile);
+        inspectionContext.setResultsCache(resultsCache);
+      }
       im.setProfile(inspectionProfile.getName());
 
       final AnalysisScope scope;
@@ -290,6 +299,9 @@ public class InspectionApplication {
       if (myErrorCodeRequired) System.exit(1);
     }
     finally {
+      if (resultsCache != null) {
+        resultsCache.dispose();
+      }
       // delete tmp dir
       if (tmpDir != null) {
         FileUtil.delete(tmpDir);
@@ -103,6 +103,8 @@ public class InspectionMain implements ApplicationStarter {
     }
 
     myApplication.myRunGlobalToolsOnly = System.getProperty("idea.no.local.inspections") != null;
+    myApplication.myRunFilesConcurrently = System.getProperty("idea.parallel.inspections") != null;
+    myApplication.myResultsCachePath = System.getProperty("idea.inspections.cache.dir");
   }
 
   public void main(String[] args) {
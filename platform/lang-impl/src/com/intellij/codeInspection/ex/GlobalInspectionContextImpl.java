@@ -73,9 +73,12 @@ import org.jetbrains.annotations.TestOnly;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GlobalInspectionContextImpl extends UserDataHolderBase implements GlobalInspectionContext {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInspection.ex.GlobalInspectionContextImpl");
+  // bounds the number of inspected files whose problems are kept until they can be reported in order
+  private static final int FILES_PER_THREAD_IN_BATCH = 16;
   private static final TObjectHashingStrategy<ToolsImpl> TOOLS_HASHING_STRATEGY = new TObjectHashingStrategy<ToolsImpl>() {
     @Override
     public int computeHashCode(ToolsImpl object) {
@@ -117,6 +120,8 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
   @NonNls static final String LOCAL_TOOL_ATTRIBUTE = "is_local_tool";
 
   private boolean myUseProgressIndicatorInTests = false;
+  private boolean myProcessFilesConcurrently = false;
+  private InspectionResultsCache myResultsCache;
 
   public GlobalInspectionContextImpl(Project project, NotNullLazyValue<ContentManager> contentManager) {
     myProject = project;
@@ -541,6 +546,21 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
            ? new EmptyProgressIndicator() : ProgressManager.getInstance().getProgressIndicator();
   }
 
+  /**
+   * Inspect files of the scope concurrently instead of one at a time (global simple tools are still run concurrently
+   * within a file in the sequential mode).
+   */
+  public void setProcessFilesConcurrently(boolean processFilesConcurrently) {
+    myProcessFilesConcurrently = processFilesConcurrently;
+  }
+
+  /**
+   * Reuse the problems found by local tools in the files which didn't change since the previous run with the same cache.
+   */
+  public void setResultsCache(@Nullable InspectionResultsCache resultsCache) {
+    myResultsCache = resultsCache;
+  }
+
   @TestOnly
   public void setUseProgressIndicatorInTests(boolean useProgressIndicatorInTests) {
     myUseProgressIndicatorInTests = useProgressIndicatorInTests;
@@ -592,7 +612,6 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
     }
     if (RUN_GLOBAL_TOOLS_ONLY) return;
 
-    final PsiManager psiManager = PsiManager.getInstance(myProject);
     final Set<VirtualFile> localScopeFiles = scope.toSearchScope() instanceof LocalSearchScope ? new THashSet<VirtualFile>() : null;
     for (Tools tools : globalSimpleTools) {
       GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
@@ -601,67 +620,305 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
     }
 
     final Map<String, DescriptorProviderInspection> map = getInspectionWrappersMap(localTools);
+    if (myProcessFilesConcurrently) {
+      inspectFilesConcurrently(scope, manager, localTools, globalSimpleTools, map, localScopeFiles);
+    }
+    else {
+      scope.accept(new PsiElementVisitor() {
+        @Override
+        public void visitFile(final PsiFile file) {
+          final VirtualFile virtualFile = file.getVirtualFile();
+          if (virtualFile != null) {
+            incrementJobDoneAmount(LOCAL_ANALYSIS, ProjectUtil.calcRelativeToProjectPath(virtualFile, myProject));
+            if (SingleRootFileViewProvider.isTooLargeForIntelligence(virtualFile)) return;
+            if (localScopeFiles != null && !localScopeFiles.add(virtualFile)) return;
+          }
+          inspectFile(file, manager, localTools, globalSimpleTools, map, true).run();
+        }
+      });
+    }
+    for (Tools tools : globalSimpleTools) {
+      GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
+      GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
+      GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
+      tool.inspectionFinished(manager, this, problemDescriptionProcessor);
+    }
+  }
+
+  /**
+   * Inspects the files of the scope on all cores, a batch of files at a time. Only the virtual files of the scope are kept,
+   * the PSI of a file is free to be collected as soon as it's inspected. Found problems are reported after each batch
+   * in the order of the files in the scope, so the results don't depend on the scheduling.
+   */
+  private void inspectFilesConcurrently(@NotNull AnalysisScope scope,
+                                        @NotNull final InspectionManager manager,
+                                        @NotNull final List<Tools> localTools,
+                                        @NotNull final List<Tools> globalSimpleTools,
+                                        @NotNull final Map<String, DescriptorProviderInspection> map,
+                                        @Nullable final Set<VirtualFile> localScopeFiles) {
+    final List<VirtualFile> files = new ArrayList<VirtualFile>();
     scope.accept(new PsiElementVisitor() {
       @Override
-      public void visitFile(final PsiFile file) {
-        final VirtualFile virtualFile = file.getVirtualFile();
-        if (virtualFile != null) {
-          incrementJobDoneAmount(LOCAL_ANALYSIS, ProjectUtil.calcRelativeToProjectPath(virtualFile, myProject));
-          if (SingleRootFileViewProvider.isTooLargeForIntelligence(virtualFile)) return;
-          if (localScopeFiles != null && !localScopeFiles.add(virtualFile)) return;
+      public void visitFile(PsiFile file) {
+        VirtualFile virtualFile = file.getVirtualFile();
+        if (virtualFile != null && (localScopeFiles == null || localScopeFiles.add(virtualFile))) {
+          files.add(virtualFile);
         }
+      }
+    });
 
-        final FileViewProvider viewProvider = psiManager.findViewProvider(virtualFile);
-        final com.intellij.openapi.editor.Document document = viewProvider == null ? null : viewProvider.getDocument();
-        if (document == null || virtualFile.getFileType().isBinary()) return; //do not inspect binary files
-        final LocalInspectionsPass pass = new LocalInspectionsPass(file, document, 0,
-                                                                   file.getTextLength(), LocalInspectionsPass.EMPTY_PRIORITY_RANGE, true);
-        try {
-          final List<LocalInspectionToolWrapper> lTools = new ArrayList<LocalInspectionToolWrapper>();
-          for (Tools tool : localTools) {
-            final LocalInspectionToolWrapper enabledTool = (LocalInspectionToolWrapper)tool.getEnabledTool(file);
-            if (enabledTool != null) {
-              lTools.add(enabledTool);
-            }
+    final PsiManager psiManager = PsiManager.getInstance(myProject);
+    final int batchSize = FILES_PER_THREAD_IN_BATCH * Runtime.getRuntime().availableProcessors();
+    for (int start = 0; start < files.size(); start += batchSize) {
+      final List<VirtualFile> batch = files.subList(start, Math.min(files.size(), start + batchSize));
+      final Map<VirtualFile, Runnable> reports = new ConcurrentHashMap<VirtualFile, Runnable>();
+      boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(batch, myProgressIndicator, false, new Processor<VirtualFile>() {
+        @Override
+        public boolean process(VirtualFile virtualFile) {
+          if (!virtualFile.isValid() || SingleRootFileViewProvider.isTooLargeForIntelligence(virtualFile)) return true;
+          PsiFile file = psiManager.findFile(virtualFile);
+          if (file != null) {
+            reports.put(virtualFile, inspectFile(file, manager, localTools, globalSimpleTools, map, false));
+          }
+          return true;
+        }
+      });
+      if (!completed) throw new ProcessCanceledException();
+
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          for (VirtualFile virtualFile : batch) {
+            incrementJobDoneAmount(LOCAL_ANALYSIS, ProjectUtil.calcRelativeToProjectPath(virtualFile, myProject));
+            Runnable report = reports.get(virtualFile);
+            if (report != null) report.run();
           }
-          pass.doInspectInBatch((InspectionManagerEx)manager, lTools);
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs local and global simple tools over the file.
+   *
+   * @param runToolsConcurrently whether global simple tools should be run concurrently and report their problems right away
+   *                             (when the file isn't inspected concurrently with others)
+   * @return action reporting the found problems to the tool wrappers
+   */
+  @NotNull
+  private Runnable inspectFile(@NotNull final PsiFile file,
+                               @NotNull final InspectionManager manager,
+                               @NotNull List<Tools> localTools,
+                               @NotNull List<Tools> globalSimpleTools,
+                               @NotNull final Map<String, DescriptorProviderInspection> map,
+                               final boolean runToolsConcurrently) {
+    final VirtualFile virtualFile = file.getVirtualFile();
+    final FileViewProvider viewProvider = PsiManager.getInstance(myProject).findViewProvider(virtualFile);
+    final com.intellij.openapi.editor.Document document = viewProvider == null ? null : viewProvider.getDocument();
+    if (document == null || virtualFile.getFileType().isBinary()) return EmptyRunnable.getInstance(); //do not inspect binary files
+    final LocalInspectionsPass pass = new LocalInspectionsPass(file, document, 0,
+                                                               file.getTextLength(), LocalInspectionsPass.EMPTY_PRIORITY_RANGE, true);
+    final List<Runnable> reports = Collections.synchronizedList(new ArrayList<Runnable>());
+    try {
+      final List<LocalInspectionToolWrapper> lTools = new ArrayList<LocalInspectionToolWrapper>();
+      for (Tools tool : localTools) {
+        final LocalInspectionToolWrapper enabledTool = (LocalInspectionToolWrapper)tool.getEnabledTool(file);
+        if (enabledTool != null) {
+          lTools.add(enabledTool);
+        }
+      }
+      if (myResultsCache == null) {
+        reports.add(pass.inspectInBatch((InspectionManagerEx)manager, lTools));
+      }
+      else {
+        reports.add(inspectWithCache(file, pass, (InspectionManagerEx)manager, lTools, myResultsCache));
+      }
 
-          JobLauncher.getInstance().invokeConcurrentlyUnderProgress(globalSimpleTools, myProgressIndicator, false, new Processor<Tools>() {
+      Processor<Tools> processor = new Processor<Tools>() {
+        @Override
+        public boolean process(Tools tools) {
+          final GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
+          GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
+          ProblemsHolder problemsHolder = new ProblemsHolder(manager, file, false);
+          final GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
+          List<Runnable> deferredReports = runToolsConcurrently ? null : reports;
+          tool.checkFile(file, manager, problemsHolder, GlobalInspectionContextImpl.this,
+                         new FileProblemDescriptionsProcessor(toolWrapper, problemDescriptionProcessor, deferredReports));
+          final List<ProblemDescriptor> results = problemsHolder.getResults();
+          Runnable report = new Runnable() {
             @Override
-            public boolean process(Tools tools) {
-              GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
-              GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
-              ProblemsHolder problemsHolder = new ProblemsHolder(manager, file, false);
-              GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
-              tool.checkFile(file, manager, problemsHolder, GlobalInspectionContextImpl.this, problemDescriptionProcessor);
-              LocalInspectionToolWrapper.addProblemDescriptors(problemsHolder.getResults(), false, GlobalInspectionContextImpl.this, null,
-                                                               CONVERT, toolWrapper);
-              return true;
+            public void run() {
+              LocalInspectionToolWrapper.addProblemDescriptors(results, false, GlobalInspectionContextImpl.this, null, CONVERT, toolWrapper);
             }
-          });
+          };
+          if (runToolsConcurrently) {
+            report.run();
+          }
+          else {
+            reports.add(report);
+          }
+          return true;
         }
-        catch (ProcessCanceledException e) {
-          throw e;
+      };
+      if (runToolsConcurrently) {
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(globalSimpleTools, myProgressIndicator, false, processor);
+      }
+      else {
+        for (Tools tools : globalSimpleTools) {
+          processor.process(tools);
         }
-        catch (IndexNotReadyException e) {
-          throw e;
+      }
+    }
+    catch (ProcessCanceledException e) {
+      throw e;
+    }
+    catch (IndexNotReadyException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      LOG.error("In file: " + file, e);
+    }
+    catch (AssertionError e) {
+      LOG.error("In file: " + file, e);
+    }
+    finally {
+      InjectedLanguageManager.getInstance(myProject).dropFileCaches(file);
+    }
+
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (Runnable report : reports.toArray(new Runnable[reports.size()])) {
+          report.run();
         }
-        catch (Exception e) {
-          LOG.error("In file: " + file, e);
+      }
+    };
+  }
+
+  /**
+   * Runs the local tools over the file unless the problems found by the previous run are still valid: those of all tools if
+   * nothing in the project has changed, or those of the file-local tools if the file hasn't changed.
+   * Global simple tools aren't cached: their results may depend on any file of the project.
+   */
+  @NotNull
+  private static Runnable inspectWithCache(@NotNull PsiFile file,
+                                           @NotNull LocalInspectionsPass pass,
+                                           @NotNull InspectionManagerEx manager,
+                                           @NotNull List<LocalInspectionToolWrapper> toolWrappers,
+                                           @NotNull InspectionResultsCache cache) {
+    VirtualFile virtualFile = file.getVirtualFile();
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems =
+      restoreCachedProblems(file, toolWrappers, cache.getProblems(virtualFile));
+    if (problems == null) {
+      List<LocalInspectionToolWrapper> fileLocalTools = new ArrayList<LocalInspectionToolWrapper>();
+      List<LocalInspectionToolWrapper> otherTools = new ArrayList<LocalInspectionToolWrapper>();
+      Set<String> fileLocalToolNames = new THashSet<String>();
+      for (LocalInspectionToolWrapper toolWrapper : toolWrappers) {
+        if (toolWrapper.isFileLocal()) {
+          fileLocalTools.add(toolWrapper);
+          fileLocalToolNames.add(toolWrapper.getShortName());
         }
-        catch (AssertionError e) {
-          LOG.error("In file: " + file, e);
+        else {
+          otherTools.add(toolWrapper);
         }
-        finally {
-          InjectedLanguageManager.getInstance(myProject).dropFileCaches(file);
+      }
+      if (!fileLocalTools.isEmpty()) {
+        problems = restoreCachedProblems(file, fileLocalTools, cache.getFileLocalProblems(virtualFile, fileLocalToolNames));
+      }
+      if (problems == null) {
+        problems = pass.collectProblemsInBatch(manager, toolWrappers);
+      }
+      else if (!otherTools.isEmpty()) {
+        problems.addAll(pass.collectProblemsInBatch(manager, otherTools));
+      }
+      cache.putProblems(file, problems);
+    }
+    final List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> found = problems;
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (Pair<LocalInspectionToolWrapper, ProblemDescriptor> problem : found) {
+          problem.first.addProblemDescriptors(Collections.singletonList(problem.second), true);
         }
       }
-    });
-    for (Tools tools : globalSimpleTools) {
-      GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
-      GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
-      GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
-      tool.inspectionFinished(manager, this, problemDescriptionProcessor);
+    };
+  }
+
+  @Nullable
+  private static List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> restoreCachedProblems(@NotNull PsiFile file,
+                                                                                                @NotNull List<LocalInspectionToolWrapper> toolWrappers,
+                                                                                                @Nullable List<InspectionResultsCache.CachedProblem> cachedProblems) {
+    if (cachedProblems == null) return null;
+    Map<String, LocalInspectionToolWrapper> wrappers = new THashMap<String, LocalInspectionToolWrapper>();
+    for (LocalInspectionToolWrapper toolWrapper : toolWrappers) {
+      wrappers.put(toolWrapper.getShortName(), toolWrapper);
+    }
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems =
+      new ArrayList<Pair<LocalInspectionToolWrapper, ProblemDescriptor>>(cachedProblems.size());
+    for (InspectionResultsCache.CachedProblem cachedProblem : cachedProblems) {
+      LocalInspectionToolWrapper toolWrapper = wrappers.get(cachedProblem.getToolShortName());
+      ProblemDescriptor descriptor = toolWrapper == null ? null : cachedProblem.restore(file);
+      if (descriptor == null) return null;
+      problems.add(Pair.create(toolWrapper, descriptor));
+    }
+    return problems;
+  }
+
+  /**
+   * Answers the queries of a global simple tool from its wrapper. The changes of the problems are passed to the wrapper right away
+   * or, when the file is inspected concurrently with others, only when the reports of the file are run.
+   */
+  private static class FileProblemDescriptionsProcessor implements ProblemDescriptionsProcessor {
+    private final GlobalInspectionToolWrapper myToolWrapper;
+    private final ProblemDescriptionsProcessor myProcessor;
+    @Nullable private final List<Runnable> myReports;
+
+    private FileProblemDescriptionsProcessor(@NotNull GlobalInspectionToolWrapper toolWrapper,
+                                             @NotNull ProblemDescriptionsProcessor processor,
+                                             @Nullable List<Runnable> reports) {
+      myToolWrapper = toolWrapper;
+      myProcessor = processor;
+      myReports = reports;
+    }
+
+    @Nullable
+    @Override
+    public CommonProblemDescriptor[] getDescriptions(RefEntity refEntity) {
+      return myToolWrapper.getDescriptions(refEntity);
+    }
+
+    @Override
+    public void ignoreElement(final RefEntity refEntity) {
+      report(new Runnable() {
+        @Override
+        public void run() {
+          myToolWrapper.ignoreElement(refEntity);
+        }
+      });
+    }
+
+    @Override
+    public void addProblemElement(final RefEntity refEntity, final CommonProblemDescriptor... descriptors) {
+      report(new Runnable() {
+        @Override
+        public void run() {
+          myProcessor.addProblemElement(refEntity, descriptors);
+        }
+      });
+    }
+
+    @Override
+    public RefEntity getElement(CommonProblemDescriptor descriptor) {
+      return myToolWrapper.getElement(descriptor);
+    }
+
+    private void report(@NotNull Runnable report) {
+      if (myReports == null) {
+        report.run();
+      }
+      else {
+        myReports.add(report);
+      }
     }
   }
 
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.ex;
+
+import com.intellij.codeInspection.InspectionProfile;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemHighlightType;
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManager;
+import com.intellij.openapi.application.ApplicationInfo;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.JDOMUtil;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentHashMap;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Problems found by local inspection tools in the files of the previous batch inspection runs, so that the files whose inputs
+ * didn't change aren't inspected again.
+ * <p/>
+ * The problems of a file are reused while the content hash of the file stays the same and, unless they were reported by
+ * {@link LocalInspectionToolWrapper#isFileLocal() file-local} tools, while the project stays the same as well: the hash of
+ * the project covers the content of all its files (so added and removed files count too) and the library roots. Any change
+ * of another file may affect the results of a tool which resolves references or searches usages, so tracking the dependencies
+ * of the file wouldn't be enough. The whole cache is dropped when the inspection profile, the IDE build or the plugins change.
+ */
+public class InspectionResultsCache {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.codeInspection.ex.InspectionResultsCache");
+  private static final int VERSION = 2;
+  private static final ThreadLocal<MessageDigest> ourDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  private final Project myProject;
+  private final PersistentHashMap<String, Entry> myEntries;
+  // content doesn't change during a run, so each file is hashed once
+  private final ConcurrentMap<VirtualFile, Long> myContentHashes = new ConcurrentHashMap<VirtualFile, Long>();
+  private final Object myProjectHashLock = new Object();
+  private volatile long myProjectHash;
+
+  public InspectionResultsCache(@NotNull Project project, @NotNull File dir, @NotNull InspectionProfile profile) throws IOException {
+    myProject = project;
+    File dataFile = new File(dir, "results");
+    File fingerprintFile = new File(dir, "profile.fingerprint");
+    String fingerprint = getFingerprint(profile);
+    if (!fingerprint.equals(fingerprintFile.exists() ? FileUtil.loadFile(fingerprintFile) : null)) {
+      PersistentHashMap.deleteFilesStartingWith(dataFile);
+      FileUtil.writeToFile(fingerprintFile, fingerprint);
+    }
+    PersistentHashMap<String, Entry> entries;
+    try {
+      entries = new PersistentHashMap<String, Entry>(dataFile, new EnumeratorStringDescriptor(), new EntryExternalizer());
+    }
+    catch (IOException e) {
+      LOG.info("Inspection results cache is corrupted, rebuilding: " + e.getMessage());
+      PersistentHashMap.deleteFilesStartingWith(dataFile);
+      entries = new PersistentHashMap<String, Entry>(dataFile, new EnumeratorStringDescriptor(), new EntryExternalizer());
+    }
+    myEntries = entries;
+  }
+
+  @NotNull
+  private static String getFingerprint(@NotNull InspectionProfile profile) throws IOException {
+    Element element = new Element("profile");
+    try {
+      profile.writeExternal(element);
+    }
+    catch (Exception e) {
+      throw new IOException("Cannot serialize inspection profile " + profile.getName() + ": " + e.getMessage());
+    }
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    IOUtil.writeString(JDOMUtil.writeElement(element, "\n"), out);
+    // the tools may behave differently after an update of a plugin with no change in the build number
+    for (IdeaPluginDescriptor plugin : PluginManager.getPlugins()) {
+      if (plugin.isEnabled()) {
+        IOUtil.writeString(plugin.getPluginId().getIdString(), out);
+        IOUtil.writeString(plugin.getVersion(), out);
+      }
+    }
+    out.close();
+    long hash = calculateHash(bytes.getInternalBuffer(), 0, bytes.size());
+    return VERSION + ":" + ApplicationInfo.getInstance().getBuild().asString() + ":" + Long.toHexString(hash);
+  }
+
+  /**
+   * @return problems found in the file by the previous run, or null if the file or any other file of the project has changed since
+   */
+  @Nullable
+  public List<CachedProblem> getProblems(@NotNull VirtualFile file) {
+    Entry entry = getEntry(file);
+    return entry == null || entry.projectHash != getProjectHash() ? null : entry.problems;
+  }
+
+  /**
+   * @return problems found in the file by the previous run of the given file-local tools, or null if the file has changed since
+   */
+  @Nullable
+  public List<CachedProblem> getFileLocalProblems(@NotNull VirtualFile file, @NotNull Set<String> fileLocalToolShortNames) {
+    Entry entry = getEntry(file);
+    if (entry == null) return null;
+    List<CachedProblem> problems = new ArrayList<CachedProblem>();
+    for (CachedProblem problem : entry.problems) {
+      if (fileLocalToolShortNames.contains(problem.myToolShortName)) {
+        problems.add(problem);
+      }
+    }
+    return problems;
+  }
+
+  @Nullable
+  private Entry getEntry(@NotNull VirtualFile file) {
+    Entry entry;
+    try {
+      synchronized (myEntries) {
+        entry = myEntries.get(getKey(file));
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+    if (entry == null) return null;
+
+    long hash = getContentHash(file);
+    return hash == 0 || hash != entry.contentHash ? null : entry;
+  }
+
+  /**
+   * Stores the problems found in the file, unless some of them can't be restored from the file alone.
+   * Should be called under read action.
+   */
+  public void putProblems(@NotNull PsiFile file, @NotNull List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems) {
+    VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null) return;
+    List<CachedProblem> cachedProblems = new ArrayList<CachedProblem>(problems.size());
+    for (Pair<LocalInspectionToolWrapper, ProblemDescriptor> problem : problems) {
+      CachedProblem cachedProblem = CachedProblem.create(problem.first.getShortName(), problem.second, file);
+      if (cachedProblem == null) return;
+      cachedProblems.add(cachedProblem);
+    }
+
+    long hash = getContentHash(virtualFile);
+    if (hash == 0) return;
+    try {
+      synchronized (myEntries) {
+        myEntries.put(getKey(virtualFile), new Entry(hash, getProjectHash(), cachedProblems));
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  public void dispose() {
+    try {
+      synchronized (myEntries) {
+        myEntries.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  /**
+   * @return hash of the content of all files of the project and of the library roots, computed once per run
+   */
+  private long getProjectHash() {
+    long hash = myProjectHash;
+    if (hash == 0) {
+      synchronized (myProjectHashLock) {
+        hash = myProjectHash;
+        if (hash == 0) {
+          myProjectHash = hash = ApplicationManager.getApplication().runReadAction(new Computable<Long>() {
+            @Override
+            public Long compute() {
+              return calculateProjectHash();
+            }
+          });
+        }
+      }
+    }
+    return hash;
+  }
+
+  private long calculateProjectHash() {
+    // sorted by key, so that the hash doesn't depend on the order of iteration
+    final SortedMap<String, Long> hashes = new TreeMap<String, Long>();
+    ProjectRootManager.getInstance(myProject).getFileIndex().iterateContent(new ContentIterator() {
+      @Override
+      public boolean processFile(VirtualFile fileOrDir) {
+        if (!fileOrDir.isDirectory()) {
+          hashes.put(getKey(fileOrDir), getContentHash(fileOrDir));
+        }
+        return true;
+      }
+    });
+    // library jars are compared by their time stamps, which is cheaper than reading them
+    for (VirtualFile root : OrderEnumerator.orderEntries(myProject).getAllLibrariesAndSdkClassesRoots()) {
+      VirtualFile jar = VfsUtilCore.getVirtualFileForJar(root);
+      if (jar != null) {
+        hashes.put(jar.getUrl(), jar.getTimeStamp() ^ jar.getLength());
+      }
+      else {
+        VfsUtilCore.iterateChildrenRecursively(root, null, new ContentIterator() {
+          @Override
+          public boolean processFile(VirtualFile fileOrDir) {
+            if (!fileOrDir.isDirectory()) {
+              hashes.put(fileOrDir.getUrl(), fileOrDir.getTimeStamp() ^ fileOrDir.getLength());
+            }
+            return true;
+          }
+        });
+      }
+    }
+
+    try {
+      BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+        IOUtil.writeString(entry.getKey(), out);
+        out.writeLong(entry.getValue());
+      }
+      out.close();
+      return calculateHash(bytes.getInternalBuffer(), 0, bytes.size());
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return hash of the file content, or 0 if it can't be read
+   */
+  private long getContentHash(@NotNull VirtualFile file) {
+    Long hash = myContentHashes.get(file);
+    if (hash == null) {
+      try {
+        byte[] bytes = file.contentsToByteArray();
+        hash = calculateHash(bytes, 0, bytes.length);
+      }
+      catch (IOException e) {
+        hash = 0L;
+      }
+      myContentHashes.put(file, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * @return 64 bits of MD5 of the bytes, never 0
+   */
+  private static long calculateHash(@NotNull byte[] bytes, int offset, int length) {
+    MessageDigest digest = ourDigest.get();
+    digest.update(bytes, offset, length);
+    byte[] md5 = digest.digest();
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = hash << 8 | md5[i] & 0xFF;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  // project files are stored relative to the project so that the cache survives moving the project
+  @NotNull
+  private String getKey(@NotNull VirtualFile file) {
+    VirtualFile baseDir = myProject.getBaseDir();
+    String relativePath = baseDir == null ? null : VfsUtilCore.getRelativePath(file, baseDir, '/');
+    return relativePath != null ? "/" + relativePath : file.getUrl();
+  }
+
+  /**
+   * Problem descriptor detached from PSI: the elements are kept as their ranges and class names.
+   */
+  public static class CachedProblem {
+    private final String myToolShortName;
+    private final int myStartOffset;
+    private final int myStartEndOffset;
+    private final String myStartClass;
+    private final int myEndStartOffset;
+    private final int myEndOffset;
+    private final String myEndClass;
+    @Nullable private final TextRange myRangeInElement;
+    private final String myDescriptionTemplate;
+    private final ProblemHighlightType myHighlightType;
+    private final boolean myAfterEndOfLine;
+    @Nullable private final String myProblemGroup;
+
+    private CachedProblem(String toolShortName,
+                          int startOffset, int startEndOffset, String startClass,
+                          int endStartOffset, int endOffset, String endClass,
+                          @Nullable TextRange rangeInElement,
+                          String descriptionTemplate,
+                          ProblemHighlightType highlightType,
+                          boolean afterEndOfLine,
+                          @Nullable String problemGroup) {
+      myToolShortName = toolShortName;
+      myStartOffset = startOffset;
+      myStartEndOffset = startEndOffset;
+      myStartClass = startClass;
+      myEndStartOffset = endStartOffset;
+      myEndOffset = endOffset;
+      myEndClass = endClass;
+      myRangeInElement = rangeInElement;
+      myDescriptionTemplate = descriptionTemplate;
+      myHighlightType = highlightType;
+      myAfterEndOfLine = afterEndOfLine;
+      myProblemGroup = problemGroup;
+    }
+
+    @NotNull
+    public String getToolShortName() {
+      return myToolShortName;
+    }
+
+    /**
+     * @return null if the problem isn't anchored to the elements of the file only
+     */
+    @Nullable
+    private static CachedProblem create(@NotNull String toolShortName, @NotNull ProblemDescriptor descriptor, @NotNull PsiFile file) {
+      if (!(descriptor instanceof ProblemDescriptorImpl)) return null;
+      ProblemDescriptorImpl descriptorImpl = (ProblemDescriptorImpl)descriptor;
+      PsiElement start = descriptorImpl.getStartElement();
+      PsiElement end = descriptorImpl.getEndElement();
+      if (start == null || end == null || start.getContainingFile() != file || end.getContainingFile() != file) return null;
+      TextRange startRange = start.getTextRange();
+      TextRange endRange = end.getTextRange();
+      if (startRange == null || endRange == null) return null;
+      return new CachedProblem(toolShortName,
+                               startRange.getStartOffset(), startRange.getEndOffset(), start.getClass().getName(),
+                               endRange.getStartOffset(), endRange.getEndOffset(), end.getClass().getName(),
+                               descriptorImpl.getTextRangeInElement(), descriptor.getDescriptionTemplate(),
+                               descriptor.getHighlightType(), descriptor.isAfterEndOfLine(), descriptorImpl.getProblemGroup());
+    }
+
+    /**
+     * @return descriptor anchored to the elements of the file, or null if they are not found (e.g. the file is parsed differently
+     *         by a changed plugin)
+     */
+    @Nullable
+    public ProblemDescriptor restore(@NotNull PsiFile file) {
+      PsiElement start = findElement(file, myStartOffset, myStartEndOffset, myStartClass);
+      PsiElement end = start;
+      if (myEndStartOffset != myStartOffset || myEndOffset != myStartEndOffset || !myEndClass.equals(myStartClass)) {
+        end = findElement(file, myEndStartOffset, myEndOffset, myEndClass);
+      }
+      if (start == null || end == null) return null;
+      ProblemDescriptorImpl descriptor = new ProblemDescriptorImpl(start, end, myDescriptionTemplate, null, myHighlightType,
+                                                                   myAfterEndOfLine, myRangeInElement, false);
+      descriptor.setProblemGroup(myProblemGroup);
+      return descriptor;
+    }
+
+    @Nullable
+    private static PsiElement findElement(@NotNull PsiFile file, int startOffset, int endOffset, @NotNull String className) {
+      PsiElement element = startOffset < file.getTextLength() ? file.findElementAt(startOffset) : file;
+      while (element != null) {
+        TextRange range = element.getTextRange();
+        // ancestors can only start earlier or end later
+        if (range == null || range.getStartOffset() != startOffset || range.getEndOffset() > endOffset) return null;
+        if (range.getEndOffset() == endOffset && element.getClass().getName().equals(className)) return element;
+        if (element == file) return null;
+        element = element.getParent();
+      }
+      return null;
+    }
+  }
+
+  private static class Entry {
+    private final long contentHash;
+    private final long projectHash;
+    private final List<CachedProblem> problems;
+
+    private Entry(long contentHash, long projectHash, List<CachedProblem> problems) {
+      this.contentHash = contentHash;
+      this.projectHash = projectHash;
+      this.problems = problems;
+    }
+  }
+
+  private static class EntryExternalizer implements DataExternalizer<Entry> {
+    private static final ProblemHighlightType[] HIGHLIGHT_TYPES = ProblemHighlightType.values();
+
+    @Override
+    public void save(DataOutput out, Entry entry) throws IOException {
+      out.writeLong(entry.contentHash);
+      out.writeLong(entry.projectHash);
+      DataInputOutputUtil.writeINT(out, entry.problems.size());
+      for (CachedProblem problem : entry.problems) {
+        IOUtil.writeString(problem.myToolShortName, out);
+        DataInputOutputUtil.writeINT(out, problem.myStartOffset);
+        DataInputOutputUtil.writeINT(out, problem.myStartEndOffset - problem.myStartOffset);
+        IOUtil.writeString(problem.myStartClass, out);
+        DataInputOutputUtil.writeINT(out, problem.myEndStartOffset);
+        DataInputOutputUtil.writeINT(out, problem.myEndOffset - problem.myEndStartOffset);
+        IOUtil.writeString(problem.myEndClass, out);
+        TextRange range = problem.myRangeInElement;
+        out.writeBoolean(range != null);
+        if (range != null) {
+          DataInputOutputUtil.writeINT(out, range.getStartOffset());
+          DataInputOutputUtil.writeINT(out, range.getLength());
+        }
+        IOUtil.writeString(problem.myDescriptionTemplate, out);
+        DataInputOutputUtil.writeINT(out, problem.myHighlightType.ordinal());
+        out.writeBoolean(problem.myAfterEndOfLine);
+        IOUtil.writeString(problem.myProblemGroup, out);
+      }
+    }
+
+    @Override
+    public Entry read(DataInput in) throws IOException {
+      long contentHash = in.readLong();
+      long projectHash = in.readLong();
+      int problemCount = DataInputOutputUtil.readINT(in);
+      List<CachedProblem> problems = new ArrayList<CachedProblem>(problemCount);
+      for (int i = 0; i < problemCount; i++) {
+        String toolShortName = IOUtil.readString(in);
+        int startOffset = DataInputOutputUtil.readINT(in);
+        int startEndOffset = startOffset + DataInputOutputUtil.readINT(in);
+        String startClass = IOUtil.readString(in);
+        int endStartOffset = DataInputOutputUtil.readINT(in);
+        int endOffset = endStartOffset + DataInputOutputUtil.readINT(in);
+        String endClass = IOUtil.readString(in);
+        TextRange rangeInElement = null;
+        if (in.readBoolean()) {
+          int rangeStart = DataInputOutputUtil.readINT(in);
+          rangeInElement = new TextRange(rangeStart, rangeStart + DataInputOutputUtil.readINT(in));
+        }
+        String descriptionTemplate = IOUtil.readString(in);
+        int highlightType = DataInputOutputUtil.readINT(in);
+        if (highlightType >= HIGHLIGHT_TYPES.length) throw new IOException("Unknown highlight type " + highlightType);
+        boolean afterEndOfLine = in.readBoolean();
+        String problemGroup = IOUtil.readString(in);
+        problems.add(new CachedProblem(toolShortName, startOffset, startEndOffset, startClass, endStartOffset, endOffset, endClass,
+                                       rangeInElement, descriptionTemplate, HIGHLIGHT_TYPES[highlightType], afterEndOfLine,
+                                       problemGroup));
+      }
+      return new Entry(contentHash, projectHash, problems);
+    }
+  }
+}
@@ -226,6 +226,10 @@ public class LocalInspectionToolWrapper extends InspectionToolWrapper<LocalInspe
     return myEP == null ? getTool().runForWholeFile() : myEP.runForWholeFile;
   }
 
+  public boolean isFileLocal() {
+    return myEP == null ? getTool().isFileLocal() : myEP.fileLocal;
+  }
+
   private final static NotNullLazyValue<Map<String, LocalInspectionEP>> ourEPMap = new NotNullLazyValue<Map<String, LocalInspectionEP>>() {
     @NotNull
     @Override
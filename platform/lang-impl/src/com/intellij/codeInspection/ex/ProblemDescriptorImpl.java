@@ -161,6 +161,14 @@ public class ProblemDescriptorImpl extends CommonProblemDescriptorImpl implement
     return myAfterEndOfLine;
   }
 
+  /**
+   * @return range of the problem relative to the start element, when it's not the whole element
+   */
+  @Nullable
+  public TextRange getTextRangeInElement() {
+    return myTextRangeInElement;
+  }
+
   public void setTextAttributes(TextAttributesKey key) {
     myEnforcedTextAttributes = key;
   }
@@ -19,6 +19,7 @@ package com.intellij.find.impl;
 import com.intellij.BundleBase;
 import com.intellij.find.*;
 import com.intellij.find.ngrams.TrigramIndex;
+import com.intellij.find.ngrams.TrigramQueryPlanner;
 import com.intellij.navigation.ItemPresentation;
 import com.intellij.openapi.actionSystem.DataContext;
 import com.intellij.openapi.actionSystem.LangDataKeys;
@@ -47,7 +48,6 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.ex.VirtualFileManagerEx;
 import com.intellij.openapi.wm.ToolWindowId;
@@ -394,6 +394,9 @@ public class FindInProjectUtil {
     if (psiDirectory == null || findModel.isWithSubdirectories() && fileIndex.isInContent(psiDirectory.getVirtualFile())) {
       final Pattern fileMaskRegExp = createFileMaskRegExp(findModel);
       // optimization
+      Collection<PsiFile> filesForTrigramSearch = getFilesForTrigramSearch(findModel, project, psiDirectory, fileMaskRegExp, module);
+      if (filesForTrigramSearch != null) return filesForTrigramSearch;
+
       Pair<Boolean, Collection<PsiFile>> fastWords = getFilesForFastWordSearch(findModel, project, psiDirectory, fileMaskRegExp, module, fileIndex);
       final Collection<PsiFile> filesForFastWordSearch = fastWords.getSecond();
 
@@ -478,17 +481,10 @@ public class FindInProjectUtil {
   }
 
   @NotNull
-  private static Pair<Boolean, Collection<PsiFile>> getFilesForFastWordSearch(@NotNull final FindModel findModel,
-                                                                              @NotNull final Project project,
-                                                                              @Nullable final PsiDirectory psiDirectory,
-                                                                              final Pattern fileMaskRegExp,
-                                                                              @Nullable final Module module, FileIndex fileIndex) {
-    if (DumbService.getInstance(project).isDumb()) {
-      return new Pair<Boolean, Collection<PsiFile>>(false, Collections.<PsiFile>emptyList());
-    }
-
-    PsiManager pm = PsiManager.getInstance(project);
-    CacheManager cacheManager = CacheManager.SERVICE.getInstance(project);
+  private static GlobalSearchScope getSearchScope(@NotNull FindModel findModel,
+                                                  @NotNull Project project,
+                                                  @Nullable PsiDirectory psiDirectory,
+                                                  @Nullable Module module) {
     SearchScope customScope = findModel.getCustomScope();
     GlobalSearchScope scope = psiDirectory != null
                               ? GlobalSearchScopes.directoryScope(psiDirectory, true)
@@ -500,33 +496,66 @@ public class FindInProjectUtil {
     if (scope == null) {
       scope = ProjectScope.getContentScope(project);
     }
+    return scope;
+  }
 
-    Set<Integer> keys = new THashSet<Integer>(30);
-    final Set<PsiFile> resultFiles = new THashSet<PsiFile>();
-    boolean fast = false;
+  /**
+   * Every file containing a match contains all the trigrams {@link TrigramQueryPlanner} derives from the model,
+   * so for models it can narrow the files found by the trigram index are the complete search set,
+   * regular expressions and partial words included.
+   *
+   * @return null if the trigram index can't be used for the model
+   */
+  @Nullable
+  private static Collection<PsiFile> getFilesForTrigramSearch(@NotNull FindModel findModel,
+                                                              @NotNull Project project,
+                                                              @Nullable PsiDirectory psiDirectory,
+                                                              @Nullable Pattern fileMaskRegExp,
+                                                              @Nullable Module module) {
+    if (!TrigramIndex.ENABLED || DumbService.getInstance(project).isDumb()) return null;
+    SearchScope customScope = findModel.getCustomScope();
+    if (customScope != null && !(customScope instanceof GlobalSearchScope)) return null;
 
-    String stringToFind = findModel.getStringToFind();
-    if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
-      TIntIterator it = trigrams.iterator();
-      while (it.hasNext()) {
-        keys.add(it.next());
-      }
+    TIntHashSet trigrams = TrigramQueryPlanner.getRequiredTrigrams(findModel);
+    if (trigrams.isEmpty()) return null;
 
-      if (!keys.isEmpty()) {
-        fast = true;
-        List<VirtualFile> hits = new ArrayList<VirtualFile>();
-        FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
+    Set<Integer> keys = new THashSet<Integer>(trigrams.size());
+    TIntIterator it = trigrams.iterator();
+    while (it.hasNext()) {
+      keys.add(it.next());
+    }
 
-        for (VirtualFile hit : hits) {
-          resultFiles.add(pm.findFile(hit));
-        }
+    List<VirtualFile> hits = new ArrayList<VirtualFile>();
+    GlobalSearchScope scope = getSearchScope(findModel, project, psiDirectory, module);
+    FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
 
-        filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
-      }
+    PsiManager pm = PsiManager.getInstance(project);
+    Set<PsiFile> resultFiles = new THashSet<PsiFile>(hits.size());
+    for (VirtualFile hit : hits) {
+      ContainerUtil.addIfNotNull(resultFiles, pm.findFile(hit));
+    }
+    filterMaskedFiles(resultFiles, fileMaskRegExp);
+    return resultFiles;
+  }
+
+  @NotNull
+  private static Pair<Boolean, Collection<PsiFile>> getFilesForFastWordSearch(@NotNull final FindModel findModel,
+                                                                              @NotNull final Project project,
+                                                                              @Nullable final PsiDirectory psiDirectory,
+                                                                              final Pattern fileMaskRegExp,
+                                                                              @Nullable final Module module, FileIndex fileIndex) {
+    if (DumbService.getInstance(project).isDumb()) {
+      return new Pair<Boolean, Collection<PsiFile>>(false, Collections.<PsiFile>emptyList());
     }
 
+    CacheManager cacheManager = CacheManager.SERVICE.getInstance(project);
+    GlobalSearchScope scope = getSearchScope(findModel, project, psiDirectory, module);
+
+    final Set<PsiFile> resultFiles = new THashSet<PsiFile>();
+    boolean fast = false;
+
+    String stringToFind = findModel.getStringToFind();
+
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
@@ -546,7 +575,7 @@ public class FindInProjectUtil {
 
       final List<PsiFile> psiFiles = Arrays.asList(files);
 
-      if (i == 0 && keys.isEmpty()) {
+      if (i == 0) {
         resultFiles.addAll(psiFiles);
       }
       else {
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.find.FindModel;
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a find request into the set of trigrams every matching file must contain, so {@link TrigramIndex} can narrow
+ * the candidate files before their text is scanned.
+ * <p/>
+ * For regular expressions only the literal fragments which take part in every match are used: text inside groups,
+ * character classes and optional atoms is skipped, and a top level alternation disables the filtering altogether.
+ * An empty result means the request can't be narrowed.
+ */
+public class TrigramQueryPlanner {
+  private static final String REGEXP_META_CHARS = "\\[](){}.*+?^$|";
+
+  private TrigramQueryPlanner() {
+  }
+
+  @NotNull
+  public static TIntHashSet getRequiredTrigrams(@NotNull FindModel model) {
+    String stringToFind = model.getStringToFind();
+    if (model.isRegularExpressions()) {
+      return getRegexpTrigrams(stringToFind);
+    }
+    return TrigramBuilder.buildTrigram(stringToFind);
+  }
+
+  @NotNull
+  public static TIntHashSet getRegexpTrigrams(@NotNull String regexp) {
+    TIntHashSet result = new TIntHashSet();
+    List<String> fragments = getMandatoryLiterals(regexp);
+    if (fragments == null) return result;
+
+    for (String fragment : fragments) {
+      if (fragment.length() >= 3) {
+        result.addAll(TrigramBuilder.buildTrigram(fragment).toArray());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return literal fragments present in the text of every match of the regexp, or null if there are none to rely on
+   */
+  private static List<String> getMandatoryLiterals(@NotNull String regexp) {
+    List<String> fragments = new ArrayList<String>();
+    StringBuilder current = new StringBuilder();
+    int depth = 0;
+    int length = regexp.length();
+
+    for (int i = 0; i < length; i++) {
+      char c = regexp.charAt(i);
+      switch (c) {
+        case '\\':
+          if (i + 1 >= length) return null;
+          char escaped = regexp.charAt(++i);
+          if (escaped == 'Q') {
+            int quoteEnd = regexp.indexOf("\\E", i + 1);
+            String quoted = quoteEnd < 0 ? regexp.substring(i + 1) : regexp.substring(i + 1, quoteEnd);
+            if (depth == 0) current.append(quoted);
+            i = quoteEnd < 0 ? length : quoteEnd + 1;
+          }
+          else if (REGEXP_META_CHARS.indexOf(escaped) >= 0 || escaped == '/' || escaped == '-' || escaped == '"' || escaped == '\'') {
+            if (depth == 0) current.append(escaped);
+          }
+          else {
+            // character class shortcut (\d, \w...), control char, back reference or anchor
+            flush(current, fragments);
+            i = skipEscapeArgument(regexp, i);
+          }
+          break;
+
+        case '[':
+          flush(current, fragments);
+          i = skipCharacterClass(regexp, i);
+          if (i < 0) return null;
+          break;
+
+        case '(':
+          flush(current, fragments);
+          if (hasCommentsFlag(regexp, i)) return null; // whitespace in the pattern is insignificant then
+          depth++;
+          break;
+
+        case ')':
+          flush(current, fragments);
+          depth--;
+          break;
+
+        case '|':
+          if (depth == 0) return null;
+          flush(current, fragments);
+          break;
+
+        case '?':
+        case '*':
+          // previous atom is optional
+          dropLast(current);
+          flush(current, fragments);
+          if (i + 1 < length && (regexp.charAt(i + 1) == '?' || regexp.charAt(i + 1) == '+')) i++; // lazy or possessive
+          break;
+
+        case '+':
+          i = repeat(regexp, i, current, fragments);
+          break;
+
+        case '{':
+          int end = regexp.indexOf('}', i);
+          if (end < 0) return null;
+          int min = parseMinRepetitions(regexp.substring(i + 1, end));
+          if (min == 0) {
+            dropLast(current);
+            flush(current, fragments);
+            i = end;
+            if (i + 1 < length && (regexp.charAt(i + 1) == '?' || regexp.charAt(i + 1) == '+')) i++;
+          }
+          else {
+            i = repeat(regexp, end, current, fragments);
+          }
+          break;
+
+        case '.':
+        case '^':
+        case '$':
+          flush(current, fragments);
+          break;
+
+        default:
+          if (depth == 0) current.append(c);
+      }
+    }
+    if (depth != 0) return null;
+
+    flush(current, fragments);
+    return fragments;
+  }
+
+  /**
+   * The last atom of the current fragment is repeated at least once: whatever follows the repetition is adjacent to
+   * the last copy of it, so a new fragment starts with that atom.
+   */
+  private static int repeat(String regexp, int quantifierEnd, StringBuilder current, List<String> fragments) {
+    if (current.length() > 0) {
+      char last = current.charAt(current.length() - 1);
+      flush(current, fragments);
+      current.append(last);
+    }
+    int i = quantifierEnd;
+    if (i + 1 < regexp.length() && (regexp.charAt(i + 1) == '?' || regexp.charAt(i + 1) == '+')) i++;
+    return i;
+  }
+
+  private static boolean hasCommentsFlag(String regexp, int groupStart) {
+    if (groupStart + 1 >= regexp.length() || regexp.charAt(groupStart + 1) != '?') return false;
+    for (int i = groupStart + 2; i < regexp.length(); i++) {
+      char c = regexp.charAt(i);
+      if (c == 'x') return true;
+      if (!Character.isLetter(c) && c != '-') return false;
+    }
+    return false;
+  }
+
+  /**
+   * @return index of the last char of the escape sequence which starts with the char at the given index
+   */
+  private static int skipEscapeArgument(String regexp, int escapeChar) {
+    int i = escapeChar;
+    switch (regexp.charAt(escapeChar)) {
+      case 'x':
+      case 'p':
+      case 'P':
+        if (i + 1 < regexp.length() && regexp.charAt(i + 1) == '{') {
+          int end = regexp.indexOf('}', i);
+          return end < 0 ? regexp.length() : end;
+        }
+        return i + (regexp.charAt(escapeChar) == 'x' ? 2 : 1);
+      case 'u':
+        return i + 4;
+      case 'c':
+        return i + 1;
+      case 'k':
+        int end = regexp.indexOf('>', i);
+        return end < 0 ? regexp.length() : end;
+      default:
+        // octal escape or back reference
+        while (i + 1 < regexp.length() && Character.isDigit(regexp.charAt(escapeChar)) && Character.isDigit(regexp.charAt(i + 1))) i++;
+        return i;
+    }
+  }
+
+  private static int parseMinRepetitions(String bounds) {
+    int comma = bounds.indexOf(',');
+    String min = (comma < 0 ? bounds : bounds.substring(0, comma)).trim();
+    try {
+      return Integer.parseInt(min);
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static int skipCharacterClass(String regexp, int start) {
+    int nesting = 0;
+    for (int i = start; i < regexp.length(); i++) {
+      char c = regexp.charAt(i);
+      if (c == '\\') {
+        i++;
+      }
+      else if (c == '[') {
+        nesting++;
+      }
+      else if (c == ']' && i > start + 1 && --nesting == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void dropLast(StringBuilder current) {
+    if (current.length() > 0) current.setLength(current.length() - 1);
+  }
+
+  private static void flush(StringBuilder current, List<String> fragments) {
+    if (current.length() > 0) {
+      fragments.add(current.toString());
+      current.setLength(0);
+    }
+  }
+}
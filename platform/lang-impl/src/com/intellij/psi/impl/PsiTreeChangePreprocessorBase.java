@@ -23,7 +23,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author yole
  */
-public abstract class PsiTreeChangePreprocessorBase implements PsiTreeChangePreprocessor {
+public abstract class PsiTreeChangePreprocessorBase implements CodeBlockAwareTreeChangePreprocessor {
   private final PsiModificationTrackerImpl myModificationTracker;
 
   public PsiTreeChangePreprocessorBase(PsiManagerImpl psiManager) {
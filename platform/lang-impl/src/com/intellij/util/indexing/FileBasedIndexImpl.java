@@ -51,6 +51,7 @@ import com.intellij.openapi.vfs.newvfs.BulkFileListener;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.openapi.vfs.newvfs.persistent.FlushingDaemon;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.psi.*;
@@ -63,6 +64,7 @@ import com.intellij.psi.stubs.SerializationManagerEx;
 import com.intellij.util.*;
 import com.intellij.util.concurrency.Semaphore;
 import com.intellij.util.containers.ConcurrentHashSet;
+import com.intellij.util.containers.ConcurrentSoftValueHashMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
@@ -93,6 +95,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.FileBasedIndexImpl");
   @NonNls
   private static final String CORRUPTION_MARKER_NAME = "corruption.marker";
+  private static final Key<Integer> SHARED_CONTENT_ID = Key.create("FileBasedIndex.SHARED_CONTENT_ID");
   private final Map<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>> myIndices =
     new THashMap<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>>();
   private final Map<ID<?, ?>, Semaphore> myUnsavedDataIndexingSemaphores = new THashMap<ID<?, ?>, Semaphore>();
@@ -487,7 +490,11 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       index = (MapReduceIndex<K, V, FileContent>)custom;
     }
     else {
-      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      DataIndexer<K, V, FileContent> indexer = extension.getIndexer();
+      if (extension.isIndexedDataDeterminedByContent()) {
+        indexer = new SharedContentCachingIndexer<K, V>(indexer);
+      }
+      index = new MapReduceIndex<K, V, FileContent>(indexId, indexer, storage);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -964,7 +971,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
+    final SortedIdSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
     return set != null && processVirtualFiles(set, filter, processor);
   }
 
@@ -1063,21 +1070,22 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+  private <K, V> SortedIdSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
                                                              @NotNull final Collection<K> dataKeys,
                                                              @NotNull final GlobalSearchScope filter,
                                                              @Nullable final Condition<V> valueChecker,
                                                              @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, SortedIdSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, SortedIdSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public SortedIdSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          SortedIdSet mainIntersection = null;
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
+            // the ids of the values are collected as they come and sorted once
+            SortedIdSet keyIds = new SortedIdSet();
             final ValueContainer<V> container = index.getData(dataKey);
 
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
@@ -1087,33 +1095,31 @@ public class FileBasedIndexImpl extends FileBasedIndex {
               }
 
               ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
-
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
-                while (iterator.hasNext()) {
-                  final int id = iterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                    ) {
-                    copy.add(id);
-                  }
-                }
+              final SortedIdSet valueIds;
+              if (mainIntersection == null) {
+                valueIds = SortedIdSet.fromIterator(iterator);
+              }
+              else if (iterator.size() < mainIntersection.size()) {
+                valueIds = SortedIdSet.intersection(mainIntersection, SortedIdSet.fromIterator(iterator));
               }
               else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
-                  }
-                });
+                // don't copy the ids of a popular value, check the (smaller) intersection against them instead
+                valueIds = mainIntersection.filter(container.getValueAssociationPredicate(value));
               }
+              keyIds.addAll(valueIds.intIterator());
             }
 
-            mainIntersection = copy;
+            if (mainIntersection == null && projectFilesFilter != null) {
+              keyIds = keyIds.filter(new ValueContainer.IntPredicate() {
+                @Override
+                boolean contains(int id) {
+                  return projectFilesFilter.contains(id);
+                }
+              });
+            }
+            mainIntersection = keyIds;
             if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+              return mainIntersection;
             }
           }
 
@@ -1125,7 +1131,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull SortedIdSet ids,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1166,34 +1172,31 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<SortedIdSet> locals = new ArrayList<SortedIdSet>();
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
+          final SortedIdSet local = new SortedIdSet();
           final ValueContainer<V> container = index.getData(dataKey);
 
           for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
             final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
+            local.addAll(container.getInputIdsIterator(value));
           }
+          locals.add(local);
         }
 
         if (locals.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
+        Collections.sort(locals, new Comparator<SortedIdSet>() {
           @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
+          public int compare(SortedIdSet o1, SortedIdSet o2) {
             return o1.size() - o2.size();
           }
         });
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        ValueContainer.IntIterator ids = join(locals).intIterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
         while (ids.hasNext()) {
           int id = ids.next();
@@ -1227,20 +1230,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
-      }
+  private static SortedIdSet join(@NotNull List<SortedIdSet> locals) {
+    SortedIdSet result = locals.get(0);
+    for (int i = 1; i < locals.size() && !result.isEmpty(); i++) {
+      result = SortedIdSet.intersection(result, locals.get(i));
     }
     return result;
   }
@@ -1649,6 +1642,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
               currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
             }
             fc = new FileContentImpl(file, currentBytes);
+            if (file instanceof NewVirtualFile) {
+              int contentId = FSRecords.getSharedContentId(((NewVirtualFile)file).getId());
+              if (contentId != 0) fc.putUserData(SHARED_CONTENT_ID, contentId);
+            }
 
             psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
             if (psiFile != null) {
@@ -1752,6 +1749,40 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
+  /**
+   * Shares the data indexed for a file among the files with the same type, charset and content record, which is common for
+   * copies of the same library in different projects or versions. Only the records referred to by several files are cached.
+   *
+   * @see FileBasedIndexExtension#isIndexedDataDeterminedByContent()
+   */
+  private static class SharedContentCachingIndexer<K, V> implements DataIndexer<K, V, FileContent> {
+    private final DataIndexer<K, V, FileContent> myDelegate;
+    private final Map<String, Map<K, V>> myCache = new ConcurrentSoftValueHashMap<String, Map<K, V>>();
+
+    private SharedContentCachingIndexer(@NotNull DataIndexer<K, V, FileContent> delegate) {
+      myDelegate = delegate;
+    }
+
+    @Override
+    @NotNull
+    public Map<K, V> map(FileContent inputData) {
+      // contents of unsaved documents and of the files not sharing their record are not cached
+      Integer contentId = inputData.getUserData(SHARED_CONTENT_ID);
+      if (contentId == null) return myDelegate.map(inputData);
+
+      // the record may have been rewritten or reused since, or the bytes may have been loaded before the file was changed
+      if (!FSRecords.isContentOf(contentId, inputData.getContent())) return myDelegate.map(inputData);
+
+      String key = inputData.getFileType().getName() + ":" + inputData.getFile().getCharset().name() + ":" + contentId;
+      Map<K, V> data = myCache.get(key);
+      if (data == null) {
+        data = myDelegate.map(inputData);
+        myCache.put(key, data);
+      }
+      return data;
+    }
+  }
+
   private static class SilentProgressIndicator extends DelegatingProgressIndicator {
     // suppress verbose messages
 
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Set of input ids kept as a sorted int array: 4 bytes per id instead of ~10 for a hash set, sequential iteration in id order,
+ * and intersection / union by merging, which is what multi-key index queries need.
+ * <p/>
+ * Ids are persisted as deltas between the consecutive ids, so that a dense set takes about a byte per id on disk.
+ * <p/>
+ * Ids added out of order or removed from the middle of the set are kept in a hash set, which is sorted into the array only when
+ * the ids are read in order, so that replaying the changes of a popular key costs O(1) per change.
+ */
+class SortedIdSet implements Cloneable {
+  private static final int[] EMPTY = ArrayUtil.EMPTY_INT_ARRAY;
+  // when one of the sets is this much smaller, its ids are looked up in the other one instead of merging
+  private static final int GALLOP_RATIO = 32;
+
+  private int[] myIds;
+  private int mySize;
+  // the ids when the set has been changed out of order since it was last sorted; the ids are read under the read lock,
+  // so the set may be sorted by several threads at once and publishes the sorted array through this field
+  private volatile TIntHashSet myUnsortedIds;
+
+  SortedIdSet() {
+    myIds = EMPTY;
+  }
+
+  SortedIdSet(int capacity) {
+    myIds = capacity == 0 ? EMPTY : new int[capacity];
+  }
+
+  private SortedIdSet(@NotNull int[] ids, int size) {
+    myIds = ids;
+    mySize = size;
+  }
+
+  public int size() {
+    TIntHashSet unsorted = myUnsortedIds;
+    return unsorted != null ? unsorted.size() : mySize;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int get(int index) {
+    ensureSorted();
+    return myIds[index];
+  }
+
+  public boolean contains(int id) {
+    TIntHashSet unsorted = myUnsortedIds;
+    return unsorted != null ? unsorted.contains(id) : Arrays.binarySearch(myIds, 0, mySize, id) >= 0;
+  }
+
+  public boolean add(int id) {
+    TIntHashSet unsorted = myUnsortedIds;
+    if (unsorted != null) return unsorted.add(id);
+
+    // ids are mostly added in ascending order, e.g. when the set is read from disk
+    if (mySize == 0 || myIds[mySize - 1] < id) {
+      if (mySize == myIds.length) {
+        myIds = Arrays.copyOf(myIds, Math.max(4, mySize * 3 / 2 + 1));
+      }
+      myIds[mySize++] = id;
+      return true;
+    }
+    if (contains(id)) return false;
+    return toUnsorted().add(id);
+  }
+
+  public void addAll(@NotNull ValueContainer.IntIterator ids) {
+    while (ids.hasNext()) {
+      add(ids.next());
+    }
+  }
+
+  public boolean remove(int id) {
+    TIntHashSet unsorted = myUnsortedIds;
+    if (unsorted != null) return unsorted.remove(id);
+
+    if (mySize > 0 && myIds[mySize - 1] == id) {
+      mySize--;
+      return true;
+    }
+    if (!contains(id)) return false;
+    return toUnsorted().remove(id);
+  }
+
+  private TIntHashSet toUnsorted() {
+    TIntHashSet unsorted = new TIntHashSet(Math.max(mySize * 3 / 2, 4));
+    for (int i = 0; i < mySize; i++) {
+      unsorted.add(myIds[i]);
+    }
+    myIds = EMPTY;
+    mySize = 0;
+    myUnsortedIds = unsorted;
+    return unsorted;
+  }
+
+  private void ensureSorted() {
+    if (myUnsortedIds != null) {
+      sort();
+    }
+  }
+
+  private synchronized void sort() {
+    TIntHashSet unsorted = myUnsortedIds;
+    if (unsorted == null) return;
+    int[] ids = unsorted.toArray();
+    Arrays.sort(ids);
+    myIds = ids.length == 0 ? EMPTY : ids;
+    mySize = ids.length;
+    myUnsortedIds = null;
+  }
+
+  /**
+   * Releases the unused capacity when it is noticeably larger than the set itself.
+   */
+  public void compact() {
+    if (myUnsortedIds != null) return;
+    if (myIds.length - mySize > Math.max(4, mySize / 2)) {
+      myIds = mySize == 0 ? EMPTY : Arrays.copyOf(myIds, mySize);
+    }
+  }
+
+  public boolean forEach(@NotNull TIntProcedure procedure) {
+    ensureSorted();
+    for (int i = 0; i < mySize; i++) {
+      if (!procedure.execute(myIds[i])) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public int[] toArray() {
+    ensureSorted();
+    return Arrays.copyOf(myIds, mySize);
+  }
+
+  @NotNull
+  public ValueContainer.IntIterator intIterator() {
+    ensureSorted();
+    return new ValueContainer.IntIterator() {
+      private final int[] myArray = myIds;
+      private final int myLength = mySize;
+      private int myIndex;
+
+      @Override
+      public boolean hasNext() {
+        return myIndex < myLength;
+      }
+
+      @Override
+      public int next() {
+        return myArray[myIndex++];
+      }
+
+      @Override
+      public int size() {
+        return myLength;
+      }
+    };
+  }
+
+  @Override
+  public SortedIdSet clone() {
+    ensureSorted();
+    return new SortedIdSet(mySize == 0 ? EMPTY : Arrays.copyOf(myIds, mySize), mySize);
+  }
+
+  /**
+   * @return the ids of the iterator as a set; the ids are sorted only if the iterator doesn't return them in ascending order
+   */
+  @NotNull
+  public static SortedIdSet fromIterator(@NotNull ValueContainer.IntIterator iterator) {
+    int[] ids = new int[iterator.size()];
+    int size = 0;
+    boolean sorted = true;
+    while (iterator.hasNext()) {
+      int id = iterator.next();
+      if (size == ids.length) ids = Arrays.copyOf(ids, size * 2 + 1);
+      if (size > 0 && ids[size - 1] >= id) sorted = false;
+      ids[size++] = id;
+    }
+    if (!sorted) {
+      Arrays.sort(ids, 0, size);
+      int unique = 0;
+      for (int i = 0; i < size; i++) {
+        if (unique == 0 || ids[unique - 1] != ids[i]) ids[unique++] = ids[i];
+      }
+      size = unique;
+    }
+    return new SortedIdSet(ids, size);
+  }
+
+  @NotNull
+  public static SortedIdSet intersection(@NotNull SortedIdSet set1, @NotNull SortedIdSet set2) {
+    set1.ensureSorted();
+    set2.ensureSorted();
+    if (set1.mySize > set2.mySize) {
+      SortedIdSet t = set1;
+      set1 = set2;
+      set2 = t;
+    }
+    int size1 = set1.mySize;
+    int size2 = set2.mySize;
+    if (size1 == 0) return new SortedIdSet();
+    int[] ids1 = set1.myIds;
+    int[] ids2 = set2.myIds;
+    int[] result = new int[size1];
+    int size = 0;
+
+    if ((long)size1 * GALLOP_RATIO < size2) {
+      int from = 0;
+      for (int i = 0; i < size1 && from < size2; i++) {
+        int index = Arrays.binarySearch(ids2, from, size2, ids1[i]);
+        if (index >= 0) {
+          result[size++] = ids1[i];
+          from = index + 1;
+        }
+        else {
+          from = -index - 1;
+        }
+      }
+    }
+    else {
+      int i = 0, j = 0;
+      while (i < size1 && j < size2) {
+        int id1 = ids1[i];
+        int id2 = ids2[j];
+        if (id1 < id2) {
+          i++;
+        }
+        else if (id1 > id2) {
+          j++;
+        }
+        else {
+          result[size++] = id1;
+          i++;
+          j++;
+        }
+      }
+    }
+    return new SortedIdSet(result, size);
+  }
+
+  /**
+   * @return the ids of the set accepted by the predicate; the predicate is called for every id of the set in ascending order
+   */
+  @NotNull
+  public SortedIdSet filter(@NotNull ValueContainer.IntPredicate predicate) {
+    ensureSorted();
+    int[] result = new int[mySize];
+    int size = 0;
+    for (int i = 0; i < mySize; i++) {
+      if (predicate.contains(myIds[i])) result[size++] = myIds[i];
+    }
+    return new SortedIdSet(result, size);
+  }
+
+  /**
+   * Writes the ids as the first id followed by the (positive) differences between the consecutive ids.
+   */
+  static void writeDeltas(@NotNull DataOutput out, @NotNull ValueContainer.IntIterator sortedIds) throws IOException {
+    int prev = 0;
+    while (sortedIds.hasNext()) {
+      int id = sortedIds.next();
+      DataInputOutputUtil.writeINT(out, id - prev);
+      prev = id;
+    }
+  }
+
+  static void readDeltas(@NotNull DataInput in, int count, @NotNull TIntProcedure consumer) throws IOException {
+    int id = 0;
+    for (int i = 0; i < count; i++) {
+      id += DataInputOutputUtil.readINT(in);
+      consumer.execute(id);
+    }
+  }
+}
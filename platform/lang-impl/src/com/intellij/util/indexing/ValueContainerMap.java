@@ -4,6 +4,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -86,15 +87,18 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
-          DataInputOutputUtil.writeSINT(out, ids.size());
-          while (ids.hasNext()) {
-            final int id = ids.next();
-            DataInputOutputUtil.writeSINT(out, id);
-          }
+        if (ids == null) {
+          DataInputOutputUtil.writeSINT(out, 0);
+        }
+        else if (ids.size() == 1) {
+          DataInputOutputUtil.writeSINT(out, 1);
+          DataInputOutputUtil.writeSINT(out, ids.next());
         }
         else {
-          DataInputOutputUtil.writeSINT(out, 0);
+          // negative count marks the ids written as deltas in ascending order
+          SortedIdSet set = SortedIdSet.fromIterator(ids);
+          DataInputOutputUtil.writeSINT(out, -set.size());
+          SortedIdSet.writeDeltas(out, set.intIterator());
         }
       }
     }
@@ -115,9 +119,20 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount < 0) {
+              SortedIdSet.readDeltas(in, -idCount, new TIntProcedure() {
+                @Override
+                public boolean execute(int id) {
+                  valueContainer.addValue(id, value);
+                  return true;
+                }
+              });
+            }
+            else {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
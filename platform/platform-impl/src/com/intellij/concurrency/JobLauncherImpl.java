@@ -27,8 +27,12 @@ import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * @author cdr
@@ -36,22 +40,26 @@ import java.util.concurrent.Future;
 
 public class JobLauncherImpl extends JobLauncher {
   private static final Logger LOG = Logger.getInstance("#com.intellij.concurrency.JobLauncher");
+  private static final int QUEUE_POLL_TIMEOUT_MS = 10;
 
   private <T> boolean invokeConcurrentlyForAll(@NotNull final List<T> things,
                                                       boolean failFastOnAcquireReadAction,
                                                       @NotNull final Processor<T> thingProcessor) throws ProcessCanceledException {
     final Job<String> job = new JobImpl<String>(Job.DEFAULT_PRIORITY, failFastOnAcquireReadAction);
 
-    final int chunkSize = Math.max(1, things.size() / JobSchedulerImpl.CORES_COUNT / 20);
-    for (int i = 0; i < things.size(); i += chunkSize) {
-      // this job chunk is i..i+chunkSize-1
-      final int finalI = i;
+    // each worker starts with an equal share of the list and, once it has run out of work, steals half of the largest
+    // remaining share of some other worker, so a few expensive elements don't leave the rest of the cores idle
+    final int workersCount = Math.min(JobSchedulerImpl.CORES_COUNT, things.size());
+    final IndexRanges ranges = new IndexRanges(things.size(), workersCount);
+    for (int i = 0; i < workersCount; i++) {
+      final int worker = i;
       job.addTask(new Runnable() {
         public void run() {
           try {
-            for (int k = finalI; k < finalI + chunkSize && k < things.size(); k++) {
-              T thing = things.get(k);
-              if (!thingProcessor.process(thing)) {
+            while (!job.isCanceled()) {
+              int index = ranges.next(worker);
+              if (index < 0) break;
+              if (!thingProcessor.process(things.get(index))) {
                 job.cancel();
                 break;
               }
@@ -64,6 +72,10 @@ public class JobLauncherImpl extends JobLauncher {
         }
       });
     }
+    return scheduleAndWait(job);
+  }
+
+  private static boolean scheduleAndWait(@NotNull Job<String> job) throws ProcessCanceledException {
     try {
       job.scheduleAndWaitForResults();
     }
@@ -105,9 +117,59 @@ public class JobLauncherImpl extends JobLauncher {
       return thingProcessor.process(t);
     }
 
+    return invokeConcurrentlyForAll(things, failFastOnAcquireReadAction, underProgress(progress, thingProcessor));
+  }
+
+  @Override
+  public <T> boolean processQueue(@NotNull final BlockingQueue<T> things,
+                                  ProgressIndicator progress,
+                                  boolean failFastOnAcquireReadAction,
+                                  @NotNull final T tombStone,
+                                  @NotNull Processor<T> thingProcessor) throws ProcessCanceledException {
+    final Processor<T> processor = underProgress(progress, thingProcessor);
+    final ProgressIndicator indicator = progress;
+    final Job<String> job = new JobImpl<String>(Job.DEFAULT_PRIORITY, failFastOnAcquireReadAction);
+    // set by the worker which takes the tomb stone; putting it back could block or fail on a full bounded queue
+    final AtomicBoolean done = new AtomicBoolean();
+    for (int i = 0; i < JobSchedulerImpl.CORES_COUNT; i++) {
+      job.addTask(new Runnable() {
+        public void run() {
+          try {
+            while (!done.get() && !job.isCanceled()) {
+              if (indicator != null && indicator.isCanceled()) {
+                job.cancel();
+                break;
+              }
+              T thing = things.poll(QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+              if (thing == null) continue;
+              if (thing == tombStone) {
+                done.set(true);
+                break;
+              }
+              if (!processor.process(thing)) {
+                job.cancel();
+                break;
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            job.cancel();
+          }
+          catch (ProcessCanceledException e) {
+            job.cancel();
+            throw e;
+          }
+        }
+      });
+    }
+    return scheduleAndWait(job);
+  }
+
+  @NotNull
+  private static <T> Processor<T> underProgress(ProgressIndicator progress, @NotNull final Processor<T> thingProcessor) {
     // can be already wrapped
     final ProgressWrapper wrapper = progress instanceof ProgressWrapper ? (ProgressWrapper)progress : ProgressWrapper.wrap(progress);
-    return invokeConcurrentlyForAll(things, failFastOnAcquireReadAction, new Processor<T>() {
+    return new Processor<T>() {
       public boolean process(final T t) {
         final boolean[] result = new boolean[1];
         ((ProgressManagerImpl)ProgressManager.getInstance()).executeProcessUnderProgress(new Runnable() {
@@ -117,7 +179,7 @@ public class JobLauncherImpl extends JobLauncher {
         }, wrapper);
         return result[0];
       }
-    });
+    };
   }
 
   // This implementation is not really async
@@ -154,4 +216,75 @@ public class JobLauncherImpl extends JobLauncher {
     job.schedule();
     return job;
   }
+
+  /**
+   * Per-worker ranges of list indices. A range is packed into a single long (start in the high half, end in the low half)
+   * so that its owner taking the next index and another worker stealing its upper half are both single CASes.
+   */
+  static class IndexRanges {
+    private final AtomicLongArray myRanges;
+
+    IndexRanges(int size, int workersCount) {
+      myRanges = new AtomicLongArray(workersCount);
+      for (int i = 0; i < workersCount; i++) {
+        myRanges.set(i, pack((int)((long)size * i / workersCount), (int)((long)size * (i + 1) / workersCount)));
+      }
+    }
+
+    /**
+     * @return next index for the worker to process, or -1 if there is nothing left to do for anybody
+     */
+    int next(int worker) {
+      while (true) {
+        long range = myRanges.get(worker);
+        int start = start(range);
+        int end = end(range);
+        if (start < end) {
+          if (myRanges.compareAndSet(worker, range, pack(start + 1, end))) return start;
+        }
+        else if (!steal(worker)) {
+          return -1;
+        }
+      }
+    }
+
+    private boolean steal(int thief) {
+      while (true) {
+        int victim = -1;
+        long victimRange = 0;
+        int victimSize = 0;
+        for (int i = 0; i < myRanges.length(); i++) {
+          long range = myRanges.get(i);
+          int size = end(range) - start(range);
+          if (i != thief && size > victimSize) {
+            victim = i;
+            victimRange = range;
+            victimSize = size;
+          }
+        }
+        if (victim < 0) return false;
+
+        int start = start(victimRange);
+        int end = end(victimRange);
+        int middle = start + victimSize / 2;
+        if (myRanges.compareAndSet(victim, victimRange, pack(start, middle))) {
+          // nobody steals from an empty range, so plain set is fine here
+          myRanges.set(thief, pack(middle, end));
+          return true;
+        }
+      }
+    }
+
+    private static long pack(int start, int end) {
+      return (long)start << 32 | end & 0xFFFFFFFFL;
+    }
+
+    private static int start(long range) {
+      return (int)(range >>> 32);
+    }
+
+    private static int end(long range) {
+      return (int)range;
+    }
+  }
 }
@@ -17,6 +17,7 @@
 package com.intellij.ide.plugins.cl;
 
 import com.intellij.diagnostic.PluginException;
+import com.intellij.ide.ClassloaderUtil;
 import com.intellij.ide.plugins.PluginManager;
 import com.intellij.openapi.extensions.PluginId;
 import com.intellij.util.lang.UrlClassLoader;
@@ -48,7 +49,7 @@ public class PluginClassLoader extends UrlClassLoader {
                            final PluginId pluginId,
                            final String version,
                            final File pluginRoot) {
-    super(urls, null, true, true);
+    super(urls, null, true, true, false, true, ClassloaderUtil.getClasspathIndexDir());
     myParents = parents;
     myPluginId = pluginId;
     myPluginVersion = version;
@@ -95,6 +95,7 @@ class CacheUpdateRunner {
         indicator.checkCanceled();
         // todo wait for the user...
         if (processSomeFilesWhileUserIsInactive(queue, progressUpdater, processInReadAction)) {
+          queue.logStatistics();
           break;
         }
       }
@@ -20,6 +20,8 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -27,11 +29,12 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Collection;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -39,10 +42,12 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"SynchronizeOnThis"})
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
-  private static final long SIZE_THRESHOLD = 1024*1024;
+  private static final int PROC_COUNT = Runtime.getRuntime().availableProcessors();
   private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
 
+  // loaded but not yet taken content, loaders wait while it is exceeded
+  private final long mySizeThreshold = Math.max(1, Registry.intValue("caches.contentLoaderMemoryLimitMb")) * 1024L * 1024L;
   private long myTotalSize;
   private long myTakenSize;
   private boolean myLargeSizeRequested;
@@ -51,36 +56,88 @@ public class FileContentQueue {
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  private int myLoadersCount;
+  private final AtomicLong myLoadedFiles = new AtomicLong();
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicLong myLoadingTime = new AtomicLong();
+  private final AtomicLong myLoadersWaitTime = new AtomicLong();
+  private final AtomicLong myTakersWaitTime = new AtomicLong();
+  private long myQueueStarted;
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    final List<VirtualFile> sortedFiles = sortByLocation(files);
+    final AtomicInteger nextFile = new AtomicInteger();
+
+    int loadersCount = Registry.intValue("caches.contentLoaderThreadsCount");
+    if (loadersCount <= 0) {
+      loadersCount = Math.min(PROC_COUNT, 4);
+    }
+    loadersCount = Math.max(1, Math.min(loadersCount, sortedFiles.size()));
+    myLoadersCount = loadersCount;
+    myQueueStarted = System.currentTimeMillis();
+
+    final AtomicInteger activeLoaders = new AtomicInteger(loadersCount);
+    final AtomicBoolean interrupted = new AtomicBoolean();
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
         try {
-          for (VirtualFile file : files) {
+          for (int i = nextFile.getAndIncrement(); i < sortedFiles.size(); i = nextFile.getAndIncrement()) {
             indicator.checkCanceled();
-            addLast(file, indicator);
-          }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
+            addLast(sortedFiles.get(i), indicator);
           }
         }
         catch (ProcessCanceledException e) {
           // Do nothing, exit the thread.
+          interrupted.set(true);
         }
         catch (InterruptedException e) {
+          interrupted.set(true);
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (activeLoaders.decrementAndGet() == 0) {
+            // put end-of-queue marker only if not canceled
+            if (!interrupted.get()) {
+              try {
+                myQueue.put(new FileContent(null));
+              }
+              catch (InterruptedException e) {
+                LOG.error(e);
+              }
+            }
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    for (int i = 0; i < loadersCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  /**
+   * Files of the same directory are usually located close to each other on disk, so reading them in path order
+   * turns loading into mostly sequential reads.
+   */
+  @NotNull
+  private static List<VirtualFile> sortByLocation(@NotNull Collection<VirtualFile> files) {
+    List<Pair<String, VirtualFile>> located = new ArrayList<Pair<String, VirtualFile>>(files.size());
+    for (VirtualFile file : files) {
+      located.add(Pair.create(file.getPath(), file));
+    }
+    Collections.sort(located, new Comparator<Pair<String, VirtualFile>>() {
+      @Override
+      public int compare(Pair<String, VirtualFile> o1, Pair<String, VirtualFile> o2) {
+        return o1.first.compareTo(o2.first);
+      }
+    });
+
+    List<VirtualFile> result = new ArrayList<VirtualFile>(located.size());
+    for (Pair<String, VirtualFile> pair : located) {
+      result.add(pair.second);
+    }
+    return result;
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
@@ -95,7 +152,9 @@ public class FileContentQueue {
       content.setEmptyContent();
     }
 
+    long started = System.nanoTime();
     myQueue.put(content);
+    myLoadersWaitTime.addAndGet(System.nanoTime() - started);
   }
 
   @SuppressWarnings("InstanceofCatchParameter")
@@ -104,17 +163,23 @@ public class FileContentQueue {
 
     boolean counterUpdated = false;
     try {
+      long started = System.nanoTime();
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
+        while (myTotalSize > mySizeThreshold) {
           indicator.checkCanceled();
           wait(300L);
         }
         myTotalSize += contentLength;
         counterUpdated = true;
       }
+      long loadingStarted = System.nanoTime();
+      myLoadersWaitTime.addAndGet(loadingStarted - started);
 
       content.getBytes(); // Reads the content bytes and caches them.
 
+      myLoadingTime.addAndGet(System.nanoTime() - loadingStarted);
+      myLoadedFiles.incrementAndGet();
+      myLoadedBytes.addAndGet(contentLength);
       return true;
     }
     catch (Throwable e) {
@@ -193,6 +258,7 @@ public class FileContentQueue {
       }
     }
 
+    long started = System.nanoTime();
     try {
       while (result == null) {
         result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
@@ -204,6 +270,9 @@ public class FileContentQueue {
     catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
+    finally {
+      myTakersWaitTime.addAndGet(System.nanoTime() - started);
+    }
 
     final VirtualFile file = result.getVirtualFile();
     if (file == null) {
@@ -235,4 +304,17 @@ public class FileContentQueue {
   public synchronized void pushback(@NotNull FileContent content) {
     myPushbackBuffer.add(content);
   }
+
+  /**
+   * Dumps per-stage throughput: loaders time split into reading and waiting for memory / queue space,
+   * and the time consumers spent waiting for loaded content.
+   */
+  public void logStatistics() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - myQueueStarted);
+    long loadingMs = TimeUnit.NANOSECONDS.toMillis(myLoadingTime.get());
+    LOG.info("Content loading: " + myLoadedFiles.get() + " files, " + myLoadedBytes.get() / 1024 + "K in " + elapsed + " ms" +
+             " (" + myLoadedBytes.get() / elapsed + " bytes/ms); " + myLoadersCount + " loaders spent " + loadingMs + " ms reading, " +
+             TimeUnit.NANOSECONDS.toMillis(myLoadersWaitTime.get()) + " ms throttled; consumers waited " +
+             TimeUnit.NANOSECONDS.toMillis(myTakersWaitTime.get()) + " ms for content");
+  }
 }
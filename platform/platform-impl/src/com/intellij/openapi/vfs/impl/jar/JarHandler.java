@@ -71,6 +71,10 @@ public class JarHandler extends JarHandlerBase {
     return root;
   }
 
+  /**
+   * Jars are read without copying unless they are not supported by {@link ZipDirectory} (e.g. Zip64 ones)
+   * or a {@link java.util.zip.ZipFile} is requested: these lock the file on Windows, so a copy is opened instead.
+   */
   @Override
   public File getMirrorFile(@NotNull File originalFile) {
     if (!myFileSystem.isMakeCopyOfJar(originalFile)) return originalFile;
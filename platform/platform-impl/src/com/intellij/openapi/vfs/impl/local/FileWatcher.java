@@ -25,6 +25,7 @@ import com.intellij.openapi.application.*;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
@@ -62,6 +63,7 @@ public class FileWatcher {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.impl.local.FileWatcher");
 
   @NonNls private static final String ROOTS_COMMAND = "ROOTS";
+  @NonNls private static final String UPDATE_ROOTS_COMMAND = "UPDATE_ROOTS";
   @NonNls private static final String EXIT_COMMAND = "EXIT";
 
   private static final int MAX_PROCESS_LAUNCH_ATTEMPT_COUNT = 10;
@@ -85,6 +87,7 @@ public class FileWatcher {
   private volatile boolean myIsShuttingDown = false;
   private volatile boolean myFailureShownToTheUser = false;
   private final AtomicInteger mySettingRoots = new AtomicInteger(0);
+  private volatile boolean myIncrementalRoots = false;
 
   /** @deprecated use {@linkplain com.intellij.openapi.vfs.impl.local.LocalFileSystemImpl#getFileWatcher()} (to remove in IDEA 13) */
   public static FileWatcher getInstance() {
@@ -214,6 +217,7 @@ public class FileWatcher {
     ProcessBuilder processBuilder = new ProcessBuilder(myExecutable.getAbsolutePath());
     processBuilder.redirectErrorStream(true);
     final Process process = processBuilder.start();
+    myIncrementalRoots = false;
     myProcessHandler = new MyProcessHandler(process);
     myProcessHandler.addProcessListener(new MyProcessAdapter());
     myProcessHandler.startNotify();
@@ -305,14 +309,21 @@ public class FileWatcher {
       myMapping.clear();
 
       try {
-        writeLine(ROOTS_COMMAND);
-        for (String path : recursive) {
-          writeLine(path);
+        if (!restart && myIncrementalRoots) {
+          for (String line : rootsUpdateCommand(myRecursiveWatchRoots, myFlatWatchRoots, recursive, flat)) {
+            writeLine(line);
+          }
         }
-        for (String path : flat) {
-          writeLine("|" + path);
+        else {
+          writeLine(ROOTS_COMMAND);
+          for (String path : recursive) {
+            writeLine(path);
+          }
+          for (String path : flat) {
+            writeLine("|" + path);
+          }
+          writeLine("#");
         }
-        writeLine("#");
       }
       catch (IOException e) {
         LOG.warn(e);
@@ -323,6 +334,29 @@ public class FileWatcher {
     }
   }
 
+  private static List<String> rootsUpdateCommand(List<String> oldRecursive, List<String> oldFlat, List<String> recursive, List<String> flat) {
+    List<String> lines = newArrayList(UPDATE_ROOTS_COMMAND);
+    addRootsDiff(lines, oldRecursive, recursive, "");
+    addRootsDiff(lines, oldFlat, flat, "|");
+    lines.add("#");
+    return lines;
+  }
+
+  private static void addRootsDiff(List<String> lines, List<String> oldRoots, List<String> newRoots, String prefix) {
+    Set<String> oldSet = newHashSet(oldRoots);
+    Set<String> newSet = newHashSet(newRoots);
+    for (String path : oldRoots) {
+      if (!newSet.contains(path)) {
+        lines.add("-" + prefix + path);
+      }
+    }
+    for (String path : newRoots) {
+      if (!oldSet.contains(path)) {
+        lines.add("+" + prefix + path);
+      }
+    }
+  }
+
   private void writeLine(final String line) throws IOException {
     if (LOG.isDebugEnabled()) {
       LOG.debug("<< " + line);
@@ -421,12 +455,13 @@ public class FileWatcher {
 
   @SuppressWarnings("SpellCheckingInspection")
   private enum WatcherOp {
-    GIVEUP, RESET, UNWATCHEABLE, REMAP, MESSAGE, CREATE, DELETE, STATS, CHANGE, DIRTY, RECDIRTY
+    GIVEUP, RESET, UNWATCHEABLE, REMAP, MESSAGE, CREATE, DELETE, STATS, CHANGE, DIRTY, RECDIRTY, PROTOCOL, BATCH
   }
 
   private class MyProcessAdapter extends ProcessAdapter {
     private WatcherOp myLastOp = null;
     private final List<String> myLines = newArrayList();
+    private int myBatchSize = -1;
 
     @Override
     public void processTerminated(ProcessEvent event) {
@@ -474,6 +509,24 @@ public class FileWatcher {
           myLastOp = watcherOp;
         }
       }
+      else if (myLastOp == WatcherOp.PROTOCOL) {
+        myIncrementalRoots = StringUtil.parseInt(line, 1) >= 2;
+        myLastOp = null;
+      }
+      else if (myLastOp == WatcherOp.BATCH) {
+        if (myBatchSize < 0) {
+          myBatchSize = StringUtil.parseInt(line, 0);
+        }
+        else {
+          myLines.add(line);
+        }
+        if (myLines.size() == 2 * myBatchSize) {
+          processBatch();
+          myLines.clear();
+          myBatchSize = -1;
+          myLastOp = null;
+        }
+      }
       else if (myLastOp == WatcherOp.MESSAGE) {
         Notifications.Bus.notify(
           new Notification(Notifications.SYSTEM_MESSAGES_GROUP_ID, "File Watcher", line, NotificationType.WARNING, NotificationListener.URL_OPENING_LISTENER)
@@ -558,44 +611,73 @@ public class FileWatcher {
       }
 
       synchronized (myLock) {
-        boolean exactPath = op != WatcherOp.DIRTY && op != WatcherOp.RECDIRTY;
-        Collection<String> paths = checkWatchable(path, exactPath, false);
+        if (addDirtyPaths(path, op)) {
+          notifyOnEvent();
+        }
+      }
+    }
 
-        if (paths.isEmpty()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Not watchable, filtered: " + path);
+    // a batch is a list of "op, path" pairs (from the Linux helper only, so Windows drive roots don't come here)
+    private void processBatch() {
+      synchronized (myLock) {
+        boolean added = false;
+        for (int i = 0; i < myLines.size() - 1; i += 2) {
+          final WatcherOp op;
+          try {
+            op = WatcherOp.valueOf(myLines.get(i));
           }
-          return;
+          catch (IllegalArgumentException e) {
+            final String message = "Illegal watcher command: " + myLines.get(i);
+            if (ApplicationManager.getApplication().isUnitTestMode()) LOG.debug(message); else LOG.error(message);
+            continue;
+          }
+          String path = myLines.get(i + 1).replace('\0', '\n');  // unescape
+          added |= addDirtyPaths(path, op);
+        }
+        if (added) {
+          notifyOnEvent();
         }
+      }
+    }
+
+    private boolean addDirtyPaths(String path, WatcherOp op) {
+      boolean exactPath = op != WatcherOp.DIRTY && op != WatcherOp.RECDIRTY;
+      Collection<String> paths = checkWatchable(path, exactPath, false);
 
-        switch (op) {
-          case STATS:
-          case CHANGE:
-            myDirtyPaths.addAll(paths);
-            break;
-
-          case CREATE:
-          case DELETE:
-            for (String p : paths) {
-              String parent = new File(p).getParent();
-              myDirtyPaths.add(parent != null ? parent : p);
-            }
-            break;
-
-          case DIRTY:
-            myDirtyDirs.addAll(paths);
-            break;
-
-          case RECDIRTY:
-            myDirtyRecursivePaths.addAll(paths);
-            break;
-
-          default:
-            LOG.error("Unexpected op: " + op);
+      if (paths.isEmpty()) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Not watchable, filtered: " + path);
         }
+        return false;
+      }
 
-        notifyOnEvent();
+      switch (op) {
+        case STATS:
+        case CHANGE:
+          myDirtyPaths.addAll(paths);
+          break;
+
+        case CREATE:
+        case DELETE:
+          for (String p : paths) {
+            String parent = new File(p).getParent();
+            myDirtyPaths.add(parent != null ? parent : p);
+          }
+          break;
+
+        case DIRTY:
+          myDirtyDirs.addAll(paths);
+          break;
+
+        case RECDIRTY:
+          myDirtyRecursivePaths.addAll(paths);
+          break;
+
+        default:
+          LOG.error("Unexpected op: " + op);
+          return false;
       }
+      return true;
     }
   }
 
@@ -613,6 +695,23 @@ public class FileWatcher {
   @TestOnly
   public static Logger getLog() { return LOG; }
 
+  @TestOnly
+  @NotNull
+  public static List<String> getRootsUpdateCommand(List<String> oldRecursive, List<String> oldFlat, List<String> recursive, List<String> flat) {
+    return rootsUpdateCommand(oldRecursive, oldFlat, recursive, flat);
+  }
+
+  /**
+   * Passes the lines to the output parser as if they were printed by the helper process.
+   */
+  @TestOnly
+  public void processOutput(@NotNull String... lines) {
+    MyProcessAdapter adapter = new MyProcessAdapter();
+    for (String line : lines) {
+      adapter.onTextAvailable(new ProcessEvent(myProcessHandler, line + "\n"), ProcessOutputTypes.STDOUT);
+    }
+  }
+
   @TestOnly
   public void startup(@Nullable final Runnable notifier) throws IOException {
     final Application app = ApplicationManager.getApplication();
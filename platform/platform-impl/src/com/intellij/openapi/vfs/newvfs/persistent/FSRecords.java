@@ -35,12 +35,17 @@ import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.storage.*;
 import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -84,9 +89,37 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  // w guards structural changes (record allocation and deletion, roots, flushing), r is held by everything else
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // fixed size record fields and attribute / content references are modified under the stripe of the record (and r),
+  // readers of the fixed size fields validate against the stripe sequence and lock the stripe only on contention
+  private static final int RECORD_LOCK_STRIPES = 64;
+  private static final int OPTIMISTIC_READ_RETRIES = 8;
+  private static final SequenceLock[] ourRecordLocks = new SequenceLock[RECORD_LOCK_STRIPES];
+  private static final Object ourModCountLock = new Object();
+
+  // identical file bodies share a content record: content_hashes.dat keeps the hash of every content record at
+  // contentId * CONTENT_HASH_SIZE. Writers of the same hash are serialized by its stripe while they look for a record to share
+  // and compare the bytes; the hashes, the hash -> content id map and the reference counts are checked and changed under
+  // ourContentRecordsLock, which is held only for the decision to share, to rewrite or to take a record
+  private static final int CONTENT_HASH_SIZE = 8;
+  private static final int CONTENT_HASH_LOCK_STRIPES = 64;
+  private static final Object[] ourContentHashLocks = new Object[CONTENT_HASH_LOCK_STRIPES];
+  private static final Object ourContentRecordsLock = new Object();
+  private static final ThreadLocal<MessageDigest> ourContentDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -100,6 +133,13 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    for (int i = 0; i < ourRecordLocks.length; i++) {
+      ourRecordLocks[i] = new SequenceLock();
+    }
+    for (int i = 0; i < ourContentHashLocks.length; i++) {
+      ourContentHashLocks[i] = new Object();
+    }
   }
 
   static class DbConnection {
@@ -109,6 +149,8 @@ public class FSRecords implements Forceable {
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
+    private static ResizeableMappedFile myContentHashes;
+    private static final TLongIntHashMap myContentIdsByHash = new TLongIntHashMap();
     private static ResizeableMappedFile myRecords;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
@@ -116,7 +158,12 @@ public class FSRecords implements Forceable {
     private static ScheduledFuture<?> myFlushingFuture;
     private static boolean myCorrupted = false;
 
-    private static final AttrPageAwareCapacityAllocationPolicy REASONABLY_SMALL = new AttrPageAwareCapacityAllocationPolicy();
+    private static final CapacityAllocationPolicy REASONABLY_SMALL = new CapacityAllocationPolicy() {
+      @Override
+      public int calculateCapacity(int requiredLength) {   // 20% for growth
+        return Math.max(32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
+      }
+    };
 
 
     public static void connect() {
@@ -145,6 +192,16 @@ public class FSRecords implements Forceable {
       }
     }
 
+    private static void scanContentHashes() {
+      myContentIdsByHash.clear();
+      int count = (int)(myContentHashes.length() / CONTENT_HASH_SIZE);
+      for (int contentId = 1; contentId < count; contentId++) {
+        long hash = myContentHashes.getLong((long)contentId * CONTENT_HASH_SIZE);
+        // stale entries of released records are dropped when looked up
+        if (hash != 0) myContentIdsByHash.put(hash, contentId);
+      }
+    }
+
     static int getFreeRecord() {
       if (myFreeRecords.isEmpty()) return 0;
       return myFreeRecords.remove(myFreeRecords.size() - 1);
@@ -192,6 +249,7 @@ public class FSRecords implements Forceable {
       final File namesFile = new File(basePath, "names.dat");
       final File attributesFile = new File(basePath, "attrib.dat");
       final File contentsFile = new File(basePath, "content.dat");
+      final File contentHashesFile = new File(basePath, "content_hashes.dat");
       final File recordsFile = new File(basePath, "records.dat");
 
       if (!namesFile.exists()) {
@@ -208,6 +266,7 @@ public class FSRecords implements Forceable {
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
+        myContentHashes = new ResizeableMappedFile(contentHashesFile, 20 * 1024, storageLockContext, PagedFileStorage.BUFFER_SIZE, true);
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         assert aligned; // for performance
         myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext,
@@ -228,6 +287,7 @@ public class FSRecords implements Forceable {
         }
         markDirty();
         scanFreeRecords();
+        scanContentHashes();
       }
       catch (Exception e) { // IOException, IllegalArgumentException
         LOG.info("Filesystem storage is corrupted or does not exist. [Re]Building. Reason: " + e.getMessage());
@@ -238,6 +298,7 @@ public class FSRecords implements Forceable {
           deleted &= deleteWithSubordinates(namesFile);
           deleted &= AbstractStorage.deleteFiles(attributesFile.getCanonicalPath());
           deleted &= AbstractStorage.deleteFiles(contentsFile.getCanonicalPath());
+          deleted &= deleteWithSubordinates(contentHashesFile);
           deleted &= deleteWithSubordinates(recordsFile);
 
           if (!deleted) {
@@ -354,6 +415,7 @@ public class FSRecords implements Forceable {
           myNames.force();
           myAttributes.force();
           myContents.force();
+          myContentHashes.force();
           myRecords.force();
         }
       }
@@ -374,6 +436,7 @@ public class FSRecords implements Forceable {
 
         final boolean attribsFlushed = myAttributes.flushSome();
         final boolean contentsFlushed = myContents.flushSome();
+        myContentHashes.force();
         if (attribsFlushed && contentsFlushed) {
           markClean();
           myRecords.force();
@@ -385,7 +448,8 @@ public class FSRecords implements Forceable {
     }
 
     public static boolean isDirty() {
-      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty();
+      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myContentHashes.isDirty() ||
+             myRecords.isDirty();
     }
 
 
@@ -441,6 +505,12 @@ public class FSRecords implements Forceable {
         myContents = null;
       }
 
+      if (myContentHashes != null) {
+        myContentHashes.close();
+        myContentHashes = null;
+      }
+      myContentIdsByHash.clear();
+
       if (myRecords != null) {
         markClean();
         myRecords.close();
@@ -480,15 +550,6 @@ public class FSRecords implements Forceable {
     private static void addFreeRecord(final int id) {
       myFreeRecords.add(id);
     }
-
-    private static class AttrPageAwareCapacityAllocationPolicy extends CapacityAllocationPolicy {
-      boolean myAttrPageRequested;
-
-      @Override
-      public int calculateCapacity(int requiredLength) {   // 20% for growth
-        return Math.max(myAttrPageRequested ? 8:32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
-      }
-    }
   }
 
   public FSRecords() {
@@ -593,7 +654,7 @@ public class FSRecords implements Forceable {
   private static void deleteContentAndAttributes(int id) throws IOException {
     int content_page = getContentRecordId(id);
     if (content_page != 0) {
-      getContentStorage().releaseRecord(content_page);
+      releaseContentRecord(content_page);
     }
 
     int att_page = getAttributeRecordId(id);
@@ -848,7 +909,7 @@ public class FSRecords implements Forceable {
 
   public static void updateList(int id, @NotNull int[] children) {
     try {
-      w.lock();
+      r.lock();
       DbConnection.markDirty();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
@@ -867,15 +928,19 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
+  // should be called under r or w lock and without holding any record stripe, so stripes are never nested
   private static void incModCount(int id) {
     DbConnection.markDirty();
     ourLocalModificationCount++;
-    final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    final int count;
+    synchronized (ourModCountLock) {
+      count = getModCount() + 1;
+      getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    }
 
     int parent = id;
     int depth = 10000;
@@ -905,19 +970,13 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -931,27 +990,21 @@ public class FSRecords implements Forceable {
     }
 
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      putRecordInt(id, PARENT_OFFSET, parent);
+      writeRecordInt(id, PARENT_OFFSET, parent);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return readRecordInt(id, NAME_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -975,14 +1028,8 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
-      r.lock();
-      try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      final int nameId = readRecordInt(id, NAME_OFFSET);
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1006,106 +1053,90 @@ public class FSRecords implements Forceable {
 
   public static void setName(int id, String name) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+      writeRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
     try {
-      w.lock();
+      r.lock();
       if (markAsChange) {
         incModCount(id);
       }
-      putRecordInt(id, FLAGS_OFFSET, flags);
+      writeRecordInt(id, FLAGS_OFFSET, flags);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      writeRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      writeRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static int getModCount(int id) {
+    return readRecordInt(id, MOD_COUNT_OFFSET);
+  }
+
+  private static void setModCount(int id, int value) {
+    final SequenceLock lock = getRecordLock(id);
+    lock.lock();
     try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
+      // concurrent incModCount() calls may reach the same parent out of order
+      if (getRecordInt(id, MOD_COUNT_OFFSET) < value) putRecordInt(id, MOD_COUNT_OFFSET, value);
     }
     finally {
-      r.unlock();
+      lock.unlock();
     }
   }
 
-  private static void setModCount(int id, int value) {
-    putRecordInt(id, MOD_COUNT_OFFSET, value);
-  }
-
   private static int getContentRecordId(int fileId) {
     return getRecordInt(fileId, CONTENT_OFFSET);
   }
@@ -1134,13 +1165,91 @@ public class FSRecords implements Forceable {
     return id * RECORD_SIZE + offset;
   }
 
+  private static SequenceLock getRecordLock(int id) {
+    return ourRecordLocks[id & (RECORD_LOCK_STRIPES - 1)];
+  }
+
+  private static int readRecordInt(int id, int offset) {
+    try {
+      r.lock();
+      final SequenceLock lock = getRecordLock(id);
+      for (int i = 0; i < OPTIMISTIC_READ_RETRIES; i++) {
+        long sequence = lock.getSequence();
+        if ((sequence & 1L) == 0L) {
+          int value = getRecordInt(id, offset);
+          if (lock.getSequence() == sequence) return value;
+        }
+      }
+
+      lock.lock();
+      try {
+        return getRecordInt(id, offset);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    try {
+      r.lock();
+      final SequenceLock lock = getRecordLock(id);
+      for (int i = 0; i < OPTIMISTIC_READ_RETRIES; i++) {
+        long sequence = lock.getSequence();
+        if ((sequence & 1L) == 0L) {
+          long value = getRecords().getLong(getOffset(id, offset));
+          if (lock.getSequence() == sequence) return value;
+        }
+      }
+
+      lock.lock();
+      try {
+        return getRecords().getLong(getOffset(id, offset));
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  // should be called under r or w lock
+  private static void writeRecordInt(int id, int offset, int value) {
+    final SequenceLock lock = getRecordLock(id);
+    lock.lock();
+    try {
+      putRecordInt(id, offset, value);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  // should be called under r or w lock
+  private static void writeRecordLong(int id, int offset, long value) {
+    final SequenceLock lock = getRecordLock(id);
+    lock.lock();
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
   @Nullable
   public static DataInputStream readContent(int fileId) {
     try {
       int page;
       try {
         r.lock();
-        page = findContentPage(fileId, false);
+        page = findContentPage(fileId);
         if (page == 0) return null;
       }
       finally {
@@ -1189,18 +1298,136 @@ public class FSRecords implements Forceable {
     return getAttributesStorage().readStream(page);
   }
 
-  private static int findContentPage(int fileId, boolean toWrite) throws IOException {
+  private static int findContentPage(int fileId) throws IOException {
     checkFileIsValid(fileId);
+    return getContentRecordId(fileId);
+  }
 
-    int recordId = getContentRecordId(fileId);
-    if (toWrite) {
-      if (recordId == 0 || getContentStorage().getRefCount(recordId) > 1) {
-        recordId = getContentStorage().acquireNewRecord();
-        setContentRecordId(fileId, recordId);
+  /**
+   * Makes the file refer to the content record with the given bytes. If there is a record holding them already, the file
+   * shares it, otherwise the file gets a record of its own for the bytes to be written to.
+   *
+   * @return the record to write the bytes to, or 0 if the file shares a record with the same bytes
+   */
+  // should be called under r lock and without holding the stripe of the record
+  private static int findOrCreateContentPage(int fileId, ByteSequence bytes) throws IOException {
+    checkFileIsValid(fileId);
+
+    long hash = calculateContentHash(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    RefCountingStorage storage = getContentStorage();
+    synchronized (getContentHashLock(hash)) {
+      // the lookup reads and compares the bytes, the stripe is taken only to publish the record id
+      int sharedId = findContentRecord(bytes, hash);
+      final SequenceLock lock = getRecordLock(fileId);
+      lock.lock();
+      try {
+        synchronized (ourContentRecordsLock) {
+          int recordId = getContentRecordId(fileId);
+          if (sharedId != 0 && isContentRecordOf(sharedId, hash)) {
+            if (sharedId != recordId) {
+              storage.acquireRecord(sharedId);
+              setContentRecordId(fileId, sharedId);
+              if (recordId != 0) storage.releaseRecord(recordId);
+            }
+            return 0;
+          }
+
+          if (recordId == 0 || storage.getRefCount(recordId) > 1) {
+            int newRecordId = storage.acquireNewRecord();
+            setContentRecordId(fileId, newRecordId);
+            if (recordId != 0) storage.releaseRecord(recordId);
+            recordId = newRecordId;
+          }
+          // the record is rewritten in place otherwise, nobody may share its old content from now on
+          setContentHash(recordId, hash);
+          return recordId;
+        }
+      }
+      finally {
+        lock.unlock();
       }
     }
+  }
+
+  private static Object getContentHashLock(long hash) {
+    return ourContentHashLocks[(int)(hash ^ hash >>> 32) & (CONTENT_HASH_LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * Looks for a record holding the bytes. The record may stop holding them once ourContentRecordsLock is released,
+   * so it should be checked with {@link #isContentRecordOf(int, long)} again before it's shared.
+   */
+  // should be called under the stripe of the hash
+  private static int findContentRecord(ByteSequence bytes, long hash) throws IOException {
+    int recordId;
+    synchronized (ourContentRecordsLock) {
+      recordId = DbConnection.myContentIdsByHash.get(hash);
+      if (recordId == 0) return 0;
+      // the record may have been released or rewritten since
+      if (!isContentRecordOf(recordId, hash)) {
+        DbConnection.myContentIdsByHash.remove(hash);
+        return 0;
+      }
+    }
+
+    if (contentEquals(recordId, bytes)) return recordId;
 
-    return recordId;
+    // different bytes with the same hash
+    synchronized (ourContentRecordsLock) {
+      if (DbConnection.myContentIdsByHash.get(hash) == recordId) DbConnection.myContentIdsByHash.remove(hash);
+    }
+    return 0;
+  }
+
+  // should be called under ourContentRecordsLock
+  private static boolean isContentRecordOf(int recordId, long hash) throws IOException {
+    return getContentHashById(recordId) == hash && getContentStorage().getRefCount(recordId) > 0;
+  }
+
+  private static boolean contentEquals(int recordId, ByteSequence bytes) throws IOException {
+    DataInputStream stream = getContentStorage().readStream(recordId);
+    try {
+      int length = bytes.getLength();
+      if (stream.available() != length) return false;
+      byte[] content = new byte[length];
+      stream.readFully(content);
+      byte[] expected = bytes.getBytes();
+      int offset = bytes.getOffset();
+      for (int i = 0; i < length; i++) {
+        if (content[i] != expected[offset + i]) return false;
+      }
+      return true;
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  // should be called under ourContentRecordsLock
+  private static void setContentHash(int recordId, long hash) {
+    DbConnection.myContentHashes.putLong((long)recordId * CONTENT_HASH_SIZE, hash);
+    DbConnection.myContentIdsByHash.put(hash, recordId);
+  }
+
+  // should be called under ourContentRecordsLock
+  private static long getContentHashById(int recordId) {
+    long offset = (long)recordId * CONTENT_HASH_SIZE;
+    ResizeableMappedFile hashes = DbConnection.myContentHashes;
+    return offset + CONTENT_HASH_SIZE <= hashes.length() ? hashes.getLong(offset) : 0;
+  }
+
+  /**
+   * @return 64 bits of MD5 of the bytes, never 0
+   */
+  private static long calculateContentHash(byte[] bytes, int offset, int length) {
+    MessageDigest digest = ourContentDigest.get();
+    digest.update(bytes, offset, length);
+    byte[] md5 = digest.digest();
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = hash << 8 | md5[i] & 0xFF;
+    }
+    return hash == 0 ? 1 : hash;
   }
 
   private static int findAttributePage(int fileId, @NotNull String attrId, boolean toWrite) throws IOException {
@@ -1233,16 +1460,12 @@ public class FSRecords implements Forceable {
     }
 
     if (toWrite) {
-      Storage.AppenderStream appender = storage.appendStream(recordId);
+      // pages of attribute references hold a few ids, so they are allocated with less space for growth than attribute values
+      Storage.AppenderStream appender = storage.appendStream(recordId, CapacityAllocationPolicy.REASONABLY_SMALL);
       DataInputOutputUtil.writeINT(appender, encodedAttrId);
       int attrAddress = storage.createNewRecord();
       DataInputOutputUtil.writeINT(appender, attrAddress);
-      DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
-      try {
-        appender.close();
-      } finally {
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
-      }
+      appender.close();
       return attrAddress;
     }
 
@@ -1256,8 +1479,10 @@ public class FSRecords implements Forceable {
   }
 
   public static int acquireFileContent(int fileId) {
+    final SequenceLock lock = getRecordLock(fileId);
     try {
-      w.lock();
+      r.lock();
+      lock.lock();
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
       return record;
@@ -1266,28 +1491,55 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      lock.unlock();
+      r.unlock();
     }
   }
 
   public static void releaseContent(int contentId) {
     try {
-      getContentStorage().releaseRecord(contentId);
+      releaseContentRecord(contentId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
   }
 
+  // a record mustn't be freed between the check and the acquisition of a writer sharing it
+  private static void releaseContentRecord(int contentId) throws IOException {
+    synchronized (ourContentRecordsLock) {
+      getContentStorage().releaseRecord(contentId);
+    }
+  }
+
   public static int getContentId(int fileId) {
     try {
-      r.lock();
-      try {
-        return getContentRecordId(fileId);
-      }
-      finally {
-        r.unlock();
-      }
+      return readRecordInt(fileId, CONTENT_OFFSET);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
+  /**
+   * @return the id of the content record the file shares with other files, or 0 if no other file refers to it
+   */
+  public static int getSharedContentId(int fileId) {
+    try {
+      int contentId = readRecordInt(fileId, CONTENT_OFFSET);
+      return contentId != 0 && getContentStorage().getRefCount(contentId) > 1 ? contentId : 0;
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
+  /**
+   * @return true if the content record holds exactly the bytes
+   */
+  public static boolean isContentOf(int contentId, @NotNull byte[] bytes) {
+    try {
+      return contentEquals(contentId, new ByteSequence(bytes));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1305,10 +1557,22 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      int recordId = getContentStorage().acquireNewRecord();
-      AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
-      output.write(bytes);
-      output.close();
+      ByteSequence sequence = new ByteSequence(bytes);
+      long hash = calculateContentHash(bytes, 0, bytes.length);
+      RefCountingStorage storage = getContentStorage();
+      int recordId;
+      synchronized (getContentHashLock(hash)) {
+        int sharedId = findContentRecord(sequence, hash);
+        synchronized (ourContentRecordsLock) {
+          if (sharedId != 0 && isContentRecordOf(sharedId, hash)) {
+            storage.acquireRecord(sharedId);
+            return sharedId;
+          }
+          recordId = storage.acquireNewRecord();
+          setContentHash(recordId, hash);
+        }
+      }
+      storage.writeBytes(recordId, sequence, true);
       return recordId;
     }
     catch (IOException e) {
@@ -1327,8 +1591,8 @@ public class FSRecords implements Forceable {
     }
 
     @Override
-    protected int findOrCreatePage() throws IOException {
-      return findContentPage(myFileId, true);
+    protected int findOrCreatePage(ByteSequence bytes) throws IOException {
+      return findOrCreateContentPage(myFileId, bytes);
     }
 
     @Override
@@ -1353,8 +1617,15 @@ public class FSRecords implements Forceable {
     }
 
     @Override
-    protected int findOrCreatePage() throws IOException {
-      return findAttributePage(myFileId, myAttributeId, true);
+    protected int findOrCreatePage(ByteSequence bytes) throws IOException {
+      final SequenceLock lock = getRecordLock(myFileId);
+      lock.lock();
+      try {
+        return findAttributePage(myFileId, myAttributeId, true);
+      }
+      finally {
+        lock.unlock();
+      }
     }
 
     @Override
@@ -1393,18 +1664,24 @@ public class FSRecords implements Forceable {
     public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
       final int page;
       try {
-        w.lock();
+        r.lock();
         incModCount(fileId);
-        page = findOrCreatePage();
+        page = findOrCreatePage(bytes);
       }
       finally {
-        w.unlock();
+        r.unlock();
       }
 
-      getStorage().writeBytes(page, bytes, myFixedSize);
+      if (page != 0) {
+        getStorage().writeBytes(page, bytes, myFixedSize);
+      }
     }
 
-    protected abstract int findOrCreatePage() throws IOException;
+    /**
+     * Called under r lock, changes the record of the file under its stripe.
+     * @return the record to write the bytes to, or 0 if there is nothing to write
+     */
+    protected abstract int findOrCreatePage(ByteSequence bytes) throws IOException;
 
     protected abstract AbstractStorage getStorage();
   }
@@ -15,6 +15,8 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
@@ -27,32 +29,44 @@ import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
-import com.intellij.util.containers.Queue;
+import com.intellij.util.SystemProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.intellij.openapi.diagnostic.LogUtil.debug;
 import static com.intellij.util.containers.ContainerUtil.newHashSet;
 
 /**
+ * Scans the file system below a refresh root and collects the VFS events to bring the persistent FS in sync with it.
+ * <p/>
+ * Files are processed breadth-first, one level of the tree at a time. In the parallel mode (<code>idea.vfs.parallel.refresh</code>)
+ * the files of a level are processed by several pooled threads; the events and the children to descend into are still collected
+ * per file and joined in the order of the level, so the result doesn't differ from the sequential scan.
+ *
  * @author max
  */
 public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
 
+  private static boolean ourParallel = SystemProperties.getBooleanProperty("idea.vfs.parallel.refresh", false);
+  private static final int PARALLELISM = Math.min(8, Runtime.getRuntime().availableProcessors());
+  // levels smaller than this are not worth spreading over threads
+  private static final int MIN_PARALLEL_LEVEL = 16;
+
   private final boolean myIsRecursive;
-  private final Queue<Pair<NewVirtualFile, FileAttributes>> myRefreshQueue = new Queue<Pair<NewVirtualFile, FileAttributes>>(100);
+  private final NewVirtualFile myRefreshRoot;
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
 
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
-    myRefreshQueue.addLast(Pair.create(refreshRoot, (FileAttributes)null));
+    myRefreshRoot = refreshRoot;
   }
 
   @NotNull
@@ -64,8 +78,15 @@ public class RefreshWorker {
     myCancelled = true;
   }
 
+  @TestOnly
+  static boolean setParallel(boolean parallel) {
+    boolean old = ourParallel;
+    ourParallel = parallel;
+    return old;
+  }
+
   public void scan() {
-    NewVirtualFile root = myRefreshQueue.pullFirst().first;
+    NewVirtualFile root = myRefreshRoot;
     boolean rootDirty = root.isDirty();
     debug(LOG, "root=%s dirty=%b", root, rootDirty);
     if (!rootDirty) return;
@@ -73,145 +94,220 @@ public class RefreshWorker {
     NewVirtualFileSystem fs = root.getFileSystem();
     FileAttributes rootAttributes = fs.getAttributes(root);
     if (rootAttributes == null) {
-      scheduleDeletion(root);
+      scheduleDeletion(myEvents, root);
       root.markClean();
       return;
     }
-    if (rootAttributes != null && rootAttributes.isDirectory()) {
-      fs = PersistentFS.replaceWithNativeFS(fs);
+    boolean nativeFs = rootAttributes.isDirectory();
+    NewVirtualFileSystem scanFs = nativeFs ? PersistentFS.replaceWithNativeFS(fs) : fs;
+
+    List<Pair<NewVirtualFile, FileAttributes>> level = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+    level.add(Pair.create(root, rootAttributes));
+    while (!level.isEmpty() && !myCancelled) {
+      List<Pair<NewVirtualFile, FileAttributes>> nextLevel = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+      if (ourParallel && level.size() >= MIN_PARALLEL_LEVEL) {
+        processLevelConcurrently(level, fs, nativeFs, nextLevel);
+      }
+      else {
+        for (Pair<NewVirtualFile, FileAttributes> pair : level) {
+          if (!processFile(pair, scanFs, myEvents, nextLevel)) break;
+        }
+      }
+      level = nextLevel;
     }
-    myRefreshQueue.addLast(Pair.create(root, rootAttributes));
-    PersistentFS persistence = PersistentFS.getInstance();
+  }
 
-    main:
-    while (!myRefreshQueue.isEmpty() && !myCancelled) {
-      Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
-      NewVirtualFile file = pair.first;
-      boolean fileDirty = file.isDirty();
-      debug(LOG, "file=%s dirty=%b", file, fileDirty);
-      if (!fileDirty) continue;
-
-      FileAttributes attributes = pair.second != null ? pair.second : fs.getAttributes(file);
-      if (attributes == null) {
-        scheduleDeletion(file);
-        continue;
+  private void processLevelConcurrently(@NotNull final List<Pair<NewVirtualFile, FileAttributes>> level,
+                                        @NotNull final NewVirtualFileSystem rootFs,
+                                        final boolean nativeFs,
+                                        @NotNull List<Pair<NewVirtualFile, FileAttributes>> nextLevel) {
+    final int size = level.size();
+    @SuppressWarnings("unchecked") final List<VFileEvent>[] events = new List[size];
+    @SuppressWarnings("unchecked") final List<Pair<NewVirtualFile, FileAttributes>>[] children = new List[size];
+    final AtomicInteger nextIndex = new AtomicInteger();
+
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        // native file system instances are per thread
+        NewVirtualFileSystem fs = nativeFs ? PersistentFS.replaceWithNativeFS(rootFs) : rootFs;
+        int index;
+        while ((index = nextIndex.getAndIncrement()) < size && !myCancelled) {
+          List<VFileEvent> fileEvents = new ArrayList<VFileEvent>();
+          List<Pair<NewVirtualFile, FileAttributes>> fileChildren = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+          processFile(level.get(index), fs, fileEvents, fileChildren);
+          events[index] = fileEvents;
+          children[index] = fileChildren;
+        }
       }
+    };
 
-      boolean checkFurther = true;
-      NewVirtualFile parent = file.getParent();
-      if (parent != null &&
-          (checkAndScheduleAttributesChange(parent, file, attributes) ||
-           checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
-        // ignore everything else
-        checkFurther = false;
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    Application application = ApplicationManager.getApplication();
+    for (int i = 1; i < Math.min(PARALLELISM, size); i++) {
+      futures.add(application.executeOnPooledThread(task));
+    }
+    task.run();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
       }
-      else if (file.isDirectory()) {
-        VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
-        boolean fullSync = dir.allChildrenLoaded();
-        if (fullSync) {
-          Set<String> currentNames = newHashSet(persistence.list(file));
-          Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
-          Set<String> newNames = newHashSet(upToDateNames);
-          newNames.removeAll(currentNames);
-          Set<String> deletedNames = newHashSet(currentNames);
-          deletedNames.removeAll(upToDateNames);
-          debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
-
-          for (String name : deletedNames) {
-            scheduleDeletion(file.findChild(name));
-          }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
 
-          for (String name : newNames) {
-            if (myCancelled) break main;
-            FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
-            if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
-            }
-            else {
-              LOG.warn("fs=" + fs + " dir=" + file + " name=" + name);
-            }
-          }
+    // on cancellation, files after a skipped one may already be processed and marked clean, so their events are kept too
+    for (int i = 0; i < size; i++) {
+      if (events[i] == null) continue;
+      myEvents.addAll(events[i]);
+      nextLevel.addAll(children[i]);
+    }
+  }
 
-          for (VirtualFile child : file.getChildren()) {
-            if (myCancelled) break main;
-            if (!deletedNames.contains(child.getName())) {
-              FileAttributes childAttributes = fs.getAttributes(child);
-              if (childAttributes != null) {
-                checkAndScheduleChildRefresh(file, child, childAttributes);
-              }
-              else {
-                LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
-                scheduleDeletion(child);
-              }
-            }
+  /**
+   * Checks the file against the file system, adding the events to apply to <code>events</code> and the children which
+   * should be checked further to <code>nextLevel</code>.
+   *
+   * @return false if the worker has been cancelled
+   */
+  private boolean processFile(@NotNull Pair<NewVirtualFile, FileAttributes> pair,
+                              @NotNull NewVirtualFileSystem fs,
+                              @NotNull List<VFileEvent> events,
+                              @NotNull List<Pair<NewVirtualFile, FileAttributes>> nextLevel) {
+    PersistentFS persistence = PersistentFS.getInstance();
+    NewVirtualFile file = pair.first;
+    boolean fileDirty = file.isDirty();
+    debug(LOG, "file=%s dirty=%b", file, fileDirty);
+    if (!fileDirty) return true;
+
+    FileAttributes attributes = pair.second != null ? pair.second : fs.getAttributes(file);
+    if (attributes == null) {
+      scheduleDeletion(events, file);
+      return true;
+    }
+
+    boolean checkFurther = true;
+    NewVirtualFile parent = file.getParent();
+    if (parent != null &&
+        (checkAndScheduleAttributesChange(events, parent, file, attributes) ||
+         checkAndScheduleSymLinkTargetChange(events, parent, file, attributes, fs))) {
+      // ignore everything else
+      checkFurther = false;
+    }
+    else if (file.isDirectory()) {
+      VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
+      boolean fullSync = dir.allChildrenLoaded();
+      if (fullSync) {
+        Set<String> currentNames = newHashSet(persistence.list(file));
+        Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
+        Set<String> newNames = newHashSet(upToDateNames);
+        newNames.removeAll(currentNames);
+        Set<String> deletedNames = newHashSet(currentNames);
+        deletedNames.removeAll(upToDateNames);
+        debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
+
+        for (String name : deletedNames) {
+          scheduleDeletion(events, file.findChild(name));
+        }
+
+        for (String name : newNames) {
+          if (myCancelled) return false;
+          FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
+          if (childAttributes != null) {
+            scheduleCreation(events, file, name, childAttributes.isDirectory());
+          }
+          else {
+            LOG.warn("fs=" + fs + " dir=" + file + " name=" + name);
           }
         }
-        else {
-          Collection<VirtualFile> cachedChildren = file.getCachedChildren();
-          debug(LOG, "cached=%s", cachedChildren);
-          for (VirtualFile child : cachedChildren) {
-            if (myCancelled) break main;
+
+        for (VirtualFile child : file.getChildren()) {
+          if (myCancelled) return false;
+          if (!deletedNames.contains(child.getName())) {
             FileAttributes childAttributes = fs.getAttributes(child);
             if (childAttributes != null) {
-              checkAndScheduleChildRefresh(file, child, childAttributes);
+              checkAndScheduleChildRefresh(events, nextLevel, file, child, childAttributes);
             }
             else {
-              scheduleDeletion(child);
-            }
-          }
-
-          List<String> names = dir.getSuspiciousNames();
-          debug(LOG, "suspicious=%s", names);
-          for (String name : names) {
-            if (myCancelled) break main;
-            if (name.isEmpty()) continue;
-
-            VirtualFile fake = new FakeVirtualFile(file, name);
-            FileAttributes childAttributes = fs.getAttributes(fake);
-            if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
+              LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
+              scheduleDeletion(events, child);
             }
           }
         }
       }
       else {
-        long currentTimestamp = persistence.getTimeStamp(file);
-        long upToDateTimestamp = attributes.lastModified;
-        long currentLength = persistence.getLength(file);
-        long upToDateLength = attributes.length;
-
-        if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
-          scheduleUpdateContent(file);
+        Collection<VirtualFile> cachedChildren = file.getCachedChildren();
+        debug(LOG, "cached=%s", cachedChildren);
+        for (VirtualFile child : cachedChildren) {
+          if (myCancelled) return false;
+          FileAttributes childAttributes = fs.getAttributes(child);
+          if (childAttributes != null) {
+            checkAndScheduleChildRefresh(events, nextLevel, file, child, childAttributes);
+          }
+          else {
+            scheduleDeletion(events, child);
+          }
         }
-      }
 
-      if (checkFurther) {
-        boolean currentWritable = persistence.isWritable(file);
-        boolean upToDateWritable = attributes.isWritable();
+        List<String> names = dir.getSuspiciousNames();
+        debug(LOG, "suspicious=%s", names);
+        for (String name : names) {
+          if (myCancelled) return false;
+          if (name.isEmpty()) continue;
 
-        if (currentWritable != upToDateWritable) {
-          scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
+          VirtualFile fake = new FakeVirtualFile(file, name);
+          FileAttributes childAttributes = fs.getAttributes(fake);
+          if (childAttributes != null) {
+            scheduleCreation(events, file, name, childAttributes.isDirectory());
+          }
         }
       }
+    }
+    else {
+      long currentTimestamp = persistence.getTimeStamp(file);
+      long upToDateTimestamp = attributes.lastModified;
+      long currentLength = persistence.getLength(file);
+      long upToDateLength = attributes.length;
+
+      if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
+        scheduleUpdateContent(events, file);
+      }
+    }
 
-      file.markClean();
+    if (checkFurther) {
+      boolean currentWritable = persistence.isWritable(file);
+      boolean upToDateWritable = attributes.isWritable();
+
+      if (currentWritable != upToDateWritable) {
+        scheduleWritableAttributeChange(events, file, currentWritable, upToDateWritable);
+      }
     }
+
+    file.markClean();
+    return true;
   }
 
-  private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
+  private void checkAndScheduleChildRefresh(@NotNull List<VFileEvent> events,
+                                            @NotNull List<Pair<NewVirtualFile, FileAttributes>> nextLevel,
+                                            @NotNull VirtualFile parent,
                                             @NotNull VirtualFile child,
                                             @NotNull FileAttributes childAttributes) {
-    if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
+    if (!checkAndScheduleAttributesChange(events, parent, child, childAttributes)) {
       boolean upToDateIsDirectory = childAttributes.isDirectory();
       if (myIsRecursive || !upToDateIsDirectory) {
-        myRefreshQueue.addLast(Pair.create((NewVirtualFile)child, childAttributes));
+        nextLevel.add(Pair.create((NewVirtualFile)child, childAttributes));
       }
     }
   }
 
-  private boolean checkAndScheduleAttributesChange(@NotNull VirtualFile parent,
-                                                   @NotNull VirtualFile child,
-                                                   @NotNull FileAttributes childAttributes) {
+  private static boolean checkAndScheduleAttributesChange(@NotNull List<VFileEvent> events,
+                                                          @NotNull VirtualFile parent,
+                                                          @NotNull VirtualFile child,
+                                                          @NotNull FileAttributes childAttributes) {
     boolean currentIsDirectory = child.isDirectory();
     boolean currentIsSymlink = child.isSymLink();
     boolean currentIsSpecial = child.isSpecialFile();
@@ -220,26 +316,27 @@ public class RefreshWorker {
     boolean upToDateIsSpecial = child.isSpecialFile();
 
     if (currentIsDirectory != upToDateIsDirectory || currentIsSymlink != upToDateIsSymlink || currentIsSpecial != upToDateIsSpecial) {
-      scheduleDeletion(child);
-      scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
+      scheduleDeletion(events, child);
+      scheduleReCreation(events, parent, child.getName(), upToDateIsDirectory);
       return true;
     }
 
     return false;
   }
 
-  private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFile parent,
-                                                      @NotNull VirtualFile child,
-                                                      @NotNull FileAttributes childAttributes,
-                                                      @NotNull NewVirtualFileSystem fs) {
+  private static boolean checkAndScheduleSymLinkTargetChange(@NotNull List<VFileEvent> events,
+                                                             @NotNull VirtualFile parent,
+                                                             @NotNull VirtualFile child,
+                                                             @NotNull FileAttributes childAttributes,
+                                                             @NotNull NewVirtualFileSystem fs) {
     if (childAttributes.isSymLink()) {
       String currentTarget = child.getCanonicalPath();
       String upToDateTarget = fs.resolveSymLink(child);
       String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
 
       if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
-        scheduleDeletion(child);
-        scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
+        scheduleDeletion(events, child);
+        scheduleReCreation(events, parent, child.getName(), childAttributes.isDirectory());
         return true;
       }
     }
@@ -247,29 +344,29 @@ public class RefreshWorker {
     return false;
   }
 
-  private void scheduleWritableAttributeChange(@NotNull VirtualFile file, boolean currentWritable, boolean upToDateWritable) {
+  private static void scheduleWritableAttributeChange(@NotNull List<VFileEvent> events, @NotNull VirtualFile file, boolean currentWritable, boolean upToDateWritable) {
     debug(LOG, "update r/w file=%s", file);
-    myEvents.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
+    events.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
   }
 
-  private void scheduleUpdateContent(@NotNull VirtualFile file) {
+  private static void scheduleUpdateContent(@NotNull List<VFileEvent> events, @NotNull VirtualFile file) {
     debug(LOG, "update file=%s", file);
-    myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
+    events.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
   }
 
-  private void scheduleCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+  private static void scheduleCreation(@NotNull List<VFileEvent> events, @NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
     debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
+    events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
   }
 
-  private void scheduleReCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+  private static void scheduleReCreation(@NotNull List<VFileEvent> events, @NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
     debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
   }
 
-  private void scheduleDeletion(@Nullable VirtualFile file) {
+  private static void scheduleDeletion(@NotNull List<VFileEvent> events, @Nullable VirtualFile file) {
     if (file == null) return;
     debug(LOG, "delete file=%s", file);
-    myEvents.add(new VFileDeleteEvent(null, file, true));
+    events.add(new VFileDeleteEvent(null, file, true));
   }
 }
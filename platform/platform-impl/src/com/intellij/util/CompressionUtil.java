@@ -16,16 +16,21 @@
 package com.intellij.util;
 
 import com.intellij.idea.StartupUtil;
-import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.io.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.xerial.snappy.Snappy;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 
 /**
  * @author Maxim.Mossienko
@@ -47,39 +52,106 @@ public class CompressionUtil {
     ourCanUseSnappy = canUseSnappy;
   }
 
+  public static final CompressionCodec SNAPPY = new CompressionCodec() {
+    @Override
+    public byte getId() {
+      return 3;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return 32 + length + length / 6; // snappy.cc#MaxCompressedLength
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+      if (!ourCanUseSnappy) throw new IOException("Snappy is not available");
+      return Snappy.rawCompress(src, srcOffset, srcLength, dst, dstOffset);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int originalLength) throws IOException {
+      if (!ourCanUseSnappy) throw new IOException("Can not read compressed data");
+      if (Snappy.uncompressedLength(src, srcOffset, srcLength) != originalLength) throw new IOException("Corrupted compressed data");
+      Snappy.rawUncompress(src, srcOffset, srcLength, dst, dstOffset);
+    }
+  };
+
+  private static final CompressionCodec[] ourCodecs = {LzCompressionCodec.INSTANCE, DeflateCompressionCodec.INSTANCE, SNAPPY};
+
   private static final int COMPRESSION_THRESHOLD = 64;
   private static final ThreadLocal<SoftReference<byte[]>> spareBufferLocal = new ThreadLocal<SoftReference<byte[]>>();
 
+  /**
+   * @return codec to use unless a storage has its own preferences: Snappy if its native library is loaded,
+   * otherwise pure Java {@link LzCompressionCodec} of about the same ratio
+   */
+  @NotNull
+  public static CompressionCodec getDefaultCodec() {
+    return ourCanUseSnappy ? SNAPPY : LzCompressionCodec.INSTANCE;
+  }
+
   public static int writeCompressed(DataOutput out, byte[] bytes, int length) throws IOException {
-    if (length > COMPRESSION_THRESHOLD && ourCanUseSnappy) {
-      SoftReference<byte[]> reference = spareBufferLocal.get();
-      byte[] compressedOutputBuffer = reference != null ? reference.get():null;
-      int maxCompressedSize = 32 + length + length / 6; // snappy.cc#MaxCompressedLength
-      if (compressedOutputBuffer == null || compressedOutputBuffer.length < maxCompressedSize) {
-        compressedOutputBuffer = new byte[maxCompressedSize];
-        spareBufferLocal.set(new SoftReference<byte[]>(compressedOutputBuffer));
+    return writeCompressed(out, bytes, length, getDefaultCodec());
+  }
+
+  /**
+   * Writes the bytes compressed with the codec, unless they are too short or don't compress.
+   * The codec is recorded along with the data, so {@link #readCompressed(DataInput)} needs no hints.
+   */
+  public static int writeCompressed(DataOutput out, byte[] bytes, int length, @NotNull CompressionCodec codec) throws IOException {
+    if (length > COMPRESSION_THRESHOLD) {
+      byte[] compressedOutputBuffer = getSpareBuffer(codec.maxCompressedLength(length));
+      int compressedSize = codec.compress(bytes, 0, length, compressedOutputBuffer, 0);
+      if (compressedSize < length) {
+        DataInputOutputUtil.writeINT(out, -compressedSize);
+        out.writeByte(codec.getId());
+        DataInputOutputUtil.writeINT(out, length);
+        out.write(compressedOutputBuffer, 0, compressedSize);
+        return compressedSize;
       }
-      int compressedSize = Snappy.rawCompress(bytes, 0, length, compressedOutputBuffer, 0);
-      DataInputOutputUtil.writeINT(out, -compressedSize);
-      out.write(compressedOutputBuffer, 0, compressedSize);
-      return compressedSize;
-    } else {
-      DataInputOutputUtil.writeINT(out, length);
-      out.write(bytes, 0, length);
-      return length;
     }
+    DataInputOutputUtil.writeINT(out, length);
+    out.write(bytes, 0, length);
+    return length;
   }
 
   public static byte[] readCompressed(DataInput in) throws IOException {
     int size = DataInputOutputUtil.readINT(in);
-    byte[] bytes = new byte[Math.abs(size)];
-    in.readFully(bytes);
     if (size >= 0) {
+      byte[] bytes = new byte[size];
+      in.readFully(bytes);
       return bytes;
-    } else {
-      if (!ourCanUseSnappy) throw new IOException("Can not read compressed data");
-      return Snappy.uncompress(bytes);
     }
+
+    byte codecId = in.readByte();
+    int length = DataInputOutputUtil.readINT(in);
+    byte[] compressed = getSpareBuffer(-size);
+    in.readFully(compressed, 0, -size);
+
+    CompressionCodec codec = getCodec(codecId);
+    if (codec == null) throw new IOException("Unknown compression codec: " + codecId);
+    byte[] bytes = new byte[length];
+    codec.decompress(compressed, 0, -size, bytes, 0, length);
+    return bytes;
+  }
+
+  @Nullable
+  private static CompressionCodec getCodec(byte id) {
+    for (CompressionCodec codec : ourCodecs) {
+      if (codec.getId() == id) return codec;
+    }
+    return null;
+  }
+
+  private static byte[] getSpareBuffer(int size) {
+    SoftReference<byte[]> reference = spareBufferLocal.get();
+    byte[] buffer = reference != null ? reference.get() : null;
+    if (buffer == null || buffer.length < size) {
+      buffer = new byte[size];
+      spareBufferLocal.set(new SoftReference<byte[]>(buffer));
+    }
+    return buffer;
   }
 
   private static final int STRING_COMPRESSION_THRESHOLD = 1024;
@@ -88,21 +160,24 @@ public class CompressionUtil {
     if (string instanceof CharSequence) return (CharSequence)string;
     byte[] b = (byte[])string;
     try {
-      return Snappy.uncompressString(b, Charset.defaultCharset());
+      return new String(readCompressed(new DataInputStream(new UnsyncByteArrayInputStream(b))), CharsetToolkit.UTF8_CHARSET);
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
   }
 
   public static Object compressCharSequence(CharSequence string) {
-    if (!ourCanUseSnappy || string.length() < STRING_COMPRESSION_THRESHOLD) {
+    if (string.length() < STRING_COMPRESSION_THRESHOLD) {
       if (string instanceof CharBuffer && ((CharBuffer)string).capacity() > STRING_COMPRESSION_THRESHOLD) {
         string = string.toString();   // shrink to size
       }
       return string;
     }
     try {
-      return Snappy.compress(string.toString(), Charset.defaultCharset());
+      byte[] bytes = string.toString().getBytes(CharsetToolkit.UTF8_CHARSET);
+      BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(bytes.length / 2);
+      writeCompressed(new DataOutputStream(out), bytes, bytes.length);
+      return out.toByteArray();
     } catch (IOException ex) {
       ex.printStackTrace();
       return string;
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.ex;
+
+import com.intellij.analysis.AnalysisScope;
+import com.intellij.codeHighlighting.HighlightDisplayLevel;
+import com.intellij.codeInspection.*;
+import com.intellij.codeInspection.reference.RefEntity;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiElementVisitor;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.InspectionTestUtil;
+import com.intellij.testFramework.PlatformLangTestCase;
+import com.intellij.testFramework.PsiTestUtil;
+import com.intellij.testFramework.VfsTestUtil;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GlobalInspectionContextImplTest extends PlatformLangTestCase {
+  private static final int FILES = 50;
+
+  private VirtualFile myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(createTempDirectory());
+    assertNotNull(myRoot);
+    PsiTestUtil.addContentRoot(myModule, myRoot);
+    for (int i = 0; i < FILES; i++) {
+      VfsTestUtil.createFile(myRoot, "f" + i + ".txt", "text " + i);
+    }
+  }
+
+  public void testConcurrentModeFindsSameProblems() {
+    List<String> sequential = runInspection(false);
+    assertEquals(2 * FILES + 1, sequential.size());
+    assertEquals(sequential, runInspection(true));
+  }
+
+  public void testConcurrentModeReportsInScopeOrder() {
+    final List<String> expected = new ArrayList<String>();
+    expected.add(FileTool.START);
+    createScope().accept(new PsiElementVisitor() {
+      @Override
+      public void visitFile(PsiFile file) {
+        expected.add("project " + file.getName());
+      }
+    });
+
+    List<String> sequential = projectProblems(false);
+    assertEquals(expected, sequential);
+    assertEquals(sequential, projectProblems(true));
+  }
+
+  public void testProcessorPassesQueriesToToolWrapper() {
+    for (boolean concurrently : new boolean[]{false, true}) {
+      GlobalInspectionToolWrapper wrapper = inspect(concurrently);
+      FileTool tool = (FileTool)wrapper.getTool();
+      assertEquals(FILES, tool.myStartSeen.get());
+    }
+  }
+
+  @NotNull
+  private List<String> runInspection(boolean concurrently) {
+    List<String> descriptions = new ArrayList<String>();
+    for (CommonProblemDescriptor descriptor : inspect(concurrently).getProblemDescriptors()) {
+      descriptions.add(descriptor.getDescriptionTemplate());
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+  // problems of the project are reported by the files in turn, unlike those of the files, which are kept in a hash map
+  @NotNull
+  private List<String> projectProblems(boolean concurrently) {
+    GlobalInspectionToolWrapper wrapper = inspect(concurrently);
+    CommonProblemDescriptor[] descriptors = wrapper.getDescriptions(wrapper.getContext().getRefManager().getRefProject());
+    assertNotNull(descriptors);
+    List<String> descriptions = new ArrayList<String>();
+    for (CommonProblemDescriptor descriptor : descriptors) {
+      descriptions.add(descriptor.getDescriptionTemplate());
+    }
+    return descriptions;
+  }
+
+  @NotNull
+  private AnalysisScope createScope() {
+    PsiDirectory directory = getPsiManager().findDirectory(myRoot);
+    assertNotNull(directory);
+    return new AnalysisScope(directory);
+  }
+
+  @NotNull
+  private GlobalInspectionToolWrapper inspect(boolean concurrently) {
+    AnalysisScope scope = createScope();
+    InspectionManagerEx manager = (InspectionManagerEx)InspectionManager.getInstance(myProject);
+    final GlobalInspectionToolWrapper toolWrapper = new GlobalInspectionToolWrapper(new FileTool());
+    // the test tool is unknown to the default profile, so the profile lookup is bypassed
+    GlobalInspectionContextImpl context = new GlobalInspectionContextImpl(myProject, manager.getContentManager()) {
+      @Override
+      protected List<ToolsImpl> getUsedTools() {
+        return Collections.singletonList(new ToolsImpl(toolWrapper, HighlightDisplayLevel.WARNING, true));
+      }
+    };
+    context.setCurrentScope(scope);
+    context.setProcessFilesConcurrently(concurrently);
+    InspectionTestUtil.runTool(toolWrapper, scope, context, manager);
+    Tools tools = context.getTools().get(toolWrapper.getShortName());
+    assertNotNull(tools);
+    return (GlobalInspectionToolWrapper)tools.getTool();
+  }
+
+  private static class FileTool extends GlobalSimpleInspectionTool {
+    private static final String START = "inspection started";
+
+    private final AtomicInteger myStartSeen = new AtomicInteger();
+
+    @Override
+    public void inspectionStarted(@NotNull InspectionManager manager,
+                                  @NotNull GlobalInspectionContext globalContext,
+                                  @NotNull ProblemDescriptionsProcessor problemDescriptionsProcessor) {
+      problemDescriptionsProcessor.addProblemElement(globalContext.getRefManager().getRefProject(), manager.createProblemDescriptor(START));
+    }
+
+    @Override
+    public void checkFile(@NotNull PsiFile file,
+                          @NotNull InspectionManager manager,
+                          @NotNull ProblemsHolder problemsHolder,
+                          @NotNull GlobalInspectionContext globalContext,
+                          @NotNull ProblemDescriptionsProcessor problemDescriptionsProcessor) {
+      RefEntity project = globalContext.getRefManager().getRefProject();
+      CommonProblemDescriptor[] descriptions = problemDescriptionsProcessor.getDescriptions(project);
+      if (descriptions != null && START.equals(descriptions[0].getDescriptionTemplate())) {
+        myStartSeen.incrementAndGet();
+      }
+
+      problemsHolder.registerProblem(file, "file " + file.getName());
+      problemDescriptionsProcessor.addProblemElement(project, manager.createProblemDescriptor(file, "project " + file.getName(), false,
+                                                                                              null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING));
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getGroupDisplayName() {
+      return "Test";
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getDisplayName() {
+      return "File tool";
+    }
+
+    @NotNull
+    @Override
+    public String getShortName() {
+      return "GlobalInspectionContextImplTestFileTool";
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.ex;
+
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemHighlightType;
+import com.intellij.openapi.application.AccessToken;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.PlatformLangTestCase;
+import com.intellij.testFramework.PsiTestUtil;
+import com.intellij.testFramework.VfsTestUtil;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class InspectionResultsCacheTest extends PlatformLangTestCase {
+  private LocalInspectionToolWrapper myFileLocalTool;
+  private LocalInspectionToolWrapper myResolvingTool;
+  private File myCacheDir;
+  private VirtualFile myRoot;
+  private VirtualFile myFile;
+  private VirtualFile myOtherFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFileLocalTool = new LocalInspectionToolWrapper(new FileLocalTool());
+    myResolvingTool = new LocalInspectionToolWrapper(new ResolvingTool());
+    myCacheDir = createTempDirectory();
+    myRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(createTempDirectory());
+    assertNotNull(myRoot);
+    PsiTestUtil.addContentRoot(myModule, myRoot);
+    myFile = VfsTestUtil.createFile(myRoot, "a.txt", "some text");
+    myOtherFile = VfsTestUtil.createFile(myRoot, "b.txt", "other text");
+  }
+
+  public void testProblemsAreReusedWhileNothingChanges() throws IOException {
+    putProblems();
+
+    InspectionResultsCache cache = createCache(InspectionProfileImpl.createSimple("profile"));
+    try {
+      List<InspectionResultsCache.CachedProblem> problems = cache.getProblems(myFile);
+      assertNotNull(problems);
+      assertEquals(2, problems.size());
+      PsiFile psiFile = getPsiManager().findFile(myFile);
+      assertNotNull(psiFile);
+      for (InspectionResultsCache.CachedProblem problem : problems) {
+        ProblemDescriptor descriptor = problem.restore(psiFile);
+        assertNotNull(descriptor);
+        assertEquals(psiFile.findElementAt(0), descriptor.getStartElement());
+      }
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testChangeOfOtherFileKeepsFileLocalProblemsOnly() throws IOException {
+    putProblems();
+    setText(myOtherFile, "changed text");
+    assertFileLocalProblemsOnly();
+  }
+
+  public void testAddedFileKeepsFileLocalProblemsOnly() throws IOException {
+    putProblems();
+    VfsTestUtil.createFile(myRoot, "c.txt", "new text");
+    assertFileLocalProblemsOnly();
+  }
+
+  public void testChangeOfFileDropsAllProblems() throws IOException {
+    putProblems();
+    setText(myFile, "changed text");
+
+    InspectionResultsCache cache = createCache(InspectionProfileImpl.createSimple("profile"));
+    try {
+      assertNull(cache.getProblems(myFile));
+      assertNull(cache.getFileLocalProblems(myFile, Collections.singleton(myFileLocalTool.getShortName())));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testChangeOfProfileDropsAllProblems() throws IOException {
+    putProblems();
+
+    InspectionResultsCache cache = createCache(InspectionProfileImpl.createSimple("other profile"));
+    try {
+      assertNull(cache.getProblems(myFile));
+      assertNull(cache.getFileLocalProblems(myFile, Collections.singleton(myFileLocalTool.getShortName())));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  private void putProblems() throws IOException {
+    InspectionResultsCache cache = createCache(InspectionProfileImpl.createSimple("profile"));
+    try {
+      PsiFile psiFile = getPsiManager().findFile(myFile);
+      assertNotNull(psiFile);
+      PsiElement element = psiFile.findElementAt(0);
+      assertNotNull(element);
+      ProblemDescriptor descriptor =
+        new ProblemDescriptorImpl(element, element, "problem", null, ProblemHighlightType.GENERIC_ERROR_OR_WARNING, false, null, false);
+      cache.putProblems(psiFile, Arrays.asList(Pair.create(myFileLocalTool, descriptor), Pair.create(myResolvingTool, descriptor)));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  private void assertFileLocalProblemsOnly() throws IOException {
+    InspectionResultsCache cache = createCache(InspectionProfileImpl.createSimple("profile"));
+    try {
+      assertNull(cache.getProblems(myFile));
+      List<InspectionResultsCache.CachedProblem> problems =
+        cache.getFileLocalProblems(myFile, Collections.singleton(myFileLocalTool.getShortName()));
+      assertNotNull(problems);
+      assertEquals(myFileLocalTool.getShortName(), assertOneElement(problems).getToolShortName());
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  @NotNull
+  private InspectionResultsCache createCache(@NotNull InspectionProfileImpl profile) throws IOException {
+    return new InspectionResultsCache(myProject, myCacheDir, profile);
+  }
+
+  private static void setText(@NotNull VirtualFile file, @NotNull String text) throws IOException {
+    AccessToken token = WriteAction.start();
+    try {
+      VfsUtil.saveText(file, text);
+    }
+    finally {
+      token.finish();
+    }
+  }
+
+  private static class FileLocalTool extends LocalInspectionTool {
+    @Override
+    public boolean isFileLocal() {
+      return true;
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getGroupDisplayName() {
+      return "Test";
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getDisplayName() {
+      return "File-local";
+    }
+
+    @NotNull
+    @Override
+    public String getShortName() {
+      return "FileLocalTool";
+    }
+  }
+
+  private static class ResolvingTool extends LocalInspectionTool {
+    @Nls
+    @NotNull
+    @Override
+    public String getGroupDisplayName() {
+      return "Test";
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getDisplayName() {
+      return "Resolving";
+    }
+
+    @NotNull
+    @Override
+    public String getShortName() {
+      return "ResolvingTool";
+    }
+  }
+}
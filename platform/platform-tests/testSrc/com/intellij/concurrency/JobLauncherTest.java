@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.concurrency;
+
+import com.intellij.testFramework.PlatformLangTestCase;
+import com.intellij.util.Processor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobLauncherTest extends PlatformLangTestCase {
+  private static final Integer TOMB_STONE = new Integer(-1);
+
+  public void testProcessQueueFilledToCapacity() throws Exception {
+    final BlockingQueue<Integer> queue = new ArrayBlockingQueue<Integer>(100);
+    for (int i = 0; i < 99; i++) {
+      queue.put(i);
+    }
+    queue.put(TOMB_STONE);
+
+    final AtomicInteger processed = new AtomicInteger();
+    assertTrue(JobLauncher.getInstance().processQueue(queue, null, false, TOMB_STONE, new Processor<Integer>() {
+      @Override
+      public boolean process(Integer integer) {
+        processed.incrementAndGet();
+        return true;
+      }
+    }));
+    assertEquals(99, processed.get());
+  }
+
+  public void testProcessQueueWithProducer() throws Exception {
+    final BlockingQueue<Integer> queue = new ArrayBlockingQueue<Integer>(10);
+    final Thread producer = new Thread("queue producer") {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 10000; i++) {
+            queue.put(i);
+          }
+          queue.put(TOMB_STONE);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    producer.start();
+
+    final AtomicInteger processed = new AtomicInteger();
+    final AtomicInteger sum = new AtomicInteger();
+    assertTrue(JobLauncher.getInstance().processQueue(queue, null, false, TOMB_STONE, new Processor<Integer>() {
+      @Override
+      public boolean process(Integer integer) {
+        processed.incrementAndGet();
+        sum.addAndGet(integer);
+        return true;
+      }
+    }));
+    producer.join();
+    assertEquals(10000, processed.get());
+    assertEquals(9999 * 10000 / 2, sum.get());
+    assertTrue(queue.isEmpty());
+  }
+
+  public void testProcessQueueStopsWhenProcessorReturnsFalse() throws Exception {
+    final BlockingQueue<Integer> queue = new ArrayBlockingQueue<Integer>(10);
+    for (int i = 0; i < 10; i++) {
+      queue.put(i);
+    }
+
+    // no tomb stone: the processing must stop because of the processor
+    assertFalse(JobLauncher.getInstance().processQueue(queue, null, false, TOMB_STONE, new Processor<Integer>() {
+      @Override
+      public boolean process(Integer integer) {
+        return integer != 5;
+      }
+    }));
+  }
+}
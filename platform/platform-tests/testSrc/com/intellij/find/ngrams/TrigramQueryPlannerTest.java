@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+public class TrigramQueryPlannerTest extends TestCase {
+  public void testLiteralRegexp() {
+    assertTrigrams("captureSnapshot", "captureSnapshot");
+  }
+
+  public void testEscapedMetaChars() {
+    assertTrigrams("foo\\.bar\\(", "foo.bar(");
+    assertTrigrams("\\Qa.b*c\\E", "a.b*c");
+  }
+
+  public void testOptionalAtoms() {
+    assertTrigrams("colou?rful", "colo", "rful");
+    assertTrigrams("abcd*efgh", "abc", "efgh");
+    assertTrigrams("abcd{0,2}efgh", "abc", "efgh");
+  }
+
+  public void testRepeatedAtoms() {
+    assertTrigrams("abcd+efgh", "abcd", "defgh");
+    assertTrigrams("abcd{2,}efgh", "abcd", "defgh");
+  }
+
+  public void testClassesAndGroupsBreakFragments() {
+    assertTrigrams("get[A-Z]\\w+Value", "get", "Value");
+    assertTrigrams("new (Foo|Bar)Builder\\(\\)", "new ", "Builder()");
+    assertTrigrams("abc\\u0041def", "abc", "def");
+  }
+
+  public void testNotNarrowed() {
+    assertTrue(TrigramQueryPlanner.getRegexpTrigrams("foo|barbaz").isEmpty());
+    assertTrue(TrigramQueryPlanner.getRegexpTrigrams("(?x)foo bar").isEmpty());
+    assertTrue(TrigramQueryPlanner.getRegexpTrigrams("a.b.c").isEmpty());
+  }
+
+  private static void assertTrigrams(String regexp, String... fragments) {
+    TIntHashSet expected = new TIntHashSet();
+    for (String fragment : fragments) {
+      expected.addAll(TrigramBuilder.buildTrigram(fragment).toArray());
+    }
+    assertEquals(expected, TrigramQueryPlanner.getRegexpTrigrams(regexp));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImmutableTextTest {
+  @Test
+  public void smallEdits() {
+    ImmutableText text = ImmutableText.valueOf("0123456789");
+    assertEquals("01abc23456789", text.insert(2, "abc").toString());
+    assertEquals("0156789", text.delete(2, 5).toString());
+    assertEquals("01x56789", text.replace(2, 5, "x").toString());
+    assertEquals("345", text.subtext(3, 6).toString());
+    assertEquals("0123456789!", text.concat("!").toString());
+    assertEquals("0123456789", text.toString());
+    assertSame(ImmutableText.EMPTY, text.subtext(4, 4));
+  }
+
+  @Test
+  public void randomEditsKeepTreeBalanced() {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder();
+    ImmutableText text = ImmutableText.EMPTY;
+    for (int i = 0; i < 20000; i++) {
+      int offset = random.nextInt(expected.length() + 1);
+      if (random.nextInt(3) > 0 || expected.length() == 0) {
+        String inserted = randomString(random, random.nextInt(3) == 0 ? random.nextInt(2000) : random.nextInt(10));
+        expected.insert(offset, inserted);
+        text = text.insert(offset, inserted);
+      }
+      else {
+        int end = Math.min(expected.length(), offset + random.nextInt(100));
+        expected.delete(offset, end);
+        text = text.delete(offset, end);
+      }
+      assertEquals(expected.length(), text.length());
+    }
+
+    assertEquals(expected.toString(), text.toString());
+    for (int i = 0; i < expected.length(); i++) {
+      assertEquals(expected.charAt(i), text.charAt(i));
+    }
+    int minDepth = 32 - Integer.numberOfLeadingZeros(expected.length() / ImmutableText.LEAF_SIZE);
+    assertTrue(text.getDepth() + " for length " + expected.length(), text.getDepth() <= 2 * minDepth + 2);
+  }
+
+  @Test
+  public void snapshotsAreNotAffectedByEdits() {
+    ImmutableText text = ImmutableText.valueOf(randomString(new Random(1), 100000));
+    String before = text.toString();
+    ImmutableText edited = text.insert(50000, "inserted").delete(10, 20000);
+    assertEquals(before, text.toString());
+    assertEquals(before.substring(0, 10) + before.substring(20000, 50000) + "inserted" + before.substring(50000), edited.toString());
+
+    char[] chars = new char[12];
+    edited.getChars(10000, 10012, chars, 0);
+    assertEquals(edited.toString().substring(10000, 10012), new String(chars));
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
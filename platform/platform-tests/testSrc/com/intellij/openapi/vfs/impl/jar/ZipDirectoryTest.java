@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipDirectoryTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("zip-directory", ".zip");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testStoredAndDeflatedEntries() throws IOException {
+    byte[] text = "some text, some text, some text".getBytes(CharsetToolkit.UTF8_CHARSET);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(myFile));
+    try {
+      out.putNextEntry(new ZipEntry("dir/"));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("dir/deflated.txt"));
+      out.write(text);
+      out.closeEntry();
+      ZipEntry stored = new ZipEntry("stored.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(text.length);
+      CRC32 crc = new CRC32();
+      crc.update(text);
+      stored.setCrc(crc.getValue());
+      out.putNextEntry(stored);
+      out.write(text);
+      out.closeEntry();
+    }
+    finally {
+      out.close();
+    }
+
+    ZipDirectory directory = ZipDirectory.read(myFile);
+    assertEquals(3, directory.getEntries().length);
+    assertTrue(directory.isUpToDate());
+
+    ZipDirectory.Entry dir = directory.getEntry("dir");
+    assertNotNull(dir);
+    assertTrue(dir.isDirectory());
+    assertSame(dir, directory.getEntry("dir/"));
+
+    ZipDirectory.Entry deflated = directory.getEntry("dir/deflated.txt");
+    assertNotNull(deflated);
+    assertFalse(deflated.isDirectory());
+    assertEquals(text.length, deflated.getSize());
+    assertTrue(Arrays.equals(text, directory.getBytes(deflated)));
+
+    ZipDirectory.Entry storedEntry = directory.getEntry("stored.txt");
+    assertNotNull(storedEntry);
+    assertTrue(Arrays.equals(text, directory.getBytes(storedEntry)));
+
+    assertNull(directory.getEntry("missing.txt"));
+  }
+
+  public void testMoreEntriesThanEndRecordCanCount() throws IOException {
+    int count = 70000;
+    writeEntries(count);
+
+    // written by JDK 7+ with the Zip64 end record and 0xFFFF in the 16-bit count
+    assertEntries(count);
+
+    // written by JDK 6 and other tools with the count wrapped to 16 bits and no Zip64 records
+    byte[] bytes = FileUtil.loadFileBytes(myFile);
+    int end = bytes.length - 22;
+    int zip64Records = 56 + 20;
+    byte[] wrapped = new byte[bytes.length - zip64Records];
+    System.arraycopy(bytes, 0, wrapped, 0, end - zip64Records);
+    System.arraycopy(bytes, end, wrapped, end - zip64Records, 22);
+    wrapped[end - zip64Records + 8] = wrapped[end - zip64Records + 10] = (byte)(count & 0xFF);
+    wrapped[end - zip64Records + 9] = wrapped[end - zip64Records + 11] = (byte)((count >> 8) & 0xFF);
+    FileUtil.writeToFile(myFile, wrapped);
+    assertEntries(count);
+  }
+
+  public void testChangedFileIsNotRead() throws IOException {
+    writeEntries(2);
+    ZipDirectory directory = ZipDirectory.read(myFile);
+    ZipDirectory.Entry entry = directory.getEntry("e1");
+    assertNotNull(entry);
+    assertTrue(Arrays.equals(new byte[]{1}, directory.getBytes(entry)));
+
+    writeEntries(3);
+    assertFalse(directory.isUpToDate());
+    try {
+      directory.getBytes(entry);
+      fail("stale directory must not be used to read the file");
+    }
+    catch (IOException ignored) {
+    }
+
+    directory = ZipDirectory.read(myFile);
+    assertTrue(directory.isUpToDate());
+    assertEquals(3, directory.getEntries().length);
+  }
+
+  public void testNotZipFile() throws IOException {
+    FileUtil.writeToFile(myFile, "not a zip file");
+    try {
+      ZipDirectory.read(myFile);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  private void writeEntries(int count) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(myFile));
+    try {
+      for (int i = 0; i < count; i++) {
+        out.putNextEntry(new ZipEntry("e" + i));
+        out.write(i);
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private void assertEntries(int count) throws IOException {
+    ZipDirectory directory = ZipDirectory.read(myFile);
+    assertEquals(count, directory.getEntries().length);
+    for (int i : new int[]{0, 65534, 65535, 65536, count - 1}) {
+      ZipDirectory.Entry entry = directory.getEntry("e" + i);
+      assertNotNull("e" + i, entry);
+      assertTrue(Arrays.equals(new byte[]{(byte)i}, directory.getBytes(entry)));
+    }
+  }
+}
@@ -614,6 +614,51 @@ public class FileWatcherTest extends PlatformLangTestCase {
   }
 
 
+  public void testBatch() throws Exception {
+    File topDir = createTestDir("top");
+    File flatDir = createTestDir(topDir, "flat");
+    File flatFile = createTestFile(flatDir, "test.txt");
+    File recDir = createTestDir(topDir, "rec");
+    File recFile = createTestFile(recDir, "test.txt");
+    File recSubDir = createTestDir(recDir, "sub");
+    File recSubFile = createTestFile(recSubDir, "test.txt");
+    File otherDir = createTestDir(topDir, "other");
+    File otherFile = createTestFile(otherDir, "test.txt");
+    refresh(topDir);
+
+    LocalFileSystem.WatchRequest flatRequest = watch(flatDir, false);
+    LocalFileSystem.WatchRequest recRequest = watch(recDir);
+    try {
+      assertDirty(false, flatFile, recFile, recSubDir, recSubFile, otherFile, otherDir);
+      myWatcher.processOutput("BATCH", "5",
+                              "CHANGE", flatFile.getPath(),
+                              "CHANGE", recFile.getPath(),
+                              "DIRTY", recSubDir.getPath(),
+                              "CHANGE", otherFile.getPath(),
+                              "DIRTY", otherDir.getPath());
+      ((LocalFileSystemImpl)myFileSystem).markSuspiciousFilesDirty(Collections.<VirtualFile>emptyList());
+
+      assertDirty(true, flatFile, recFile, recSubDir, recSubFile);
+      assertDirty(false, otherFile, otherDir);
+    }
+    finally {
+      unwatch(flatRequest, recRequest);
+      delete(topDir);
+    }
+  }
+
+  public void testRootsUpdateCommand() {
+    List<String> command = FileWatcher.getRootsUpdateCommand(Arrays.asList("/a", "/b"), Arrays.asList("/c"),
+                                                             Arrays.asList("/b", "/d"), Arrays.asList("/c", "/e"));
+    assertEquals(Arrays.asList("UPDATE_ROOTS", "-/a", "+/d", "+|/e", "#"), command);
+
+    command = FileWatcher.getRootsUpdateCommand(Arrays.asList("/a"), Arrays.asList("/c"), Collections.<String>emptyList(), Arrays.asList("/a"));
+    assertEquals(Arrays.asList("UPDATE_ROOTS", "-/a", "-|/c", "+|/a", "#"), command);
+
+    command = FileWatcher.getRootsUpdateCommand(Arrays.asList("/a"), Arrays.asList("/c"), Arrays.asList("/a"), Arrays.asList("/c"));
+    assertEquals(Arrays.asList("UPDATE_ROOTS", "#"), command);
+  }
+
   @NotNull
   private LocalFileSystem.WatchRequest watch(File watchFile) {
     return watch(watchFile, true);
@@ -720,4 +765,12 @@ public class FileWatcherTest extends PlatformLangTestCase {
       assertTrue(eventFile + " not in " + Arrays.toString(paths), pathSet.remove(eventFile.getPath()));
     }
   }
+
+  private void assertDirty(boolean dirty, File... files) {
+    for (File file : files) {
+      VirtualFile vFile = myFileSystem.findFileByIoFile(file);
+      assertNotNull(file.getPath(), vFile);
+      assertEquals(file.getPath(), dirty, ((NewVirtualFile)vFile).isDirty());
+    }
+  }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.testFramework.PlatformLangTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RefreshWorkerTest extends PlatformLangTestCase {
+  private static final int DIRS = 20;  // more than a level needs to be scanned in parallel
+  private static final int FILES = 3;
+
+  private File myDir;
+  private NewVirtualFile myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDirectory();
+    for (int i = 0; i < DIRS; i++) {
+      for (int j = 0; j < FILES; j++) {
+        FileUtil.writeToFile(new File(myDir, "d" + i + "/f" + j), "text");
+      }
+    }
+    myRoot = (NewVirtualFile)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(myDir);
+    assertNotNull(myRoot);
+    for (VirtualFile dir : myRoot.getChildren()) {
+      assertEquals(FILES, dir.getChildren().length);
+    }
+  }
+
+  public void testParallelScanFindsSameEventsInSameOrder() throws IOException {
+    changeFiles();
+
+    List<String> sequential = scan(false);
+    List<String> parallel = scan(true);
+    assertEquals(DIRS / 2 + (DIRS + 2) / 3 + DIRS, sequential.size());
+    assertEquals(sequential, parallel);
+  }
+
+  public void testParallelRefreshAppliesChanges() throws IOException {
+    changeFiles();
+
+    boolean old = RefreshWorker.setParallel(true);
+    try {
+      myRoot.refresh(false, true);
+    }
+    finally {
+      RefreshWorker.setParallel(old);
+    }
+
+    for (int i = 0; i < DIRS; i++) {
+      VirtualFile dir = myRoot.findChild("d" + i);
+      assertNotNull(dir);
+      assertEquals(i % 2 != 0, dir.findChild("f0") != null);
+      assertEquals(i % 3 == 0, dir.findChild("new") != null);
+      VirtualFile changed = dir.findChild("f1");
+      assertNotNull(changed);
+      assertEquals("changed text", new String(changed.contentsToByteArray()));
+    }
+    assertTrue(scan(true).isEmpty());
+  }
+
+  private void changeFiles() throws IOException {
+    for (int i = 0; i < DIRS; i++) {
+      if (i % 2 == 0) assertTrue(FileUtil.delete(new File(myDir, "d" + i + "/f0")));
+      if (i % 3 == 0) FileUtil.writeToFile(new File(myDir, "d" + i + "/new"), "new");
+      FileUtil.writeToFile(new File(myDir, "d" + i + "/f1"), "changed text");
+    }
+  }
+
+  @NotNull
+  private List<String> scan(boolean parallel) {
+    boolean old = RefreshWorker.setParallel(parallel);
+    try {
+      myRoot.markDirtyRecursively();
+      RefreshWorker worker = new RefreshWorker(myRoot, true);
+      worker.scan();
+      List<String> events = new ArrayList<String>();
+      for (VFileEvent event : worker.getEvents()) {
+        events.add(event.toString());
+      }
+      return events;
+    }
+    finally {
+      RefreshWorker.setParallel(old);
+    }
+  }
+}
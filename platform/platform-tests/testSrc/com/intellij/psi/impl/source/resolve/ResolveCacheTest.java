@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolve results with no code-block-aware tree change preprocessor registered, as in the products without Java.
+ */
+public class ResolveCacheTest extends LightPlatformCodeInsightFixtureTestCase {
+  public ResolveCacheTest() {
+    PlatformTestCase.initPlatformLangPrefix();
+  }
+
+  public void testResultsAreDroppedOnChangeOfOtherFile() {
+    assertFalse(((PsiManagerImpl)getPsiManager()).isOutOfCodeBlockChangeTracked());
+
+    PsiFile file = myFixture.configureByText("a.txt", "reference");
+    final PsiFile target = myFixture.addFileToProject("b.txt", "target");
+    final AtomicInteger resolveCount = new AtomicInteger();
+    final ResolveCache.Resolver resolver = new ResolveCache.Resolver() {
+      @Override
+      public PsiElement resolve(@NotNull PsiReference ref, boolean incompleteCode) {
+        resolveCount.incrementAndGet();
+        return target;
+      }
+    };
+    PsiElement element = file.findElementAt(0);
+    assertNotNull(element);
+    PsiReference ref = new PsiReferenceBase<PsiElement>(element, TextRange.from(0, element.getTextLength())) {
+      @Nullable
+      @Override
+      public PsiElement resolve() {
+        return ResolveCache.getInstance(getProject()).resolveWithCaching(this, resolver, false, false);
+      }
+
+      @NotNull
+      @Override
+      public Object[] getVariants() {
+        return EMPTY_ARRAY;
+      }
+    };
+
+    assertSame(target, ref.resolve());
+    assertSame(target, ref.resolve());
+    assertEquals(1, resolveCount.get());
+
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        Document document = PsiDocumentManager.getInstance(getProject()).getDocument(target);
+        assertNotNull(document);
+        document.insertString(0, "changed ");
+        PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+      }
+    }.execute().throwException();
+
+    assertSame(target, ref.resolve());
+    assertEquals(2, resolveCount.get());
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.util.io.AbstractStringEnumerator;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LazyStubListTest extends TestCase {
+  private static final TestElementType TYPE = new TestElementType();
+
+  private StubSerializationHelper myHelper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myHelper = new StubSerializationHelper(new NameStorage());
+    myHelper.assignId(TYPE);
+    TYPE.myDeserializedCount = 0;
+  }
+
+  public void testRoundTrip() throws Exception {
+    TestStub root = createTree();
+    List<String> expected = names(new ObjectStubTree<StubElement>(root, false).getPlainList());
+
+    TestStub copy = roundTrip(root);
+    List<StubElement> stubs = new ObjectStubTree<StubElement>(copy, false).getPlainList();
+    assertSame(LazyStubList.getStubList(copy), stubs);
+    assertEquals(expected, names(stubs));
+    for (int i = 0; i < stubs.size(); i++) {
+      assertEquals(i, ((ObjectStubBase)stubs.get(i)).id);
+    }
+    assertEquals(names(root.getChildrenStubs()), names(copy.getChildrenStubs()));
+    assertParents(copy);
+  }
+
+  public void testStubsAreCreatedOnDemand() throws Exception {
+    TestStub copy = roundTrip(createTree());
+    assertEquals(1, TYPE.myDeserializedCount);
+
+    List<StubElement> stubs = new ObjectStubTree<StubElement>(copy, false).getPlainList();
+    assertEquals(1, TYPE.myDeserializedCount);
+
+    // "a1" is the second child of "a", getting it creates the children of the root and of "a" only
+    StubElement a1 = stubs.get(3);
+    assertEquals("a1", ((TestStub)a1).myName);
+    assertEquals("a", ((TestStub)a1.getParentStub()).myName);
+    assertEquals(6, TYPE.myDeserializedCount);
+
+    copy.getChildrenStubs();
+    assertEquals(6, TYPE.myDeserializedCount);
+
+    assertEquals("b0", ((TestStub)stubs.get(8)).myName);
+    assertEquals(7, TYPE.myDeserializedCount);
+
+    assertEquals(9, names(stubs).size());
+    assertEquals(9, TYPE.myDeserializedCount);
+  }
+
+  public void testEmptyTree() throws Exception {
+    TestStub copy = roundTrip(new TestStub(null, "root"));
+    assertEquals("root", copy.myName);
+    assertTrue(copy.getChildrenStubs().isEmpty());
+    assertEquals(1, new ObjectStubTree<StubElement>(copy, false).getPlainList().size());
+  }
+
+  @NotNull
+  private TestStub roundTrip(@NotNull TestStub root) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    myHelper.serialize(root, out);
+    return (TestStub)myHelper.deserialize(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  // root(a(a0, a1(a10, a11), a2), b(b0))
+  @NotNull
+  private static TestStub createTree() {
+    TestStub root = new TestStub(null, "root");
+    TestStub a = new TestStub(root, "a");
+    new TestStub(a, "a0");
+    TestStub a1 = new TestStub(a, "a1");
+    new TestStub(a1, "a10");
+    new TestStub(a1, "a11");
+    new TestStub(a, "a2");
+    TestStub b = new TestStub(root, "b");
+    new TestStub(b, "b0");
+    return root;
+  }
+
+  private static void assertParents(@NotNull StubElement stub) {
+    for (Object child : stub.getChildrenStubs()) {
+      assertSame(stub, ((StubElement)child).getParentStub());
+      assertParents((StubElement)child);
+    }
+  }
+
+  @NotNull
+  private static List<String> names(@NotNull List<? extends StubElement> stubs) {
+    List<String> names = new ArrayList<String>();
+    for (StubElement stub : stubs) {
+      names.add(((TestStub)stub).myName);
+    }
+    return names;
+  }
+
+  private static class TestStub extends StubBase<PsiElement> {
+    private final String myName;
+
+    private TestStub(@Nullable StubElement parent, @NotNull String name) {
+      super(parent, TYPE);
+      myName = name;
+    }
+  }
+
+  private static class TestElementType extends IStubElementType<TestStub, PsiElement> {
+    private int myDeserializedCount;
+
+    private TestElementType() {
+      super("LAZY_STUB_LIST_TEST", null);
+    }
+
+    @Override
+    public PsiElement createPsi(@NotNull TestStub stub) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TestStub createStub(@NotNull PsiElement psi, StubElement parentStub) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getExternalId() {
+      return "test.lazy.stub";
+    }
+
+    @Override
+    public void serialize(TestStub stub, StubOutputStream dataStream) throws IOException {
+      dataStream.writeName(stub.myName);
+    }
+
+    @Override
+    public TestStub deserialize(StubInputStream dataStream, StubElement parentStub) throws IOException {
+      myDeserializedCount++;
+      return new TestStub(parentStub, dataStream.readName().getString());
+    }
+
+    @Override
+    public void indexStub(TestStub stub, IndexSink sink) {
+    }
+  }
+
+  private static class NameStorage implements AbstractStringEnumerator {
+    private final List<String> myNames = new ArrayList<String>();
+
+    @Override
+    public int enumerate(@Nullable String value) {
+      int index = myNames.indexOf(value);
+      if (index < 0) {
+        myNames.add(value);
+        index = myNames.size() - 1;
+      }
+      return index + 1;
+    }
+
+    @Override
+    public String valueOf(int idx) {
+      return myNames.get(idx - 1);
+    }
+
+    @Override
+    public void markCorrupted() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isDirty() {
+      return false;
+    }
+
+    @Override
+    public void force() {
+    }
+  }
+}
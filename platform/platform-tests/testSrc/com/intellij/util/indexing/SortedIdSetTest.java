@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SortedIdSetTest extends TestCase {
+  public void testAddInAnyOrder() {
+    SortedIdSet set = new SortedIdSet();
+    for (int id : new int[]{5, 1, 9, 5, 3, 1, 7}) {
+      set.add(id);
+    }
+    assertEquals(5, set.size());
+    assertTrue(set.contains(9));
+    assertFalse(set.contains(2));
+    assertOrderedEquals(set, 1, 3, 5, 7, 9);
+    assertEquals(3, set.get(1));
+  }
+
+  public void testRemove() {
+    SortedIdSet set = create(1, 2, 3, 4, 5);
+    assertTrue(set.remove(5));
+    assertTrue(set.remove(2));
+    assertFalse(set.remove(2));
+    assertTrue(set.add(2));
+    assertTrue(set.remove(1));
+    assertOrderedEquals(set, 2, 3, 4);
+    set.remove(2);
+    set.remove(3);
+    set.remove(4);
+    assertTrue(set.isEmpty());
+  }
+
+  public void testSameContentAsHashSet() {
+    Random random = new Random(42);
+    SortedIdSet set = new SortedIdSet();
+    TIntHashSet expected = new TIntHashSet();
+    for (int step = 0; step < 100000; step++) {
+      int id = random.nextInt(5000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(id), set.remove(id));
+      }
+      else {
+        assertEquals(expected.add(id), set.add(id));
+      }
+      if (step % 1000 == 0) {
+        int[] ids = expected.toArray();
+        Arrays.sort(ids);
+        assertOrderedEquals(set, ids);
+      }
+      assertEquals(expected.size(), set.size());
+    }
+  }
+
+  public void testAddAll() {
+    SortedIdSet set = create(1, 4);
+    set.addAll(create(2, 3, 4).intIterator());
+    set.addAll(create(10, 11).intIterator());
+    assertOrderedEquals(set, 1, 2, 3, 4, 10, 11);
+  }
+
+  public void testIntersection() {
+    assertOrderedEquals(SortedIdSet.intersection(create(1, 3, 5, 7), create(3, 4, 7, 8)), 3, 7);
+    assertOrderedEquals(SortedIdSet.intersection(create(1, 2), create(3, 4)));
+    assertOrderedEquals(SortedIdSet.intersection(new SortedIdSet(), create(3, 4)));
+
+    // a small set against a large one is intersected by binary search
+    SortedIdSet large = new SortedIdSet();
+    for (int i = 0; i < 10000; i += 2) {
+      large.add(i);
+    }
+    assertOrderedEquals(SortedIdSet.intersection(create(1, 2, 501, 9998, 20000), large), 2, 9998);
+    assertOrderedEquals(SortedIdSet.intersection(large, create(4, 3)), 4);
+  }
+
+  public void testFilter() {
+    SortedIdSet set = create(1, 2, 3, 4, 5, 6);
+    assertOrderedEquals(set.filter(new ValueContainer.IntPredicate() {
+      @Override
+      boolean contains(int id) {
+        return id % 2 == 0;
+      }
+    }), 2, 4, 6);
+    assertOrderedEquals(set, 1, 2, 3, 4, 5, 6);
+  }
+
+  public void testClone() {
+    SortedIdSet set = create(3, 1, 2);
+    SortedIdSet clone = set.clone();
+    set.remove(1);
+    assertOrderedEquals(clone, 1, 2, 3);
+    assertOrderedEquals(set, 2, 3);
+  }
+
+  public void testFromIterator() {
+    assertOrderedEquals(SortedIdSet.fromIterator(create(1, 5, 9).intIterator()), 1, 5, 9);
+    assertOrderedEquals(SortedIdSet.fromIterator(iterator(9, 1, 5, 1)), 1, 5, 9);
+  }
+
+  public void testDeltasRoundTrip() throws IOException {
+    Random random = new Random(239);
+    SortedIdSet set = new SortedIdSet();
+    for (int i = 0; i < 1000; i++) {
+      set.add(random.nextInt(Integer.MAX_VALUE));
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    SortedIdSet.writeDeltas(out, set.intIterator());
+    out.close();
+
+    final SortedIdSet read = new SortedIdSet();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    SortedIdSet.readDeltas(in, set.size(), new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        read.add(id);
+        return true;
+      }
+    });
+    assertEquals(0, in.available());
+    assertOrderedEquals(read, set.toArray());
+  }
+
+  public void testDenseDeltasTakeBytePerId() throws IOException {
+    SortedIdSet set = new SortedIdSet();
+    for (int i = 1; i <= 1000; i++) {
+      set.add(i * 3);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    SortedIdSet.writeDeltas(out, set.intIterator());
+    out.close();
+    assertEquals(1000, bytes.size());
+  }
+
+  private static SortedIdSet create(int... ids) {
+    SortedIdSet set = new SortedIdSet();
+    for (int id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  private static ValueContainer.IntIterator iterator(final int... ids) {
+    return new ValueContainer.IntIterator() {
+      private int myIndex;
+
+      @Override
+      public boolean hasNext() {
+        return myIndex < ids.length;
+      }
+
+      @Override
+      public int next() {
+        return ids[myIndex++];
+      }
+
+      @Override
+      public int size() {
+        return ids.length;
+      }
+    };
+  }
+
+  private static void assertOrderedEquals(SortedIdSet set, int... expected) {
+    final TIntArrayList actual = new TIntArrayList();
+    set.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        actual.add(id);
+        return true;
+      }
+    });
+    assertEquals(Arrays.toString(expected), Arrays.toString(actual.toNativeArray()));
+    assertEquals(Arrays.toString(expected), Arrays.toString(set.toArray()));
+    assertEquals(expected.length, set.size());
+    ValueContainer.IntIterator iterator = set.intIterator();
+    assertEquals(expected.length, iterator.size());
+    for (int id : expected) {
+      assertTrue(iterator.hasNext());
+      assertEquals(id, iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the compression ratio and the throughput of the codecs on the java sources of the util module.
+ */
+public class CompressionCodecPerformanceTest {
+  private static final List<byte[]> ourFiles = new ArrayList<byte[]>();
+  private static long ourTotalSize;
+
+  @BeforeClass
+  public static void loadSources() {
+    File root = new File(PlatformTestUtil.getCommunityPath(), "platform/util/src");
+    FileUtil.processFilesRecursively(root, new Processor<File>() {
+      @Override
+      public boolean process(File file) {
+        if (file.isFile() && file.getName().endsWith(".java")) {
+          try {
+            byte[] bytes = FileUtil.loadFileBytes(file);
+            ourFiles.add(bytes);
+            ourTotalSize += bytes.length;
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return true;
+      }
+    });
+    assertTrue(root.getPath(), ourTotalSize > 1024 * 1024);
+  }
+
+  @Test
+  public void lz() throws Exception {
+    runBenchmark(LzCompressionCodec.INSTANCE, 0.55, 300);
+  }
+
+  @Test
+  public void deflate() throws Exception {
+    runBenchmark(DeflateCompressionCodec.INSTANCE, 0.35, 600);
+  }
+
+  private static void runBenchmark(@NotNull final CompressionCodec codec, double maxRatio, int expectedMs) throws IOException {
+    double ratio = (double)compressAll(codec) / ourTotalSize;
+    String name = codec.getClass().getSimpleName();
+    assertTrue(name + " ratio " + ratio, ratio < maxRatio);
+
+    final long[] time = new long[2];
+    PlatformTestUtil.startPerformanceTest(String.format("%s, %d Kb, ratio %.3f", name, ourTotalSize / 1024, ratio), expectedMs,
+                                          new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        time[0] = time[1] = 0;
+        byte[] compressed = new byte[0];
+        byte[] decompressed = new byte[0];
+        for (byte[] bytes : ourFiles) {
+          if (compressed.length < codec.maxCompressedLength(bytes.length)) compressed = new byte[codec.maxCompressedLength(bytes.length)];
+          if (decompressed.length < bytes.length) decompressed = new byte[bytes.length];
+
+          long start = System.nanoTime();
+          int length = codec.compress(bytes, 0, bytes.length, compressed, 0);
+          long middle = System.nanoTime();
+          codec.decompress(compressed, 0, length, decompressed, 0, bytes.length);
+          time[0] += middle - start;
+          time[1] += System.nanoTime() - middle;
+          assert Arrays.equals(bytes, Arrays.copyOf(decompressed, bytes.length));
+        }
+      }
+    }).cpuBound().assertTiming();
+
+    System.out.println(String.format("%s: compression %d Mb/s, decompression %d Mb/s", name, megabytesPerSecond(time[0]),
+                                     megabytesPerSecond(time[1])));
+  }
+
+  private static long compressAll(@NotNull CompressionCodec codec) throws IOException {
+    long compressedSize = 0;
+    for (byte[] bytes : ourFiles) {
+      compressedSize += codec.compress(bytes, 0, bytes.length, new byte[codec.maxCompressedLength(bytes.length)], 0);
+    }
+    return compressedSize;
+  }
+
+  private static long megabytesPerSecond(long nanos) {
+    return ourTotalSize * 1000000000L / Math.max(1, nanos) / (1024 * 1024);
+  }
+}
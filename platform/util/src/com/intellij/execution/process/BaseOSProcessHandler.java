@@ -30,6 +30,7 @@ import static com.intellij.util.io.BaseOutputReader.AdaptiveSleepingPolicy;
 
 public class BaseOSProcessHandler extends ProcessHandler {
   private static final Logger LOG = Logger.getInstance("#com.intellij.execution.process.OSProcessHandlerBase");
+  private static final boolean BLOCKING_READ = Boolean.getBoolean("idea.process.output.blocking.read");
 
   @NotNull protected final Process myProcess;
   @Nullable protected final String myCommandLine;
@@ -58,6 +59,20 @@ public class BaseOSProcessHandler extends ProcessHandler {
   }
 
   protected boolean useAdaptiveSleepingPolicyWhenReadingOutput() { return false; }
+
+  /**
+   * Override this method to read the output by threads waiting for it instead of polling the streams, e.g. for the processes
+   * producing a lot of output. The reading of a stream finishes when it's closed, so if the process leaves its children running
+   * with the inherited output streams, it may go on until they exit. The stream is closed when nothing has been read from it
+   * for a second after the process has terminated, but whether that releases the reading thread depends on the platform.
+   */
+  protected boolean useBlockingReadWhenReadingOutput() { return BLOCKING_READ; }
+
+  /**
+   * Override this method to notify the listeners about all the output read at once instead of line by line.
+   */
+  protected boolean splitOutputToLines() { return true; }
+
   protected boolean processHasSeparateErrorStream() { return true; }
 
   @Override
@@ -71,9 +86,11 @@ public class BaseOSProcessHandler extends ProcessHandler {
       public void startNotified(final ProcessEvent event) {
         try {
           BaseOutputReader.SleepingPolicy sleepingPolicy =
+            useBlockingReadWhenReadingOutput() ? BaseOutputReader.SleepingPolicy.BLOCKING :
             useAdaptiveSleepingPolicyWhenReadingOutput() ? new AdaptiveSleepingPolicy() : BaseOutputReader.SleepingPolicy.SIMPLE;
-          final BaseOutputReader stdoutReader = new SimpleOutputReader(createProcessOutReader(), ProcessOutputTypes.STDOUT, sleepingPolicy);
-          final BaseOutputReader stderrReader = processHasSeparateErrorStream() ? new SimpleOutputReader(createProcessErrReader(), ProcessOutputTypes.STDERR, sleepingPolicy) : null;
+          final boolean splitToLines = splitOutputToLines();
+          final BaseOutputReader stdoutReader = new SimpleOutputReader(createProcessOutReader(), myProcess.getInputStream(), ProcessOutputTypes.STDOUT, sleepingPolicy, splitToLines);
+          final BaseOutputReader stderrReader = processHasSeparateErrorStream() ? new SimpleOutputReader(createProcessErrReader(), myProcess.getErrorStream(), ProcessOutputTypes.STDERR, sleepingPolicy, splitToLines) : null;
 
           myWaitFor.setTerminationCallback(new Consumer<Integer>() {
             @Override
@@ -89,6 +106,11 @@ public class BaseOSProcessHandler extends ProcessHandler {
                 }
                 catch (InterruptedException ignore) {
                 }
+                if (LOG.isDebugEnabled()) {
+                  LOG.debug("Output of " + myCommandLine + ": " + stdoutReader.getReadCharCount() + " chars in " +
+                            stdoutReader.getTextChunkCount() + " chunks" + (stderrReader != null ? ", errors: " +
+                            stderrReader.getReadCharCount() + " chars in " + stderrReader.getTextChunkCount() + " chunks" : ""));
+                }
               }
               finally {
                 onOSProcessTerminated(exitCode);
@@ -244,14 +266,28 @@ public class BaseOSProcessHandler extends ProcessHandler {
 
   private class SimpleOutputReader extends BaseOutputReader {
 
+    private final InputStream myStream;
     private final Key myProcessOutputType;
 
-    private SimpleOutputReader(@NotNull Reader reader, @NotNull Key processOutputType, SleepingPolicy sleepingPolicy) {
-      super(reader, sleepingPolicy);
+    private SimpleOutputReader(@NotNull Reader reader,
+                               @NotNull InputStream stream,
+                               @NotNull Key processOutputType,
+                               SleepingPolicy sleepingPolicy,
+                               boolean splitToLines) {
+      super(reader, sleepingPolicy, splitToLines);
+      myStream = stream;
       myProcessOutputType = processOutputType;
       start();
     }
 
+    @Override
+    protected int closeStream() throws IOException {
+      // the reader may wait for the read in progress to finish
+      int unread = myStream.available();
+      myStream.close();
+      return unread;
+    }
+
     @Override
     protected Future<?> executeOnPooledThread(Runnable runnable) {
       return BaseOSProcessHandler.this.executeOnPooledThread(runnable);
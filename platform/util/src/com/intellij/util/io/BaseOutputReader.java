@@ -24,12 +24,15 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author traff
  */
 public abstract class BaseOutputReader {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.BaseOutputReader");
+  private static final int BLOCKING_READ_STOP_TIMEOUT = 1000;
 
   protected final Reader myReader;
   protected volatile boolean isStopped = false;
@@ -37,6 +40,12 @@ public abstract class BaseOutputReader {
   private final char[] myBuffer = new char[8192];
   private final StringBuilder myTextBuffer = new StringBuilder();
   private boolean skipLF = false;
+  private final boolean mySplitToLines;
+
+  // updated by the reading thread only
+  private volatile long myReadCharCount;
+  private volatile long myTextChunkCount;
+  private volatile boolean myWaitingForData;
 
   private Future<?> myFinishedFuture = null;
   protected final @NotNull SleepingPolicy mySleepingPolicy;
@@ -46,8 +55,17 @@ public abstract class BaseOutputReader {
   }
 
   public BaseOutputReader(@NotNull Reader reader, SleepingPolicy sleepingPolicy) {
+    this(reader, sleepingPolicy, true);
+  }
+
+  /**
+   * @param splitToLines if false, the text read at once is passed to {@link #onTextAvailable(String)} as a whole
+   *                     instead of line by line
+   */
+  public BaseOutputReader(@NotNull Reader reader, SleepingPolicy sleepingPolicy, boolean splitToLines) {
     myReader = reader;
     mySleepingPolicy = sleepingPolicy != null ? sleepingPolicy: SleepingPolicy.SIMPLE;
+    mySplitToLines = splitToLines;
   }
 
   protected void start() {
@@ -73,6 +91,18 @@ public abstract class BaseOutputReader {
       }
     };
 
+    /**
+     * The reader doesn't poll the stream but waits in {@link Reader#read(char[])} until the data are available
+     * or the stream is closed; {@link #stop()} doesn't interrupt the waiting, the stream is closed by {@link #waitFor()}
+     * if the reader is still waiting for data and has read nothing during the last timeout.
+     */
+    SleepingPolicy BLOCKING = new SleepingPolicy() {
+      @Override
+      public int getTimeToSleep(boolean wasActive) {
+        return 0;
+      }
+    };
+
     int getTimeToSleep(boolean wasActive);
   }
 
@@ -106,6 +136,12 @@ public abstract class BaseOutputReader {
 
   protected void doRun() {
     try {
+      if (mySleepingPolicy == SleepingPolicy.BLOCKING) {
+        while (readAvailableBlocking()) {
+        }
+        return;
+      }
+
       while (true) {
         boolean read = readAvailable();
 
@@ -123,6 +159,8 @@ public abstract class BaseOutputReader {
       LOG.error(e);
     }
     finally {
+      // the text read before the stream was closed shouldn't be lost
+      flushText();
       try {
         myReader.close();
       }
@@ -139,41 +177,95 @@ public abstract class BaseOutputReader {
    */
   protected final boolean readAvailable() throws IOException {
     char[] buffer = myBuffer;
-    StringBuilder token = myTextBuffer;
-    token.setLength(0);
+    myTextBuffer.setLength(0);
 
     boolean read = false;
     while (myReader.ready()) {
       int n = myReader.read(buffer);
       if (n <= 0) break;
       read = true;
+      processChars(buffer, n);
+    }
 
-      for (int i = 0; i < n; i++) {
-        char c = buffer[i];
-        if (skipLF && c != '\n') {
-          token.append('\r');
-        }
+    flushText();
+    return read;
+  }
 
-        if (c == '\r') {
-          skipLF = true;
-        }
-        else {
-          skipLF = false;
-          token.append(c);
-        }
+  /**
+   * Waits until some data are available, then reads as much data as possible without blocking.
+   * @return false if the end of the stream has been reached
+   * @exception  IOException  If an I/O error occurs
+   */
+  protected final boolean readAvailableBlocking() throws IOException {
+    char[] buffer = myBuffer;
+    myTextBuffer.setLength(0);
 
-        if (c == '\n') {
-          onTextAvailable(token.toString());
-          token.setLength(0);
-        }
+    int n;
+    myWaitingForData = true;
+    try {
+      n = myReader.read(buffer);
+    }
+    finally {
+      myWaitingForData = false;
+    }
+    if (n < 0) return false;
+    processChars(buffer, n);
+
+    while (myReader.ready()) {
+      n = myReader.read(buffer);
+      if (n <= 0) break;
+      processChars(buffer, n);
+    }
+
+    flushText();
+    return true;
+  }
+
+  private void processChars(char[] buffer, int n) {
+    StringBuilder token = myTextBuffer;
+    myReadCharCount += n;
+
+    for (int i = 0; i < n; i++) {
+      char c = buffer[i];
+      if (skipLF && c != '\n') {
+        token.append('\r');
+      }
+
+      if (c == '\r') {
+        skipLF = true;
+      }
+      else {
+        skipLF = false;
+        token.append(c);
+      }
+
+      if (c == '\n' && mySplitToLines) {
+        flushText();
       }
     }
+  }
 
+  private void flushText() {
+    StringBuilder token = myTextBuffer;
     if (token.length() != 0) {
+      myTextChunkCount++;
       onTextAvailable(token.toString());
       token.setLength(0);
     }
-    return read;
+  }
+
+  /**
+   * @return the number of characters read from the stream so far
+   */
+  public long getReadCharCount() {
+    return myReadCharCount;
+  }
+
+  /**
+   * @return the number of times {@link #onTextAvailable(String)} has been called so far
+   */
+  public long getTextChunkCount() {
+    return myTextChunkCount;
   }
 
   protected abstract void onTextAvailable(@NotNull String text);
@@ -182,12 +274,69 @@ public abstract class BaseOutputReader {
     isStopped = true;
   }
 
+  /**
+   * Closes the stream when the reader in the blocking mode is still waiting for data and has read nothing during the last
+   * {@link #BLOCKING_READ_STOP_TIMEOUT} ms after it was stopped, e.g. because the stream is kept open by a child of the process.
+   * Called on a pooled thread since closing a reader may wait for the read in progress; override it to close the underlying stream instead.
+   * @return the number of bytes or characters left unread in the stream, or -1 if unknown
+   */
+  protected int closeStream() throws IOException {
+    myReader.close();
+    return -1;
+  }
+
   public void waitFor() throws InterruptedException {
     try {
-      myFinishedFuture.get();
+      if (mySleepingPolicy == SleepingPolicy.BLOCKING) {
+        waitForBlockingReader();
+      }
+      else {
+        myFinishedFuture.get();
+      }
     }
     catch (ExecutionException e) {
       LOG.error(e);
     }
   }
+
+  private void waitForBlockingReader() throws InterruptedException, ExecutionException {
+    long readCharCount = myReadCharCount;
+    while (true) {
+      try {
+        myFinishedFuture.get(BLOCKING_READ_STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        return;
+      }
+      catch (TimeoutException e) {
+        // the output is still being read or passed to the listeners, closing the stream would truncate it
+        long count = myReadCharCount;
+        if (count == readCharCount && myWaitingForData) break;
+        readCharCount = count;
+      }
+    }
+
+    executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        closeOnTimeout();
+      }
+    });
+    try {
+      myFinishedFuture.get(BLOCKING_READ_STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      LOG.info("The reading thread is still waiting for data " + BLOCKING_READ_STOP_TIMEOUT + " ms after the stream was closed");
+    }
+  }
+
+  private void closeOnTimeout() {
+    long readCharCount = myReadCharCount;
+    try {
+      int unread = closeStream();
+      LOG.info("No output in " + BLOCKING_READ_STOP_TIMEOUT + " ms after the reader was stopped, closed the stream after " +
+               readCharCount + " chars read; " + (unread < 0 ? "the rest of the output is lost" : unread + " unread bytes or chars are lost"));
+    }
+    catch (IOException e) {
+      LOG.info("Can't close stream", e);
+    }
+  }
 }
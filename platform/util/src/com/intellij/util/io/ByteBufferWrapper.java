@@ -26,6 +26,7 @@ public abstract class ByteBufferWrapper {
   protected final long myPosition;
   protected final long myLength;
   protected volatile boolean myDirty;
+  private volatile boolean myAccessed;
 
   protected ByteBufferWrapper(final File file, final long offset, final long length) {
     myFile = file;
@@ -44,6 +45,19 @@ public abstract class ByteBufferWrapper {
     return myDirty;
   }
 
+  final void markAccessed() {
+    if (!myAccessed) myAccessed = true;
+  }
+
+  /**
+   * @return whether the buffer was accessed since the previous call
+   */
+  final boolean clearAccessed() {
+    if (!myAccessed) return false;
+    myAccessed = false;
+    return true;
+  }
+
   public abstract ByteBuffer getBuffer() throws IOException;
 
   public abstract void unmap();
@@ -54,11 +68,11 @@ public abstract class ByteBufferWrapper {
     unmap();
   }
 
-  public static ByteBufferWrapper readWrite(final File file, final int offset, final int length) {
+  public static ByteBufferWrapper readWrite(final File file, final long offset, final int length) {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
 
-  public static ByteBufferWrapper readWriteDirect(final File file, final int offset, final int length) {
+  public static ByteBufferWrapper readWriteDirect(final File file, final long offset, final int length) {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
 
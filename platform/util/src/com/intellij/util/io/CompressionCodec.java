@@ -0,0 +1,49 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import java.io.IOException;
+
+/**
+ * Block compression algorithm. Implementations are stateless or keep their state per thread, so a single instance
+ * may be used by any number of threads at once.
+ * <p/>
+ * The compressed block does not record the length of the original data, callers are expected to store it themselves.
+ *
+ * @see LzCompressionCodec
+ * @see DeflateCompressionCodec
+ */
+public interface CompressionCodec {
+  /**
+   * @return identifier of the codec to be persisted along with the compressed data, unique among the codecs
+   */
+  byte getId();
+
+  /**
+   * @return size of the buffer which is large enough for compressed data of the given length
+   */
+  int maxCompressedLength(int length);
+
+  /**
+   * @return length of the compressed data written to dst
+   */
+  int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException;
+
+  /**
+   * Decompresses the data into dst, which is expected to have room for exactly originalLength bytes starting from dstOffset.
+   */
+  void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int originalLength) throws IOException;
+}
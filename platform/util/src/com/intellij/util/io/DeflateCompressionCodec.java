@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.NonNls;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with a preset dictionary of words frequent in source code. Better ratio but several times slower than
+ * {@link LzCompressionCodec}. Deflater and inflater are kept per thread.
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+  public static final DeflateCompressionCodec INSTANCE = new DeflateCompressionCodec();
+
+  static final byte[] PRESET_BUF;
+
+  static {
+    @NonNls final String preset_buf_string =
+      "                   ;\r\n\r\n\r\n\r\n\n\n\n { {\r\n }\r\n = == != < > >= <= ? : ++ += -- -= [] [i] () ()) ())) (); ()); ())); () {" +
+      "// /* /** */ * opyright (c)package com.import java.utilimport javax.swingimport java.awt" +
+      "import com.intellijimport org.import gnu.*;new super(this(public interface extends implements " +
+      "public abstract class public class private final static final protected synchronized my our " +
+      "instanceof throws return return;if (else {for (while (do {break;continue;throw try {catch (finally {" +
+      "null;true;false;void byte short int long boolean float double Object String Class System.Exception Throwable" +
+      "getsetputcontainsrunashCodeequalslengthsizeremoveaddclearwritereadopenclosename=\"getNamerray" +
+      "istollectionHashMapSetnpututputtreamhildrenarentrootitemctionefaultrojectomponentpplicationerializ" +
+      "Created by IntelliJ IDEA.@author Logger ettingsFontialog JPanel JLabel JCheckBox JComboBox JList JSpinner " +
+      "<html>/>\r\n<head</head><body bgcolor=</body>table<?xml version=\"<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML" +
+      "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
+      "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript";
+    PRESET_BUF = preset_buf_string.getBytes();
+  }
+
+  private static final ThreadLocal<Deflater> ourDeflater = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_COMPRESSION);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> ourInflater = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  private DeflateCompressionCodec() {
+  }
+
+  @Override
+  public byte getId() {
+    return 2;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    // zlib's compressBound() plus the dictionary id
+    return length + (length >> 12) + (length >> 14) + (length >> 25) + 17;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+    Deflater deflater = getDeflater();
+    deflater.setInput(src, srcOffset, srcLength);
+    deflater.finish();
+    int length = deflater.deflate(dst, dstOffset, dst.length - dstOffset);
+    if (!deflater.finished()) throw new IOException("Compressed data doesn't fit into " + (dst.length - dstOffset) + " bytes");
+    return length;
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int originalLength) throws IOException {
+    Inflater inflater = getInflater();
+    inflater.setInput(src, srcOffset, srcLength);
+    try {
+      int offset = dstOffset;
+      int end = dstOffset + originalLength;
+      byte[] trailer = null;
+      while (!inflater.finished()) {
+        int read;
+        if (offset < end) {
+          read = inflater.inflate(dst, offset, end - offset);
+        }
+        else {
+          // all the data is there, only the checksum is left
+          if (trailer == null) trailer = new byte[1];
+          if (inflater.inflate(trailer) != 0) throw new IOException("Corrupted deflated data");
+          read = 0;
+        }
+        if (read == 0 && !inflater.finished()) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(PRESET_BUF);
+          }
+          else if (inflater.needsInput()) {
+            throw new IOException("Corrupted deflated data");
+          }
+        }
+        offset += read;
+      }
+      if (offset != end) throw new IOException("Corrupted deflated data");
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * @return deflater of the current thread, reset and ready to use
+   */
+  static Deflater getDeflater() {
+    Deflater deflater = ourDeflater.get();
+    deflater.reset();
+    deflater.setDictionary(PRESET_BUF);
+    return deflater;
+  }
+
+  /**
+   * @return inflater of the current thread, reset and ready to use
+   */
+  static Inflater getInflater() {
+    Inflater inflater = ourInflater.get();
+    inflater.reset();
+    return inflater;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import java.io.IOException;
+
+/**
+ * Fast LZ77 codec in the spirit of LZ4: no entropy coding, a single hash probe per position, and sequences of
+ * <pre>
+ *   token: literals count (high 4 bits), match length - 4 (low 4 bits)
+ *   [255, ..., rest of literals count if it doesn't fit into the token]
+ *   literals
+ *   match offset: 2 bytes, little endian
+ *   [255, ..., rest of match length if it doesn't fit into the token]
+ * </pre>
+ * The last sequence consists of literals only. Compression ratio is close to that of Snappy, decompression is a plain
+ * copying loop. The only state is a hash table, which is reused per thread.
+ */
+public class LzCompressionCodec implements CompressionCodec {
+  public static final LzCompressionCodec INSTANCE = new LzCompressionCodec();
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int HASH_LOG = 14;
+  private static final int SKIP_TRIGGER = 6;
+
+  // no need to clear the table between calls: every candidate match is verified against the data
+  private static final ThreadLocal<int[]> ourHashTable = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1 << HASH_LOG];
+    }
+  };
+
+  private LzCompressionCodec() {
+  }
+
+  @Override
+  public byte getId() {
+    return 1;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+    final int[] table = ourHashTable.get();
+    final int end = srcOffset + srcLength;
+    final int matchLimit = end - MIN_MATCH;
+    int anchor = srcOffset;
+    int pos = srcOffset;
+    int out = dstOffset;
+
+    while (pos <= matchLimit) {
+      int sequence = readInt(src, pos);
+      int hash = hash(sequence);
+      int ref = table[hash];
+      table[hash] = pos;
+
+      if (ref < srcOffset || ref >= pos || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+        // skip faster through the data which doesn't compress
+        pos += 1 + ((pos - anchor) >>> SKIP_TRIGGER);
+        continue;
+      }
+
+      while (pos > anchor && ref > srcOffset && src[pos - 1] == src[ref - 1]) {
+        pos--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (pos + matchLength < end && src[ref + matchLength] == src[pos + matchLength]) {
+        matchLength++;
+      }
+
+      out = writeSequence(src, anchor, pos - anchor, dst, out, pos - ref, matchLength);
+      pos += matchLength;
+      anchor = pos;
+    }
+
+    return writeLastLiterals(src, anchor, end - anchor, dst, out) - dstOffset;
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int originalLength) throws IOException {
+    final int srcEnd = srcOffset + srcLength;
+    final int dstEnd = dstOffset + originalLength;
+    int in = srcOffset;
+    int out = dstOffset;
+
+    while (true) {
+      if (in >= srcEnd) throw corrupted();
+      int token = src[in++] & 0xFF;
+
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          if (in >= srcEnd) throw corrupted();
+          b = src[in++] & 0xFF;
+          literals += b;
+        }
+        while (b == 255);
+      }
+      if (in + literals > srcEnd || out + literals > dstEnd) throw corrupted();
+      System.arraycopy(src, in, dst, out, literals);
+      in += literals;
+      out += literals;
+
+      if (in == srcEnd) break;
+
+      if (in + 2 > srcEnd) throw corrupted();
+      int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+      in += 2;
+      int matchLength = token & 0x0F;
+      if (matchLength == 15) {
+        int b;
+        do {
+          if (in >= srcEnd) throw corrupted();
+          b = src[in++] & 0xFF;
+          matchLength += b;
+        }
+        while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      int ref = out - offset;
+      if (offset == 0 || ref < dstOffset || out + matchLength > dstEnd) throw corrupted();
+      if (offset >= matchLength) {
+        System.arraycopy(dst, ref, dst, out, matchLength);
+        out += matchLength;
+      }
+      else {
+        // overlapping copy repeats the last offset bytes
+        for (int i = 0; i < matchLength; i++) {
+          dst[out++] = dst[ref++];
+        }
+      }
+    }
+
+    if (out != dstEnd) throw corrupted();
+  }
+
+  private static int writeSequence(byte[] src, int literalsStart, int literals, byte[] dst, int out, int offset, int matchLength) {
+    int extraMatch = matchLength - MIN_MATCH;
+    dst[out++] = (byte)(Math.min(literals, 15) << 4 | Math.min(extraMatch, 15));
+    out = writeLength(literals, dst, out);
+    System.arraycopy(src, literalsStart, dst, out, literals);
+    out += literals;
+    dst[out++] = (byte)offset;
+    dst[out++] = (byte)(offset >>> 8);
+    return writeLength(extraMatch, dst, out);
+  }
+
+  private static int writeLastLiterals(byte[] src, int literalsStart, int literals, byte[] dst, int out) {
+    dst[out++] = (byte)(Math.min(literals, 15) << 4);
+    out = writeLength(literals, dst, out);
+    System.arraycopy(src, literalsStart, dst, out, literals);
+    return out + literals;
+  }
+
+  private static int writeLength(int length, byte[] dst, int out) {
+    if (length >= 15) {
+      length -= 15;
+      while (length >= 255) {
+        dst[out++] = (byte)255;
+        length -= 255;
+      }
+      dst[out++] = (byte)length;
+    }
+    return out;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static IOException corrupted() {
+    return new IOException("Corrupted LZ compressed data");
+  }
+}
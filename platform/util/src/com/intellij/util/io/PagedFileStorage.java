@@ -19,7 +19,6 @@ import com.intellij.openapi.Forceable;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SystemProperties;
-import com.intellij.util.containers.hash.LinkedHashMap;
 import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -68,18 +67,12 @@ public class PagedFileStorage implements Forceable {
   private static final StorageLock ourLock = new StorageLock();
 
   private final StorageLockContext myStorageLockContext;
-  private int myLastPage = UNKNOWN_PAGE;
-  private int myLastPage2 = UNKNOWN_PAGE;
-  private int myLastPage3 = UNKNOWN_PAGE;
-  private ByteBufferWrapper myLastBuffer;
-  private ByteBufferWrapper myLastBuffer2;
-  private ByteBufferWrapper myLastBuffer3;
-  private int myLastChangeCount;
-  private int myLastChangeCount2;
-  private int myLastChangeCount3;
+  // each slot is replaced as a whole, so threads reading without the storage lock never see a page paired with a foreign buffer
+  private volatile LastPage myLastPage = LastPage.UNKNOWN;
+  private volatile LastPage myLastPage2 = LastPage.UNKNOWN;
+  private volatile LastPage myLastPage3 = LastPage.UNKNOWN;
   private int myStorageIndex;
 
-  private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
 
   public void lock() {
@@ -122,10 +115,10 @@ public class PagedFileStorage implements Forceable {
     return myFile;
   }
 
-  public void putInt(int addr, int value) {
+  public void putInt(long addr, int value) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putInt(page_offset, value);
     } else {
       Bits.putInt(myTypedIOBuffer, 0, value);
@@ -133,10 +126,10 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public int getInt(int addr) {
+  public int getInt(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page, false).getInt(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 4);
@@ -144,10 +137,10 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public final void putShort(int addr, short value) {
+  public final void putShort(long addr, short value) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putShort(page_offset, value);
     } else {
       Bits.putShort(myTypedIOBuffer, 0, value);
@@ -155,18 +148,18 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  int getOffsetInPage(int addr) {
-    return addr % myPageSize;
+  int getOffsetInPage(long addr) {
+    return (int)(addr % myPageSize);
   }
 
-  ByteBuffer getByteBuffer(int address, boolean modify) {
-    return getBuffer(address / myPageSize, modify);
+  ByteBuffer getByteBuffer(long address, boolean modify) {
+    return getBuffer((int)(address / myPageSize), modify);
   }
 
-  public final short getShort(int addr) {
+  public final short getShort(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page, false).getShort(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 2);
@@ -174,10 +167,10 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public void putLong(int addr, long value) {
+  public void putLong(long addr, long value) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putLong(page_offset, value);
     } else {
       Bits.putLong(myTypedIOBuffer, 0, value);
@@ -186,18 +179,18 @@ public class PagedFileStorage implements Forceable {
   }
 
   @SuppressWarnings({"UnusedDeclaration"})
-  public void putByte(final int addr, final byte b) {
+  public void putByte(final long addr, final byte b) {
     put(addr, b);
   }
 
-  public byte getByte(int addr) {
+  public byte getByte(long addr) {
     return get(addr);
   }
 
-  public long getLong(int addr) {
+  public long getLong(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page, false).getLong(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 8);
@@ -205,28 +198,28 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public byte get(int index) {
-    int page = index / myPageSize;
-    int offset = index % myPageSize;
+  public byte get(long index) {
+    int page = (int)(index / myPageSize);
+    int offset = (int)(index % myPageSize);
 
     return getBuffer(page, false).get(offset);
   }
 
-  public void put(int index, byte value) {
-    int page = index / myPageSize;
-    int offset = index % myPageSize;
+  public void put(long index, byte value) {
+    int page = (int)(index / myPageSize);
+    int offset = (int)(index % myPageSize);
 
     getBuffer(page).put(offset, value);
   }
 
-  public void get(int index, byte[] dst, int offset, int length) {
-    int i = index;
+  public void get(long index, byte[] dst, int offset, int length) {
+    long i = index;
     int o = offset;
     int l = length;
 
     while (l > 0) {
-      int page = i / myPageSize;
-      int page_offset = i % myPageSize;
+      int page = (int)(i / myPageSize);
+      int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
       final ByteBuffer buffer = getBuffer(page, false);
@@ -248,14 +241,14 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public void put(int index, byte[] src, int offset, int length) {
-    int i = index;
+  public void put(long index, byte[] src, int offset, int length) {
+    long i = index;
     int o = offset;
     int l = length;
 
     while (l > 0) {
-      int page = i / myPageSize;
-      int page_offset = i % myPageSize;
+      int page = (int)(i / myPageSize);
+      int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
       final ByteBuffer buffer = getBuffer(page);
@@ -287,20 +280,17 @@ public class PagedFileStorage implements Forceable {
   private void unmapAll() {
     myStorageLockContext.myStorageLock.unmapBuffersForOwner(myStorageIndex, myStorageLockContext);
 
-    myLastPage = UNKNOWN_PAGE;
-    myLastPage2 = UNKNOWN_PAGE;
-    myLastPage3 = UNKNOWN_PAGE;
-    myLastBuffer = null;
-    myLastBuffer2 = null;
-    myLastBuffer3 = null;
+    myLastPage = LastPage.UNKNOWN;
+    myLastPage2 = LastPage.UNKNOWN;
+    myLastPage3 = LastPage.UNKNOWN;
   }
 
-  public void resize(int newSize) throws IOException {
-    int oldSize = (int)myFile.length();
+  public void resize(long newSize) throws IOException {
+    long oldSize = myFile.length();
     if (oldSize == newSize) return;
 
     final long started = IOStatistics.DEBUG ? System.currentTimeMillis():0;
-    myStorageLockContext.myStorageLock.invalidateBuffer((int)(myStorageIndex | (mySize / myPageSize)));
+    myStorageLockContext.myStorageLock.invalidateBuffer(StorageLock.segmentKey(myStorageIndex, (int)(mySize / myPageSize)));
     //unmapAll(); // we do not need it since all page alighned buffers can be reused
     final long unmapAllFinished = IOStatistics.DEBUG ? System.currentTimeMillis():0;
 
@@ -308,7 +298,7 @@ public class PagedFileStorage implements Forceable {
 
     // it is not guaranteed that new partition will consist of null
     // after resize, so we should fill it manually
-    int delta = newSize - oldSize;
+    long delta = newSize - oldSize;
     if (delta > 0) fillWithZeros(oldSize, delta);
 
     if (IOStatistics.DEBUG) {
@@ -319,7 +309,7 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  private void resizeFile(int newSize) throws IOException {
+  private void resizeFile(long newSize) throws IOException {
     RandomAccessFile raf = new RandomAccessFile(myFile, RW);
     try {
       raf.setLength(newSize);
@@ -331,12 +321,12 @@ public class PagedFileStorage implements Forceable {
   }
 
   private final static int MAX_FILLER_SIZE = 8192;
-  private void fillWithZeros(int from, int length) {
+  private void fillWithZeros(long from, long length) {
     byte[] buff = new byte[MAX_FILLER_SIZE];
     Arrays.fill(buff, (byte)0);
 
     while (length > 0) {
-      final int filled = Math.min(length, MAX_FILLER_SIZE);
+      final int filled = (int)Math.min(length, MAX_FILLER_SIZE);
       put(from, buff, 0, filled);
       length -= filled;
       from += filled;
@@ -355,52 +345,35 @@ public class PagedFileStorage implements Forceable {
   }
 
   private ByteBuffer getBuffer(int page, boolean modify) {
-    if (myLastPage == page) {
-      ByteBuffer buf = myLastBuffer.getCachedBuffer();
-      if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-        if (modify) markDirty(myLastBuffer);
-        return buf;
-      }
-    } else if (myLastPage2 == page) {
-      ByteBuffer buf = myLastBuffer2.getCachedBuffer();
-      if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-        if (modify) markDirty(myLastBuffer2);
-        return buf;
-      }
-    } else if (myLastPage3 == page) {
-      ByteBuffer buf = myLastBuffer3.getCachedBuffer();
-      if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-        if (modify) markDirty(myLastBuffer3);
+    LastPage lastPage = myLastPage;
+    if (lastPage.myPage != page) {
+      lastPage = myLastPage2;
+      if (lastPage.myPage != page) lastPage = myLastPage3;
+    }
+    if (lastPage.myPage == page) {
+      ByteBuffer buf = lastPage.myBuffer.getCachedBuffer();
+      if (buf != null && lastPage.myChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+        if (modify) markDirty(lastPage.myBuffer);
         return buf;
       }
     }
 
     try {
-      assert page >= 0 && page <= MAX_PAGES_COUNT:page;
+      assert page >= 0:page;
 
       if (myStorageIndex == -1) {
         myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
       }
-      ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | page);
+      ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(StorageLock.segmentKey(myStorageIndex, page));
       if (modify) markDirty(byteBufferWrapper);
       ByteBuffer buf = byteBufferWrapper.getBuffer();
 
-      if (myLastPage != page) {
+      LastPage newLastPage = new LastPage(page, byteBufferWrapper, myStorageLockContext.myStorageLock.myMappingChangeCount);
+      if (myLastPage.myPage != page) {
         myLastPage3 = myLastPage2;
-        myLastBuffer3 = myLastBuffer2;
-        myLastChangeCount3 = myLastChangeCount2;
-
         myLastPage2 = myLastPage;
-        myLastBuffer2 = myLastBuffer;
-        myLastChangeCount2 = myLastChangeCount;
-
-        myLastBuffer = byteBufferWrapper;
-        myLastPage = page;
-      } else {
-        myLastBuffer = byteBufferWrapper;
       }
-
-      myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
+      myLastPage = newLastPage;
 
       return buf;
     }
@@ -433,15 +406,30 @@ public class PagedFileStorage implements Forceable {
     return isDirty;
   }
 
+  private static class LastPage {
+    private static final LastPage UNKNOWN = new LastPage(UNKNOWN_PAGE, null, 0);
+
+    private final int myPage;
+    private final ByteBufferWrapper myBuffer;
+    private final int myChangeCount;
+
+    private LastPage(int page, ByteBufferWrapper buffer, int changeCount) {
+      myPage = page;
+      myBuffer = buffer;
+      myChangeCount = changeCount;
+    }
+  }
+
   public static class StorageLock {
-    private static final int FILE_INDEX_MASK = 0xFFFF0000;
-    private static final int FILE_INDEX_SHIFT = 16;
+    private static final int FILE_INDEX_SHIFT = 32;
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentHashMap<Integer, PagedFileStorage> myIndex2Storage = new ConcurrentHashMap<Integer, PagedFileStorage>();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // lookups are lock free, all modifications of mySegments / myClock / mySize / myMappingChangeCount happen under mySegmentsAllocationLock
+    private final ConcurrentHashMap<Long, ByteBufferWrapper> mySegments = new ConcurrentHashMap<Long, ByteBufferWrapper>();
+    // keys of mySegments in clock (second chance) eviction order
+    private final ArrayList<Long> myClock = new ArrayList<Long>();
+    private int myClockHand;
 
     private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
@@ -457,25 +445,6 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
       mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
-
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
     }
 
     public void lock() {
@@ -486,43 +455,44 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext.myLock.unlock();
     }
 
+    private static long segmentKey(int storageIndex, int page) {
+      return ((long)storageIndex << FILE_INDEX_SHIFT) | (page & 0xFFFFFFFFL);
+    }
+
+    private static int storageIndex(long key) {
+      return (int)(key >>> FILE_INDEX_SHIFT);
+    }
+
+    private static int page(long key) {
+      return (int)key;
+    }
+
     private int registerPagedFileStorage(PagedFileStorage storage) {
       int registered = myIndex2Storage.size();
       assert registered <= MAX_LIVE_STORAGES_COUNT;
-      int value = registered << FILE_INDEX_SHIFT;
-      while(myIndex2Storage.putIfAbsent(value, storage) != null) {
+      while(myIndex2Storage.putIfAbsent(registered, storage) != null) {
         ++registered;
         assert registered <= MAX_LIVE_STORAGES_COUNT;
-        value = registered << FILE_INDEX_SHIFT;
       }
-      return value;
+      return registered;
     }
 
     private PagedFileStorage getRegisteredPagedFileStorageByIndex(int index) {
       return myIndex2Storage.get(index);
     }
 
-    private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+    private ByteBufferWrapper get(long key) {
+      ByteBufferWrapper wrapper = mySegments.get(key);  // fast path
+      if (wrapper != null) {
+        wrapper.markAccessed();
+        return wrapper;
       }
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
-        try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        } finally {
-          mySegmentsAccessLock.unlock();
-        }
+        wrapper = mySegments.get(key);
+        if (wrapper != null) return wrapper;
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
@@ -535,14 +505,10 @@ public class PagedFileStorage implements Forceable {
           }
         }
 
-        mySegmentsAccessLock.lock();
-        try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
+        wrapper.markAccessed(); // give the new segment a chance to survive the first sweep
+        mySegments.put(key, wrapper);
+        myClock.add(key);
+        mySize += wrapper.myLength;
 
         ensureSize(mySizeLimit);
 
@@ -553,6 +519,35 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    private void removeSegment(long key) {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+
+      ByteBufferWrapper wrapper = mySegments.remove(key);
+      if (wrapper != null) {
+        myClock.remove(Long.valueOf(key));
+        if (myClockHand >= myClock.size()) myClockHand = 0;
+        ++myMappingChangeCount;
+        mySegmentsToRemove.offer(wrapper);
+        mySize -= wrapper.myLength;
+      }
+    }
+
+    private void evictSegment() {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+
+      while (true) {
+        if (myClockHand >= myClock.size()) myClockHand = 0;
+        long key = myClock.get(myClockHand);
+        ByteBufferWrapper wrapper = mySegments.get(key);
+        if (wrapper != null && wrapper.clearAccessed()) {
+          ++myClockHand;
+          continue;
+        }
+        removeSegment(key);
+        return;
+      }
+    }
+
     private void disposeRemovedSegments() {
       if (mySegmentsToRemove.isEmpty()) return;
 
@@ -567,31 +562,26 @@ public class PagedFileStorage implements Forceable {
     private void ensureSize(long sizeLimit) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
-        }
-      } finally {
-        mySegmentsAccessLock.unlock();
+      while (mySize > sizeLimit && !myClock.isEmpty()) {
+        // we still have to drop something
+        evictSegment();
       }
 
       disposeRemovedSegments();
     }
 
     @NotNull
-    private ByteBufferWrapper createValue(Integer key) {
-      final int storageIndex = key & FILE_INDEX_MASK;
+    private ByteBufferWrapper createValue(long key) {
+      final int storageIndex = storageIndex(key);
       PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(storageIndex);
       assert owner != null: "No storage for index " + storageIndex;
       checkThreadAccess(owner.myStorageLockContext);
-      int off = (key & MAX_PAGES_COUNT) * owner.myPageSize;
+      long off = (long)page(key) * owner.myPageSize;
       if (off > owner.length()) {
         throw new IndexOutOfBoundsException("off=" + off + " key.owner.length()=" + owner.length());
       }
 
-      int min = Math.min((int)(owner.length() - off), owner.myPageSize);
+      int min = (int)Math.min(owner.length() - off, owner.myPageSize);
       ByteBufferWrapper wrapper = ByteBufferWrapper.readWriteDirect(owner.myFile, off, min);
       Throwable oome = null;
       while (true) {
@@ -644,47 +634,29 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
-    private @Nullable Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
-      try {
-        checkThreadAccess(storageLockContext);
-        Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
-          if ((entry.getKey() & FILE_INDEX_MASK) == index) {
-            if (mineBuffers == null) {
-              mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
-                @Override
-                public int compare(Integer o1, Integer o2) {
-                  return o1 - o2;
-                }
-              });
-            }
-            mineBuffers.put(entry.getKey(), entry.getValue());
+    private @Nullable Map<Long, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
+      checkThreadAccess(storageLockContext);
+      Map<Long, ByteBufferWrapper> mineBuffers = null;
+      for (Map.Entry<Long, ByteBufferWrapper> entry : mySegments.entrySet()) {
+        if (storageIndex(entry.getKey()) == index) {
+          if (mineBuffers == null) {
+            mineBuffers = new TreeMap<Long, ByteBufferWrapper>();
           }
+          mineBuffers.put(entry.getKey(), entry.getValue());
         }
-        return mineBuffers;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
       }
+      return mineBuffers;
     }
 
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
-      final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
+      final Map<Long, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
-        mySegmentsAccessLock.lock();
-        try {
-          for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
-          }
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
-
         mySegmentsAllocationLock.lock();
         try {
+          for (Long key : buffers.keySet()) {
+            removeSegment(key);
+          }
           disposeRemovedSegments();
         } finally {
           mySegmentsAllocationLock.unlock();
@@ -693,7 +665,7 @@ public class PagedFileStorage implements Forceable {
     }
 
     private void flushBuffersForOwner(int index, StorageLockContext storageLockContext) {
-      Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
+      Map<Long, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
         mySegmentsAllocationLock.lock();
@@ -708,15 +680,10 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
-    public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
-      try {
-        mySegments.remove(page);
-      } finally {
-        mySegmentsAccessLock.unlock();
-      }
+    public void invalidateBuffer(long page) {
       mySegmentsAllocationLock.lock();
       try {
+        removeSegment(page);
         disposeRemovedSegments();
       }
       finally {
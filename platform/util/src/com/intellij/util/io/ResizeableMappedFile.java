@@ -31,10 +31,20 @@ public class ResizeableMappedFile implements Forceable {
 
   private long myLogicalSize;
   private final PagedFileStorage myStorage;
+  private final boolean myLongAddressing;
 
   public ResizeableMappedFile(final File file, int initialSize, @Nullable PagedFileStorage.StorageLockContext lockContext, int pageSize,
                               boolean valuesAreBufferAligned) throws IOException {
+    this(file, initialSize, lockContext, pageSize, valuesAreBufferAligned, false);
+  }
+
+  /**
+   * @param longAddressing allows the file to grow past 2Gb, callers must not truncate addresses to int then
+   */
+  public ResizeableMappedFile(final File file, int initialSize, @Nullable PagedFileStorage.StorageLockContext lockContext, int pageSize,
+                              boolean valuesAreBufferAligned, boolean longAddressing) throws IOException {
     myStorage = new PagedFileStorage(file, lockContext, pageSize, valuesAreBufferAligned);
+    myLongAddressing = longAddressing;
     boolean exists = file.exists();
     if (!exists || file.length() == 0) {
       if (!exists) FileUtil.createParentDirs(file);
@@ -69,7 +79,7 @@ public class ResizeableMappedFile implements Forceable {
     return myStorage.length();
   }
 
-  private void resize(final int size) {
+  private void resize(final long size) {
     try {
       myStorage.resize(size);
     }
@@ -79,7 +89,7 @@ public class ResizeableMappedFile implements Forceable {
   }
 
   void ensureSize(final long pos) {
-    if (pos + 16 > Integer.MAX_VALUE) throw new RuntimeException("FATAL ERROR: Can't get over 2^32 address space");
+    if (!myLongAddressing && pos + 16 > Integer.MAX_VALUE) throw new RuntimeException("FATAL ERROR: Can't get over 2^32 address space");
     myLogicalSize = Math.max(pos, myLogicalSize);
     while (pos >= realSize()) {
       expand();
@@ -87,8 +97,8 @@ public class ResizeableMappedFile implements Forceable {
   }
 
   private void expand() {
-    final long newSize = Math.min(Integer.MAX_VALUE, ((realSize() + 1) * 13) >> 3);
-    resize((int)newSize);
+    final long newSize = ((realSize() + 1) * 13) >> 3;
+    resize(myLongAddressing ? newSize : Math.min(Integer.MAX_VALUE, newSize));
   }
 
   private File getLengthFile() {
@@ -154,47 +164,47 @@ public class ResizeableMappedFile implements Forceable {
     }
   }
 
-  public int getInt(int index) {
+  public int getInt(long index) {
     return myStorage.getInt(index);
   }
 
-  public void putInt(int index, int value) {
+  public void putInt(long index, int value) {
     ensureSize(index + 4);
     myStorage.putInt(index, value);
   }
 
-  public short getShort(int index) {
+  public short getShort(long index) {
     return myStorage.getShort(index);
   }
 
-  public void putShort(int index, short value) {
+  public void putShort(long index, short value) {
     ensureSize(index + 2);
     myStorage.putShort(index, value);
   }
 
-  public long getLong(int index) {
+  public long getLong(long index) {
     return myStorage.getLong(index);
   }
 
-  public void putLong(int index, long value) {
+  public void putLong(long index, long value) {
     ensureSize(index + 8);
     myStorage.putLong(index, value);
   }
 
-  public byte get(int index) {
+  public byte get(long index) {
     return myStorage.get(index);
   }
 
-  public void put(int index, byte value) {
+  public void put(long index, byte value) {
     ensureSize(index + 1);
     myStorage.put(index, value);
   }
 
-  public void get(int index, byte[] dst, int offset, int length) {
+  public void get(long index, byte[] dst, int offset, int length) {
     myStorage.get(index, dst, offset, length);
   }
 
-  public void put(int index, byte[] src, int offset, int length) {
+  public void put(long index, byte[] src, int offset, int length) {
     ensureSize(index + length);
     myStorage.put(index, src, offset, length);
   }
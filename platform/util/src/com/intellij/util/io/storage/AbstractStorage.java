@@ -30,6 +30,7 @@ import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.RecordDataOutput;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.NonNls;
 
 import java.io.DataInputStream;
@@ -228,7 +229,14 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   public AppenderStream appendStream(int record) {
-    return new AppenderStream(record);
+    return appendStream(record, myCapacityAllocationPolicy);
+  }
+
+  /**
+   * @param capacityAllocationPolicy policy to calculate the capacity of the record with if it has to be moved to fit the appended bytes
+   */
+  public AppenderStream appendStream(int record, @NotNull CapacityAllocationPolicy capacityAllocationPolicy) {
+    return new AppenderStream(record, capacityAllocationPolicy);
   }
 
   public DataInputStream readStream(int record) throws IOException {
@@ -251,6 +259,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   protected void appendBytes(int record, ByteSequence bytes) throws IOException {
+    appendBytes(record, bytes, myCapacityAllocationPolicy);
+  }
+
+  protected void appendBytes(int record, ByteSequence bytes, @NotNull CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
     final int delta = bytes.getLength();
     if (delta == 0) return;
 
@@ -263,10 +275,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
           final byte[] newbytes = new byte[newSize];
           System.arraycopy(readBytes(record), 0, newbytes, 0, oldSize);
           System.arraycopy(bytes.getBytes(), bytes.getOffset(), newbytes, oldSize, delta);
-          writeBytes(record, new ByteSequence(newbytes), false);
+          writeBytes(record, new ByteSequence(newbytes), capacityAllocationPolicy);
         }
         else {
-          writeBytes(record, bytes, false);
+          writeBytes(record, bytes, capacityAllocationPolicy);
         }
       }
       else {
@@ -278,6 +290,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   public void writeBytes(int record, ByteSequence bytes, boolean fixedSize) throws IOException {
+    writeBytes(record, bytes, fixedSize ? CapacityAllocationPolicy.FIXED : myCapacityAllocationPolicy);
+  }
+
+  private void writeBytes(int record, ByteSequence bytes, @NotNull CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
     synchronized (myLock) {
       final int requiredLength = bytes.getLength();
       final int currentCapacity = myRecordsTable.getCapacity(record);
@@ -294,7 +310,7 @@ public abstract class AbstractStorage implements Disposable, Forceable {
       else {
         myDataTable.reclaimSpace(currentCapacity);
 
-        int newCapacity = fixedSize ? requiredLength:myCapacityAllocationPolicy.calculateCapacity(requiredLength);
+        int newCapacity = capacityAllocationPolicy.calculateCapacity(requiredLength);
         if (newCapacity < requiredLength) newCapacity = requiredLength;
         address = myDataTable.allocateSpace(newCapacity);
         myRecordsTable.setAddress(record, address);
@@ -357,16 +373,18 @@ public abstract class AbstractStorage implements Disposable, Forceable {
 
   public class AppenderStream extends DataOutputStream {
     private final int myRecordId;
+    private final CapacityAllocationPolicy myCapacityAllocationPolicy;
 
-    private AppenderStream(int recordId) {
+    private AppenderStream(int recordId, @NotNull CapacityAllocationPolicy capacityAllocationPolicy) {
       super(new BufferExposingByteArrayOutputStream());
       myRecordId = recordId;
+      myCapacityAllocationPolicy = capacityAllocationPolicy;
     }
 
     public void close() throws IOException {
       super.close();
       final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
-      appendBytes(myRecordId, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()));
+      appendBytes(myRecordId, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myCapacityAllocationPolicy);
     }
   }
 }
@@ -461,6 +461,54 @@ public class JBZipEntry implements Cloneable {
     }
   }
 
+  /**
+   * Writes the data of the entry already compressed by its method, e.g. the data of an entry of another archive
+   * obtained by {@link #getRawData()}. The method, the size and the CRC of the entry must be set before.
+   */
+  public void setRawData(byte[] bytes, int length) throws IOException {
+    JBZipOutputStream stream = myFile.getOutputStream();
+    stream.putNextEntryRawBytes(this, bytes, length);
+  }
+
+  /**
+   * Writes the data read from the stream without loading all of them into memory.
+   */
+  public void setDataFromStream(InputStream stream) throws IOException {
+    JBZipOutputStream output = myFile.getOutputStream();
+    output.putNextEntryContent(this, stream);
+  }
+
+  /**
+   * Same as {@link #setRawData(byte[], int)}, but the data of the specified length are read from the stream,
+   * e.g. obtained by {@link #getRawInputStream()}.
+   */
+  public void setRawDataFromStream(InputStream stream, long length) throws IOException {
+    JBZipOutputStream output = myFile.getOutputStream();
+    output.putNextEntryRawContent(this, stream, length);
+  }
+
+  /**
+   * @return the data of the entry as it's stored in the archive, i.e. without decompressing it
+   */
+  public byte[] getRawData() throws IOException {
+    if (csize == -1) throw new IOException("no data");
+    if (csize > Integer.MAX_VALUE) throw new IOException("entry is too large: " + csize);
+
+    myFile.archive.seek(calcDataOffset());
+    byte[] bytes = new byte[(int)csize];
+    myFile.archive.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return the stream of the data of the entry as it's stored in the archive, i.e. without decompressing it
+   */
+  public InputStream getRawInputStream() throws IOException {
+    if (csize == -1) throw new IOException("no data");
+
+    return new BoundedInputStream(calcDataOffset(), csize);
+  }
+
   private long calcDataOffset() throws IOException {
     long offset = getHeaderOffset();
     myFile.archive.seek(offset + JBZipFile.LFH_OFFSET_FOR_FILENAME_LENGTH);
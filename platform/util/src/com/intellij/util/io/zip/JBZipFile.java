@@ -452,6 +452,7 @@ public class JBZipFile {
   JBZipOutputStream getOutputStream() throws IOException {
     if (myOutputStream == null) {
       myOutputStream = new JBZipOutputStream(this, currentcfdfoffset);
+      myOutputStream.setEncoding(encoding);
     }
     return myOutputStream;
   }
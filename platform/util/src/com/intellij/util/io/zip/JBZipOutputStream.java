@@ -22,7 +22,9 @@ package com.intellij.util.io.zip;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
@@ -48,6 +50,9 @@ class JBZipOutputStream {
 
   private final CRC32 crc = new CRC32();
 
+  // offset of the CRC, the compressed size and the size in a local file header
+  private static final int LFH_CRC_OFFSET = 14;
+
   long written = 0;
 
   /**
@@ -422,4 +427,100 @@ class JBZipOutputStream {
     writeLocalFileHeader(entry);
     writeOut(outputBytes, 0, outputBytesLength);
   }
+
+  /**
+   * Writes the data read from the stream without keeping them in memory, compressing them if the method of the entry
+   * is {@link ZipEntry#DEFLATED}. The size, the compressed size and the CRC are written to the header of the entry afterwards.
+   */
+  public void putNextEntryContent(JBZipEntry entry, InputStream content) throws IOException {
+    if (entry.getMethod() == -1) {
+      entry.setMethod(method);
+    }
+
+    if (entry.getTime() == -1) {
+      entry.setTime(System.currentTimeMillis());
+    }
+
+    entry.setSize(0);
+    entry.setCompressedSize(0);
+    entry.setCrc(0);
+    writeLocalFileHeader(entry);
+    final long dataOffset = written;
+
+    final boolean deflate = entry.getMethod() == ZipEntry.DEFLATED;
+    if (deflate) {
+      def.reset();
+      def.setLevel(level);
+    }
+    crc.reset();
+    long size = 0;
+    final byte[] buffer = new byte[8192];
+    final byte[] output = new byte[8192];
+    int n;
+    while ((n = content.read(buffer)) >= 0) {
+      if (n == 0) continue;
+      crc.update(buffer, 0, n);
+      size += n;
+      if (deflate) {
+        def.setInput(buffer, 0, n);
+        while (!def.needsInput()) {
+          writeOut(output, 0, def.deflate(output));
+        }
+      }
+      else {
+        writeOut(buffer, 0, n);
+      }
+    }
+    if (deflate) {
+      def.finish();
+      while (!def.finished()) {
+        writeOut(output, 0, def.deflate(output));
+      }
+      def.reset();
+    }
+
+    entry.setSize(size);
+    entry.setCompressedSize(written - dataOffset);
+    entry.setCrc(crc.getValue());
+    rewriteSizes(entry);
+  }
+
+  /**
+   * Same as {@link #putNextEntryRawBytes(JBZipEntry, byte[], int)}, but the data of the specified length are read from the stream.
+   */
+  public void putNextEntryRawContent(JBZipEntry entry, InputStream rawContent, long length) throws IOException {
+    if (entry.getTime() == -1) {
+      entry.setTime(System.currentTimeMillis());
+    }
+
+    entry.setCompressedSize(length);
+    writeLocalFileHeader(entry);
+    final byte[] buffer = new byte[8192];
+    long remaining = length;
+    while (remaining > 0) {
+      final int n = rawContent.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if (n < 0) throw new EOFException("Unexpected end of data of " + entry.getName());
+      writeOut(buffer, 0, n);
+      remaining -= n;
+    }
+  }
+
+  private void rewriteSizes(JBZipEntry entry) throws IOException {
+    flushBuffer();
+    raf.seek(entry.getHeaderOffset() + LFH_CRC_OFFSET);
+    raf.write(ZipLong.getBytes(entry.getCrc()));
+    raf.write(ZipLong.getBytes(entry.getCompressedSize()));
+    raf.write(ZipLong.getBytes(entry.getSize()));
+    raf.seek(written);
+  }
+
+  public void putNextEntryRawBytes(JBZipEntry entry, byte[] bytes, int length) throws IOException {
+    if (entry.getTime() == -1) {
+      entry.setTime(System.currentTimeMillis());
+    }
+
+    entry.setCompressedSize(length);
+    writeLocalFileHeader(entry);
+    writeOut(bytes, 0, length);
+  }
 }
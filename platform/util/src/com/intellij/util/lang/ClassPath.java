@@ -59,6 +59,10 @@ public class ClassPath {
 
   private final boolean myAcceptUnescapedUrls;
   private final boolean myPreloadJarContents;
+  @Nullable private final ClasspathIndex myIndex;
+  // guarded by this, like myLoaders
+  private long myCacheBuildTime;
+  private boolean myLoadersReported;
 
   private static synchronized void printOrder(Loader loader, String url, Resource resource) {
     if (!ourOrderedUrls.add(url)) return;
@@ -101,16 +105,46 @@ public class ClassPath {
   }
 
   public ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, boolean preloadJarContents) {
+    this(urls, canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents, null);
+  }
+
+  /**
+   * @param indexDir directory of {@link ClasspathIndex} files, null if the jars should be enumerated on every start
+   */
+  public ClassPath(URL[] urls,
+                   boolean canLockJars,
+                   boolean canUseCache,
+                   boolean acceptUnescapedUrls,
+                   boolean preloadJarContents,
+                   @Nullable File indexDir) {
     myCanLockJars = canLockJars;
     myCanUseCache = canUseCache;
     myAcceptUnescapedUrls = acceptUnescapedUrls;
     myPreloadJarContents = preloadJarContents;
+    myIndex = canUseCache && indexDir != null ? loadIndex(indexDir, urls) : null;
     push(urls);
   }
 
+  @Nullable
+  private static ClasspathIndex loadIndex(File dir, URL[] urls) {
+    long started = UrlClassLoader.doDebug ? System.nanoTime() : 0;
+    try {
+      return ClasspathIndex.load(dir, urls);
+    }
+    catch (Throwable e) {
+      return null;
+    }
+    finally {
+      if (UrlClassLoader.doDebug) {
+        UrlClassLoader.debug("Classpath index of " + urls.length + " elements loaded in " + (System.nanoTime() - started) / 1000000 + " ms");
+      }
+    }
+  }
+
   // Accessed by reflection from PluginClassLoader // TODO: do we need it?
-  void addURL(URL url) {
+  synchronized void addURL(URL url) {
     push(new URL[]{url});
+    myLoadersReported = false;
   }
 
   @Nullable
@@ -161,7 +195,10 @@ public class ClassPath {
       URL url;
       synchronized (myUrls) {
         if (myUrls.empty()) {
-          if (myCanUseCache) myCache.nameSymbolsLoaded();
+          if (myCanUseCache) {
+            myCache.nameSymbolsLoaded();
+            allLoadersCreated();
+          }
           return null;
         }
         url = myUrls.pop();
@@ -183,12 +220,23 @@ public class ClassPath {
       myLoadersMap.put(url, loader);
       if (lastOne && myCanUseCache) {
         myCache.nameSymbolsLoaded();
+        allLoadersCreated();
       }
     }
 
     return myLoaders.get(i);
   }
 
+  private void allLoadersCreated() {
+    if (myLoadersReported) return;
+    myLoadersReported = true;
+    if (myIndex != null) myIndex.save();
+    if (UrlClassLoader.doDebug) {
+      UrlClassLoader.debug("Cache of " + myLoaders.size() + " loaders built in " + myCacheBuildTime / 1000000 + " ms" +
+                           (myIndex != null ? " (with classpath index)" : ""));
+    }
+  }
+
   @Nullable
   private Loader getLoader(final URL url, int index) throws IOException {
     String s;
@@ -218,12 +266,19 @@ public class ClassPath {
     }
 
     if (loader != null && myCanUseCache) {
+      long started = UrlClassLoader.doDebug ? System.nanoTime() : 0;
       try {
-        loader.buildCache(myCache);
+        if (myIndex != null && loader instanceof JarLoader) {
+          ((JarLoader)loader).buildCache(myCache, myIndex);
+        }
+        else {
+          loader.buildCache(myCache);
+        }
       }
       catch (Throwable e) {
         // TODO: log can't create loader
       }
+      if (UrlClassLoader.doDebug) myCacheBuildTime += System.nanoTime() - started;
     }
 
     return loader;
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Names of the entries of the jars of a class path, stored on disk so that the jars don't have to be enumerated
+ * to build {@link ClasspathCache} on every start.
+ * <p/>
+ * There is a file per class path (its name is a hash of the jar URLs), and its header records the length and the timestamp
+ * of every jar: when any of them changes, the whole index is rebuilt. Directories of the class path aren't indexed.
+ */
+class ClasspathIndex {
+  private static final int VERSION = 1;
+
+  private final File myFile;
+  private final List<JarStamp> myStamps;
+  private final Map<String, String[]> myEntries;
+  private boolean myDirty;
+
+  private ClasspathIndex(@NotNull File file, @NotNull List<JarStamp> stamps, @NotNull Map<String, String[]> entries, boolean dirty) {
+    myFile = file;
+    myStamps = stamps;
+    myEntries = entries;
+    myDirty = dirty;
+  }
+
+  /**
+   * @return the index of the class path, or an empty one (to be filled in by the loaders) when it's missing or out of date
+   */
+  @NotNull
+  static ClasspathIndex load(@NotNull File dir, @NotNull URL[] urls) {
+    List<JarStamp> stamps = new ArrayList<JarStamp>(urls.length);
+    StringBuilder key = new StringBuilder();
+    for (URL url : urls) {
+      if (!"file".equals(url.getProtocol())) continue;
+      File file = new File(FileUtil.unquote(url.getFile()));
+      if (!file.isFile()) continue;
+      stamps.add(new JarStamp(url.toString(), file.length(), file.lastModified()));
+      key.append(url).append('\n');
+    }
+    File indexFile = new File(dir, Integer.toHexString(key.toString().hashCode()) + ".index");
+
+    Map<String, String[]> entries = null;
+    if (indexFile.isFile()) {
+      try {
+        entries = read(indexFile, stamps);
+      }
+      catch (IOException ignored) {
+      }
+    }
+    if (entries == null) {
+      return new ClasspathIndex(indexFile, stamps, new HashMap<String, String[]>(), true);
+    }
+    return new ClasspathIndex(indexFile, stamps, entries, false);
+  }
+
+  @Nullable
+  private static Map<String, String[]> read(@NotNull File file, @NotNull List<JarStamp> stamps) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    try {
+      if (in.readInt() != VERSION) return null;
+      if (in.readInt() != stamps.size()) return null;
+      for (JarStamp stamp : stamps) {
+        if (!stamp.myUrl.equals(in.readUTF()) || stamp.myLength != in.readLong() || stamp.myTimestamp != in.readLong()) return null;
+      }
+
+      Map<String, String[]> entries = new HashMap<String, String[]>(stamps.size());
+      for (JarStamp stamp : stamps) {
+        int count = in.readInt();
+        if (count < 0) continue;
+        String[] names = new String[count];
+        String prev = "";
+        for (int i = 0; i < count; i++) {
+          int prefix = in.readUnsignedShort();
+          prev = prev.substring(0, prefix).concat(in.readUTF());
+          names[i] = prev;
+        }
+        entries.put(stamp.myUrl, names);
+      }
+      return entries;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return names of the entries of the jar, or null if the jar hasn't been indexed
+   */
+  @Nullable
+  synchronized String[] getEntries(@NotNull URL url) {
+    return myEntries.get(url.toString());
+  }
+
+  synchronized void putEntries(@NotNull URL url, @NotNull String[] names) {
+    String key = url.toString();
+    for (JarStamp stamp : myStamps) {
+      if (stamp.myUrl.equals(key)) {
+        myEntries.put(key, names);
+        myDirty = true;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes the index if some jars have been enumerated since it was loaded.
+   */
+  synchronized void save() {
+    if (!myDirty) return;
+    myDirty = false;
+    File dir = myFile.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) return;
+    try {
+      File temp = new File(dir, myFile.getName() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+      try {
+        out.writeInt(VERSION);
+        out.writeInt(myStamps.size());
+        for (JarStamp stamp : myStamps) {
+          out.writeUTF(stamp.myUrl);
+          out.writeLong(stamp.myLength);
+          out.writeLong(stamp.myTimestamp);
+        }
+        for (JarStamp stamp : myStamps) {
+          String[] names = myEntries.get(stamp.myUrl);
+          if (names == null) {
+            out.writeInt(-1);
+            continue;
+          }
+          out.writeInt(names.length);
+          // entries of a package usually follow each other, so only the part after the common prefix is written
+          String prev = "";
+          for (String name : names) {
+            int prefix = commonPrefixLength(prev, name);
+            out.writeShort(prefix);
+            out.writeUTF(name.substring(prefix));
+            prev = name;
+          }
+        }
+      }
+      finally {
+        out.close();
+      }
+      if (myFile.exists() && !myFile.delete() || !temp.renameTo(myFile)) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+    catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      myFile.delete();
+    }
+  }
+
+  private static int commonPrefixLength(@NotNull String s1, @NotNull String s2) {
+    int max = Math.min(Math.min(s1.length(), s2.length()), 0xFFFF);
+    int i = 0;
+    while (i < max && s1.charAt(i) == s2.charAt(i)) i++;
+    return i;
+  }
+
+  private static class JarStamp {
+    private final String myUrl;
+    private final long myLength;
+    private final long myTimestamp;
+
+    private JarStamp(@NotNull String url, long length, long timestamp) {
+      myUrl = url;
+      myLength = length;
+      myTimestamp = timestamp;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import sun.misc.Resource;
 import java.io.*;
 import java.lang.ref.SoftReference;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -126,18 +127,46 @@ class JarLoader extends Loader {
 
   @Override
   void buildCache(final ClasspathCache cache) throws IOException {
+    String[] names = readEntryNames();
+    if (names != null) addEntries(cache, names);
+  }
+
+  /**
+   * Same as {@link #buildCache(ClasspathCache)}, but takes the entry names from the index when the jar is there,
+   * and adds them to the index otherwise.
+   */
+  void buildCache(final ClasspathCache cache, @NotNull ClasspathIndex index) throws IOException {
+    String[] names = index.getEntries(myURL);
+    if (names == null) {
+      names = readEntryNames();
+      if (names == null) return;
+      index.putEntries(myURL, names);
+    }
+    addEntries(cache, names);
+  }
+
+  private void addEntries(ClasspathCache cache, String[] names) {
+    for (String name : names) {
+      cache.addResourceEntry(name, this);
+      cache.addNameEntry(name, this);
+    }
+  }
+
+  @Nullable
+  private String[] readEntryNames() throws IOException {
     ZipFile zipFile = null;
     try {
       zipFile = acquireZipFile();
-      if (zipFile == null) return;
+      if (zipFile == null) return null;
+      String[] names = new String[zipFile.size()];
+      int count = 0;
       final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-
       while (entries.hasMoreElements()) {
-        ZipEntry zipEntry = entries.nextElement();
-        String name = zipEntry.getName();
-        cache.addResourceEntry(name, this);
-        cache.addNameEntry(name, this);
+        String name = entries.nextElement().getName();
+        if (count == names.length) names = Arrays.copyOf(names, count * 2 + 1);
+        names[count++] = name;
       }
+      return count == names.length ? names : Arrays.copyOf(names, count);
     }
     finally {
       releaseZipFile(zipFile);
@@ -24,6 +24,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import sun.misc.Resource;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -33,6 +34,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UrlClassLoader extends ClassLoader {
   private final ClassPath myClassPath;
@@ -58,6 +61,20 @@ public class UrlClassLoader extends ClassLoader {
   }
 
   public UrlClassLoader(List<URL> urls, @Nullable ClassLoader parent, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, final boolean preloadJarContents) {
+    this(urls, parent, canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents, null);
+  }
+
+  /**
+   * @param classpathIndexDir where to keep the names of the entries of the jars, so that they aren't enumerated on every start;
+   *                          null for class loaders of processes which shouldn't write there
+   */
+  public UrlClassLoader(List<URL> urls,
+                        @Nullable ClassLoader parent,
+                        boolean canLockJars,
+                        boolean canUseCache,
+                        boolean acceptUnescapedUrls,
+                        final boolean preloadJarContents,
+                        @Nullable File classpathIndexDir) {
     super(parent);
 
     List<URL> list = ContainerUtil.map(urls, new Function<URL, URL>() {
@@ -66,7 +83,8 @@ public class UrlClassLoader extends ClassLoader {
         return internProtocol(url);
       }
     });
-    myClassPath = new ClassPath(list.toArray(new URL[list.size()]), canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents);
+    myClassPath = new ClassPath(list.toArray(new URL[list.size()]), canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents,
+                                classpathIndexDir);
     myURLs = list;
   }
 
@@ -98,16 +116,22 @@ public class UrlClassLoader extends ClassLoader {
 
   @Override
   protected Class findClass(final String name) throws ClassNotFoundException {
-    Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
-    if (res == null) {
-      throw new ClassNotFoundException(name);
-    }
-
+    long started = doDebug ? System.nanoTime() : 0;
     try {
-      return defineClass(name, res);
+      Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
+      if (res == null) {
+        throw new ClassNotFoundException(name);
+      }
+
+      try {
+        return defineClass(name, res);
+      }
+      catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
     }
-    catch (IOException e) {
-      throw new ClassNotFoundException(name, e);
+    finally {
+      if (doDebug) classLoaded(started);
     }
   }
 
@@ -119,16 +143,30 @@ public class UrlClassLoader extends ClassLoader {
 
   @Nullable
   protected Class _findClass(@NotNull String name) {
-    Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
-    if (res == null) {
-      return null;
-    }
-
+    long started = doDebug ? System.nanoTime() : 0;
     try {
-      return defineClass(name, res);
+      Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
+      if (res == null) {
+        return null;
+      }
+
+      try {
+        return defineClass(name, res);
+      }
+      catch (IOException e) {
+        return null;
+      }
     }
-    catch (IOException e) {
-      return null;
+    finally {
+      if (doDebug) classLoaded(started);
+    }
+  }
+
+  private static void classLoaded(long started) {
+    long total = ourClassLoadingTime.addAndGet(System.nanoTime() - started);
+    int count = ourClassLoadingCount.incrementAndGet();
+    if (count % 1000 == 0) {
+      debug(count + " classes looked up and defined in " + total / 1000000 + " ms");
     }
   }
 
@@ -205,6 +243,8 @@ public class UrlClassLoader extends ClassLoader {
   }
   
   static final boolean doDebug = System.getProperty("idea.classloading.debug") != null;
+  private static final AtomicLong ourClassLoadingTime = new AtomicLong();
+  private static final AtomicInteger ourClassLoadingCount = new AtomicInteger();
   private static final Logger LOG = Logger.getInstance("idea.UrlClassLoader");
 
   static void debug(String s) {
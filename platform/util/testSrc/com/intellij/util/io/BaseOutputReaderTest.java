@@ -0,0 +1,227 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.util.TimeoutUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BaseOutputReaderTest extends TestCase {
+  private ExecutorService myExecutor;
+  private Pipe myPipe;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newCachedThreadPool();
+    myPipe = new Pipe();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testBlockingSplitToLines() throws Exception {
+    myPipe.write("first\r\nsecond\nthird");
+    myPipe.finish();
+
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, true);
+    reader.stop();
+    reader.waitFor();
+    assertEquals(Arrays.asList("first\n", "second\n", "third"), reader.myChunks);
+    assertEquals(19, reader.getReadCharCount());
+    assertEquals(3, reader.getTextChunkCount());
+    assertFalse(reader.myClosedOnTimeout);
+  }
+
+  public void testBlockingNotSplitToLines() throws Exception {
+    myPipe.write("first\r\nsecond\nthird");
+    myPipe.finish();
+
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, false);
+    reader.stop();
+    reader.waitFor();
+    assertEquals(Collections.singletonList("first\nsecond\nthird"), reader.myChunks);
+    assertEquals(1, reader.getTextChunkCount());
+  }
+
+  public void testNonBlockingNotSplitToLines() throws Exception {
+    myPipe.write("first\nsecond\n");
+
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.SIMPLE, false);
+    waitForChunks(reader, 1);
+    reader.stop();
+    reader.waitFor();
+    assertEquals(Collections.singletonList("first\nsecond\n"), reader.myChunks);
+  }
+
+  public void testBlockingOutputAfterStopIsNotLost() throws Exception {
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, true);
+    myPipe.write("before stop\n");
+    waitForChunks(reader, 1);
+
+    reader.stop();
+    myPipe.write("after stop\n");
+    myPipe.finish();
+    reader.waitFor();
+    assertEquals(Arrays.asList("before stop\n", "after stop\n"), reader.myChunks);
+    assertFalse(reader.myClosedOnTimeout);
+  }
+
+  public void testBlockingStreamStillWrittenIsNotClosed() throws Exception {
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, true);
+    reader.stop();
+    myExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 8; i++) {
+          myPipe.write(i + "\n");
+          TimeoutUtil.sleep(400);
+        }
+        myPipe.finish();
+      }
+    });
+    reader.waitFor();
+    assertFalse(reader.myClosedOnTimeout);
+    assertEquals(8, reader.myChunks.size());
+  }
+
+  public void testBlockingSlowListenerIsNotClosed() throws Exception {
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, true) {
+      @Override
+      protected void onTextAvailable(@NotNull String text) {
+        TimeoutUtil.sleep(1500);
+        super.onTextAvailable(text);
+      }
+    };
+    myPipe.write("first\nsecond\n");
+    reader.stop();
+    myPipe.finish();
+    reader.waitFor();
+    assertFalse(reader.myClosedOnTimeout);
+    assertEquals(Arrays.asList("first\n", "second\n"), reader.myChunks);
+  }
+
+  public void testBlockingStreamKeptOpenIsClosedOnTimeout() throws Exception {
+    TestReader reader = new TestReader(myPipe, BaseOutputReader.SleepingPolicy.BLOCKING, true);
+    myPipe.write("line\nincomplete line");
+    waitForChunks(reader, 1);
+
+    reader.stop();
+    reader.waitFor();
+    assertTrue(reader.myClosedOnTimeout);
+    assertTrue(reader.myFuture.isDone());
+    assertEquals(Arrays.asList("line\n", "incomplete line"), reader.myChunks);
+  }
+
+  private static void waitForChunks(TestReader reader, int count) {
+    long start = System.currentTimeMillis();
+    while (reader.myChunks.size() < count) {
+      assertTrue("no output in 10 s", System.currentTimeMillis() - start < 10000);
+      TimeoutUtil.sleep(10);
+    }
+  }
+
+  private class TestReader extends BaseOutputReader {
+    private final List<String> myChunks = new CopyOnWriteArrayList<String>();
+    private volatile Future<?> myFuture;
+    private volatile boolean myClosedOnTimeout;
+
+    private TestReader(@NotNull Reader reader, SleepingPolicy sleepingPolicy, boolean splitToLines) {
+      super(reader, sleepingPolicy, splitToLines);
+      start();
+    }
+
+    @Override
+    protected Future<?> executeOnPooledThread(Runnable runnable) {
+      Future<?> future = myExecutor.submit(runnable);
+      if (myFuture == null) myFuture = future;
+      return future;
+    }
+
+    @Override
+    protected int closeStream() throws IOException {
+      myClosedOnTimeout = true;
+      return super.closeStream();
+    }
+
+    @Override
+    protected void onTextAvailable(@NotNull String text) {
+      myChunks.add(text);
+    }
+  }
+
+  /**
+   * Unlike {@link java.io.PipedReader}, releases the reading thread when closed, so the tests don't depend on the platform
+   * (closing a process pipe doesn't necessarily wake the thread blocked in reading it).
+   */
+  private static class Pipe extends Reader {
+    private final StringBuilder myData = new StringBuilder();
+    private boolean myFinished;
+    private boolean myClosed;
+
+    public synchronized void write(@NotNull String text) {
+      myData.append(text);
+      notifyAll();
+    }
+
+    public synchronized void finish() {
+      myFinished = true;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized int read(char[] buffer, int offset, int length) throws IOException {
+      while (myData.length() == 0 && !myFinished && !myClosed) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (myClosed) throw new IOException("Stream closed");
+      if (myData.length() == 0) return -1;
+      int n = Math.min(length, myData.length());
+      myData.getChars(0, n, buffer, offset);
+      myData.delete(0, n);
+      return n;
+    }
+
+    @Override
+    public synchronized boolean ready() {
+      return myData.length() != 0;
+    }
+
+    @Override
+    public synchronized void close() {
+      myClosed = true;
+      notifyAll();
+    }
+  }
+}
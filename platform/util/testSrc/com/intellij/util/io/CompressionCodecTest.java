@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CompressionCodecTest extends TestCase {
+  private static final CompressionCodec[] CODECS = {LzCompressionCodec.INSTANCE, DeflateCompressionCodec.INSTANCE};
+
+  private static final String SOURCE = "package com.intellij.util.io;\n\n" +
+                                       "public class Foo {\n" +
+                                       "  private final int myFoo;\n" +
+                                       "  private final int myBar;\n\n" +
+                                       "  public int getFoo() {\n    return myFoo;\n  }\n\n" +
+                                       "  public int getBar() {\n    return myBar;\n  }\n" +
+                                       "}\n";
+
+  public void testRoundTrip() throws IOException {
+    Random random = new Random(42);
+    byte[] randomBytes = new byte[10000];
+    random.nextBytes(randomBytes);
+    byte[] zeros = new byte[100000];
+
+    for (CompressionCodec codec : CODECS) {
+      assertRoundTrip(codec, new byte[0]);
+      assertRoundTrip(codec, "a".getBytes());
+      assertRoundTrip(codec, "abcd".getBytes());
+      assertRoundTrip(codec, SOURCE.getBytes());
+      assertRoundTrip(codec, randomBytes);
+      assertRoundTrip(codec, zeros);
+    }
+  }
+
+  public void testCompressesSourceText() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20; i++) text.append(SOURCE);
+    byte[] bytes = text.toString().getBytes();
+
+    for (CompressionCodec codec : CODECS) {
+      assertTrue(codec.toString(), assertRoundTrip(codec, bytes) < bytes.length / 4);
+    }
+  }
+
+  public void testCorruptedData() throws IOException {
+    byte[] bytes = SOURCE.getBytes();
+    for (CompressionCodec codec : CODECS) {
+      byte[] compressed = new byte[codec.maxCompressedLength(bytes.length)];
+      int length = codec.compress(bytes, 0, bytes.length, compressed, 0);
+      try {
+        codec.decompress(compressed, 0, length - 1, new byte[bytes.length], 0, bytes.length);
+        fail(codec.toString());
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  public void testSourceCodeCompressor() throws IOException {
+    byte[] bytes = SOURCE.getBytes();
+    assertTrue(Arrays.equals(bytes, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(bytes))));
+  }
+
+  private static int assertRoundTrip(CompressionCodec codec, byte[] bytes) throws IOException {
+    // non zero offsets on both sides
+    byte[] source = new byte[bytes.length + 3];
+    System.arraycopy(bytes, 0, source, 3, bytes.length);
+    byte[] compressed = new byte[codec.maxCompressedLength(bytes.length) + 5];
+    int length = codec.compress(source, 3, bytes.length, compressed, 5);
+    assertTrue(length <= codec.maxCompressedLength(bytes.length));
+
+    byte[] decompressed = new byte[bytes.length + 7];
+    codec.decompress(compressed, 5, length, decompressed, 7, bytes.length);
+    assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(decompressed, 7, decompressed.length)));
+    return length;
+  }
+}
@@ -118,6 +118,25 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testLongAddressing() throws Exception {
+    lock.lock();
+    try {
+      ResizeableMappedFile file = new ResizeableMappedFile(f, 2000000, lock.myDefaultStorageLockContext, -1, false, true);
+
+      long index = Integer.MAX_VALUE + 12345L;
+      file.putLong(index, index);
+      file.putInt(1000, 1000);
+      assertTrue(file.length() > index);
+      assertEquals(index, file.getLong(index));
+      assertEquals(1000, file.getInt(1000));
+      assertEquals(0, file.getInt(index - 4));
+
+      file.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
@@ -23,6 +23,8 @@ import com.intellij.openapi.util.io.FileUtil;
 import junit.framework.TestCase;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -107,6 +109,66 @@ public class UpdateableZipTest extends TestCase {
     assertNull(removedEntry);
     utilZip.close();
   }
+
+  public void testStreamedEntries() throws Exception {
+    byte[] content = new byte[3 * 8192 + 17];
+    new Random(42).nextBytes(content);
+    for (int i = 0; i < content.length; i += 3) content[i] = 'a';
+
+    JBZipFile jbZip = new JBZipFile(zipFile);
+    JBZipEntry deflated = jbZip.getOrCreateEntry("/deflated");
+    deflated.setMethod(ZipEntry.DEFLATED);
+    deflated.setDataFromStream(new ByteArrayInputStream(content));
+    JBZipEntry stored = jbZip.getOrCreateEntry("/stored");
+    stored.setMethod(ZipEntry.STORED);
+    stored.setDataFromStream(new ByteArrayInputStream(content));
+    jbZip.getOrCreateEntry("/third").setData("third".getBytes());
+    jbZip.close();
+
+    assertStreamedEntries(zipFile, content);
+
+    File copyFile = FileUtil.createTempFile("copy", ".zip");
+    try {
+      JBZipFile source = new JBZipFile(zipFile);
+      JBZipFile copy = new JBZipFile(copyFile);
+      try {
+        for (JBZipEntry entry : source.getEntries()) {
+          JBZipEntry copied = copy.getOrCreateEntry(entry.getName());
+          copied.setMethod(entry.getMethod());
+          copied.setSize(entry.getSize());
+          copied.setCrc(entry.getCrc());
+          copied.setTime(entry.getTime());
+          copied.setRawDataFromStream(entry.getRawInputStream(), entry.getCompressedSize());
+        }
+      }
+      finally {
+        copy.close();
+        source.close();
+      }
+      assertStreamedEntries(copyFile, content);
+    }
+    finally {
+      FileUtil.delete(copyFile);
+    }
+  }
+
+  private static void assertStreamedEntries(File file, byte[] content) throws IOException {
+    ZipFile utilZip = new ZipFile(file);
+    try {
+      for (String name : new String[]{"/deflated", "/stored"}) {
+        ZipEntry entry = utilZip.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(content.length, entry.getSize());
+        assertTrue(name, Arrays.equals(content, FileUtil.loadBytes(utilZip.getInputStream(entry))));
+      }
+      assertTrue(utilZip.getEntry("/deflated").getCompressedSize() < content.length);
+      assertEquals("first", FileUtil.loadTextAndClose(new InputStreamReader(utilZip.getInputStream(utilZip.getEntry("/first")))));
+      assertEquals("third", FileUtil.loadTextAndClose(new InputStreamReader(utilZip.getInputStream(utilZip.getEntry("/third")))));
+    }
+    finally {
+      utilZip.close();
+    }
+  }
   
   /*
   public void testAppendToIdeaJar() throws Exception {
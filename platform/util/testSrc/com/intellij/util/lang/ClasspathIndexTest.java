@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathIndexTest extends TestCase {
+  private File myDir;
+  private File myIndexDir;
+  private File myJar1;
+  private File myJar2;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("classpath-index", null);
+    myIndexDir = new File(myDir, "index");
+    myJar1 = createJar("1.jar", "a/", "a/A.class", "a/B.class", "META-INF/MANIFEST.MF");
+    myJar2 = createJar("2.jar", "b/C.class");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testEntriesAreStoredAndReused() throws IOException {
+    URL[] urls = urls();
+    ClasspathIndex index = ClasspathIndex.load(myIndexDir, urls);
+    assertNull(index.getEntries(urls[0]));
+    index.putEntries(urls[0], new String[]{"a/", "a/A.class", "a/B.class", "META-INF/MANIFEST.MF"});
+    index.putEntries(urls[1], new String[]{"b/C.class"});
+    index.save();
+    assertEquals(1, indexFiles().length);
+
+    index = ClasspathIndex.load(myIndexDir, urls);
+    assertEquals(Arrays.asList("a/", "a/A.class", "a/B.class", "META-INF/MANIFEST.MF"), Arrays.asList(index.getEntries(urls[0])));
+    assertEquals(Arrays.asList("b/C.class"), Arrays.asList(index.getEntries(urls[1])));
+  }
+
+  public void testChangedJarInvalidatesIndex() throws IOException {
+    URL[] urls = urls();
+    ClasspathIndex index = ClasspathIndex.load(myIndexDir, urls);
+    index.putEntries(urls[0], new String[]{"a/A.class"});
+    index.save();
+
+    createJar("1.jar", "a/A.class", "a/C.class");
+    assertNull(ClasspathIndex.load(myIndexDir, urls).getEntries(urls[0]));
+  }
+
+  public void testClassPathWritesIndexOnlyWhenGivenDirectory() throws IOException {
+    ClassPath classPath = new ClassPath(urls(), false, true, false, false, null);
+    assertNotNull(classPath.getResource("b/C.class", false));
+    assertFalse(myIndexDir.exists());
+
+    classPath = new ClassPath(urls(), false, true, false, false, myIndexDir);
+    assertNotNull(classPath.getResource("b/C.class", false));
+    assertEquals(1, indexFiles().length);
+
+    // the second class path takes the entries from the index
+    classPath = new ClassPath(urls(), false, true, false, false, myIndexDir);
+    assertNotNull(classPath.getResource("a/B.class", false));
+    assertNotNull(classPath.getResource("b/C.class", false));
+    assertNull(classPath.getResource("a/C.class", false));
+  }
+
+  @NotNull
+  private URL[] urls() throws IOException {
+    return new URL[]{myJar1.toURI().toURL(), myJar2.toURI().toURL()};
+  }
+
+  @NotNull
+  private File[] indexFiles() {
+    File[] files = myIndexDir.listFiles();
+    assertNotNull(files);
+    return files;
+  }
+
+  @NotNull
+  private File createJar(@NotNull String name, @NotNull String... entries) throws IOException {
+    File jar = new File(myDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        if (!entry.endsWith("/")) out.write(entry.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.siyeh.ig;
+
+import com.intellij.codeInspection.InspectionManager;
+import com.intellij.codeInspection.LocalInspectionEP;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemsHolder;
+import com.intellij.codeInspection.ex.InspectionProfileImpl;
+import com.intellij.codeInspection.ex.InspectionResultsCache;
+import com.intellij.codeInspection.ex.LocalInspectionToolWrapper;
+import com.intellij.openapi.application.AccessToken;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiElementVisitor;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.testFramework.IdeaTestCase;
+import com.intellij.testFramework.PsiTestUtil;
+import com.intellij.testFramework.VfsTestUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The inspections registered as file-local report the problems of a file by its syntax only, so their results are reused
+ * by batch runs after changes of other files.
+ */
+public class FileLocalInspectionsTest extends IdeaTestCase {
+  private static final String[] FILE_LOCAL_TOOLS = {
+    "CStyleArrayDeclaration", "ConfusingOctalEscape", "ControlFlowStatementWithoutBraces", "EmptyFinallyBlock", "EmptyStatementBody",
+    "LongLiteralsEndingWithLowercaseL", "MissortedModifiers", "NestedConditionalExpression", "OctalLiteral", "UnnecessaryLabelOnBreakStatement",
+    "UnnecessaryLabelOnContinueStatement", "UnnecessarySemicolon"
+  };
+
+  public void testToolsAreRegisteredAsFileLocal() {
+    for (String shortName : FILE_LOCAL_TOOLS) {
+      assertTrue(shortName, getToolWrapper(shortName).isFileLocal());
+    }
+  }
+
+  public void testProblemsAreReusedAfterChangeOfOtherFile() throws IOException {
+    VirtualFile root = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(createTempDirectory());
+    assertNotNull(root);
+    PsiTestUtil.addSourceContentToRoots(myModule, root);
+    VirtualFile file = VfsTestUtil.createFile(root, "A.java", "class A {\n  int i;;\n}");
+    VirtualFile otherFile = VfsTestUtil.createFile(root, "B.java", "class B {}");
+    PsiFile psiFile = getPsiManager().findFile(file);
+    assertNotNull(psiFile);
+
+    LocalInspectionToolWrapper toolWrapper = getToolWrapper("UnnecessarySemicolon");
+    assertTrue(toolWrapper.isFileLocal());
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems = inspect(psiFile, toolWrapper);
+    PsiElement element = assertOneElement(problems).second.getPsiElement();
+
+    File cacheDir = createTempDirectory();
+    InspectionResultsCache cache = new InspectionResultsCache(myProject, cacheDir, InspectionProfileImpl.createSimple("profile"));
+    try {
+      cache.putProblems(psiFile, problems);
+    }
+    finally {
+      cache.dispose();
+    }
+
+    AccessToken token = WriteAction.start();
+    try {
+      VfsUtil.saveText(otherFile, "class B {\n  int j;\n}");
+    }
+    finally {
+      token.finish();
+    }
+
+    cache = new InspectionResultsCache(myProject, cacheDir, InspectionProfileImpl.createSimple("profile"));
+    try {
+      assertNull(cache.getProblems(file));
+      List<InspectionResultsCache.CachedProblem> cachedProblems =
+        cache.getFileLocalProblems(file, Collections.singleton(toolWrapper.getShortName()));
+      assertNotNull(cachedProblems);
+      ProblemDescriptor descriptor = assertOneElement(cachedProblems).restore(psiFile);
+      assertNotNull(descriptor);
+      assertEquals(element, descriptor.getPsiElement());
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  @NotNull
+  private static LocalInspectionToolWrapper getToolWrapper(@NotNull String shortName) {
+    for (LocalInspectionEP ep : Extensions.getExtensions(LocalInspectionEP.LOCAL_INSPECTION)) {
+      if (shortName.equals(ep.getShortName())) {
+        return new LocalInspectionToolWrapper(ep);
+      }
+    }
+    throw new AssertionError(shortName + " is not registered");
+  }
+
+  @NotNull
+  private List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> inspect(@NotNull PsiFile file,
+                                                                           @NotNull LocalInspectionToolWrapper toolWrapper) {
+    ProblemsHolder holder = new ProblemsHolder(InspectionManager.getInstance(myProject), file, false);
+    final PsiElementVisitor visitor = toolWrapper.getTool().buildVisitor(holder, false);
+    file.accept(new PsiRecursiveElementWalkingVisitor() {
+      @Override
+      public void visitElement(PsiElement element) {
+        element.accept(visitor);
+        super.visitElement(element);
+      }
+    });
+    List<Pair<LocalInspectionToolWrapper, ProblemDescriptor>> problems = new ArrayList<Pair<LocalInspectionToolWrapper, ProblemDescriptor>>();
+    for (ProblemDescriptor descriptor : holder.getResults()) {
+      problems.add(Pair.create(toolWrapper, descriptor));
+    }
+    return problems;
+  }
+}
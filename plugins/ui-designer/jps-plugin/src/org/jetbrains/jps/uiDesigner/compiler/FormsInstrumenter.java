@@ -199,9 +199,7 @@ public class FormsInstrumenter extends FormsBuilder {
       try {
         context.processMessage(new ProgressMessage("Instrumenting forms... [" + chunk.getName() + "]"));
 
-        final BinaryContent originalContent = compiled.getContent();
-        final ClassReader classReader =
-          new ClassReader(originalContent.getBuffer(), originalContent.getOffset(), originalContent.getLength());
+        final ClassReader classReader = compiled.getClassReader();
 
         final int version = BaseInstrumentingBuilder.getClassFileVersion(classReader);
         final InstrumenterClassWriter classWriter = new InstrumenterClassWriter(BaseInstrumentingBuilder.getAsmClassWriterFlags(version), finder);
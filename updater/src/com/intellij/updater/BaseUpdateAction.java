@@ -4,9 +4,15 @@ import ie.wombat.jbdiff.JBDiff;
 import ie.wombat.jbdiff.JBPatch;
 
 import java.io.*;
+import java.util.concurrent.Semaphore;
 import java.util.zip.ZipOutputStream;
 
 public abstract class BaseUpdateAction extends PatchAction {
+  // bsdiff takes about 9 bytes per byte of the older file and 5 per byte of the newer one, so the diffs calculated concurrently
+  // share half of the heap; a diff which needs more runs only by itself
+  private static final int DIFF_MEMORY_KB = (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / 1024);
+  private static final Semaphore ourDiffMemory = new Semaphore(DIFF_MEMORY_KB, true);
+
   public BaseUpdateAction(String path, long checksum) {
     super(path, checksum);
   }
@@ -50,7 +56,7 @@ public abstract class BaseUpdateAction extends PatchAction {
     BufferedInputStream olderFileIn = new BufferedInputStream(new FileInputStream(olderFile));
     BufferedInputStream newerFileIn = new BufferedInputStream(new FileInputStream(newerFile));
     try {
-      writeDiff(olderFileIn, newerFileIn, patchOutput);
+      writeDiff(olderFileIn, olderFile.length(), newerFileIn, newerFile.length(), patchOutput);
     }
     finally {
       olderFileIn.close();
@@ -58,19 +64,26 @@ public abstract class BaseUpdateAction extends PatchAction {
     }
   }
 
-  protected void writeDiff(InputStream olderFileIn, InputStream newerFileIn, ZipOutputStream patchOutput)
+  protected void writeDiff(InputStream olderFileIn, long olderSize, InputStream newerFileIn, long newerSize, ZipOutputStream patchOutput)
     throws IOException {
-    ByteArrayOutputStream diffOutput = new ByteArrayOutputStream();
-    byte[] newerFileBuffer = JBDiff.bsdiff(olderFileIn, newerFileIn, diffOutput);
-    diffOutput.close();
+    int memory = (int)Math.min(DIFF_MEMORY_KB, (9 * olderSize + 5 * newerSize) / 1024 + 1);
+    ourDiffMemory.acquireUninterruptibly(memory);
+    try {
+      ByteArrayOutputStream diffOutput = new ByteArrayOutputStream();
+      byte[] newerFileBuffer = JBDiff.bsdiff(olderFileIn, newerFileIn, diffOutput);
+      diffOutput.close();
 
-    if (diffOutput.size() < newerFileBuffer.length) {
-      patchOutput.write(1);
-      Utils.copyBytesToStream(diffOutput, patchOutput);
+      if (diffOutput.size() < newerFileBuffer.length) {
+        patchOutput.write(1);
+        Utils.copyBytesToStream(diffOutput, patchOutput);
+      }
+      else {
+        patchOutput.write(0);
+        Utils.copyBytesToStream(newerFileBuffer, patchOutput);
+      }
     }
-    else {
-      patchOutput.write(0);
-      Utils.copyBytesToStream(newerFileBuffer, patchOutput);
+    finally {
+      ourDiffMemory.release(memory);
     }
   }
 
@@ -7,16 +7,23 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class Digester {
-  public static Map<String, Long> digestFiles(File dir, List<String> ignoredFiles, UpdaterUI ui)
+  public static Map<String, Long> digestFiles(final File dir, List<String> ignoredFiles, UpdaterUI ui)
     throws IOException, OperationCancelledException {
-    Map<String, Long> result = new HashMap<String, Long>();
+    List<String> paths = new ArrayList<String>();
+    for (String each : Utils.collectRelativePaths(dir)) {
+      if (!ignoredFiles.contains(each)) paths.add(each);
+    }
 
-    LinkedHashSet<String> paths = Utils.collectRelativePaths(dir);
-    for (String each : paths) {
-      if (ignoredFiles.contains(each)) continue;
-      ui.setStatus(each);
-      ui.checkCancelled();
-      result.put(each, digestFile(new File(dir, each)));
+    List<Long> digests = ParallelProcessor.map(paths, new ParallelProcessor.Computation<String, Long>() {
+      @Override
+      public Long compute(String path) throws IOException {
+        return digestFile(new File(dir, path));
+      }
+    }, ui);
+
+    Map<String, Long> result = new HashMap<String, Long>();
+    for (int i = 0; i < paths.size(); i++) {
+      result.put(paths.get(i), digests.get(i));
     }
     return result;
   }
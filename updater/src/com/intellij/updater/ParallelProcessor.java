@@ -0,0 +1,83 @@
+package com.intellij.updater;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs a computation for every item on a pool of threads (one per core) and returns the results in the order of the items.
+ * <p/>
+ * The UI is only touched from the calling thread: it shows the status and the progress of the item whose result is awaited,
+ * and on cancellation the computations that haven't started yet are dropped.
+ */
+public class ParallelProcessor {
+  private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  public abstract static class Computation<K, V> {
+    public abstract V compute(K item) throws IOException;
+
+    public String getStatus(K item) {
+      return String.valueOf(item);
+    }
+  }
+
+  public static <K, V> List<V> map(List<K> items, final Computation<K, V> computation, UpdaterUI ui)
+    throws IOException, OperationCancelledException {
+    List<V> result = new ArrayList<V>(items.size());
+    if (THREADS == 1 || items.size() < 2) {
+      for (K each : items) {
+        ui.setStatus(computation.getStatus(each));
+        ui.checkCancelled();
+        result.add(computation.compute(each));
+        ui.setProgress(result.size() * 100 / items.size());
+      }
+      return result;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, items.size()), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Updater worker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      List<Future<V>> futures = new ArrayList<Future<V>>(items.size());
+      for (final K each : items) {
+        futures.add(executor.submit(new Callable<V>() {
+          public V call() throws Exception {
+            return computation.compute(each);
+          }
+        }));
+      }
+
+      for (int i = 0; i < items.size(); i++) {
+        ui.setStatus(computation.getStatus(items.get(i)));
+        ui.checkCancelled();
+        result.add(get(futures.get(i)));
+        ui.setProgress((i + 1) * 100 / items.size());
+      }
+      return result;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <V> V get(Future<V> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+}
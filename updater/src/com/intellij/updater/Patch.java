@@ -25,8 +25,8 @@ public class Patch {
     read(patchIn);
   }
 
-  private void calculateActions(File olderDir,
-                                File newerDir,
+  private void calculateActions(final File olderDir,
+                                final File newerDir,
                                 List<String> ignoredFiles,
                                 List<String> criticalFiles,
                                 List<String> optionalFiles,
@@ -63,11 +63,17 @@ public class Patch {
     ui.startProcess("Preparing actions...");
     ui.checkCancelled();
 
-    for (PatchAction each : tempActions) {
-      ui.setStatus(each.getPath());
-      ui.checkCancelled();
+    // calculating an action of a .zip file digests all its entries, so the actions are calculated concurrently
+    List<Boolean> calculated = ParallelProcessor.map(tempActions, new ActionComputation<Boolean>() {
+      @Override
+      public Boolean compute(PatchAction action) throws IOException {
+        return action.calculate(olderDir, newerDir);
+      }
+    }, ui);
 
-      if (!each.calculate(olderDir, newerDir)) continue;
+    for (int i = 0; i < tempActions.size(); i++) {
+      if (!calculated.get(i)) continue;
+      PatchAction each = tempActions.get(i);
       myActions.add(each);
       each.setCritical(criticalFiles.contains(each.getPath()));
       each.setOptional(optionalFiles.contains(each.getPath()));
@@ -146,14 +152,20 @@ public class Patch {
     final LinkedHashSet<String> files = Utils.collectRelativePaths(toDir);
     final List<ValidationResult> result = new ArrayList<ValidationResult>();
 
-    forEach(myActions, "Validating installation...", ui, true,
-            new ActionsProcessor() {
-              public void forEach(PatchAction each) throws IOException {
-                ValidationResult validationResult = each.validate(toDir);
-                if (validationResult != null) result.add(validationResult);
-                files.remove(each.getPath());
-              }
-            });
+    // validation digests the installed files, which is independent for every action
+    ui.startProcess("Validating installation...");
+    ui.checkCancelled();
+    List<ValidationResult> validationResults = ParallelProcessor.map(myActions, new ActionComputation<ValidationResult>() {
+      @Override
+      public ValidationResult compute(PatchAction action) throws IOException {
+        return action.validate(toDir);
+      }
+    }, ui);
+    for (int i = 0; i < myActions.size(); i++) {
+      ValidationResult validationResult = validationResults.get(i);
+      if (validationResult != null) result.add(validationResult);
+      files.remove(myActions.get(i).getPath());
+    }
 
     //for (String each : files) {
     //  result.add(new ValidationResult(ValidationResult.Kind.INFO,
@@ -250,6 +262,13 @@ public class Patch {
     void forEach(PatchAction each) throws IOException;
   }
 
+  abstract static class ActionComputation<V> extends ParallelProcessor.Computation<PatchAction, V> {
+    @Override
+    public String getStatus(PatchAction action) {
+      return action.getPath();
+    }
+  }
+
   public static class ApplicationResult {
     final boolean applied;
     final List<PatchAction> appliedActions;
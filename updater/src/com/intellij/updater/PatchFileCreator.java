@@ -1,20 +1,18 @@
 package com.intellij.updater;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class PatchFileCreator {
   private static final String PATCH_INFO_FILE_NAME = ".patch-info";
 
-  public static void create(File olderDir,
-                            File newerDir,
+  public static void create(final File olderDir,
+                            final File newerDir,
                             File patchFile,
                             List<String> ignoredFiles,
                             List<String> criticalFiles,
@@ -32,11 +30,22 @@ public class PatchFileCreator {
       patchInfo.write(out);
       out.closeEntry();
 
+      // diffs are calculated concurrently into temporary files, which are then copied into the patch in the order of the actions
       List<PatchAction> actions = patchInfo.getActions();
-      for (PatchAction each : actions) {
-        ui.setStatus("Packing " + each.getPath());
-        ui.checkCancelled();
-        each.buildPatchFile(olderDir, newerDir, out);
+      List<File> parts = ParallelProcessor.map(actions, new Patch.ActionComputation<File>() {
+        @Override
+        public File compute(PatchAction action) throws IOException {
+          return buildPatchPart(action, olderDir, newerDir);
+        }
+
+        @Override
+        public String getStatus(PatchAction action) {
+          return "Packing " + action.getPath();
+        }
+      }, ui);
+
+      for (File each : parts) {
+        copyPatchPart(each, out);
       }
     }
     finally {
@@ -44,6 +53,36 @@ public class PatchFileCreator {
     }
   }
 
+  private static File buildPatchPart(PatchAction action, File olderDir, File newerDir) throws IOException {
+    File part = Utils.createTempFile();
+    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(part)));
+    try {
+      // the entries are compressed when copied into the patch
+      out.setLevel(0);
+      action.buildPatchFile(olderDir, newerDir, out);
+    }
+    finally {
+      out.close();
+    }
+    return part;
+  }
+
+  private static void copyPatchPart(File part, ZipOutputStream out) throws IOException {
+    ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(part)));
+    try {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        Utils.copyStream(in, out);
+        out.closeEntry();
+      }
+    }
+    finally {
+      in.close();
+    }
+    Utils.delete(part);
+  }
+
   public static PreparationResult prepareAndValidate(File patchFile,
                                                      File toDir,
                                                      UpdaterUI ui) throws IOException, OperationCancelledException {
@@ -132,7 +132,10 @@ public class UpdateZipAction extends BaseUpdateAction {
               Utils.copyStream(newerEntryIn, patchOutput);
             }
             else {
-              writeDiff(olderEntryIn, newerEntryIn, patchOutput);
+              ZipEntry olderEntry = olderZip.getEntry(name);
+              // the size of an entry read from a stream may be unknown
+              long newerSize = newerEntry.getSize() >= 0 ? newerEntry.getSize() : olderEntry.getSize();
+              writeDiff(olderEntryIn, olderEntry.getSize(), newerEntryIn, newerSize, patchOutput);
             }
             patchOutput.closeEntry();
           }
@@ -6,8 +6,13 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class Utils {
-  // keep buffer static as there may be many calls of the copyStream method.
-  private static final byte[] BUFFER = new byte[64 * 1024];
+  // keep buffer static as there may be many calls of the copyStream method; patches are built by several threads, hence a buffer per thread.
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[64 * 1024];
+    }
+  };
   private static File myTempDir;
 
   public static boolean isZipFile(String fileName) {
@@ -15,7 +20,7 @@ public class Utils {
   }
 
   @SuppressWarnings({"SSBasedInspection"})
-  public static File createTempFile() throws IOException {
+  public static synchronized File createTempFile() throws IOException {
     if (myTempDir == null) {
       myTempDir = File.createTempFile("idea.updater", "tmp");
       delete(myTempDir);
@@ -32,7 +37,7 @@ public class Utils {
     return result;
   }
 
-  public static void cleanup() throws IOException {
+  public static synchronized void cleanup() throws IOException {
     if (myTempDir == null) return;
     delete(myTempDir);
     myTempDir = null;
@@ -131,10 +136,11 @@ public class Utils {
   }
 
   public static void copyStream(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = BUFFER.get();
     while (true) {
-      int read = in.read(BUFFER);
+      int read = in.read(buffer);
       if (read < 0) break;
-      out.write(BUFFER, 0, read);
+      out.write(buffer, 0, read);
     }
   }
 